@@ -5,13 +5,50 @@ use ApiCommonWebService::HighSpeedSnpSearch::HsssPolymorphismScriptGenerator;
 @ISA = (ApiCommonWebService::HighSpeedSnpSearch::HsssPolymorphismScriptGenerator);
 use strict;
 
+my $GENE_LOCATIONS_TABLE = "geneLocations.bin";
+
+# the gene locations file may be text (see usage) or a binary table made by hsssGeneLocationsToBinary.  if text, convert it first
+sub writeMainScriptBody {
+  my ($self, $fh, $outputDataFile) = @_;
+
+  my ($polymorphismThreshold, $unknownThreshold, $strainsListFile, $reconstructCmdName, $idPrefix,$idSuffix, $geneLocationsFile) = $self->extractArgs();
+
+  my $file = $geneLocationsFile =~ /^\// ? $geneLocationsFile : "$self->{jobDir}/$geneLocationsFile";
+  open(G, $file) || die "Can't open gene locations file '$file'\n";
+  my $magic;
+  read(G, $magic, 4);
+  close(G);
+
+  if ($magic eq "HSGL") {
+    $self->{geneLocationsTable} = $geneLocationsFile;
+  } else {
+    print $fh "hsssGeneLocationsToBinary $self->{strainFilesDir}/contigIdToSourceId.dat $geneLocationsFile $GENE_LOCATIONS_TABLE\n";
+    $self->{geneLocationsTable} = $GENE_LOCATIONS_TABLE;
+  }
+
+  $self->SUPER::writeMainScriptBody($fh, $outputDataFile);
+}
 
 sub getFinalCommandString {
   my ($self) = @_;
 
   my ($polymorphismThreshold, $unknownThreshold, $strainsListFile, $reconstructCmdName, $idPrefix,$idSuffix, $geneLocationsFile, $snpClass, $snpsMin, $snpsMax, $dndsMin, $dndsMax, $densityMin, $densityMax) = $self->extractArgs();
 
-  return "hsssGeneCharacteristicsFilter $self->{strainFilesDir}/contigIdToSourceId.dat $geneLocationsFile $snpClass $snpsMin $snpsMax $dndsMin $dndsMax $densityMin $densityMax";
+  return "hsssGeneCharacteristics $self->{geneLocationsTable} $snpClass $snpsMin $snpsMax $dndsMin $dndsMax $densityMin $densityMax";
+}
+
+sub getFindPolymorphicOutputFormat {
+  return "binary ";
+}
+
+# the output is genes, from the final command
+sub isBinaryOutput {
+  return 0;
+}
+
+# gene characteristics are computed over the whole genome
+sub getRegions {
+  return ();
 }
 
 # abstract method
@@ -33,7 +70,7 @@ usage: hsssGenerateGeneCharsFilterScript $standardArgsUsage $polymorphismArgsUsa
 where:
 $standardArgsHelp
 $polymorphismArgsHelp
-  - gene_locations_filter_file: tab delimited:  contig_source_id, start, end, gene_source_id.   Must be sorted by location
+  - gene_locations_filter_file: tab delimited:  contig_source_id, start, end, gene_source_id.  Or a binary table made by hsssGeneLocationsToBinary
   - snp_class:  coding, noncoding, synonymous, nonsynonymous, nonsense
   - snps_min: min percent of SNPs in the gene that belong to the specified class
   - snps_min: max percent of SNPs in the gene that belong to the specified class
@@ -14,6 +14,28 @@ sub getFinalCommandString {
   return "hsssGenomicLocationsFilter $self->{strainFilesDir}/contigIdToSourceId.dat $genomicLocationsFilterFile $idPrefix $idSuffix";
 }
 
+# the final command filters the SNPs, so always reads text
+sub isBinaryOutput {
+  return 0;
+}
+
+sub getRegions {
+  my ($self) = @_;
+
+  my ($polymorphismThreshold, $unknownThreshold, $strainsListFile, $reconstructNameCmd, $idPrefix, $idSuffix, $genomicLocationsFilterFile) = $self->extractArgs();
+
+  my $file = $genomicLocationsFilterFile =~ /^\// ? $genomicLocationsFilterFile : "$self->{jobDir}/$genomicLocationsFilterFile";
+  open(F, $file) || die "Can't open genomic locations file '$file'\n";
+  my @regions;
+  while (<F>) {
+    chomp;
+    my ($sourceId, $start, $end) = split(/\t/);
+    push(@regions, [$sourceId, $start, $end]) if $sourceId;
+  }
+  close(F);
+  return @regions;
+}
+
 # abstract method
 sub usage {
   my ($self) = @_;
@@ -0,0 +1,183 @@
+package ApiCommonWebService::HighSpeedSnpSearch::HsssPartitions;
+
+# Split a whole genome search into partitions, each a run of whole contigs, so that each can be run by its own
+# pipeline, in parallel.  Strain files and the reference genome are sorted by contig, so the results of the
+# partitions, concatenated in order, are those of the whole genome.  Used by the script generators when given
+# --partitions=count.  See HsssDocumentation.txt
+#
+# Also sample the reference genome's blocks, for estimating a search's result size (--estimate=interval).
+
+use strict;
+
+my $INDEX_HEADER_SIZE = 12;
+my $INDEX_ENTRY_SIZE = 16;
+my $ROW_SIZE = 8;
+my $MAX_LOCATION = 2147483647;
+my $MIN_SAMPLE_BLOCKS = 10;
+
+# split the contigs into at most $count partitions holding about the same number of reference genome rows.  the rows
+# per contig come from the reference genome's block index (see hsssBuildBlockIndex).  returns a list of refs to lists
+# of contig indexes, in order.  empty if the genome can't be or needn't be split
+sub getPartitions {
+  my ($strainFilesDir, $count) = @_;
+
+  my $refGenomeFile = "$strainFilesDir/referenceGenome.dat";
+  my $indexFile = "$refGenomeFile.idx";
+  return () unless $count && $count > 1 && -e $indexFile;
+
+  # the offset of each contig's first row.  the index has an entry for each
+  my (@contigs, @starts);
+  foreach my $entry (readBlockIndex($indexFile)) {
+    my ($seq, $loc, $offset) = @$entry;
+    next if scalar(@contigs) && $contigs[-1] == $seq;
+    push(@contigs, $seq);
+    push(@starts, $offset);
+  }
+  return () unless scalar(@contigs) > 1;
+
+  # put each contig in the partition that holds its middle row
+  my $totalRows = (-s $refGenomeFile) / $ROW_SIZE;
+  my @partitions;
+  for (my $i = 0; $i < scalar(@contigs); $i++) {
+    my $end = $i + 1 < scalar(@contigs)? $starts[$i + 1] : $totalRows * $ROW_SIZE;
+    my $middleRow = ($starts[$i] + $end) / 2 / $ROW_SIZE;
+    my $p = int($middleRow * $count / $totalRows);
+    $p = $count - 1 if $p >= $count;
+    push(@{$partitions[$p]}, $contigs[$i]);
+  }
+  return grep { $_ } @partitions;
+}
+
+# the partition a search run as one of several (--partition=index) runs, from getPartitions' partitions:  a list of
+# just that one, or empty if there aren't that many, or if the genome isn't split, when partition 0 runs it whole
+sub selectPartition {
+  my ($partitions, $index) = @_;
+
+  return () unless scalar(@$partitions) > 1 && $index =~ /^\d+$/ && $index < scalar(@$partitions);
+  return ($partitions->[$index]);
+}
+
+# a systematic sample of the reference genome's blocks, every $interval'th, for estimating a search's result size (see
+# hsssEstimateResultSize).  a block is the rows from one block index entry up to the next, so a contig's last block is
+# usually only partly full.  if a regions file (by contig index, see hsssSliceStrainFile) is given, the blocks are
+# clipped to the regions, and those outside them dropped.  at least $MIN_SAMPLE_BLOCKS blocks are sampled, if there are
+# that many.  returns the number of blocks, the number of reference genome rows in them, and a list of
+# [contig_index, start, end, rows] of the sampled ones, in order.  dies if the reference genome is not block indexed
+sub getSampleBlocks {
+  my ($strainFilesDir, $interval, $regionsFile) = @_;
+
+  my $refGenomeFile = "$strainFilesDir/referenceGenome.dat";
+  my $indexFile = "$refGenomeFile.idx";
+  die "Can't estimate the result size:  the reference genome has no block index (see hsssBuildBlockIndexes)\n" unless -e $indexFile;
+
+  # [contig_index, start, end, first_row, end_row], with the rows from the index's offsets
+  my @entries = readBlockIndex($indexFile);
+  my @blocks;
+  for (my $i = 0; $i < scalar(@entries); $i++) {
+    my ($seq, $start, $offset) = @{$entries[$i]};
+    my $next = $i + 1 < scalar(@entries)? $entries[$i + 1] : undef;
+    my $end = $next && $next->[0] == $seq? $next->[1] - 1 : $MAX_LOCATION;
+    my $endOffset = $next? $next->[2] : -s $refGenomeFile;
+    push(@blocks, [$seq, $start, $end, $offset / $ROW_SIZE, $endOffset / $ROW_SIZE]);
+  }
+  @blocks = clipToRegions(\@blocks, readRegions($regionsFile), $refGenomeFile) if $regionsFile;
+
+  my $count = scalar(@blocks);
+  my $rows = 0;
+  $rows += $_->[4] - $_->[3] foreach @blocks;
+  $interval = int($count / $MIN_SAMPLE_BLOCKS) if $interval > $count / $MIN_SAMPLE_BLOCKS;
+  $interval = 1 if $interval < 1;
+  my $first = int(($interval - 1) / 2);
+  my @samples = map { $blocks[$_] } grep { $_ % $interval == $first } (0 .. $count - 1);
+  return ($count, $rows, map { [@$_[0 .. 2], $_->[4] - $_->[3]] } @samples);
+}
+
+# the parts of the blocks in the regions, with the rows of the reference genome file in each part.  blocks are lists of
+# [contig_index, start, end, first_row, end_row], regions of [contig_index, start, end], both in order
+sub clipToRegions {
+  my ($blocks, $regions, $refGenomeFile) = @_;
+
+  open(my $ref, $refGenomeFile) || die "Can't open reference genome file '$refGenomeFile'\n";
+  binmode($ref);
+  my @clipped;
+  my $r = 0;
+  foreach my $block (@$blocks) {
+    my ($seq, $start, $end, $firstRow, $endRow) = @$block;
+    $r++ while $r < scalar(@$regions) && ($regions->[$r]->[0] < $seq || ($regions->[$r]->[0] == $seq && $regions->[$r]->[2] < $start));
+    for (my $i = $r; $i < scalar(@$regions) && $regions->[$i]->[0] == $seq && $regions->[$i]->[1] <= $end; $i++) {
+      my ($regionSeq, $regionStart, $regionEnd) = @{$regions->[$i]};
+      next if $regionEnd < $start;
+      my $clippedStart = $regionStart > $start? $regionStart : $start;
+      my $clippedEnd = $regionEnd < $end? $regionEnd : $end;
+      push(@clipped, [$seq, $clippedStart, $clippedEnd, findRowAfter($ref, $refGenomeFile, $firstRow, $endRow, $clippedStart - 1),
+                      findRowAfter($ref, $refGenomeFile, $firstRow, $endRow, $clippedEnd)]);
+    }
+  }
+  close($ref);
+  return @clipped;
+}
+
+# the first row, from $firstRow up to $endRow, of an open reference genome file, whose location is after $location, or
+# $endRow if none is.  the rows are in one block, so on one contig, sorted by location
+sub findRowAfter {
+  my ($ref, $refGenomeFile, $firstRow, $endRow, $location) = @_;
+
+  while ($firstRow < $endRow) {
+    my $middle = int(($firstRow + $endRow) / 2);
+    my $row;
+    seek($ref, $middle * $ROW_SIZE, 0) && read($ref, $row, $ROW_SIZE) == $ROW_SIZE || die "Failed reading reference genome file '$refGenomeFile'\n";
+    my (undef, $rowLocation) = unpack("s< l<", $row);
+    if ($rowLocation > $location) {
+      $endRow = $middle;
+    } else {
+      $firstRow = $middle + 1;
+    }
+  }
+  return $firstRow;
+}
+
+# the regions in a regions file, sorted, with overlapping ones coalesced, as hsssSliceStrainFile reads them
+sub readRegions {
+  my ($regionsFile) = @_;
+
+  open(my $r, $regionsFile) || die "Can't open regions file '$regionsFile'\n";
+  my @regions = sort { $a->[0] <=> $b->[0] || $a->[1] <=> $b->[1] } map { chomp; [split(/\t/)] } grep { /^-?\d+\t\d+\t\d+/ } <$r>;
+  close($r);
+  my @coalesced;
+  foreach my $region (@regions) {
+    if (scalar(@coalesced) && $coalesced[-1]->[0] == $region->[0] && $region->[1] <= $coalesced[-1]->[2]) {
+      $coalesced[-1]->[2] = $region->[2] if $region->[2] > $coalesced[-1]->[2];
+    } else {
+      push(@coalesced, [@$region]);
+    }
+  }
+  return \@coalesced;
+}
+
+# the entries of a block index (see hsssBuildBlockIndex), as a list of [contig_index, location, offset]
+sub readBlockIndex {
+  my ($indexFile) = @_;
+
+  open(my $idx, $indexFile) || die "Can't open block index '$indexFile'\n";
+  binmode($idx);
+  my $header;
+  read($idx, $header, $INDEX_HEADER_SIZE) == $INDEX_HEADER_SIZE && substr($header, 0, 4) eq "HSBI" || die "Block index '$indexFile' is corrupt\n";
+  my @entries;
+  my $entry;
+  while (read($idx, $entry, $INDEX_ENTRY_SIZE) == $INDEX_ENTRY_SIZE) {
+    push(@entries, [unpack("s< x2 l< q<", $entry)]);
+  }
+  close($idx);
+  return @entries;
+}
+
+# write a regions file (see hsssSliceStrainFile) that covers whole contigs
+sub writeRegionsFile {
+  my ($regionsFile, $contigs) = @_;
+
+  open(my $r, ">$regionsFile") || die "Can't open regions file '$regionsFile' for writing\n";
+  print $r join("", map { "$_\t0\t$MAX_LOCATION\n" } @$contigs);
+  close($r);
+}
+
+1;
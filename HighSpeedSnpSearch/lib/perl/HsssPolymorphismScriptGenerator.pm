@@ -1,6 +1,7 @@
 package ApiCommonWebService::HighSpeedSnpSearch::HsssPolymorphismScriptGenerator;
 
 use ApiCommonWebService::HighSpeedSnpSearch::HsssScriptGenerator;
+use ApiCommonWebService::HighSpeedSnpSearch::HsssPartitions;
 
 @ISA = (ApiCommonWebService::HighSpeedSnpSearch::HsssScriptGenerator);
 use strict;
@@ -18,57 +19,299 @@ sub writeMainScriptBody {
   my @mergeQueue = map { chomp; "$self->{strainFilesDir}/" . $self->getStrainNum($_)} @mergeQueueOriginal;
   my $strainsCount = scalar(@mergeQueue);
 
+  my $output = $outputDataFile? ">$outputDataFile" : "";
+  my $outputFormat = $self->getFindPolymorphicOutputFormat();
+
+  # the end of the hsssFindPolymorphic pipeline.  binary output is written as is, for the caller to decode
+  my $pipelineEnd = $self->isBinaryOutput()? $output : "| " . $self->getFinalCommandString() . " $output";
+  my $refGenomeFile = "$self->{strainFilesDir}/referenceGenome.dat";
+
+  # a search run as one of several partitions (--partition=index, see HsssWorker) reads only its own partition of the
+  # strain files, not a merged stream or strain matrix of the whole genome
+  my $partitionIndex = $self->{options}->{partition};
+  my $isPartition = defined($partitionIndex) && $partitionIndex ne '';
+  die "Invalid --partition '$partitionIndex':  must be a partition number, from 0\n" if $isPartition && $partitionIndex !~ /^\d+$/;
+
+  # if the search is restricted to regions, and the files are block indexed, only read those regions.
+  # such a search is not split:  partition 0 runs it whole, and the others find nothing
+  my $regionsFile = $self->writeRegionsFile();
+  my $slicesDir = "slices";
+
+  # if asked for an estimate of the result size (--estimate=interval), run the search on a sample of the blocks only
+  if ($self->isEstimate()) {
+    $self->writeEstimate($fh, $regionsFile, $refGenomeFile, \@mergeQueue, $output);
+    return;
+  }
+
+  if ($isPartition && $regionsFile && $partitionIndex != 0) {
+    print $fh ": $output\n";
+    return;
+  }
+  if ($regionsFile) {
+    ($refGenomeFile, @mergeQueue) = $self->writeSlices($fh, $slicesDir, $regionsFile, $refGenomeFile, @mergeQueue);
+  }
+
+  # if the merged stream of these strains was made when the data was loaded (see hsssMergeAllStrains), just read it.
+  # (not for region restricted searches, which only read part of the genome)
+  my $mergedStreamFile = $regionsFile || $isPartition? undef : $self->{options}->{merged_stream};
+  if ($mergedStreamFile) {
+    die "Merged stream file '$mergedStreamFile' does not exist or is empty\n" unless -s $mergedStreamFile;
+    print $fh "hsssFindPolymorphic $mergedStreamFile $refGenomeFile $strainsCount $polymorphismThreshold $unknownThreshold $outputFormat$pipelineEnd\n";
+    return;
+  }
+
+  # if the strain files dir has a bit-sliced strain matrix, use it instead of merging strain files.
+  # (not if the strain files hold read frequencies:  a matrix is made at one threshold)
+  my $strainMatrixFile = "$self->{strainFilesDir}/strainMatrix.dat";
+  if (-s $strainMatrixFile && !$regionsFile && !$isPartition && !$self->getReadFreqArg()) {
+    my $strainIdsFile = "$self->{jobDir}/strainIds";
+    open(my $ids, ">$strainIdsFile") || die "Can't open strain ids file '$strainIdsFile' for writing\n";
+    print $ids join("\n", map { basename($_) } @mergeQueue) . "\n";
+    close($ids);
+    print $fh "hsssFindPolymorphicMatrix $strainMatrixFile $strainIdsFile $polymorphismThreshold $unknownThreshold $outputFormat$pipelineEnd\n";
+    return;
+  }
+
+  # the merged strain stream does not depend on the thresholds.  if it is cached for this set of strains, skip the merge.
+  # (not for region restricted searches, whose merged stream is only part of the genome)
+  # the cache may evict the file before the script runs, so the script links it into the job dir, which keeps it for
+  # the job, and merges as if it weren't cached if it's gone
+  my $mergedStreamCacheFile = $regionsFile || $isPartition? undef : $self->{options}->{merged_stream_cache};
+  my $cacheFallback = $mergedStreamCacheFile && -s $mergedStreamCacheFile;
+  if ($cacheFallback) {
+    print $fh "if ln $mergedStreamCacheFile mergedStreamCached 2>/dev/null; then\n";
+    print $fh "hsssFindPolymorphic mergedStreamCached $refGenomeFile $strainsCount $polymorphismThreshold $unknownThreshold $outputFormat$pipelineEnd\n";
+    print $fh "else\n";
+  }
+  my $mergedStreamCacheTmp = "$mergedStreamCacheFile.tmp$$";
+
+  # if asked, and the reference genome is block indexed, split the genome into partitions run in parallel
+  my @partitions = $regionsFile? () : ApiCommonWebService::HighSpeedSnpSearch::HsssPartitions::getPartitions($self->{strainFilesDir}, $self->{options}->{partitions});
+  if ($isPartition) {
+    # only run this partition.  if the genome can't be split, partition 0 runs it whole, and the others find nothing
+    @partitions = ApiCommonWebService::HighSpeedSnpSearch::HsssPartitions::selectPartition(\@partitions, $partitionIndex);
+    if (scalar(@partitions) == 1) {
+      $self->writePartitions($fh, \@partitions, $refGenomeFile, \@mergeQueue, $output);
+      return;
+    }
+    if ($partitionIndex != 0) {
+      print $fh ": $output\n";
+      return;
+    }
+  }
+  elsif (scalar(@partitions) > 1) {
+    $self->writePartitions($fh, \@partitions, $refGenomeFile, \@mergeQueue, $output, $mergedStreamCacheFile && $mergedStreamCacheTmp);
+    print $fh "mv $mergedStreamCacheTmp $mergedStreamCacheFile\n" if $mergedStreamCacheFile;
+    print $fh "fi\n" if $cacheFallback;
+    return;
+  }
+
   # write making of fifos and a trap to remove them
-  my $fifoCount = $strainsCount;
-  my $fifoCursor = 0;
+  my $fifoCount = $strainsCount + ($mergedStreamCacheFile? 1 : 0);
   my $fifoPrefix = "fifo";
   print $fh "mkfifo ";
-  for (my $i = 1; $i <= scalar(@mergeQueue); $i++) {
+  for (my $i = 1; $i <= $fifoCount; $i++) {
     print $fh "$fifoPrefix$i ";
   }
   print $fh "\n";
   print $fh "trap \"rm ";
+  print $fh "-r $slicesDir " if $regionsFile;
   for (my $i = 1; $i <= $fifoCount; $i++) {
     print $fh "$fifoPrefix$i ";
   }
+  print $fh "; rm -f $mergedStreamCacheTmp" if $mergedStreamCacheFile;
   print $fh "\" EXIT TERM\n";
 
-  # print out merge commands and then the find polymorphic command
- my $output = $outputDataFile? ">$outputDataFile" : "";
-  my $finalCommand = $self->getFinalCommandString();
+  $self->writePipeline($fh, $fifoPrefix, $refGenomeFile, \@mergeQueue, $pipelineEnd, $mergedStreamCacheFile && $mergedStreamCacheTmp);
+  print $fh "wait\nmv $mergedStreamCacheTmp $mergedStreamCacheFile\n" if $mergedStreamCacheFile;
+  print $fh "fi\n" if $cacheFallback;
+}
+
+# if the strain files hold read frequencies (see hsssQuantizeReadFreqDirs), the threshold to call alleles at, as the
+# last arg of the commands that read them.  otherwise empty
+sub getReadFreqArg {
+  my ($self) = @_;
+  my $readFreq = $self->{options}->{read_freq};
+  return defined($readFreq) && $readFreq ne ''? " $readFreq" : "";
+}
+
+# print commands that stream each input through hsssSliceStrainFile, to a fifo in the slices dir.  returns the fifos
+sub writeSlices {
+  my ($self, $fh, $slicesDir, $regionsFile, @inputs) = @_;
+
+  print $fh "mkdir $slicesDir\n";
+  print $fh "mkfifo " . join(" ", map { "$slicesDir/" . basename($_) } @inputs) . "\n";
+  foreach my $input (@inputs) {
+    print $fh "hsssSliceStrainFile $input $regionsFile" . $self->getReadFreqArg() . " > $slicesDir/" . basename($input) . " &\n";
+  }
+  return map { "$slicesDir/" . basename($_) } @inputs;
+}
+
+# print the merge commands and then the find polymorphic command.  the fifos, numbered from 1, must already exist.
+# if a merged stream cache file is given, save a copy of the merged stream to it as it goes by
+sub writePipeline {
+  my ($self, $fh, $fifoPrefix, $refGenomeFile, $mergeQueue, $pipelineEnd, $mergedStreamCacheFile) = @_;
+
+  my ($polymorphismThreshold, $unknownThreshold) = $self->extractArgs();
+  my $outputFormat = $self->getFindPolymorphicOutputFormat();
+  my $strainsCount = scalar(@$mergeQueue);
+  my $fifoCursor = 0;
 
   while (1) {
     # if the merge queue has more than one stream in it, merge two at a time
-    if (scalar(@mergeQueue) > 1) {
-      my $input1 = shift(@mergeQueue);
-      my $input2 = shift(@mergeQueue);
+    if (scalar(@$mergeQueue) > 1) {
+      my $input1 = shift(@$mergeQueue);
+      my $input2 = shift(@$mergeQueue);
       $fifoCursor++;
-      push(@mergeQueue, "$fifoPrefix$fifoCursor");
-      my $strain1 = basename($input1);
-      my $strain2 = basename($input2);
-      $strain1 = 0 if $strain1 =~ /$fifoPrefix/;
-      $strain2 = 0 if $strain2 =~ /$fifoPrefix/;
-      print $fh "hsssMergeStrainsWrapper $fifoPrefix$fifoCursor $input1 $strain1 $input2 $strain2  &\n";
+      push(@$mergeQueue, "$fifoPrefix$fifoCursor");
+      my $strain1 = $input1 =~ /^$fifoPrefix\d+$/? 0 : basename($input1);
+      my $strain2 = $input2 =~ /^$fifoPrefix\d+$/? 0 : basename($input2);
+      print $fh "hsssMergeStrainsWrapper $fifoPrefix$fifoCursor $input1 $strain1 $input2 $strain2" . $self->getReadFreqArg() . "  &\n";
     }
     # if only one stream in the queue, it is the result of all the merging.  print find polymorphism command
     else {
-      my $allMerged = shift(@mergeQueue);
+      my $allMerged = shift(@$mergeQueue);
 
       # if there was only one file input, then the merged stream needs a strain id column
-      if (scalar(@mergeQueueOriginal) == 1) {
+      if ($strainsCount == 1) {
 	my $singleInputFile = $allMerged;
 	my $strainId = basename($singleInputFile);
 	$fifoCursor++;
-	print $fh "hsssAddStrainId $strainId < $singleInputFile > $fifoPrefix$fifoCursor &\n";
+	print $fh "hsssAddStrainId $strainId" . $self->getReadFreqArg() . " < $singleInputFile > $fifoPrefix$fifoCursor &\n";
+	$allMerged = "$fifoPrefix$fifoCursor";
+      }
+
+      # save a copy of the merged stream to the cache as it goes by.  move it into place only once complete
+      if ($mergedStreamCacheFile) {
+	$fifoCursor++;
+	print $fh "tee $mergedStreamCacheFile < $allMerged > $fifoPrefix$fifoCursor &\n";
 	$allMerged = "$fifoPrefix$fifoCursor";
       }
 
-      print $fh "hsssFindPolymorphic $allMerged $self->{strainFilesDir}/referenceGenome.dat $strainsCount $polymorphismThreshold $unknownThreshold | $finalCommand $output\n";
+      print $fh "hsssFindPolymorphic $allMerged $refGenomeFile $strainsCount $polymorphismThreshold $unknownThreshold $outputFormat$pipelineEnd\n";
       last;
     }
   }
 }
 
+# print a pipeline for each partition of the genome, each reading slices of the inputs, in its own dir, and writing
+# its results to a file there.  then print the results, in partition order, each as soon as its pipeline is done.
+# if a merged stream cache file is given, write the whole merged stream to it
+sub writePartitions {
+  my ($self, $fh, $partitions, $refGenomeFile, $mergeQueue, $output, $mergedStreamCacheFile) = @_;
+
+  my $pipelineEnd = $self->isBinaryOutput()? "" : "| " . $self->getFinalCommandString();
+  my @partitionDirs = map { "partition$_" } (0 .. $#$partitions);
+  my $fifoCount = scalar(@$mergeQueue) + ($mergedStreamCacheFile? 1 : 0);
+
+  print $fh "trap \"rm -rf @partitionDirs";
+  print $fh "; rm -f $mergedStreamCacheFile" if $mergedStreamCacheFile;
+  print $fh "\" EXIT TERM\n";
+
+  for (my $p = 0; $p < scalar(@$partitions); $p++) {
+    my $dir = $partitionDirs[$p];
+    my $regionsFile = "$self->{jobDir}/$dir.regions";
+    ApiCommonWebService::HighSpeedSnpSearch::HsssPartitions::writeRegionsFile($regionsFile, $partitions->[$p]);
+    my ($slicedRefGenomeFile, @slicedMergeQueue) = $self->writeSlices($fh, $dir, $regionsFile, $refGenomeFile, @$mergeQueue);
+    print $fh "mkfifo " . join(" ", map { "$dir/fifo$_" } (1 .. $fifoCount)) . "\n";
+    $self->writePipeline($fh, "$dir/fifo", $slicedRefGenomeFile, \@slicedMergeQueue, "$pipelineEnd > $dir/results &", $mergedStreamCacheFile && "$dir/merged");
+    print $fh "pid$p=\$!\n";
+  }
+
+  print $fh "{ " . join(" ", map { "wait \$pid$_; cat $partitionDirs[$_]/results;" } (0 .. $#$partitions)) . " } $output\n";
+  if ($mergedStreamCacheFile) {
+    print $fh "wait\n";
+    print $fh "cat " . join(" ", map { "$_/merged" } @partitionDirs) . " > $mergedStreamCacheFile\n";
+  }
+}
+
+# print a pipeline that runs the search on a sample of the reference genome's blocks, every interval'th (see
+# HsssPartitions::getSampleBlocks), restricted to the search's regions, if any, and writes an estimate of the number
+# of SNPs the whole search would report, with its confidence interval (see hsssEstimateResultSize)
+sub writeEstimate {
+  my ($self, $fh, $regionsFile, $refGenomeFile, $mergeQueue, $output) = @_;
+
+  my $interval = $self->{options}->{estimate};
+  die "Invalid --estimate '$interval':  must be a sampling interval, in blocks, of 1 or more\n" unless $interval =~ /^\d+$/ && $interval > 0;
+  my ($totalBlocks, $totalRows, @samples) = ApiCommonWebService::HighSpeedSnpSearch::HsssPartitions::getSampleBlocks($self->{strainFilesDir}, $interval, $regionsFile);
+  if (!scalar(@samples)) {
+    print $fh "printf '0\\t0\\t0\\t0\\t$totalBlocks\\n' $output\n";
+    return;
+  }
+
+  my $samplesFile = "$self->{jobDir}/sample.regions";
+  open(my $r, ">$samplesFile") || die "Can't open sample regions file '$samplesFile' for writing\n";
+  print $r join("", map { join("\t", @$_) . "\n" } @samples);
+  close($r);
+
+  my $dir = "sample";
+  print $fh "trap \"rm -rf $dir\" EXIT TERM\n";
+  my ($slicedRefGenomeFile, @slicedMergeQueue) = $self->writeSlices($fh, $dir, $samplesFile, $refGenomeFile, @$mergeQueue);
+  print $fh "mkfifo " . join(" ", map { "$dir/fifo$_" } (1 .. scalar(@slicedMergeQueue))) . "\n";
+  $self->writePipeline($fh, "$dir/fifo", $slicedRefGenomeFile, \@slicedMergeQueue, "| hsssEstimateResultSize $samplesFile $totalBlocks $totalRows $output");
+}
+
+# true if the search only estimates its result size (option --estimate=interval)
+sub isEstimate {
+  my ($self) = @_;
+  my $interval = $self->{options}->{estimate};
+  return defined($interval) && $interval ne '';
+}
+
+# the output format of hsssFindPolymorphic, as its optional last arg:  "" for text, or "binary " for a final command that reads binary SNP records
+sub getFindPolymorphicOutputFormat {
+  my ($self) = @_;
+  return $self->isBinaryOutput() || $self->isEstimate()? "binary " : "";
+}
+
+# true if the search's output is hsssFindPolymorphic's binary SNP records (option --output_format=binary), rather than
+# the text written by the reconstruct command.  the caller maps contig indexes to SNP ids, and applies any seq_id filter
+sub isBinaryOutput {
+  my ($self) = @_;
+  my $format = $self->{options}->{output_format};
+  die "Unknown output format '$format'\n" if $format && $format ne "binary";
+  return $format && $format eq "binary";
+}
+
+# the regions this search is restricted to, as a list of [contig_source_id, start, end].  empty if the whole genome
+sub getRegions {
+  my ($self) = @_;
+
+  my ($polymorphismThreshold, $unknownThreshold, $strainsListFile,$reconstructCmdName, $idPrefix,$idSuffix, $seqFilter, $minLoc, $maxLoc) = $self->extractArgs();
+  return () unless $seqFilter && defined($maxLoc);
+  return ([$seqFilter, $minLoc, $maxLoc]);
+}
+
+# if the search is restricted to regions, and the reference genome has a block index (see hsssBuildBlockIndex),
+# write the regions, by contig index, to a file in the job dir and return its name.  otherwise return undef
+sub writeRegionsFile {
+  my ($self) = @_;
+
+  my @regions = $self->getRegions();
+  return undef unless scalar(@regions) && -e "$self->{strainFilesDir}/referenceGenome.dat.idx";
+
+  my $contigIdFile = "$self->{strainFilesDir}/contigIdToSourceId.dat";
+  open(C, $contigIdFile) || die "Can't open contig ID file '$contigIdFile'\n";
+  my %contigIndex;
+  while (<C>) {
+    chomp;
+    my ($index, $sourceId) = split(/\t/);
+    $contigIndex{$sourceId} = $index;
+  }
+  close(C);
+
+  my $regionsFile = "$self->{jobDir}/regions";
+  open(my $r, ">$regionsFile") || die "Can't open regions file '$regionsFile' for writing\n";
+  foreach my $region (@regions) {
+    my ($sourceId, $start, $end) = @$region;
+    my $index = $contigIndex{$sourceId};
+    next unless defined($index);  # sequence has no SNPs
+    print $r "$index\t$start\t$end\n";
+  }
+  close($r);
+  return $regionsFile;
+}
+
 sub getFinalCommandString {
   my ($self) = @_;
 
@@ -17,18 +17,25 @@ sub run {
   $self->writeMainScript();
 }
 
-# extracts standard args, and returns arg list with extra args only
+# extracts standard args and options, and returns arg list with extra args only
 sub extractArgs {
   my ($self) = @_;
-  $self->usage() unless scalar(@ARGV) >= 5;
+  my @args = grep { !/^--/ } @ARGV;
+  $self->usage() unless scalar(@args) >= 5;
+  $self->{options} = {};
+  foreach my $option (grep { /^--/ } @ARGV) {
+    my ($name, $value) = $option =~ /^--(\w+)=(.*)$/;
+    $self->usage() unless $name;
+    $self->{options}->{$name} = $value;
+  }
   my @extraArgs;
-  ($self->{strainFilesDir}, $self->{jobDir}, $self->{strainsAreNames}, $self->{outputScriptFile}, $self->{outputDataFile}, @extraArgs) = @ARGV;
+  ($self->{strainFilesDir}, $self->{jobDir}, $self->{strainsAreNames}, $self->{outputScriptFile}, $self->{outputDataFile}, @extraArgs) = @args;
   return @extraArgs;
 }
 
 sub getStandardArgsUsage {
   my ($self) = @_;
-  return "strain_files_dir job_dir strains_are_names output_script_file output_data_file";
+  return "[--option=value ...] strain_files_dir job_dir strains_are_names output_script_file output_data_file";
 }
 
 sub getStandardArgsHelp {
@@ -37,7 +44,15 @@ sub getStandardArgsHelp {
   - job_dir:  a temp directory in which to create a set of unix fifos for this run.
   - strains_are_names: 0/1.  1=the strains in strains_list_file are strain names, not numbers as found in strains_file_dir.
   - output_script_file: the script
-  - output_data_file: where to write the results";
+  - output_data_file: where to write the results.  An empty string writes them to stdout
+  - options:  may appear anywhere in the args.
+      --merged_stream=file:  (polymorphism searches) read the merged strain stream of the selected strains from this file (see hsssMergeAllStrains), instead of merging strain files
+      --merged_stream_cache=file:  (polymorphism searches) read the merged strain stream from this file if it exists.  Otherwise save it there
+      --output_format=binary:  (hsssGeneratePolymorphismScript) output hsssFindPolymorphic's binary SNP records, instead of text SNP ids.  The reconstruct command is not run, so the caller maps SNP ids and applies any seq_id filter
+      --read_freq=percent:  the read frequency threshold to call alleles at, if the strain files hold read frequencies (a readFreqAll dir, see hsssQuantizeReadFreqDirs)
+      --partitions=count:  (whole genome searches) if the reference genome is block indexed (see hsssBuildBlockIndexes), split the genome into this many partitions of whole contigs, and run a pipeline for each, in parallel
+      --partition=index:  (whole genome searches, with --partitions) only run this partition (from 0), as a worker does (see HsssWorker).  Merged streams and strain matrices are not used.  If the genome is not split, partition 0 runs the whole search and the others output nothing
+      --estimate=interval:  (hsssGeneratePolymorphismScript) don't run the search, but estimate the number of SNPs it would report, from a sample of the reference genome's blocks, every interval'th (see hsssEstimateResultSize).  Needs a block indexed reference genome (see hsssBuildBlockIndexes).  Writes one line:  estimated_count, low, high (the 95% confidence interval), sampled_blocks, total_blocks";
 }
 
 #
@@ -2,6 +2,7 @@
 #include <stdint.h>
 #include <string.h>
 #include <stdlib.h>
+#include "hsssStrainFile.h"
 
 static char *stdoutStr = "STDOUT";
 
@@ -13,12 +14,11 @@ static inline int fwriteCheck (char *filename, void *ptr, size_t size, size_t co
 	}
 }
 
+// the strain file may be in either format (see hsssStrainFile.h)
+static StrainFileReader reader;
+
 inline static int readStrainRow(int16_t *seq, int32_t *loc, int8_t *allele, char *product) {
-	fread(seq, 2, 1, stdin);  
-	fread(loc, 4, 1, stdin);  
-	fread(allele, 1, 1, stdin); 
-	int retval = fread(product, 1, 1, stdin);
-	return retval;
+	return strainFileReadRow(&reader, seq, loc, allele, product);
 }
 
 inline static int writeStrainRow(int16_t *seq_p, int32_t *loc_p, int8_t *allele, char *product, int16_t *strain) {
@@ -34,17 +34,19 @@ main(int argc, char *argv[]) {
   int16_t *seq1_p = &seq1;
   int32_t loc1;
   int32_t *loc1_p = &loc1;
-  char a1;  // allele
-  char *a1_p = &a1;
+  int8_t a1;  // allele
+  int8_t *a1_p = &a1;
   char p1;  // product
   char *p1_p = &p1;
 	int16_t cmdLineStrain1;
 
-	if ( argc != 2 ) {
-		printf( "usage: %s strain_id < strainFile\n\nAdd a strain ID column to a strain file. Writes to stdout.\n\n", argv[0] );
+	if ( argc != 2 && argc != 3 ) {
+		printf( "usage: %s strain_id [read_freq_threshold] < strainFile\n\nAdd a strain ID column to a strain file. Writes to stdout.\nread_freq_threshold is needed to read a version 3 strain file, which holds read frequencies (a percent)\n\n", argv[0] );
 		return -1;
 	}
 	cmdLineStrain1 = atoi(argv[1]);
+	strainFileOpen(&reader, stdin, "STDIN");
+	if (argc == 3) strainFileSetReadFreqThreshold(&reader, atoi(argv[2]));
 
 	int f1got;
 	f1got = readStrainRow(seq1_p, loc1_p, a1_p, p1_p);
@@ -0,0 +1,128 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "hsssRecords.h"
+
+/*
+ * Time decoding every record of a file two ways:  an fread per field, as the tools once read their input, and from
+ * a buffer, as they do now (see hsssRecords.h).  Reports the cost per record of each.
+ */
+
+#define DEFAULT_REPEATS 5
+
+// the sizes of each type's fields, as the tools read them one by one
+static int strainFields[] = { 2, 4, 1, 1, 0 };
+static int mergedFields[] = { 2, 4, 1, 1, 2, 0 };
+static int consensusFields[] = { 2, 4, 1, 1, 1, 1, 1, 1, 2, 2, 1, 0 };
+
+static double now() {
+	struct timespec t;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return t.tv_sec + t.tv_nsec / 1e9;
+}
+
+static inline int64_t checksum(char *type, unsigned char *p) {
+	int16_t seq;
+	int32_t loc;
+	int8_t allele;
+	char product;
+	int16_t strain;
+	ConsensusRow row;
+	if (type[0] == 's') {
+		decodeStrainRow(p, &seq, &loc, &allele, &product);
+		return seq + loc + allele + product;
+	}
+	if (type[0] == 'm') {
+		decodeMergedRow(p, &seq, &loc, &allele, &product, &strain);
+		return seq + loc + allele + product + strain;
+	}
+	decodeConsensusRow(p, &row);
+	return row.seq + row.loc + row.majorAllele + row.minorAllele + row.majorAllelePerTenThou + row.minorAllelePerTenThou;
+}
+
+static FILE *openFile(char *filename) {
+	FILE *file = fopen(filename, "rb");
+	if (file == 0) {
+		fprintf(stderr, "Can't open file '%s' \n", filename);
+		exit(-1);
+	}
+	return file;
+}
+
+static int64_t readByField(char *type, int *fields, char *filename, long *records) {
+	FILE *file = openFile(filename);
+	unsigned char record[CONSENSUS_ROW_SIZE];
+	int64_t sum = 0;
+	*records = 0;
+	while (1) {
+		int i, offset = 0, got = 1;
+		for (i = 0; fields[i] != 0; i++) {
+			got = fread(record + offset, fields[i], 1, file);
+			if (ferror(file)) {
+				fprintf(stderr, "Failed reading file '%s' \n", filename);
+				exit(-1);
+			}
+			offset += fields[i];
+		}
+		if (got == 0) break;
+		sum += checksum(type, record);
+		(*records)++;
+	}
+	fclose(file);
+	return sum;
+}
+
+static int64_t readBuffered(char *type, int size, char *filename, long *records) {
+	FILE *file = openFile(filename);
+	RecordReader reader;
+	recordReaderOpen(&reader, file, filename);
+	unsigned char *record;
+	int64_t sum = 0;
+	*records = 0;
+	while ((record = recordRead(&reader, size)) != 0) {
+		sum += checksum(type, record);
+		(*records)++;
+	}
+	recordReaderClose(&reader);
+	fclose(file);
+	return sum;
+}
+
+int main(int argc, char *argv[]) {
+	if (argc < 3 || argc > 4 || (strcmp(argv[1], "strain") && strcmp(argv[1], "merged") && strcmp(argv[1], "consensus"))) {
+		fprintf(stderr, "\nTime reading the records of a file an fread per field, and buffered.\n\nUsage: %s strain|merged|consensus file [repeats]\n\nWhere:\n  file: a version 1 strain file or referenceGenome.dat, a saved merged strains stream or a saved consensus stream\n  repeats: times to read the file each way, reporting the fastest (default %i).  Run it once first to get the file into the page cache.\n", argv[0], DEFAULT_REPEATS);
+		return -1;
+	}
+	char *type = argv[1];
+	char *filename = argv[2];
+	int repeats = argc == 4? atoi(argv[3]) : DEFAULT_REPEATS;
+	int *fields = type[0] == 's'? strainFields : type[0] == 'm'? mergedFields : consensusFields;
+	int size = type[0] == 's'? STRAIN_ROW_SIZE : type[0] == 'm'? MERGED_ROW_SIZE : CONSENSUS_ROW_SIZE;
+
+	long records = 0;
+	int64_t byFieldSum = 0, bufferedSum = 0;
+	double byFieldBest = 1e30, bufferedBest = 1e30;
+	int i;
+	for (i = 0; i < repeats; i++) {
+		double start = now();
+		byFieldSum = readByField(type, fields, filename, &records);
+		double elapsed = now() - start;
+		if (elapsed < byFieldBest) byFieldBest = elapsed;
+
+		start = now();
+		bufferedSum = readBuffered(type, size, filename, &records);
+		elapsed = now() - start;
+		if (elapsed < bufferedBest) bufferedBest = elapsed;
+	}
+	if (byFieldSum != bufferedSum) {
+		fprintf(stderr, "The two ways read different values from '%s'\n", filename);
+		return -1;
+	}
+	double perRecord = records == 0? 0 : 1e9 / records;
+	printf("%s:  %li records\n", filename, records);
+	printf("  fread per field:  %.1f ns/record  (%.3f s)\n", byFieldBest * perRecord, byFieldBest);
+	printf("  buffered:         %.1f ns/record  (%.3f s)\n", bufferedBest * perRecord, bufferedBest);
+	return 0;
+}
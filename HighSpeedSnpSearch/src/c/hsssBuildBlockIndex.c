@@ -0,0 +1,111 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "hsssStrainFile.h"
+
+/*
+ * Write a sparse block index for a strain file or reference genome file.
+ *
+ * The index maps (seq, loc) to the byte offset of a row in the data file.  It has an entry for the
+ * first row of every sequence and for every block_size'th row, so a reader can seek to within
+ * block_size rows of any location.  See HsssDocumentation.txt for the layout.
+ *
+ * Version 2 strain files (see hsssStrainFile.h) are not indexed:  their block headers serve instead.
+ */
+
+#define INDEX_MAGIC "HSBI"
+#define INDEX_VERSION 1
+#define DEFAULT_BLOCK_SIZE 4096
+#define ROW_SIZE 8
+
+static inline int freadCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	int bytes = fread(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed reading file '%s' \n", filename );
+	 	exit(-1);
+	}
+	return bytes;
+}
+
+static inline void fwriteCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	fwrite(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed writing to file '%s' \n", filename );
+	 	exit(-1);
+	}
+}
+
+static inline void writeEntry(char *filename, FILE *out, int16_t seq, int32_t loc, int64_t offset) {
+	int16_t pad = 0;
+	fwriteCheck(filename, &seq, 2, 1, out);
+	fwriteCheck(filename, &pad, 2, 1, out);
+	fwriteCheck(filename, &loc, 4, 1, out);
+	fwriteCheck(filename, &offset, 8, 1, out);
+}
+
+int main(int argc, char *argv[]) {
+	int32_t blockSize = DEFAULT_BLOCK_SIZE;
+	char indexFileName[4096];
+
+	if (argc != 2 && argc != 3) {
+		fprintf(stderr, "\nWrite a sparse (seq, loc) -> byte offset index for a strain file or reference genome file.\n\nUsage: %s data_file [block_size]\n\nWhere:\n  data_file: a strain file or referenceGenome.dat.  The index is written to data_file.idx\n  block_size: number of rows between index entries (default %i).  Every sequence also gets an entry for its first row.\n", argv[0], DEFAULT_BLOCK_SIZE);
+		return -1;
+	}
+	if (argc == 3) blockSize = atoi(argv[2]);
+	if (blockSize <= 0) {
+		fprintf(stderr, "Invalid block size '%s' \n", argv[2]);
+		return -1;
+	}
+
+	FILE *in = fopen(argv[1], "rb");
+	if (in == 0) {
+		fprintf(stderr, "Can't open data file '%s' \n", argv[1]);
+		return -1;
+	}
+	char magic[4];
+	if (freadCheck(argv[1], magic, 1, 4, in) == 4 && (memcmp(magic, STRAIN_FILE_V2_MAGIC, 4) == 0 || memcmp(magic, STRAIN_FILE_V3_MAGIC, 4) == 0)) {
+		fprintf(stderr, "Not indexing '%s':  it is a version %c strain file, which needs no index\n", argv[1], magic[3]);
+		fclose(in);
+		return 0;
+	}
+	rewind(in);
+	snprintf(indexFileName, sizeof(indexFileName), "%s.idx", argv[1]);
+	FILE *out = fopen(indexFileName, "wb");
+	if (out == 0) {
+		fprintf(stderr, "Can't open index file '%s' \n", indexFileName);
+		return -1;
+	}
+
+	int16_t version = INDEX_VERSION;
+	int16_t rowSize = ROW_SIZE;
+	fwriteCheck(indexFileName, INDEX_MAGIC, 1, 4, out);
+	fwriteCheck(indexFileName, &version, 2, 1, out);
+	fwriteCheck(indexFileName, &rowSize, 2, 1, out);
+	fwriteCheck(indexFileName, &blockSize, 4, 1, out);
+
+	unsigned char row[ROW_SIZE];
+	int16_t seq;
+	int32_t loc;
+	int16_t prevSeq = 0;
+	int64_t offset = 0;
+	int64_t rowsSinceEntry = 0;
+	long entries = 0;
+	while (freadCheck(argv[1], row, ROW_SIZE, 1, in) != 0) {
+		memcpy(&seq, row, 2);
+		memcpy(&loc, row + 2, 4);
+		if (seq != prevSeq || rowsSinceEntry == blockSize) {
+			writeEntry(indexFileName, out, seq, loc, offset);
+			rowsSinceEntry = 0;
+			entries++;
+			prevSeq = seq;
+		}
+		rowsSinceEntry++;
+		offset += ROW_SIZE;
+	}
+
+	fclose(in);
+	fclose(out);
+	fprintf(stderr, "Wrote %li index entries for %li rows to '%s'\n", entries, (long)(offset / ROW_SIZE), indexFileName);
+	return 0;
+}
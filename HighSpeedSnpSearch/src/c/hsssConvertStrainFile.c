@@ -0,0 +1,57 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "hsssStrainFile.h"
+
+/*
+ * Convert a strain file between the fixed width (version 1) and the compact, block encoded (version 2) formats.
+ * The input may be in either format.  See hsssStrainFile.h and HsssDocumentation.txt.
+ */
+
+int main(int argc, char *argv[]) {
+	StrainFileReader reader;
+	StrainFileWriter writer;
+
+	if (argc != 4 && argc != 5) {
+		fprintf(stderr, "\nConvert a strain file to version 1 (fixed width rows) or version 2 (compact blocks) format.\n\nUsage: %s version input_file output_file [block_rows]\n\nWhere:\n  version: 1 or 2, the format to write\n  input_file: a strain file, in either format\n  output_file: the file to write\n  block_rows: for version 2, the most rows in a block (default %i)\n\nOnly strain files may be version 2.  Do not convert referenceGenome.dat.\n", argv[0], STRAIN_FILE_DEFAULT_BLOCK_ROWS);
+		return -1;
+	}
+	int version = atoi(argv[1]);
+	int blockRows = argc == 5? atoi(argv[4]) : STRAIN_FILE_DEFAULT_BLOCK_ROWS;
+	if ((version != 1 && version != 2) || blockRows <= 0) {
+		fprintf(stderr, "Invalid version '%s' or block rows\n", argv[1]);
+		return -1;
+	}
+
+	FILE *in = fopen(argv[2], "rb");
+	if (in == 0) {
+		fprintf(stderr, "Can't open input file '%s' \n", argv[2]);
+		return -1;
+	}
+	FILE *out = fopen(argv[3], "wb");
+	if (out == 0) {
+		fprintf(stderr, "Can't open output file '%s' \n", argv[3]);
+		return -1;
+	}
+
+	strainFileOpen(&reader, in, argv[2]);
+	strainFileWriterOpen(&writer, out, argv[3], version, blockRows);
+	int16_t seq;
+	int32_t loc;
+	int8_t allele;
+	char product;
+	long rows = 0;
+	while (strainFileReadRow(&reader, &seq, &loc, &allele, &product) != 0) {
+		strainFileWriteRow(&writer, seq, loc, allele, product);
+		rows++;
+	}
+	strainFileWriterClose(&writer);
+	strainFileClose(&reader);
+	fclose(in);
+	if (fclose(out) != 0) {
+		fprintf(stderr, "Failed writing to file '%s' \n", argv[3]);
+		return -1;
+	}
+	return 0;
+}
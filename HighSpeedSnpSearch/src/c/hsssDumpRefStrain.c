@@ -15,8 +15,8 @@ main(int argc, char *argv[]) {
   int16_t *seq1_p = &seq1;
   int32_t loc1;
   int32_t *loc1_p = &loc1;
-  char a1;  // allele
-  char *a1_p = &a1;
+  int8_t a1;  // allele
+  int8_t *a1_p = &a1;
   char p1;  // product
   char *p1_p = &p1;
 
@@ -0,0 +1,81 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * Dump a bit-sliced strain matrix (made by hsssStrainsToMatrix) as text.
+ * One row per location and allele that has strains: seq, loc, ref_allele, ref_product, "allele", allele, strain ids.
+ * Then one per product of the location's known alleles: seq, loc, ref_allele, ref_product, "product", product, strain ids
+ */
+
+#define MATRIX_MAGIC "HSBM"
+#define MATRIX_VERSION 2
+
+// print a row for a bitset, if it has strains
+static void printBitset(int16_t seq, int32_t loc, unsigned char *header, char *kind, int value, uint64_t *bitset, int16_t *strainIds, int strainCount) {
+	int first = 1;
+	int s;
+	for (s = 0; s < strainCount; s++) {
+		if (!(bitset[s / 64] & ((uint64_t)1 << (s % 64)))) continue;
+		if (first) {
+			printf("%i\t%i\t%i\t%i\t%s\t%i\t", seq, loc, (int8_t)header[6], (int8_t)header[7], kind, value);
+			first = 0;
+		} else printf(",");
+		printf("%i", strainIds[s]);
+	}
+	if (!first) printf("\n");
+}
+
+int main(int argc, char *argv[]) {
+	char magic[4];
+	int16_t version;
+	int16_t words;
+	int32_t strainCount;
+	int32_t blockSize;
+	int32_t count;
+
+	if (argc != 1) {
+		fprintf(stderr, "usage: %s < strainMatrixFile\n", argv[0]);
+		return -1;
+	}
+
+	fread(magic, 1, 4, stdin);
+	fread(&version, 2, 1, stdin);
+	fread(&words, 2, 1, stdin);
+	fread(&strainCount, 4, 1, stdin);
+	if (fread(&blockSize, 4, 1, stdin) == 0 || memcmp(magic, MATRIX_MAGIC, 4) != 0 || version != MATRIX_VERSION) {
+		fprintf(stderr, "Input is not a version %i strain matrix\n", MATRIX_VERSION);
+		return -1;
+	}
+	int16_t *strainIds = malloc(strainCount * sizeof(int16_t));
+	fread(strainIds, 2, strainCount, stdin);
+	printf("# strains: %i  words per bitset: %i  block size: %i\n", strainCount, words, blockSize);
+
+	unsigned char header[16];
+	unsigned char productHeader[8];
+	uint64_t *bits = malloc((size_t)5 * words * 8);
+	while (fread(&count, 4, 1, stdin) != 0) {
+		int i;
+		for (i = 0; i < count; i++) {
+			int16_t seq;
+			int32_t loc;
+			int k, p;
+			if (fread(header, 1, 16, stdin) != 16 || fread(bits, 8, 5 * words, stdin) != (size_t)5 * words) {
+				fprintf(stderr, "Truncated strain matrix\n");
+				return -1;
+			}
+			memcpy(&seq, header, 2);
+			memcpy(&loc, header + 2, 4);
+			for (k = 0; k < 5; k++) printBitset(seq, loc, header, "allele", k, bits + k * words, strainIds, strainCount);
+			for (p = 0; p < header[8]; p++) {
+				if (fread(productHeader, 1, 8, stdin) != 8 || fread(bits, 8, words, stdin) != (size_t)words) {
+					fprintf(stderr, "Truncated strain matrix\n");
+					return -1;
+				}
+				printBitset(seq, loc, header, "product", (int8_t)productHeader[0], bits, strainIds, strainCount);
+			}
+		}
+	}
+	return 0;
+}
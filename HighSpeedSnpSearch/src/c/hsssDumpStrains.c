@@ -1,15 +1,21 @@
 #include <stdio.h>
 #include <stdint.h>
 #include <string.h>
+#include "hsssStrainFile.h"
+
+// unmerged strain files may be in either strain file format (see hsssStrainFile.h)
+static StrainFileReader reader;
 
 inline static int readStrainRow(int16_t *seq, int32_t *loc, int8_t *allele, char *product, int16_t *strain, int16_t cmdLineStrain) {
+	if (cmdLineStrain != 0) {
+		*strain = cmdLineStrain;
+		return strainFileReadRow(&reader, seq, loc, allele, product);
+	}
 	fread(seq, 2, 1, stdin);  
 	fread(loc, 4, 1, stdin);  
 	fread(allele, 1, 1, stdin); 
-	int retval = fread(product, 1, 1, stdin);
-	if (cmdLineStrain == 0) retval = fread(strain, 2, 1, stdin);
-	else *strain = cmdLineStrain;
-	return retval;
+	fread(product, 1, 1, stdin);
+	return fread(strain, 2, 1, stdin);
 }
 
 main(int argc, char *argv[]) {
@@ -17,19 +23,21 @@ main(int argc, char *argv[]) {
   int16_t *seq1_p = &seq1;
   int32_t loc1;
   int32_t *loc1_p = &loc1;
-  char a1;  // allele
-  char *a1_p = &a1;
+  int8_t a1;  // allele
+  int8_t *a1_p = &a1;
   char p1;  // product
   char *p1_p = &p1;
   int16_t strain1;
   int16_t *strain1_p = &strain1;
 	int16_t cmdLineStrain1;
 
-	if ( argc != 2 ) {
-		printf( "usage: %s strain_id < strainFile\n\nstrain_id should be 0 if input includes strain info per row \n\n", argv[0] );
+	if ( argc != 2 && argc != 3 ) {
+		printf( "usage: %s strain_id [read_freq_threshold] < strainFile\n\nstrain_id should be 0 if input includes strain info per row \nread_freq_threshold is needed to read a version 3 strain file, which holds read frequencies (a percent)\n\n", argv[0] );
 		return -1;
 	}
 	cmdLineStrain1 = atoi(argv[1]);
+	if (cmdLineStrain1 != 0) strainFileOpen(&reader, stdin, "STDIN");
+	if (argc == 3) strainFileSetReadFreqThreshold(&reader, atoi(argv[2]));
 
 	int f1got;
 	f1got = readStrainRow(seq1_p, loc1_p, a1_p, p1_p, strain1_p, cmdLineStrain1);
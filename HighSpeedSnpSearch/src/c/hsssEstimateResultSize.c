@@ -0,0 +1,135 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "hsssRecords.h"
+
+/*
+ * Estimate the number of SNPs a polymorphism search would report, from its results on a sample of the reference
+ * genome's blocks (see hsssGeneratePolymorphismScript's --estimate option).
+ *
+ * The input is hsssFindPolymorphic's binary SNP records for the sampled blocks only.  Each record is counted against
+ * the sampled block (a region) it falls in.  The blocks are a systematic sample, every k'th, so they are treated as a
+ * simple random sample of the blocks.  Blocks hold different numbers of reference genome rows (a contig's last block
+ * is only partly full, and region searches clip the blocks), so this is a ratio estimate:  the SNPs per row in the
+ * sampled blocks times the rows in all of them.  Its 95% confidence interval is from the ratio estimator's variance
+ * (the variance of each block's count about the ratio times its rows), with the finite population correction.  If
+ * every block is sampled, the count is exact.
+ */
+
+#define Z_95 1.96
+
+typedef struct {
+	int16_t seq;
+	int32_t start;
+	int32_t end;
+	long rows;
+	long count;
+} Sample;
+
+// the tools are built without libm
+static double squareRoot(double x) {
+	if (x <= 0) return 0;
+	double r = x > 1? x : 1;
+	int i;
+	for (i = 0; i < 100; i++) {
+		double next = (r + x / r) / 2;
+		if (next >= r) break;
+		r = next;
+	}
+	return r;
+}
+
+// read the sampled blocks, in order.  returns the count
+static int readSamples(char *filename, Sample **samples_p) {
+	char line[1024];
+	int count = 0, capacity = 256;
+	Sample *samples = malloc(capacity * sizeof(Sample));
+	FILE *f = fopen(filename, "r");
+	if (f == 0) {
+		fprintf(stderr, "Can't open sample regions file '%s' \n", filename);
+		exit(-1);
+	}
+	while (fgets(line, sizeof(line), f) != 0) {
+		int seq;
+		long start, end, rows;
+		if (sscanf(line, "%i\t%li\t%li\t%li", &seq, &start, &end, &rows) != 4) continue;
+		if (count == capacity) {
+			capacity *= 2;
+			samples = realloc(samples, capacity * sizeof(Sample));
+		}
+		if (count > 0 && (seq < samples[count - 1].seq || (seq == samples[count - 1].seq && start <= samples[count - 1].end))) {
+			fprintf(stderr, "Sample regions file '%s' is not sorted, or has overlapping regions, at seq %i location %li\n", filename, seq, start);
+			exit(-1);
+		}
+		samples[count].seq = seq;
+		samples[count].start = start;
+		samples[count].end = end;
+		samples[count].rows = rows;
+		samples[count].count = 0;
+		count++;
+	}
+	fclose(f);
+	*samples_p = samples;
+	return count;
+}
+
+int main(int argc, char *argv[]) {
+	if (argc != 4) {
+		fprintf(stderr, "\nEstimate the number of SNPs a search would report, from its binary SNP records (see hsssFindPolymorphic) for a sample of the reference genome's blocks.\n\nUsage: %s sample_regions_file total_blocks total_rows < snp_records\n\nWhere:\n  sample_regions_file: tab delimited: seq_id (HSSS sequence index), start, end, rows.  The sampled blocks, in order, with the number of reference genome rows in each\n  total_blocks: the number of blocks the sample was taken from\n  total_rows: the number of reference genome rows in those blocks\n\nTab delimited output, one line: estimated_count, low, high (the 95%% confidence interval), sampled_blocks, total_blocks\n\n", argv[0]);
+		return -1;
+	}
+	Sample *samples;
+	int sampleCount = readSamples(argv[1], &samples);
+	long totalBlocks = atol(argv[2]);
+	if (totalBlocks < sampleCount) {
+		fprintf(stderr, "Invalid total_blocks '%s':  fewer than the %i sampled blocks\n", argv[2], sampleCount);
+		return -1;
+	}
+	long sampledRows = 0;
+	int i;
+	for (i = 0; i < sampleCount; i++) sampledRows += samples[i].rows;
+	long totalRows = atol(argv[3]);
+	if (totalRows < sampledRows) {
+		fprintf(stderr, "Invalid total_rows '%s':  fewer than the %li rows in the sampled blocks\n", argv[3], sampledRows);
+		return -1;
+	}
+
+	// records are in order, as are the samples
+	RecordReader in;
+	recordReaderOpen(&in, stdin, "STDIN");
+	unsigned char *record;
+	int s = 0;
+	long sampledSnps = 0;
+	while ((record = recordRead(&in, SNP_RECORD_SIZE)) != 0) {
+		int16_t seq;
+		int32_t loc;
+		memcpy(&seq, record, 2);
+		memcpy(&loc, record + 2, 4);
+		while (s < sampleCount && (samples[s].seq < seq || (samples[s].seq == seq && samples[s].end < loc))) s++;
+		if (s < sampleCount && samples[s].seq == seq && samples[s].start <= loc) {
+			samples[s].count++;
+			sampledSnps++;
+		}
+	}
+	recordReaderClose(&in);
+
+	long estimate = sampledSnps, low = sampledSnps, high = sampledSnps;
+	if (sampleCount > 0 && sampleCount < totalBlocks && sampledRows > 0) {
+		double ratio = (double)sampledSnps / sampledRows;
+		double meanRows = (double)sampledRows / sampleCount;
+		double variance = 0;
+		for (i = 0; i < sampleCount; i++) {
+			double residual = samples[i].count - ratio * samples[i].rows;
+			variance += residual * residual;
+		}
+		variance = sampleCount > 1? variance / (sampleCount - 1) : sampledSnps;  // one block:  as if its count were Poisson
+		double standardError = totalRows / meanRows * squareRoot((1 - (double)sampleCount / totalBlocks) * variance / sampleCount);
+		estimate = (long)(ratio * totalRows + 0.5);
+		low = (long)(ratio * totalRows - Z_95 * standardError + 0.5);
+		high = (long)(ratio * totalRows + Z_95 * standardError + 0.5);
+		if (low < sampledSnps) low = sampledSnps;  // the sample's SNPs are certainly in the results
+	}
+	printf("%li\t%li\t%li\t%i\t%li\n", estimate, low, high, sampleCount, totalBlocks);
+	return 0;
+}
@@ -0,0 +1,362 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "hsssStrainFile.h"
+
+/*
+ * Find the SNPs at which two groups of strains have different major alleles, reading each strain file once, however
+ * many groups it is in.
+ *
+ * This is the work of two merge trees (hsssMergeStrains), each ending in hsssMergedToConsensus, and hsssFindMajorAlleles
+ * comparing the two consensus streams, in one pass.  The strain files are merged in one heap.  Each location's rows of
+ * a file are counted towards each group the file is in, and, at each reference genome location, each group's consensus
+ * is made as hsssMergedToConsensus makes it, and the two compared as hsssFindMajorAlleles compares them.  A strain in
+ * both groups, or a file read by both, is read and decoded once.  (A merged stream can't be used instead:  it holds
+ * unknowns as a count per location, without their strains.)
+ *
+ * A version 3 strain file (see hsssStrainFile.h) in both groups is called at each group's read frequency threshold.
+ * Other strain files were filtered at a threshold when they were made, so a file in both groups is read at one.
+ *
+ * Output is as hsssFindMajorAlleles's.
+ */
+
+typedef struct {
+	int strainCount;
+	int minMajorAllelePerTenThou;
+	int unknownsThreshold;
+	int readFreqThreshold;
+
+	// per SNP counters, as in hsssMergedToConsensus
+	int alleleCount;
+	int nonRefStrainsCount;
+	int alleles[5];
+	int products[4][28];
+} Group;
+
+#define GROUP_A 1
+#define GROUP_B 2
+
+typedef struct {
+	FILE *file;
+	StrainFileReader reader;   // strain files may be in any format (see hsssStrainFile.h)
+	char *filename;
+	int groups;                // GROUP_A and/or GROUP_B
+
+	// the rows of the current location, all of them for a version 3 file (called per group), and the first of the next
+	QuantizedRow rows[STRAIN_FILE_MAX_LOCATION_ROWS];
+	int count;
+	QuantizedRow next;
+	int haveNext;
+} StrainCursor;
+
+static Group groups[2];
+static StrainCursor *cursors;
+static int cursorCount = 0;
+static int *heap;   // indexes of the cursors that have a current location, by location
+static int heapSize = 0;
+
+static char alleleChars[5] = {0, 'A', 'C', 'G', 'T'};
+
+static inline int compareLocation(int16_t seq1, int32_t loc1, int16_t seq2, int32_t loc2) {
+	if (seq1 != seq2) return seq1 < seq2? -1 : 1;
+	if (loc1 != loc2) return loc1 < loc2? -1 : 1;
+	return 0;
+}
+
+static inline int readRow(StrainCursor *c, QuantizedRow *row) {
+	if (c->reader.quantized) return strainFileReadQuantizedRow(&c->reader, row);
+	row->readFreq = 0;
+	return strainFileReadRow(&c->reader, &row->seq, &row->loc, &row->allele, &row->product);
+}
+
+// read the rows of the cursor's next location.  0 at end of file
+static int readLocation(StrainCursor *c) {
+	if (!c->haveNext) return 0;
+	c->rows[0] = c->next;
+	c->count = 1;
+	while ((c->haveNext = readRow(c, &c->next)) && c->next.seq == c->rows[0].seq && c->next.loc == c->rows[0].loc) {
+		if (c->count == STRAIN_FILE_MAX_LOCATION_ROWS) strainFileCorrupt(&c->reader, "too many rows at one location");
+		c->rows[c->count++] = c->next;
+	}
+	return 1;
+}
+
+static inline int heapLess(int i, int j) {
+	QuantizedRow *a = &cursors[heap[i]].rows[0];
+	QuantizedRow *b = &cursors[heap[j]].rows[0];
+	return compareLocation(a->seq, a->loc, b->seq, b->loc) < 0;
+}
+
+static void heapDown(int i) {
+	while (1) {
+		int least = i, left = 2 * i + 1, right = 2 * i + 2;
+		if (left < heapSize && heapLess(left, least)) least = left;
+		if (right < heapSize && heapLess(right, least)) least = right;
+		if (least == i) return;
+		int t = heap[i]; heap[i] = heap[least]; heap[least] = t;
+		i = least;
+	}
+}
+
+static void heapUp(int i) {
+	while (i > 0 && heapLess(i, (i - 1) / 2)) {
+		int parent = (i - 1) / 2;
+		int t = heap[i]; heap[i] = heap[parent]; heap[parent] = t;
+		i = parent;
+	}
+}
+
+// compare the location of the cursor on the top of the heap to a location
+static inline int compareTop(int16_t seq, int32_t loc) {
+	QuantizedRow *top = &cursors[heap[0]].rows[0];
+	return compareLocation(top->seq, top->loc, seq, loc);
+}
+
+// move the cursor on the top of the heap to its next location, or off the heap at end of file
+static void advanceTop() {
+	if (readLocation(&cursors[heap[0]])) heapDown(0);
+	else {
+		heap[0] = heap[--heapSize];
+		heapDown(0);
+	}
+}
+
+// the strains file:  a strain file, and the groups it is in (A, B or AB), per line
+static void openStrainFiles(char *strainsFile) {
+	char line[4096];
+	int capacity = 256;
+	FILE *f = fopen(strainsFile, "r");
+	if (f == 0) {
+		fprintf(stderr, "Can't open strains file '%s' \n", strainsFile);
+		exit(-1);
+	}
+	cursors = calloc(capacity, sizeof(StrainCursor));
+	while (fgets(line, sizeof(line), f) != 0) {
+		char *path = strtok(line, "\t\n");
+		char *groupNames = strtok(0, "\t\n");
+		if (path == 0) continue;
+		if (groupNames == 0 || strspn(groupNames, "AB") != strlen(groupNames)) {
+			fprintf(stderr, "Strains file '%s' has no groups (A, B or AB) for strain file '%s'\n", strainsFile, path);
+			exit(-1);
+		}
+		if (cursorCount == capacity) {
+			capacity *= 2;
+			cursors = realloc(cursors, capacity * sizeof(StrainCursor));
+			memset(cursors + cursorCount, 0, (capacity - cursorCount) * sizeof(StrainCursor));
+		}
+		StrainCursor *c = &cursors[cursorCount++];
+		c->filename = strdup(path);
+		c->groups = (strchr(groupNames, 'A')? GROUP_A : 0) | (strchr(groupNames, 'B')? GROUP_B : 0);
+		if (c->groups & GROUP_A) groups[0].strainCount++;
+		if (c->groups & GROUP_B) groups[1].strainCount++;
+	}
+	fclose(f);
+
+	heap = malloc(cursorCount * sizeof(int));
+	int i;
+	for (i = 0; i < cursorCount; i++) {
+		StrainCursor *c = &cursors[i];
+		c->file = fopen(c->filename, "rb");
+		if (c->file == 0) {
+			fprintf(stderr, "Can't open strain file '%s' \n", c->filename);
+			exit(-1);
+		}
+		strainFileOpen(&c->reader, c->file, c->filename);
+		if (c->reader.quantized) {
+			int g;
+			for (g = 0; g < 2; g++) {
+				if ((c->groups & (1 << g)) && groups[g].readFreqThreshold < 0) {
+					fprintf(stderr, "Strain file '%s' holds read frequencies (version 3), and needs a read frequency threshold to be read\n", c->filename);
+					exit(-1);
+				}
+			}
+		}
+		c->haveNext = readRow(c, &c->next);
+		if (readLocation(c)) {
+			heap[heapSize] = i;
+			heapUp(heapSize++);
+		}
+	}
+}
+
+static inline void resetCounts(Group *g) {
+	memset(g->alleles, 0, sizeof(g->alleles));
+	memset(g->products, 0, sizeof(g->products));
+	g->alleleCount = 0;
+	g->nonRefStrainsCount = 0;
+}
+
+// count one strain's rows at a location, as hsssMergedToConsensus counts a strain's rows of a merged stream
+static void updateCounts(Group *g, QuantizedRow *rows, int count) {
+	int known = 0;
+	int i;
+	for (i = 0; i < count; i++) {
+		int8_t allele = rows[i].allele;
+		char product = rows[i].product;
+		if (allele == 0) {
+			g->alleles[0]++;
+			g->nonRefStrainsCount++;
+		} else {
+			g->alleles[allele]++;
+			if (product != 0) {
+				if (product == '*') g->products[allele-1][27]++;
+				else g->products[allele-1][product-64]++;  // normalize for ascii A(65).  we want A to index as 1 (0=unk)
+			}
+			g->alleleCount++;
+			known = 1;
+		}
+	}
+	if (known) g->nonRefStrainsCount++;   // diploid strains are only counted once
+}
+
+// count a cursor's current location towards each of its groups
+static void countLocation(StrainCursor *c) {
+	QuantizedRow called[STRAIN_FILE_MAX_LOCATION_ROWS];
+	int g;
+	for (g = 0; g < 2; g++) {
+		if (!(c->groups & (1 << g))) continue;
+		if (c->reader.quantized) {
+			int calledCount = strainFileCallAlleles(c->rows, c->count, groups[g].readFreqThreshold, called);
+			updateCounts(&groups[g], called, calledCount);
+		}
+		else updateCounts(&groups[g], c->rows, c->count);
+	}
+}
+
+// in a product array, find the product with the highest count.
+// also see if there is more than one with non-zero count (isVariable)
+static inline void findMaxProduct(Group *g, int allele, char *product, char *isVariable) {
+	int max = 0;
+
+	// i of 0 means unknown.  i of 1 is an A
+	int i; for (i=0; i<27; i++) {
+		int prodCount = g->products[allele-1][i];
+		if (prodCount > max) {
+			if (max != 0) *isVariable = 1;
+			max = prodCount;
+			*product = i + 64;   // 0th element of products is no product; 1st element is A
+		}
+	}
+	if (g->products[allele-1][27] > max) {  // 27th element is nonsense (stop codon)
+		*product = '*';
+	}
+}
+
+static inline char findMaxAllele(Group *g, char *maxAllele, int *maxCount) {
+	int i;
+	char isVariable = 0;
+	for (i=1; i<5; i++) {
+		int alleleCnt = g->alleles[i];
+		if (alleleCnt > *maxCount) {
+			if (*maxCount != 0) isVariable = 1;
+			*maxAllele = i;
+			*maxCount = alleleCnt;
+		}
+	}
+	return isVariable;
+}
+
+/*
+ * Make a group's consensus of a SNP from its counts, as hsssMergedToConsensus does.  Returns 0 if it has none (too
+ * many unknowns, or too few major alleles).
+ */
+static int makeConsensus(Group *g, int16_t seq, int32_t loc, int8_t refAllele, char refProduct, ConsensusRow *snp) {
+	if (g->alleles[0] > g->unknownsThreshold) return 0;
+
+	int ref_count = g->strainCount - g->nonRefStrainsCount; // nonRefStrainsCount includes unknowns
+	g->alleleCount += ref_count;
+	g->alleles[(int)refAllele] += ref_count;
+	if (refAllele != 0 && refProduct != 0) {   // refAllele can be 0 (ambiguous base pair) but still have a product)
+		if (refProduct == '*') g->products[refAllele-1][27] += ref_count;
+		else g->products[refAllele-1][refProduct-64] += ref_count;  // subtract 64 to make A=1 (0=unk)
+	}
+
+	// find major allele.  there is none if every strain is unknown or like an ambiguous reference (allele 0)
+	char majorAllele = 0;
+	int majorCount = 0;
+	findMaxAllele(g, &majorAllele, &majorCount);
+	if (majorCount == 0) return 0;
+
+	char majorProduct = 0;  // ie, no product
+	char majorProductIsVariable = 0;
+	findMaxProduct(g, majorAllele, &majorProduct, &majorProductIsVariable);
+
+	char minorAllele = 0;
+	int minorCount = 0;
+	g->alleles[(int)majorAllele] = 0;  // no longer consider major allele
+	char isTriallelic = findMaxAllele(g, &minorAllele, &minorCount);
+
+	char minorProduct = 0;
+	char minorProductIsVariable = 0;
+	if (minorAllele != 0) findMaxProduct(g, minorAllele, &minorProduct, &minorProductIsVariable);
+
+	int16_t majorAllelePerTenThou = majorCount * 10000 / g->alleleCount;
+	if (majorAllelePerTenThou < g->minMajorAllelePerTenThou) return 0;
+	int16_t minorAllelePerTenThou = minorCount * 10000 / g->alleleCount;
+	ConsensusRow row = { seq, loc, majorAllele, majorProduct, majorProductIsVariable, minorAllele, minorProduct, minorProductIsVariable, majorAllelePerTenThou, minorAllelePerTenThou, isTriallelic };
+	*snp = row;
+	return 1;
+}
+
+static inline void reportSnp(ConsensusRow snp1, ConsensusRow snp2) {
+	char snp1MajorProductDisplay = snp1.majorProduct == 0? '-' : snp1.majorProduct; // display a '-' if no product
+	char snp2MajorProductDisplay = snp2.majorProduct == 0? '-' : snp2.majorProduct;
+
+	printf("%i\t%i\t%c\t%.2f\t%i\t%c\t%i\t%c\t%.2f\t%i\t%c\t%i\n", snp1.seq, snp1.loc, alleleChars[(int)snp1.majorAllele], (float)snp1.majorAllelePerTenThou/100, snp1.isTriallelic, snp1MajorProductDisplay, snp1.majorProductIsVariable, alleleChars[(int)snp2.majorAllele], (float)snp2.majorAllelePerTenThou/100, snp2.isTriallelic, snp2MajorProductDisplay, snp2.majorProductIsVariable);
+}
+
+int main(int argc, char *argv[]) {
+	if (argc != 7 && argc != 9) {
+		fprintf(stderr, "\nFind the SNPs at which two groups of strains have different major alleles, reading each strain file once.  Writes to stdout.\n\nUsage: %s strains_file ref_genome_file set_a_major_alleles_threshold set_a_unknowns_threshold set_b_major_alleles_threshold set_b_unknowns_threshold [set_a_read_freq_threshold set_b_read_freq_threshold]\n\nWhere:\n  strains_file: tab delimited:  strain file, groups (A, B or AB).  A strain file in both groups is listed once, as AB\n  major_alleles_threshold:  there must be this percent or more major alleles for a group to have a consensus of a SNP\n  unknowns_threshold:  there must be this many or fewer unknowns for a group to have a consensus of a SNP\n  read_freq_threshold:  needed to read version 3 strain files, which hold read frequencies (a percent).  Each group's alleles are called at its own threshold, or -1 if it has no version 3 strain files\n\nOutput is as hsssFindMajorAlleles's:  seq, location, then, for each group, major allele, major allele percent, triallelic, major product, major product is variable\n\n", argv[0]);
+		return -1;
+	}
+
+	groups[0].minMajorAllelePerTenThou = atoi(argv[3]) * 100;
+	groups[0].unknownsThreshold = atoi(argv[4]);
+	groups[1].minMajorAllelePerTenThou = atoi(argv[5]) * 100;
+	groups[1].unknownsThreshold = atoi(argv[6]);
+	groups[0].readFreqThreshold = argc == 9? atoi(argv[7]) : -1;
+	groups[1].readFreqThreshold = argc == 9? atoi(argv[8]) : -1;
+	openStrainFiles(argv[1]);
+
+	FILE *refFile = fopen(argv[2], "rb");
+	if (refFile == 0) {
+		fprintf(stderr, "Can't open refGenomeFile '%s' \n", argv[2]);
+		return -1;
+	}
+	RecordReader refReader;
+	recordReaderOpen(&refReader, refFile, argv[2]);
+
+	// each reference genome location.  at those no strain has a row at, both groups' consensus is the reference
+	unsigned char *refRow;
+	while (heapSize > 0 && (refRow = recordRead(&refReader, STRAIN_ROW_SIZE)) != 0) {
+		int16_t refSeq;
+		int32_t refLoc;
+		int8_t refAllele;
+		char refProduct;
+		decodeStrainRow(refRow, &refSeq, &refLoc, &refAllele, &refProduct);
+
+		// rows at locations that are not in the reference genome are skipped
+		while (heapSize > 0 && compareTop(refSeq, refLoc) < 0) advanceTop();
+		if (heapSize == 0 || compareTop(refSeq, refLoc) != 0) continue;
+
+		resetCounts(&groups[0]);
+		resetCounts(&groups[1]);
+		while (heapSize > 0 && compareTop(refSeq, refLoc) == 0) {
+			countLocation(&cursors[heap[0]]);
+			advanceTop();
+		}
+
+		ConsensusRow snpA, snpB;
+		if (makeConsensus(&groups[0], refSeq, refLoc, refAllele, refProduct, &snpA)
+				&& makeConsensus(&groups[1], refSeq, refLoc, refAllele, refProduct, &snpB)
+				&& snpA.majorAllele != snpB.majorAllele)
+			reportSnp(snpA, snpB);
+	}
+
+	recordReaderClose(&refReader);
+	int i;
+	for (i = 0; i < cursorCount; i++) strainFileClose(&cursors[i].reader);
+	return 0;
+}
@@ -2,51 +2,18 @@
 #include <stdint.h>
 #include <stdlib.h>
 #include <string.h>
-
-typedef struct {
-	int16_t seq;
-	int32_t loc;
-	char majorAllele;  
-	char majorProduct;  
-	char majorProductIsVariable;  
-	char minorAllele;  
-	char minorProduct;  
-	char minorProductIsVariable;  
-	int16_t majorAllelePerTenThou;
-	int16_t minorAllelePerTenThou;
-	char isTriallelic;
-} snp;
-
-static char *stdoutStr = "STDOUT";
+#include "hsssRecords.h"
 
 static char alleles[5] = {0, 'A', 'C', 'G', 'T'};
 
-static inline int freadCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
-	int bytes = fread(ptr, size, count,stream);
-	if (ferror(stream)) {
-		fprintf(stderr, "Failed reading file '%s' \n", filename );
-	 	exit(-1);
-	}
-	return bytes;
-}
-
-static inline int readSnp(FILE *stream, snp *snp, char *filename) {
-	int16_t tmp;
-
-	freadCheck(filename, &(*snp).seq, 2, 1, stream);
-	freadCheck(filename, &(*snp).loc, 4, 1, stream);
-	freadCheck(filename, &(*snp).majorAllele, 1, 1, stream);
-	freadCheck(filename, &(*snp).majorProduct, 1, 1, stream);
-	freadCheck(filename, &(*snp).majorProductIsVariable, 1, 1, stream);
-	freadCheck(filename, &(*snp).minorAllele, 1, 1, stream);
-	freadCheck(filename, &(*snp).minorProduct, 1, 1, stream);
-	freadCheck(filename, &(*snp).minorProductIsVariable, 1, 1, stream);
-	freadCheck(filename, &(*snp).majorAllelePerTenThou, 2, 1, stream);
-	freadCheck(filename, &(*snp).minorAllelePerTenThou, 2, 1, stream);
-	return freadCheck(filename, &(*snp).isTriallelic, 1, 1, stream);
+static inline int readSnp(RecordReader *reader, ConsensusRow *snp) {
+	unsigned char *row = recordRead(reader, CONSENSUS_ROW_SIZE);
+	if (row == 0) return 0;
+	decodeConsensusRow(row, snp);
+	return 1;
 }
 
-static inline void reportSnp(snp snp1, snp snp2) {
+static inline void reportSnp(ConsensusRow snp1, ConsensusRow snp2) {
 	char snp1MajorProductDisplay = snp1.majorProduct == 0? '-' : snp1.majorProduct; // display a '-' if no product
 	char snp2MajorProductDisplay = snp2.majorProduct == 0? '-' : snp2.majorProduct;
 
@@ -56,8 +23,10 @@ static inline void reportSnp(snp snp1, snp snp2) {
 main(int argc, char *argv[]) {
 	FILE *f1;
 	FILE *f2;
-	snp snp1;
-	snp snp2;
+	RecordReader reader1;
+	RecordReader reader2;
+	ConsensusRow snp1;
+	ConsensusRow snp2;
 
 	if ( argc != 3 ) {
 		fprintf(stderr, "usage: %s consensus_file1 consensus_file2\n\n", argv[0] );
@@ -75,29 +44,31 @@ main(int argc, char *argv[]) {
 		fprintf(stderr,"Can't open file2 '%s' \n", argv[2] );
 		return -1;
 	}
+	recordReaderOpen(&reader1, f1, argv[1]);
+	recordReaderOpen(&reader2, f2, argv[2]);
 
 	int f1got;
 	int f2got;
-	f1got = readSnp(f1, &snp1, argv[1]);
-	f2got = readSnp(f2, &snp2, argv[2]);
+	f1got = readSnp(&reader1, &snp1);
+	f2got = readSnp(&reader2, &snp2);
 
 	while(f1got != 0 && f2got != 0) {
 		// skip snps in file 1 absent from file 2
 		while ((snp1.seq < snp2.seq || (snp1.seq == snp2.seq && snp1.loc < snp2.loc)) && f1got != 0) { 
-			f1got = readSnp(f1, &snp1, argv[1]);
+			f1got = readSnp(&reader1, &snp1);
 		}
 		// skip snps in file 2 absent from file 1
 		while ((snp2.seq < snp1.seq || (snp2.seq == snp1.seq && snp2.loc < snp1.loc)) && f2got != 0) {
-			f2got = readSnp(f2, &snp2, argv[2]);
+			f2got = readSnp(&reader2, &snp2);
 		}
 		if (snp1.seq == snp2.seq && snp1.loc == snp2.loc) {
 			if (snp1.majorAllele != snp2.majorAllele) reportSnp(snp1, snp2);
-			f1got = readSnp(f1, &snp1, argv[1]);
-			f2got = readSnp(f2, &snp2, argv[2]);
+			f1got = readSnp(&reader1, &snp1);
+			f2got = readSnp(&reader2, &snp2);
 		}
 	}
-        while (f1got != 0) f1got = readSnp(f1, &snp1, argv[1]);
-	while (f2got != 0) f2got = readSnp(f2, &snp2, argv[2]);
+        while (f1got != 0) f1got = readSnp(&reader1, &snp1);
+	while (f2got != 0) f2got = readSnp(&reader2, &snp2);
 	fclose(f1);
 	fclose(f2);
 	return 0;
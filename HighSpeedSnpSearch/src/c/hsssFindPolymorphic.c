@@ -2,27 +2,32 @@
 #include <stdint.h>
 #include <stdlib.h>
 #include <string.h> 
+#include "hsssRecords.h"
 
 // using global variables to cut down on stack pushing operations.
 FILE *strainFile;
 FILE *refFile;
+RecordReader strainReader;
+RecordReader refReader;
+RecordWriter out;
 int minPolymorphismPct;
 int unknownsThreshold;
 int strainCount;
 int alleleCount;
+int binaryOutput = 0;
 char *sourceIdPrefix;
 
 // input strains
 int16_t seq = 0;  // must be initialized to 0 to signal that we have not read a seq
 int32_t loc = 0;  // similar for loc
-char allele = -1;  
+int8_t allele = -1;  
 char product = -1;  
-int8_t strain = -1;  
+int16_t strain = -1;
 
 // reference genome
 int16_t refSeq = 0;
 int32_t refLoc = 0;
-char refAllele; 
+int8_t refAllele; 
 char refProduct;
 
 int a_count = 0;
@@ -41,29 +46,17 @@ int nonsense = 0;
 int16_t prevSeq = 0;   // must be initialized to 0 to match initialization of seq
 int32_t prevLoc = 0;   // similar for loc
 
-static inline int freadCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
-	int bytes = fread(ptr, size, count,stream);
-	if (ferror(stream)) {
-		fprintf(stderr, "Failed reading file '%s' \n", filename );
-	 	exit(-1);
-	}
-	return bytes;
-}
-
-
 static inline int readStrainRow(char *filename) {
 	prevSeq = seq;
 	prevLoc = loc;
 	if (product > 0) prevProduct = product;  // remember last known product
 	prevStrain = strain;
 
-	freadCheck(filename, &seq, 2, 1, strainFile);  
-	freadCheck(filename, &loc, 4, 1, strainFile);  
-	freadCheck(filename, &allele, 1, 1, strainFile); 
-	freadCheck(filename, &product, 1, 1, strainFile);
+	unsigned char *row = recordRead(&strainReader, MERGED_ROW_SIZE);
+	if (row == 0) return 0;
+	decodeMergedRow(row, &seq, &loc, &allele, &product, &strain);
 	if (product == 'X') product = -1;   // X is an unknown product.  ignore these.
-
-	return freadCheck(filename, &strain, 2, 1, strainFile);
+	return 1;
 }
 
 static inline getRefGenomeInfo(char *filename, int16_t seq, int32_t loc) {
@@ -71,19 +64,29 @@ static inline getRefGenomeInfo(char *filename, int16_t seq, int32_t loc) {
 	// advance through SNPs to our current one
                 //fprintf(stderr, "getRef %i %i %i %i\n", seq, loc, refSeq, refLoc);
 		while(!(refSeq == seq && refLoc== loc)) {
-		freadCheck(filename, &refSeq, 2, 1, refFile);  
-		freadCheck(filename, &refLoc, 4, 1, refFile);  
-		freadCheck(filename, &refAllele, 1, 1, refFile); 
-		int bytes = freadCheck(filename, &refProduct, 1, 1, refFile);
-		if (bytes == 0) {
+		unsigned char *row = recordRead(&refReader, STRAIN_ROW_SIZE);
+		if (row == 0) {
 		  fprintf(stderr, "Could not find SNP %i %i in reference genome file\n", seq, loc );
 		  exit(-1);
 		}
+		decodeStrainRow(row, &refSeq, &refLoc, &refAllele, &refProduct);
 
 		//fprintf(stderr,"%i %i\n" ,refSeq, refLoc);
 	}
 }
 
+/*
+ * Write a reported SNP, as text or as a fixed size binary record:
+ * seq (2 bytes), loc (4), product_class (1), pad (1), knowns_percent (float, 4), non-major_allele_percent (float, 4)
+ */
+static inline writeSnp(int16_t seq, int32_t loc, float knownPercent, float polymorphismsPercent, int productClass) {
+	if (binaryOutput) {
+		encodeSnpRecord(recordWrite(&out, SNP_RECORD_SIZE), seq, loc, productClass, knownPercent, polymorphismsPercent);
+	} else {
+		printf("%i\t%i\t%.1f\t%.1f\t%i\n", seq, loc, knownPercent, polymorphismsPercent, productClass);
+	}
+}
+
 static inline updateCounts() {
 	if (allele == 0 && product == -1) {
 		U_count += strain;
@@ -104,10 +107,11 @@ static inline updateCounts() {
 
 main(int argc, char *argv[]) {
 
-	if ( argc != 6) {
-		fprintf(stderr,"\nReport SNPs with polymorphism from an input of merged strain files.\n\nUsage: %s mergedStrainFiles refGenomeFile strainCount minPolymorphismPct unknownsThreshold [seq_id loc_min loc_max]\n\nWhere:\n  strainCount: number of input strains\n  minPolymorphismPct:  there must be this percent or more non-major alleles for a SNP to be reported\n  unknownsThreshold: there must be this many or fewer unknowns for this SNP to be reported.\n\nTab delimited output: contig_id, location, knowns_percent, non-major_allele_percent, product_class(0=noncoding,1=syn,2=nonsyn,negative=nonsense)\n", argv[0] );
+	if ( argc != 6 && !(argc == 7 && strcmp(argv[6], "binary") == 0)) {
+		fprintf(stderr,"\nReport SNPs with polymorphism from an input of merged strain files.\n\nUsage: %s mergedStrainFiles refGenomeFile strainCount minPolymorphismPct unknownsThreshold [binary]\n\nWhere:\n  strainCount: number of input strains\n  minPolymorphismPct:  there must be this percent or more non-major alleles for a SNP to be reported\n  unknownsThreshold: there must be this many or fewer unknowns for this SNP to be reported.\n  binary: write fixed size 16 byte records instead of text (see HsssDocumentation.txt)\n\nTab delimited output: contig_id, location, knowns_percent, non-major_allele_percent, product_class(0=noncoding,1=syn,2=nonsyn,negative=nonsense)\n", argv[0] );
 		return -1;
 	}
+	binaryOutput = argc == 7;
 	strainCount = atoi(argv[3]);
 	minPolymorphismPct = atoi(argv[4]);
 	unknownsThreshold = atoi(argv[5]);
@@ -123,6 +127,9 @@ main(int argc, char *argv[]) {
 		fprintf(stderr,  "Can't open refGenomeFile '%s' \n", argv[2] );
 		return -1;
 	}
+	recordReaderOpen(&strainReader, strainFile, argv[1]);
+	recordReaderOpen(&refReader, refFile, argv[2]);
+	recordWriterOpen(&out, stdout, "STDOUT");
 
 	int strainFileGot;
 	// prime things by reading, but not processing, first SNP in the input
@@ -151,6 +158,7 @@ main(int argc, char *argv[]) {
 
 	if (prevSeq != 0) processPreviousSnp(prevSeq, prevLoc, argv[2]); // process final snp, unless we had empty input file
 
+	recordWriterClose(&out);
 	fclose(strainFile);
 	fclose(refFile);
 	return 0;
@@ -208,7 +216,7 @@ processPreviousSnp(int32_t prevSeq, int32_t prevLoc, char *refGenomeFileName) {
 
 
 		if (polymorphismsPercent >= minPolymorphismPct && polymorphisms > 0) {
-			printf("%i\t%i\t%.1f\t%.1f\t%i\n", prevSeq, prevLoc, knownPercent, polymorphismsPercent, productClass);
+			writeSnp(prevSeq, prevLoc, knownPercent, polymorphismsPercent, productClass);
 		}
 	}
 
@@ -0,0 +1,231 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * Report SNPs with polymorphism, reading a bit-sliced strain matrix instead of a merged strain stream.
+ *
+ * Applies the same thresholds as hsssFindPolymorphic and writes the same output.  The per-location
+ * work is a handful of AND/popcount operations over the strain mask, so the run time is linear in
+ * the number of SNP locations and does not depend on how many strains are selected.
+ */
+
+#define MATRIX_MAGIC "HSBM"
+#define MATRIX_VERSION 2
+#define MAX_PRODUCT_COUNT 255
+
+int minPolymorphismPct;
+int unknownsThreshold;
+int strainCount;    // strains selected
+int matrixStrainCount;
+int words;
+int binaryOutput = 0;
+uint64_t *mask;
+
+static inline int freadCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	int bytes = fread(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed reading file '%s' \n", filename );
+	 	exit(-1);
+	}
+	return bytes;
+}
+
+// write a reported SNP as text or as a binary record, in the same formats as hsssFindPolymorphic
+static inline void writeSnp(int16_t seq, int32_t loc, float knownPercent, float polymorphismsPercent, int productClass) {
+	if (binaryOutput) {
+		int8_t productClassOut = productClass;
+		int8_t pad = 0;
+		fwrite(&seq, 2, 1, stdout);
+		fwrite(&loc, 4, 1, stdout);
+		fwrite(&productClassOut, 1, 1, stdout);
+		fwrite(&pad, 1, 1, stdout);
+		fwrite(&knownPercent, 4, 1, stdout);
+		fwrite(&polymorphismsPercent, 4, 1, stdout);
+	} else {
+		printf("%i\t%i\t%.1f\t%.1f\t%i\n", seq, loc, knownPercent, polymorphismsPercent, productClass);
+	}
+}
+
+// true if any selected strain is in the bitset
+static inline int anyBits(uint64_t *bits) {
+	int w;
+	for (w = 0; w < words; w++) if (bits[w] & mask[w]) return 1;
+	return 0;
+}
+
+static inline int countBits(uint64_t *bits) {
+	int count = 0;
+	int w;
+	for (w = 0; w < words; w++) count += __builtin_popcountll(bits[w] & mask[w]);
+	return count;
+}
+
+// build the strain mask from a file of strain ids, one per line
+void readStrainMask(char *strainsFileName, int16_t *matrixStrainIds) {
+	char line[1024];
+	FILE *f = fopen(strainsFileName, "r");
+	if (f == 0) {
+		fprintf(stderr, "Can't open strains file '%s' \n", strainsFileName);
+		exit(-1);
+	}
+	mask = calloc(words, sizeof(uint64_t));
+	while (fgets(line, sizeof(line), f) != 0) {
+		int id = atoi(line);
+		int i;
+		if (id <= 0) continue;
+		for (i = 0; i < matrixStrainCount; i++) if (matrixStrainIds[i] == id) break;
+		if (i == matrixStrainCount) {
+			fprintf(stderr, "Strain '%i' is not in the strain matrix\n", id);
+			exit(-1);
+		}
+		uint64_t bit = (uint64_t)1 << (i % 64);
+		if (!(mask[i / 64] & bit)) strainCount++;
+		mask[i / 64] |= bit;
+	}
+	fclose(f);
+}
+
+/*
+ * Evaluate one location.  This mirrors hsssFindPolymorphic.processPreviousSnp(), with the counts
+ * coming from popcounts instead of from a merged stream, and the products from those of the
+ * selected strains only.
+ */
+static inline void processLocation(int16_t seq, int32_t loc, int8_t refAllele, char refProduct, int productCount, char *products, uint64_t *productBits, uint64_t *bits) {
+	int counts[5];
+	int k;
+	uint64_t known = 0;
+	int knownStrains = 0;
+	int w;
+
+	// strains having any known allele.  a strain with an allele and an unknown is counted twice, as in the merged stream
+	for (w = 0; w < words; w++) {
+		known = (bits[words + w] | bits[2 * words + w] | bits[3 * words + w] | bits[4 * words + w]) & mask[w];
+		knownStrains += __builtin_popcountll(known);
+	}
+	for (k = 0; k < 5; k++) counts[k] = countBits(bits + k * words);
+
+	int U_count = counts[0];
+	int nonRefStrainsCount = knownStrains + U_count;
+
+	// no selected strain differs from the reference here:  the merged stream would not have this SNP
+	if (nonRefStrainsCount == 0) return;
+	if (U_count > unknownsThreshold) return;
+
+	int alleleCount = counts[1] + counts[2] + counts[3] + counts[4];
+	int nonSyn = 0;
+	int nonsense = 0;
+	char lastProduct = -1;
+	int p;
+	for (p = 0; p < productCount; p++) {
+		if (!anyBits(productBits + (size_t)p * words)) continue;
+		if (lastProduct > 0 && products[p] != lastProduct) nonSyn = 1;
+		lastProduct = products[p];
+		if (products[p] == '*') nonsense = 1;
+	}
+
+	int ref_count = strainCount - nonRefStrainsCount;
+	alleleCount += ref_count;
+
+	if (ref_count > 0 && refAllele != 0 && refProduct > 0 && refProduct != lastProduct && lastProduct > 0) nonSyn = 1;
+	if (refProduct == '*') nonsense = 1;
+
+	if (refAllele == 0) U_count += ref_count;
+	else if (refAllele >= 1 && refAllele <= 4) counts[refAllele] += ref_count;
+
+	int majorCount = counts[1];
+	for (k = 2; k <= 4; k++) if (counts[k] > majorCount) majorCount = counts[k];
+
+	int polymorphisms = alleleCount - majorCount;
+	float polymorphismsPercent = ((float)polymorphisms * 100) / alleleCount;
+	float knownPercent = (float)(strainCount - U_count) * 100 / strainCount;
+
+	int productClass = 0;  // noncoding
+	if (nonSyn) productClass = 2;
+	else if (refProduct > 0) productClass = 1; // syn
+	if (nonsense) productClass *= -1;
+
+	if (polymorphismsPercent >= minPolymorphismPct && polymorphisms > 0) {
+		writeSnp(seq, loc, knownPercent, polymorphismsPercent, productClass);
+	}
+}
+
+int main(int argc, char *argv[]) {
+
+	if (argc != 5 && !(argc == 6 && strcmp(argv[5], "binary") == 0)) {
+		fprintf(stderr,"\nReport SNPs with polymorphism from a bit-sliced strain matrix.\n\nUsage: %s strainMatrixFile strainsFile minPolymorphismPct unknownsThreshold [binary]\n\nWhere:\n  strainMatrixFile: made by hsssStrainsToMatrix\n  strainsFile: the strain ids (numbers, not names) to include, one per line\n  minPolymorphismPct:  there must be this percent or more non-major alleles for a SNP to be reported\n  unknownsThreshold: there must be this many or fewer unknowns for this SNP to be reported.\n  binary: write binary records instead of text\n\nOutput is the same as hsssFindPolymorphic.\n", argv[0] );
+		return -1;
+	}
+	binaryOutput = argc == 6;
+	minPolymorphismPct = atoi(argv[3]);
+	unknownsThreshold = atoi(argv[4]);
+
+	FILE *matrixFile = fopen(argv[1], "rb");
+	if (matrixFile == 0) {
+		fprintf(stderr, "Can't open strainMatrixFile '%s' \n", argv[1] );
+		return -1;
+	}
+
+	char magic[4];
+	int16_t version;
+	int16_t wordsIn;
+	int32_t strainCountIn;
+	int32_t blockSize;
+	freadCheck(argv[1], magic, 1, 4, matrixFile);
+	freadCheck(argv[1], &version, 2, 1, matrixFile);
+	freadCheck(argv[1], &wordsIn, 2, 1, matrixFile);
+	freadCheck(argv[1], &strainCountIn, 4, 1, matrixFile);
+	if (freadCheck(argv[1], &blockSize, 4, 1, matrixFile) == 0 || memcmp(magic, MATRIX_MAGIC, 4) != 0 || version != MATRIX_VERSION) {
+		fprintf(stderr, "File '%s' is not a version %i strain matrix\n", argv[1], MATRIX_VERSION);
+		return -1;
+	}
+	words = wordsIn;
+	matrixStrainCount = strainCountIn;
+	int16_t *matrixStrainIds = malloc(matrixStrainCount * sizeof(int16_t));
+	freadCheck(argv[1], matrixStrainIds, 2, matrixStrainCount, matrixFile);
+
+	readStrainMask(argv[2], matrixStrainIds);
+	if (strainCount == 0) {
+		fprintf(stderr, "No strains in strains file '%s' \n", argv[2]);
+		return -1;
+	}
+
+	// records vary in size with their number of products, so are read one at a time
+	unsigned char header[16];
+	unsigned char productHeader[8];
+	char products[MAX_PRODUCT_COUNT];
+	uint64_t *bits = malloc((size_t)5 * words * 8);
+	uint64_t *productBits = malloc((size_t)MAX_PRODUCT_COUNT * words * 8);
+	int32_t count;
+	while (freadCheck(argv[1], &count, 4, 1, matrixFile) != 0) {
+		if (count > blockSize) {
+			fprintf(stderr, "Corrupt block in '%s' \n", argv[1]);
+			return -1;
+		}
+		int i;
+		for (i = 0; i < count; i++) {
+			if (freadCheck(argv[1], header, 1, 16, matrixFile) != 16 || freadCheck(argv[1], bits, 8, 5 * words, matrixFile) != 5 * words) {
+				fprintf(stderr, "Truncated block in '%s' \n", argv[1]);
+				return -1;
+			}
+			int productCount = header[8];
+			int p;
+			for (p = 0; p < productCount; p++) {
+				if (freadCheck(argv[1], productHeader, 1, 8, matrixFile) != 8 || freadCheck(argv[1], productBits + (size_t)p * words, 8, words, matrixFile) != words) {
+					fprintf(stderr, "Truncated block in '%s' \n", argv[1]);
+					return -1;
+				}
+				products[p] = (char)productHeader[0];
+			}
+			int16_t seq;
+			int32_t loc;
+			memcpy(&seq, header, 2);
+			memcpy(&loc, header + 2, 4);
+			processLocation(seq, loc, (int8_t)header[6], (char)header[7], productCount, products, productBits, bits);
+		}
+	}
+
+	fclose(matrixFile);
+	return 0;
+}
@@ -0,0 +1,185 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * Read a binary stream of polymorphic SNPs (hsssFindPolymorphic ... binary), and output genes that have SNPs
+ * that meet specified characteristics.
+ *
+ * A compiled replacement for hsssGeneCharacteristicsFilter:  same arguments (except that the gene locations are a
+ * binary table made by hsssGeneLocationsToBinary), same statistics and same output.  The SNP stream and the gene table
+ * are both ordered by (contig index, location), so this is a single merge-join pass.
+ */
+
+#define GENES_MAGIC "HSGL"
+#define GENES_VERSION 1
+#define SNP_RECORD_SIZE 16
+
+typedef struct {
+	int16_t seq;
+	int32_t start;
+	int32_t end;
+	int32_t nameOffset;
+} Gene;
+
+Gene *genes;
+char *names;
+int geneCount;
+
+char *snpClass;
+double snpsMin, snpsMax, dndsMin, dndsMax, densityMin, densityMax;
+int snpsFilter, dndsFilter, densityFilter;
+
+int snpsCount = 0;
+int codingCount = 0;
+int nonsenseCount = 0;
+int nonSynCount = 0;
+int synCount = 0;
+
+static inline int freadCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	int bytes = fread(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed reading file '%s' \n", filename );
+	 	exit(-1);
+	}
+	return bytes;
+}
+
+// the gene characteristics params are passed through from the WDK as strings.  match the perl filter's notion of which are set
+static inline int isSet(char *arg) {
+	return arg[0] != 0 && strcmp(arg, "0") != 0;
+}
+
+void readGenes(char *filename) {
+	char magic[4];
+	int16_t version, pad;
+	int32_t count, namesSize;
+	unsigned char raw[16];
+	FILE *f = fopen(filename, "rb");
+	if (f == 0) {
+		fprintf(stderr, "Can't open gene locations table '%s' \n", filename);
+		exit(-1);
+	}
+	freadCheck(filename, magic, 1, 4, f);
+	freadCheck(filename, &version, 2, 1, f);
+	freadCheck(filename, &pad, 2, 1, f);
+	freadCheck(filename, &count, 4, 1, f);
+	if (freadCheck(filename, &namesSize, 4, 1, f) == 0 || memcmp(magic, GENES_MAGIC, 4) != 0 || version != GENES_VERSION) {
+		fprintf(stderr, "File '%s' is not a version %i gene locations table.  Make it with hsssGeneLocationsToBinary\n", filename, GENES_VERSION);
+		exit(-1);
+	}
+	geneCount = count;
+	genes = malloc((count + 1) * sizeof(Gene));
+	int i;
+	for (i = 0; i < count; i++) {
+		if (freadCheck(filename, raw, 16, 1, f) == 0) {
+			fprintf(stderr, "Truncated gene locations table '%s' \n", filename);
+			exit(-1);
+		}
+		memcpy(&genes[i].seq, raw, 2);
+		memcpy(&genes[i].start, raw + 4, 4);
+		memcpy(&genes[i].end, raw + 8, 4);
+		memcpy(&genes[i].nameOffset, raw + 12, 4);
+	}
+	names = malloc(namesSize + 1);
+	if (freadCheck(filename, names, 1, namesSize, f) != namesSize) {
+		fprintf(stderr, "Truncated gene locations table '%s' \n", filename);
+		exit(-1);
+	}
+	fclose(f);
+}
+
+static inline int countInClass() {
+	if (strcmp(snpClass, "coding") == 0) return codingCount;
+	if (strcmp(snpClass, "noncoding") == 0) return snpsCount - codingCount;
+	if (strcmp(snpClass, "synonymous") == 0) return synCount;
+	if (strcmp(snpClass, "nonsynonymous") == 0) return nonSynCount;
+	if (strcmp(snpClass, "nonsense") == 0) return nonsenseCount;
+	if (strcmp(snpClass, "all") == 0) return snpsCount;
+	return -1;
+}
+
+void processGene(Gene *gene) {
+	int nonCodingCount = snpsCount - codingCount;
+	double dnds = synCount? (double)nonSynCount / synCount : 0;
+	double density = snpsCount / ((double)(gene->end - gene->start) / 1000);
+
+	if (snpsFilter) {
+		int count = countInClass();
+		if (count != -1 && (count < snpsMin || (snpsMax != -1 && count > snpsMax))) return;
+	}
+
+	if (dndsFilter) {
+		if (synCount == 0 && nonSynCount != 0) {
+			if (dndsMax != -1) return;
+		} else if (dnds < dndsMin || (dndsMax != -1 && dnds > dndsMax)) return;
+	}
+
+	if (densityFilter) {
+		if (density < densityMin || (densityMax != -1 && density > densityMax)) return;
+	}
+
+	printf("%s\t%.2f\t", names + gene->nameOffset, density);
+	if (synCount) printf("%.2f", dnds);
+	printf("\t%i\t%i\t%i\t%i\t%i\n", synCount, nonSynCount, nonCodingCount, nonsenseCount, snpsCount);
+}
+
+static inline void countSnp(int productClass) {
+	snpsCount++;
+	if (productClass != 0) codingCount++;
+	if (productClass == 1) synCount++;
+	if (productClass == 2) nonSynCount++;
+	if (productClass < 0) nonsenseCount++;
+}
+
+int main(int argc, char *argv[]) {
+
+	if (argc != 9) {
+		fprintf(stderr, "\nRead a binary stream of SNPs (sorted by location), and output Genes that have SNPs that meet specified characteristics.  Do so by gathering up all the info from SNPs within a gene's boundaries (as specified in the gene locations table), and analyzing those SNPs alleles and products to see if they meet the characteristics criteria.  If so, output the gene ID as well as summary statistics of its SNPs.\n\nUsage: %s gene_locations_table snp_class snps_min snps_max dnds_min dnds_max density_min density_max < snp_search_result\n\nWhere:\n  - gene_locations_table: made by hsssGeneLocationsToBinary\n  - snp_class:  all, coding, noncoding, synonymous, nonsynonymous, nonsense\n  - snps_min: min number of SNPs in the gene that belong to the specified class\n  - snps_max: max number of SNPs in the gene that belong to the specified class (-1 for no max)\n  - dnds_min: min dn/ds ratio\n  - dnds_max: max dn/ds ratio (-1 for no max)\n  - density_min: min SNPs density\n  - density_max: max SNPs density (-1 for no max)\n\n  - snp_search_result: binary output of hsssFindPolymorphic\n\nOutputs these columns (tab delim): geneId density dndsRatio synCount nonSynCount nonCodingCount nonsenseCount snpsCount\n", argv[0]);
+		return -1;
+	}
+
+	readGenes(argv[1]);
+	snpClass = argv[2];
+	snpsMin = atof(argv[3]);
+	snpsMax = atof(argv[4]);
+	dndsMin = atof(argv[5]);
+	dndsMax = atof(argv[6]);
+	densityMin = atof(argv[7]);
+	densityMax = atof(argv[8]);
+	snpsFilter = isSet(snpClass) && (isSet(argv[3]) || snpsMax != -1);
+	dndsFilter = isSet(argv[5]) || dndsMax != -1;
+	densityFilter = isSet(argv[7]) || densityMax != -1;
+
+	unsigned char record[SNP_RECORD_SIZE];
+	int16_t seq;
+	int32_t loc;
+	int g = 0;
+	while (geneCount > 0 && g < geneCount && freadCheck("STDIN", record, SNP_RECORD_SIZE, 1, stdin) != 0) {
+		memcpy(&seq, record, 2);
+		memcpy(&loc, record + 2, 4);
+		int productClass = (int8_t)record[6];
+		Gene *gene = &genes[g];
+
+		// skip this SNP if before current gene
+		if (seq < gene->seq || (seq == gene->seq && loc < gene->start)) continue;
+
+		// gather stats for this SNP if within current gene
+		if (seq == gene->seq && loc <= gene->end) {
+			countSnp(productClass);
+			continue;
+		}
+
+		// SNP is beyond current gene.  process it, and skip past genes that are behind us
+		if (snpsCount) processGene(gene);
+		snpsCount = codingCount = nonsenseCount = nonSynCount = synCount = 0;
+		while (g < geneCount && (genes[g].seq < seq || (genes[g].seq == seq && loc > genes[g].end))) g++;
+
+		// if this SNP is inside the next gene, update counts
+		if (g < geneCount && seq == genes[g].seq && loc >= genes[g].start) countSnp(productClass);
+	}
+	if (g < geneCount && snpsCount) processGene(&genes[g]);
+
+	return 0;
+}
@@ -0,0 +1,167 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * Convert a text gene locations file into a binary gene-interval table, for hsssGeneCharacteristics.
+ *
+ * Genes are keyed by HSSS contig index rather than by contig source_id, and are sorted by (contig index, start),
+ * which is the order of the SNP streams.  Genes on contigs that have no SNPs (no contig index) are dropped.
+ * See HsssDocumentation.txt for the layout.
+ */
+
+#define GENES_MAGIC "HSGL"
+#define GENES_VERSION 1
+
+typedef struct {
+	int16_t seq;
+	int32_t start;
+	int32_t end;
+	int32_t nameOffset;
+} Gene;
+
+typedef struct {
+	char *sourceId;
+	int16_t index;
+} Contig;
+
+static char *names;
+static int namesSize = 0;
+
+static inline void fwriteCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	fwrite(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed writing to file '%s' \n", filename );
+	 	exit(-1);
+	}
+}
+
+static int compareContigs(const void *a, const void *b) {
+	return strcmp(((const Contig *)a)->sourceId, ((const Contig *)b)->sourceId);
+}
+
+static int compareGenes(const void *a, const void *b) {
+	const Gene *g1 = a, *g2 = b;
+	if (g1->seq != g2->seq) return g1->seq < g2->seq? -1 : 1;
+	if (g1->start != g2->start) return g1->start < g2->start? -1 : 1;
+	if (g1->end != g2->end) return g1->end < g2->end? -1 : 1;
+	return strcmp(names + g1->nameOffset, names + g2->nameOffset);
+}
+
+// read the contig id file, sorted by source_id so we can bsearch it.  returns the count
+int readContigs(char *filename, Contig **contigs_p) {
+	char line[4096];
+	char sourceId[4096];
+	int count = 0, capacity = 1024;
+	Contig *contigs = malloc(capacity * sizeof(Contig));
+	FILE *f = fopen(filename, "r");
+	if (f == 0) {
+		fprintf(stderr, "Can't open contig ID file '%s' \n", filename);
+		exit(-1);
+	}
+	while (fgets(line, sizeof(line), f) != 0) {
+		int index;
+		if (sscanf(line, "%i\t%4095s", &index, sourceId) != 2) continue;
+		if (count == capacity) {
+			capacity *= 2;
+			contigs = realloc(contigs, capacity * sizeof(Contig));
+		}
+		contigs[count].sourceId = strdup(sourceId);
+		contigs[count].index = index;
+		count++;
+	}
+	fclose(f);
+	qsort(contigs, count, sizeof(Contig), compareContigs);
+	*contigs_p = contigs;
+	return count;
+}
+
+int main(int argc, char *argv[]) {
+	char line[4096];
+	char sourceId[4096];
+	char geneId[4096];
+	Contig *contigs;
+
+	if (argc != 4) {
+		fprintf(stderr, "\nConvert a text gene locations file into a binary gene-interval table for hsssGeneCharacteristics.\n\nUsage: %s contig_id_file gene_locations_file output_file\n\nWhere:\n  contig_id_file: tab delimited, two columns, first column contig index (1,2,...); second column contig source_id\n  gene_locations_file: tab delimited:  contig_source_id, start, end, gene_source_id.  Need not be sorted.\n  output_file: the binary table to write\n", argv[0]);
+		return -1;
+	}
+
+	int contigCount = readContigs(argv[1], &contigs);
+
+	FILE *in = fopen(argv[2], "r");
+	if (in == 0) {
+		fprintf(stderr, "Can't open gene locations file '%s' \n", argv[2]);
+		return -1;
+	}
+
+	int geneCount = 0, geneCapacity = 1024, namesCapacity = 16384;
+	Gene *genes = malloc(geneCapacity * sizeof(Gene));
+	names = malloc(namesCapacity);
+	while (fgets(line, sizeof(line), in) != 0) {
+		long start, end;
+		if (sscanf(line, "%4095[^\t]\t%li\t%li\t%4095[^\t\r\n]", sourceId, &start, &end, geneId) != 4) continue;
+
+		Contig key;
+		key.sourceId = sourceId;
+		Contig *contig = bsearch(&key, contigs, contigCount, sizeof(Contig), compareContigs);
+		if (contig == 0) continue;  // sequence has no SNPs
+
+		int nameLength = strlen(geneId) + 1;
+		while (namesSize + nameLength > namesCapacity) {
+			namesCapacity *= 2;
+			names = realloc(names, namesCapacity);
+		}
+		if (geneCount == geneCapacity) {
+			geneCapacity *= 2;
+			genes = realloc(genes, geneCapacity * sizeof(Gene));
+		}
+		genes[geneCount].seq = contig->index;
+		genes[geneCount].start = start;
+		genes[geneCount].end = end;
+		genes[geneCount].nameOffset = namesSize;
+		memcpy(names + namesSize, geneId, nameLength);
+		namesSize += nameLength;
+		geneCount++;
+	}
+	fclose(in);
+
+	qsort(genes, geneCount, sizeof(Gene), compareGenes);
+
+	// lay the names out in gene order, so that a table's bytes depend only on its genes
+	char *sortedNames = malloc(namesSize > 0? namesSize : 1);
+	int offset = 0, i;
+	for (i = 0; i < geneCount; i++) {
+		int nameLength = strlen(names + genes[i].nameOffset) + 1;
+		memcpy(sortedNames + offset, names + genes[i].nameOffset, nameLength);
+		genes[i].nameOffset = offset;
+		offset += nameLength;
+	}
+	names = sortedNames;
+
+	FILE *out = fopen(argv[3], "wb");
+	if (out == 0) {
+		fprintf(stderr, "Can't open output file '%s' \n", argv[3]);
+		return -1;
+	}
+	int16_t version = GENES_VERSION;
+	int16_t pad = 0;
+	int32_t geneCountOut = geneCount;
+	int32_t namesSizeOut = namesSize;
+	fwriteCheck(argv[3], GENES_MAGIC, 1, 4, out);
+	fwriteCheck(argv[3], &version, 2, 1, out);
+	fwriteCheck(argv[3], &pad, 2, 1, out);
+	fwriteCheck(argv[3], &geneCountOut, 4, 1, out);
+	fwriteCheck(argv[3], &namesSizeOut, 4, 1, out);
+	for (i = 0; i < geneCount; i++) {
+		fwriteCheck(argv[3], &genes[i].seq, 2, 1, out);
+		fwriteCheck(argv[3], &pad, 2, 1, out);
+		fwriteCheck(argv[3], &genes[i].start, 4, 1, out);
+		fwriteCheck(argv[3], &genes[i].end, 4, 1, out);
+		fwriteCheck(argv[3], &genes[i].nameOffset, 4, 1, out);
+	}
+	fwriteCheck(argv[3], names, 1, namesSize, out);
+	fclose(out);
+	return 0;
+}
@@ -0,0 +1,231 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * Write a synthetic strain files dir, at a chosen scale, for benchmarking the HSSS pipeline.
+ *
+ * Writes referenceGenome.dat, strain files 1..strain_count, strainIdToName.dat, contigIdToSourceId.dat and a
+ * geneLocations.txt (for the gene characteristics search), in the formats described in HsssDocumentation.txt.
+ *
+ * The data aims to be realistic in the ways that matter to the pipeline's speed:  SNP locations are spread over
+ * the contigs with varying gaps, about 60% of SNPs are coding, minor allele frequencies are skewed toward rare
+ * variants (so most strain files hold few rows per SNP), a few strains are heterozygous at a SNP (two rows), and each
+ * SNP has its own rate of unknown calls.
+ *
+ * Every value is a hash of the seed, the SNP index and the strain, so the output depends only on the args.  That lets
+ * the strain files be written in batches, to stay within the open files limit, however many strains there are.
+ */
+
+#define MAX_OPEN_STRAIN_FILES 200
+#define MEAN_SNP_GAP 20
+#define GENE_SPACING 3000
+#define AMINO_ACIDS "ACDEFGHIKLMNPQRSTVWY"
+
+typedef struct {
+	int64_t index;  // in the whole genome, from 0
+	int16_t seq;
+	int32_t loc;
+	int8_t refAllele;
+	char refProduct;
+	int8_t altAllele;
+	char altProduct;
+	double minorFreq;
+	double unknownRate;
+} Snp;
+
+static uint64_t seed;
+
+static inline void fwriteCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	fwrite(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed writing to file '%s' \n", filename );
+	 	exit(-1);
+	}
+}
+
+// splitmix64 finalizer:  a good 64 bit hash
+static inline uint64_t mix(uint64_t x) {
+	x += 0x9E3779B97F4A7C15ULL;
+	x = (x ^ (x >> 30)) * 0xBF58476D1CE4E5B9ULL;
+	x = (x ^ (x >> 27)) * 0x94D049BB133111EBULL;
+	return x ^ (x >> 31);
+}
+
+// a uniform double in [0, 1) for a key
+static inline double uniform(uint64_t key) {
+	return (mix(key) >> 11) * (1.0 / 9007199254740992.0);
+}
+
+static inline uint64_t snpKey(int64_t snpIndex, int salt) {
+	return mix(seed ^ mix((uint64_t)snpIndex * 8 + salt));
+}
+
+static FILE *openFile(char *dir, char *name, char *mode, char *path) {
+	sprintf(path, "%s/%s", dir, name);
+	FILE *f = fopen(path, mode);
+	if (f == 0) {
+		fprintf(stderr, "Can't open file '%s' for writing\n", path);
+		exit(-1);
+	}
+	return f;
+}
+
+// the SNP at an index.  locations are cumulative, so snps must be made in order
+static void makeSnp(int64_t i, int16_t seq, int32_t loc, Snp *snp) {
+	snp->index = i;
+	snp->seq = seq;
+	snp->loc = loc;
+	snp->refAllele = uniform(snpKey(i, 1)) < 0.01? 0 : 1 + (int)(uniform(snpKey(i, 2)) * 4);
+	int shift = (int)(uniform(snpKey(i, 3)) * 3);
+	snp->altAllele = snp->refAllele == 0? 1 + shift : 1 + (snp->refAllele + shift) % 4;
+	if (uniform(snpKey(i, 4)) < 0.6) {
+		double u = uniform(snpKey(i, 5));
+		snp->refProduct = AMINO_ACIDS[(int)(uniform(snpKey(i, 6)) * 20)];
+		if (u < 0.5) snp->altProduct = snp->refProduct;  // synonymous
+		else if (u < 0.95) snp->altProduct = AMINO_ACIDS[(int)(uniform(snpKey(i, 10)) * 20)];
+		else snp->altProduct = '*';
+	} else {
+		snp->refProduct = 0;
+		snp->altProduct = 0;
+	}
+	double f = uniform(snpKey(i, 7));
+	snp->minorFreq = f * f * f * 0.5;
+	snp->unknownRate = 0.02 + 0.1 * uniform(snpKey(i, 0));
+}
+
+static inline void writeRow(char *filename, FILE *f, int16_t seq, int32_t loc, int8_t allele, char product) {
+	fwriteCheck(filename, &seq, 2, 1, f);
+	fwriteCheck(filename, &loc, 4, 1, f);
+	fwriteCheck(filename, &allele, 1, 1, f);
+	fwriteCheck(filename, &product, 1, 1, f);
+}
+
+// walk all the SNPs in order, calling the visitor on each.  returns the number of snps
+static int64_t forEachSnp(int64_t snpCount, int contigCount, void (*visit)(Snp *, void *), void *context) {
+	int64_t perContig = (snpCount + contigCount - 1) / contigCount;
+	int64_t i = 0;
+	int c;
+	Snp snp;
+	for (c = 1; c <= contigCount && i < snpCount; c++) {
+		int32_t loc = 0;
+		int64_t j;
+		for (j = 0; j < perContig && i < snpCount; j++, i++) {
+			loc += 1 + (int)(uniform(snpKey(i, 8)) * (2 * MEAN_SNP_GAP - 1));
+			makeSnp(i, c, loc, &snp);
+			visit(&snp, context);
+		}
+	}
+	return i;
+}
+
+static char refPath[4096];
+
+static void writeReference(Snp *snp, void *context) {
+	writeRow(refPath, (FILE *)context, snp->seq, snp->loc, snp->refAllele, snp->refProduct);
+}
+
+typedef struct {
+	int first;
+	int count;
+	FILE **files;
+	char **paths;
+	int64_t rows;
+} StrainBatch;
+
+static void writeStrains(Snp *snp, void *context) {
+	StrainBatch *batch = context;
+	int s;
+	for (s = 0; s < batch->count; s++) {
+		int strain = batch->first + s;
+		double r = uniform(mix(snpKey(snp->index, 9) ^ (uint64_t)strain));
+		FILE *f = batch->files[s];
+		if (r < snp->unknownRate) {
+			writeRow(batch->paths[s], f, snp->seq, snp->loc, 0, 0);
+			batch->rows++;
+		} else if (r < snp->unknownRate + snp->minorFreq) {
+			// a few heterozygous, with the reference allele too.  rows for a SNP are sorted by allele
+			if (snp->refAllele != 0 && r < snp->unknownRate + snp->minorFreq * 0.05) {
+				int refFirst = snp->refAllele < snp->altAllele;
+				writeRow(batch->paths[s], f, snp->seq, snp->loc, refFirst? snp->refAllele : snp->altAllele, refFirst? snp->refProduct : snp->altProduct);
+				writeRow(batch->paths[s], f, snp->seq, snp->loc, refFirst? snp->altAllele : snp->refAllele, refFirst? snp->altProduct : snp->refProduct);
+				batch->rows += 2;
+			} else {
+				writeRow(batch->paths[s], f, snp->seq, snp->loc, snp->altAllele, snp->altProduct);
+				batch->rows++;
+			}
+		}
+	}
+}
+
+static void writeGenes(FILE *genes, int contigCount, int64_t snpCount) {
+	int64_t perContig = (snpCount + contigCount - 1) / contigCount;
+	int64_t contigLength = perContig * MEAN_SNP_GAP;
+	int64_t geneId = 1;
+	int c;
+	for (c = 1; c <= contigCount; c++) {
+		int64_t start;
+		for (start = 1 + GENE_SPACING / 2; start + GENE_SPACING < contigLength; start += GENE_SPACING) {
+			int64_t end = start + 1000 + (int)(uniform(mix(seed ^ (uint64_t)geneId)) * 1500);
+			fprintf(genes, "synth_contig_%i\t%lli\t%lli\tSYNTH_G%07lli\n", c, (long long)start, (long long)end, (long long)geneId++);
+		}
+	}
+}
+
+int main(int argc, char *argv[]) {
+	char path[4096];
+	char name[64];
+
+	if (argc < 4 || argc > 6) {
+		fprintf(stderr, "\nWrite a synthetic strain files dir for benchmarking:  referenceGenome.dat, strain files 1..strain_count, strainIdToName.dat, contigIdToSourceId.dat and geneLocations.txt.\n\nUsage: %s output_dir strain_count snp_count [contig_count] [seed]\n\nWhere:\n  output_dir: an existing dir, eg readFreq80 in a synthetic organism dir\n  strain_count: number of strains\n  snp_count: number of SNP locations in the reference genome\n  contig_count: number of contigs the SNPs are spread over (default 14)\n  seed: any number (default 1).  The same args always make the same files\n", argv[0]);
+		return -1;
+	}
+	char *dir = argv[1];
+	int strainCount = atoi(argv[2]);
+	int64_t snpCount = atoll(argv[3]);
+	int contigCount = argc > 4? atoi(argv[4]) : 14;
+	seed = mix(argc > 5? strtoull(argv[5], 0, 10) : 1);
+	if (strainCount < 1 || snpCount < 1 || contigCount < 1 || contigCount > 32767) {
+		fprintf(stderr, "strain_count and snp_count must be positive, and contig_count between 1 and 32767\n");
+		return -1;
+	}
+
+	FILE *f = openFile(dir, "contigIdToSourceId.dat", "w", path);
+	int c;
+	for (c = 1; c <= contigCount; c++) fprintf(f, "%i\tsynth_contig_%i\n", c, c);
+	fclose(f);
+
+	f = openFile(dir, "strainIdToName.dat", "w", path);
+	int s;
+	for (s = 1; s <= strainCount; s++) fprintf(f, "%i\tsynth_strain_%i\n", s, s);
+	fclose(f);
+
+	f = openFile(dir, "geneLocations.txt", "w", path);
+	writeGenes(f, contigCount, snpCount);
+	fclose(f);
+
+	f = openFile(dir, "referenceGenome.dat", "wb", refPath);
+	forEachSnp(snpCount, contigCount, writeReference, f);
+	fclose(f);
+	fprintf(stderr, "Wrote %lli SNPs to %s\n", (long long)snpCount, refPath);
+
+	// strain files, a batch at a time
+	StrainBatch batch;
+	batch.files = malloc(MAX_OPEN_STRAIN_FILES * sizeof(FILE *));
+	batch.paths = malloc(MAX_OPEN_STRAIN_FILES * sizeof(char *));
+	for (s = 0; s < MAX_OPEN_STRAIN_FILES; s++) batch.paths[s] = malloc(4096);
+	for (batch.first = 1; batch.first <= strainCount; batch.first += MAX_OPEN_STRAIN_FILES) {
+		batch.count = strainCount - batch.first + 1;
+		if (batch.count > MAX_OPEN_STRAIN_FILES) batch.count = MAX_OPEN_STRAIN_FILES;
+		batch.rows = 0;
+		for (s = 0; s < batch.count; s++) {
+			sprintf(name, "%i", batch.first + s);
+			batch.files[s] = openFile(dir, name, "wb", batch.paths[s]);
+		}
+		forEachSnp(snpCount, contigCount, writeStrains, &batch);
+		for (s = 0; s < batch.count; s++) fclose(batch.files[s]);
+		fprintf(stderr, "Wrote strains %i to %i:  %lli rows\n", batch.first, batch.first + batch.count - 1, (long long)batch.rows);
+	}
+	return 0;
+}
@@ -2,12 +2,16 @@
 #include <stdint.h>
 #include <stdlib.h>
 #include <string.h> 
+#include "hsssRecords.h"
 
 // using global variables to cut down on stack pushing operations.
 
 // input parameters
 FILE *strainFile;
 FILE *refFile;
+RecordReader strainReader;
+RecordReader refReader;
+RecordWriter out;
 int minMajorAllelePerTenThou;
 int unknownsThreshold;
 int strainCount;
@@ -16,14 +20,14 @@ char *sourceIdPrefix;
 // values read from input strains file (and pointers to them)
 int16_t seq = -1;
 int32_t loc = -1;
-char allele = -1;  
+int8_t allele = -1;  
 char product = -1;  
-int8_t strain = -1;  
+int16_t strain = -1;  // or, in a row of compressed unknowns, their count
 
 // values read from reference strains file (and pointers to them)
 int16_t refSeq = 0;
 int32_t refLoc = 0;
-char refAllele; 
+int8_t refAllele; 
 char refProduct;
 
 // per SNP counters
@@ -41,8 +45,6 @@ int prevStrain = -1;
 int16_t prevSeq;
 int32_t prevLoc;
 
-static char *stdoutStr = "STDOUT";
-
 static inline void initProductArrays(int prodArray[4][28]) {
 	int i;
 	for (i=0; i<4; i++) { 
@@ -84,25 +86,6 @@ static inline char findMaxAllele(char *maxAllele, int *maxCount) {
 	return isVariable;
 }
 
-// read binary input and check for error
-static inline int freadCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
-	int bytes = fread(ptr, size, count,stream);
-	if (ferror(stream)) {
-		fprintf(stderr, "Failed reading file '%s' \n", filename );
-	 	exit(-1);
-	}
-	return bytes;
-}
-
-// write binary output and check for error
-static inline int fwriteCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
-	fwrite(ptr, size, count,stream);
-	if (ferror(stream)) {
-		fprintf(stderr, "Failed writing to file '%s' \n", filename );
-	 	exit(-1);
-	}
-}
-
 // read a row of merged strains input file (ie, a variant) and update global variables with the values
 static inline int readStrainRow(char *filename) {
 	prevSeq = seq;
@@ -110,11 +93,10 @@ static inline int readStrainRow(char *filename) {
 	if (product > 0) prevProduct = product;  // remember last known product
 	prevStrain = strain;
 
-	freadCheck(filename, &seq, 2, 1, strainFile);  
-	freadCheck(filename, &loc, 4, 1, strainFile);  
-	freadCheck(filename, &allele, 1, 1, strainFile); 
-	freadCheck(filename, &product, 1, 1, strainFile);
-	return freadCheck(filename, &strain, 2, 1, strainFile);
+	unsigned char *row = recordRead(&strainReader, MERGED_ROW_SIZE);
+	if (row == 0) return 0;
+	decodeMergedRow(row, &seq, &loc, &allele, &product, &strain);
+	return 1;
 }
 
 // update the current SNP's alleles and products counts with the current variant's info
@@ -138,17 +120,8 @@ static inline updateCounts() {
 static inline writeRecord(int16_t prevSeq, int32_t prevLoc, char majorAllele, char majorProduct, char majorProductIsVariable, char minorAllele, char minorProduct, char minorProductIsVariable, int16_t majorAllelePerTenThou, int16_t minorAllelePerTenThou, char isTriallelic) {
 
 	//		fprintf(stderr, "%i\t%i\t%i\t%i\t%i\t%i\t%i\t%i\t%i\t%i\t%i\n", prevSeq, prevLoc, majorAllele, majorProduct, majorProductIsVariable, minorAllele, minorProduct, minorProductIsVariable, majorAllelePerTenThou, minorAllelePerTenThou, minorProductIsVariable);
-			fwriteCheck(stdoutStr, &prevSeq, 2, 1, stdout);
-			fwriteCheck(stdoutStr, &prevLoc, 4, 1, stdout);
-			fwriteCheck(stdoutStr, &majorAllele, 1, 1, stdout);
-			fwriteCheck(stdoutStr, &majorProduct, 1, 1, stdout);
-			fwriteCheck(stdoutStr, &majorProductIsVariable, 1, 1, stdout);
-			fwriteCheck(stdoutStr, &minorAllele, 1, 1, stdout);
-			fwriteCheck(stdoutStr, &minorProduct, 1, 1, stdout);
-			fwriteCheck(stdoutStr, &minorProductIsVariable, 1, 1, stdout);
-			fwriteCheck(stdoutStr, &majorAllelePerTenThou, 2, 1, stdout);
-			fwriteCheck(stdoutStr, &minorAllelePerTenThou, 2, 1, stdout);
-			fwriteCheck(stdoutStr, &isTriallelic, 1, 1, stdout);
+			ConsensusRow row = { prevSeq, prevLoc, majorAllele, majorProduct, majorProductIsVariable, minorAllele, minorProduct, minorProductIsVariable, majorAllelePerTenThou, minorAllelePerTenThou, isTriallelic };
+			encodeConsensusRow(recordWrite(&out, CONSENSUS_ROW_SIZE), &row);
 }
 
 // read a row from the ref genome file. it is a strain file containing one row per SNP, showing the ref genome's values
@@ -156,13 +129,11 @@ static inline getRefGenomeInfo(char *filename, int16_t seq, int32_t loc) {
 
 	// advance through reference SNPs to the one that corresponds to the input SNP we are processing
 	while(1) {
-		int16_t refSeq22;
-		freadCheck(filename, &refSeq, 2, 1, refFile);  
-		freadCheck(filename, &refLoc, 4, 1, refFile);  
-		freadCheck(filename, &refAllele, 1, 1, refFile); 
-		int bytes = freadCheck(filename, &refProduct, 1, 1, refFile);
+		unsigned char *row = recordRead(&refReader, STRAIN_ROW_SIZE);
+		if (row == 0) break;
+		decodeStrainRow(row, &refSeq, &refLoc, &refAllele, &refProduct);
 
-		if (bytes == 0 || (refSeq == seq && refLoc== loc)) break;
+		if (refSeq == seq && refLoc== loc) break;
 
 		// along the way, write out a record for SNPs that completely agree w/ reference 
 		// (ie, that are not in our input SNPs)
@@ -195,6 +166,9 @@ main(int argc, char *argv[]) {
 		fprintf(stderr,  "Can't open refGenomeFile '%s' \n", argv[2] );
 		return -1;
 	}
+	recordReaderOpen(&strainReader, strainFile, argv[1]);
+	recordReaderOpen(&refReader, refFile, argv[2]);
+	recordWriterOpen(&out, stdout, "STDOUT");
 
 	int strainFileGot;
 	// prime things by reading, but not processing, first SNP in the input
@@ -222,11 +196,24 @@ main(int argc, char *argv[]) {
 	processPreviousSnp(prevSeq, prevLoc, argv[2]); // process final snp
 	getRefGenomeInfo(argv[2], 0, 0); // read and write trailing ref genome rows
 
+	recordWriterClose(&out);
 	fclose(strainFile);
 	fclose(refFile);
 	return 0;
 }
 
+// zero out the per SNP counts, for a new SNP
+static inline void resetCounts() {
+	int j; for (j=0; j<5; j++) alleles[j] = 0;
+	nonRefStrainsCount = 0;
+	alleleCount = 0;
+	initProductArrays(products);
+
+	// reset prev for new snp
+	prevProduct = -1;
+	prevStrain = -1;
+}
+
 /* 
  * Look at the data accumulated for a SNP.  If above threshold write it out.
  * As part of this, read the refGenome file to convert absent variants to ref genome values.
@@ -247,10 +234,14 @@ processPreviousSnp(int32_t prevSeq, int32_t prevLoc, char *refGenomeFileName) {
 			else products[refAllele-1][refProduct-64] += ref_count;  // subtract 64 to make A=1 (0=unk)
 		}
 
-		// find major allele
-		char majorAllele;
+		// find major allele.  there is none if every strain is unknown or like an ambiguous reference (allele 0)
+		char majorAllele = 0;
 		int majorCount = 0;
 		findMaxAllele(&majorAllele, &majorCount);
+		if (majorCount == 0) {
+			resetCounts();
+			return;
+		}
 
 		// find major product
 		char majorProduct = 0;  // ie, no product
@@ -266,7 +257,7 @@ processPreviousSnp(int32_t prevSeq, int32_t prevLoc, char *refGenomeFileName) {
 		// find minor product
 		char minorProduct = 0;  // ie, no product
 		char minorProductIsVariable = 0;
-		findMaxProduct(minorAllele, &minorProduct, &minorProductIsVariable);
+		if (minorAllele != 0) findMaxProduct(minorAllele, &minorProduct, &minorProductIsVariable);
 
 		// write it out if has enough polymorphisms
 		int16_t majorAllelePerTenThou = majorCount * 10000 / alleleCount;
@@ -280,16 +271,7 @@ processPreviousSnp(int32_t prevSeq, int32_t prevLoc, char *refGenomeFileName) {
 	else {
 		getRefGenomeInfo(refGenomeFileName, prevSeq, prevLoc);
 	}
-
-	// zero out counts
-	int j; for (j=0; j<5; j++) alleles[j] = 0;
-	nonRefStrainsCount = 0;
-	alleleCount = 0;
-	initProductArrays(products);
-
-	// reset prev for new snp
-	prevProduct = -1;
-	prevStrain = -1;
+	resetCounts();
 }
 
 
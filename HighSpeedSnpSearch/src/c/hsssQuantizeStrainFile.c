@@ -0,0 +1,224 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "hsssStrainFile.h"
+
+/*
+ * Make a version 3 strain file, which holds read frequencies, from a strain's files in a set of readFreq dirs, each
+ * filtered at one read frequency threshold.  See hsssStrainFile.h and HsssDocumentation.txt.
+ *
+ * At each location, at each threshold, the strain's called alleles are those in its file there, none if the file has
+ * an unknown row, or the reference allele if the file has no row but the location is in that dir's reference genome
+ * (like reference).  If the location is in neither, the threshold says nothing about it.  An allele's read frequency
+ * is the highest threshold it is called at.
+ *
+ * The result is checked:  calling it at each threshold must give back exactly the rows of that threshold's file.
+ * At a threshold that says nothing about a location it must give back no allele other than the reference.
+ */
+
+#define MAX_THRESHOLDS 100
+
+typedef struct {
+	int threshold;
+	char strainPath[4096];
+	char refPath[4096];
+	FILE *strainFile;
+	FILE *refFile;
+	StrainFileReader strain;
+	StrainFileReader ref;
+	QuantizedRow next;        // the next strain row not yet at a location
+	int haveNext;
+	QuantizedRow rows[STRAIN_FILE_MAX_LOCATION_ROWS];   // the strain rows at the current location
+	int count;
+	QuantizedRow refRow;      // the first reference genome row not before the current location
+	int haveRef;
+} Threshold;
+
+static Threshold thresholds[MAX_THRESHOLDS];
+static int thresholdCount;
+static long mismatches;
+
+static FILE *openFile(char *filename, char *mode) {
+	FILE *file = fopen(filename, mode);
+	if (file == 0) {
+		fprintf(stderr, "Can't open file '%s' \n", filename);
+		exit(-1);
+	}
+	return file;
+}
+
+static inline int compareLocation(int16_t seq1, int32_t loc1, int16_t seq2, int32_t loc2) {
+	if (seq1 != seq2) return seq1 < seq2? -1 : 1;
+	return loc1 < loc2? -1 : loc1 > loc2? 1 : 0;
+}
+
+static inline int readRow(StrainFileReader *reader, QuantizedRow *row) {
+	row->readFreq = 0;
+	return strainFileReadRow(reader, &row->seq, &row->loc, &row->allele, &row->product);
+}
+
+// is the location in this threshold's reference genome.  locations must be asked about in order
+static int inReference(Threshold *t, int16_t seq, int32_t loc) {
+	while (t->haveRef && compareLocation(t->refRow.seq, t->refRow.loc, seq, loc) < 0) t->haveRef = readRow(&t->ref, &t->refRow);
+	return t->haveRef && compareLocation(t->refRow.seq, t->refRow.loc, seq, loc) == 0;
+}
+
+// add an allele called at a threshold, or raise its read frequency
+static void call(QuantizedRow *rows, int *count, QuantizedRow *row, int threshold) {
+	int i;
+	for (i = 0; i < *count; i++) if (rows[i].allele == row->allele) break;
+	if (i == *count) {
+		if (*count == STRAIN_FILE_MAX_LOCATION_ROWS) {
+			fprintf(stderr, "Too many alleles at seq %i location %i\n", row->seq, row->loc);
+			exit(-1);
+		}
+		rows[(*count)++] = *row;
+		rows[i].readFreq = 0;
+	}
+	rows[i].readFreq = threshold;
+}
+
+static void mismatch(Threshold *t, int16_t seq, int32_t loc, char *problem) {
+	if (mismatches++ < 10) fprintf(stderr, "At seq %i location %i, read frequency %i:  %s\n", seq, loc, t->threshold, problem);
+}
+
+// check that the rows give back a threshold's rows when called at it
+static void check(Threshold *t, QuantizedRow *rows, int count, int informative) {
+	QuantizedRow called[STRAIN_FILE_MAX_LOCATION_ROWS];
+	int calledCount = strainFileCallAlleles(rows, count, t->threshold, called);
+	int i;
+	if (!informative) {
+		for (i = 0; i < calledCount; i++)
+			if (called[i].allele != 0 && !(called[i].readFreq & READ_FREQ_REFERENCE)) mismatch(t, rows[0].seq, rows[0].loc, "calls an allele at a location not in the reference genome");
+		return;
+	}
+	if (calledCount != t->count) {
+		mismatch(t, rows[0].seq, rows[0].loc, "calls a different number of rows than the strain file has");
+		return;
+	}
+	for (i = 0; i < calledCount; i++)
+		if (called[i].allele != t->rows[i].allele || called[i].product != t->rows[i].product) {
+			mismatch(t, rows[0].seq, rows[0].loc, "calls different rows than the strain file has");
+			return;
+		}
+}
+
+int main(int argc, char *argv[]) {
+	if (argc < 5 || argc % 2 == 0) {
+		fprintf(stderr, "\nMake a version 3 strain file, which holds read frequencies, from a strain's files in readFreq dirs filtered at different thresholds.\n\nUsage: %s output_file strain_id threshold readFreq_dir [threshold readFreq_dir ...]\n\nWhere:\n  output_file: the version 3 strain file to write\n  strain_id: the HSSS strain ID, the name of its strain files\n  threshold, readFreq_dir: a read frequency threshold (a percent), and the dir holding the strain files filtered at it, and its referenceGenome.dat.  Give them in increasing order of threshold\n\nThe output is checked against each input, and not written if it doesn't give back the input when called at its threshold.\n", argv[0]);
+		return -1;
+	}
+	char *outputPath = argv[1];
+	char *strainId = argv[2];
+	int i, k;
+	for (i = 3; i < argc; i += 2) {
+		Threshold *t = &thresholds[thresholdCount];
+		t->threshold = atoi(argv[i]);
+		if (thresholdCount == MAX_THRESHOLDS || t->threshold < 1 || t->threshold > 100 || (thresholdCount > 0 && t->threshold <= thresholds[thresholdCount - 1].threshold)) {
+			fprintf(stderr, "Invalid threshold '%s':  thresholds must be between 1 and 100, in increasing order\n", argv[i]);
+			return -1;
+		}
+		snprintf(t->strainPath, sizeof(t->strainPath), "%s/%s", argv[i + 1], strainId);
+		snprintf(t->refPath, sizeof(t->refPath), "%s/referenceGenome.dat", argv[i + 1]);
+		t->strainFile = openFile(t->strainPath, "rb");
+		t->refFile = openFile(t->refPath, "rb");
+		strainFileOpen(&t->strain, t->strainFile, t->strainPath);
+		strainFileOpen(&t->ref, t->refFile, t->refPath);
+		t->haveNext = readRow(&t->strain, &t->next);
+		t->haveRef = readRow(&t->ref, &t->refRow);
+		thresholdCount++;
+	}
+
+	char tmpPath[4096];
+	snprintf(tmpPath, sizeof(tmpPath), "%s.tmp", outputPath);
+	FILE *out = openFile(tmpPath, "wb");
+	StrainFileWriter writer;
+	strainFileWriterOpen(&writer, out, tmpPath, 3, STRAIN_FILE_DEFAULT_BLOCK_ROWS);
+
+	long locations = 0, rowsWritten = 0;
+	while (1) {
+		// the next location in any of the strain files
+		Threshold *first = 0;
+		for (k = 0; k < thresholdCount; k++) {
+			Threshold *t = &thresholds[k];
+			if (t->haveNext && (first == 0 || compareLocation(t->next.seq, t->next.loc, first->next.seq, first->next.loc) < 0)) first = t;
+		}
+		if (first == 0) break;
+		int16_t seq = first->next.seq;
+		int32_t loc = first->next.loc;
+
+		// each file's rows there
+		for (k = 0; k < thresholdCount; k++) {
+			Threshold *t = &thresholds[k];
+			t->count = 0;
+			while (t->haveNext && t->next.seq == seq && t->next.loc == loc) {
+				if (t->count == STRAIN_FILE_MAX_LOCATION_ROWS) {
+					fprintf(stderr, "Too many rows at seq %i location %i in '%s'\n", seq, loc, t->strainPath);
+					return -1;
+				}
+				t->rows[t->count++] = t->next;
+				t->haveNext = readRow(&t->strain, &t->next);
+			}
+			if (t->haveNext && compareLocation(t->next.seq, t->next.loc, seq, loc) < 0) {
+				fprintf(stderr, "Strain file '%s' is not sorted by location, at seq %i location %i\n", t->strainPath, t->next.seq, t->next.loc);
+				return -1;
+			}
+		}
+
+		// the lowest threshold's reference genome has every location the others do
+		int informative[MAX_THRESHOLDS];
+		for (k = 0; k < thresholdCount; k++) informative[k] = inReference(&thresholds[k], seq, loc) || thresholds[k].count > 0;
+		if (!inReference(&thresholds[0], seq, loc)) {
+			fprintf(stderr, "Seq %i location %i is not in the lowest threshold's reference genome '%s'\n", seq, loc, thresholds[0].refPath);
+			return -1;
+		}
+		QuantizedRow ref = thresholds[0].refRow;
+
+		// every allele called at any threshold, with the highest threshold it is called at
+		QuantizedRow rows[STRAIN_FILE_MAX_LOCATION_ROWS];
+		int count = 0;
+		for (k = 0; k < thresholdCount; k++) {
+			Threshold *t = &thresholds[k];
+			if (!informative[k]) continue;
+			if (t->count == 0) call(rows, &count, &ref, t->threshold);
+			for (i = 0; i < t->count; i++) if (t->rows[i].allele != 0) call(rows, &count, &t->rows[i], t->threshold);
+		}
+		for (i = 0; i < count; i++) if (rows[i].allele == ref.allele) rows[i].readFreq |= READ_FREQ_REFERENCE;
+		if (count == 0) {
+			rows[0].seq = seq;
+			rows[0].loc = loc;
+			rows[0].allele = 0;
+			rows[0].product = 0;
+			rows[0].readFreq = 0;
+			count = 1;
+		}
+
+		for (k = 0; k < thresholdCount; k++) check(&thresholds[k], rows, count, informative[k]);
+		for (i = 0; i < count; i++) strainFileWriteQuantizedRow(&writer, &rows[i]);
+		locations++;
+		rowsWritten += count;
+	}
+	strainFileWriterClose(&writer);
+	if (fclose(out) != 0) {
+		fprintf(stderr, "Failed writing to file '%s' \n", tmpPath);
+		return -1;
+	}
+	for (k = 0; k < thresholdCount; k++) {
+		strainFileClose(&thresholds[k].strain);
+		strainFileClose(&thresholds[k].ref);
+		fclose(thresholds[k].strainFile);
+		fclose(thresholds[k].refFile);
+	}
+
+	if (mismatches > 0) {
+		fprintf(stderr, "Not writing '%s':  it doesn't give back the strain files at %li locations\n", outputPath, mismatches);
+		remove(tmpPath);
+		return -1;
+	}
+	if (rename(tmpPath, outputPath) != 0) {
+		fprintf(stderr, "Can't rename '%s' to '%s' \n", tmpPath, outputPath);
+		return -1;
+	}
+	return 0;
+}
@@ -0,0 +1,272 @@
+#ifndef HSSS_RECORDS_H
+#define HSSS_RECORDS_H
+
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <unistd.h>
+#include <sys/types.h>
+
+/*
+ * The fixed size binary records the HSSS tools pass between them, and buffered reading and writing of them.  See
+ * HsssDocumentation.txt.  Records are packed (no padding), and, like the files, little endian.
+ *
+ * Rather than an fread per field, tools read their input a block at a time into a buffer, and decode each record
+ * from there with recordRead and the decode functions below.  Likewise they encode records into an output buffer,
+ * written when full.  Most inputs are pipes, so input is read, not memory mapped.  A read returns as soon as the
+ * pipe has a whole record, as fread did, so a tool never waits on more input than it needs.
+ */
+
+#define STRAIN_ROW_SIZE 8          // seq (2), location (4), allele (1), product (1)
+#define MERGED_ROW_SIZE 10         // a strain row, then strain (2), or a count of unknowns if allele is 0 and product -1
+#define CONSENSUS_ROW_SIZE 17      // see ConsensusRow
+#define SNP_RECORD_SIZE 16         // seq (2), location (4), product class (1), pad (1), known % (float), polymorphism % (float)
+
+#define RECORD_BUFFER_SIZE 65536
+
+typedef struct {
+	int16_t seq;
+	int32_t loc;
+	char majorAllele;
+	char majorProduct;
+	char majorProductIsVariable;
+	char minorAllele;
+	char minorProduct;
+	char minorProductIsVariable;
+	int16_t majorAllelePerTenThou;
+	int16_t minorAllelePerTenThou;
+	char isTriallelic;
+} ConsensusRow;
+
+typedef struct {
+	int fd;
+	char *filename;
+	unsigned char *buffer;
+	size_t pos;    // next unread byte in buffer
+	size_t end;    // end of the bytes in buffer
+	int eof;
+} RecordReader;
+
+typedef struct {
+	FILE *file;
+	char *filename;
+	unsigned char *buffer;
+	size_t pos;
+} RecordWriter;
+
+static inline void recordReaderOpen(RecordReader *r, FILE *file, char *filename) {
+	r->fd = fileno(file);
+	r->filename = filename;
+	r->buffer = malloc(RECORD_BUFFER_SIZE);
+	r->pos = 0;
+	r->end = 0;
+	r->eof = 0;
+}
+
+/*
+ * Have at least size bytes (no more than RECORD_BUFFER_SIZE) unread in the buffer, if the input holds that many.
+ * Returns the number unread.
+ */
+static inline size_t recordReaderFill(RecordReader *r, size_t size) {
+	if (r->end - r->pos >= size) return r->end - r->pos;
+	memmove(r->buffer, r->buffer + r->pos, r->end - r->pos);
+	r->end -= r->pos;
+	r->pos = 0;
+	while (r->end < size && !r->eof) {
+		ssize_t got = read(r->fd, r->buffer + r->end, RECORD_BUFFER_SIZE - r->end);
+		if (got < 0) {
+			if (errno == EINTR) continue;
+			fprintf(stderr, "Failed reading file '%s' \n", r->filename);
+			exit(-1);
+		}
+		if (got == 0) r->eof = 1;
+		r->end += got;
+	}
+	return r->end - r->pos;
+}
+
+/*
+ * The next record, of size bytes, in the buffer.  It is valid until the next call on the reader.  Returns 0 at end
+ * of input, ignoring a partial record at the end.
+ */
+static inline unsigned char *recordRead(RecordReader *r, size_t size) {
+	if (r->end - r->pos < size && recordReaderFill(r, size) < size) return 0;
+	unsigned char *record = r->buffer + r->pos;
+	r->pos += size;
+	return record;
+}
+
+/*
+ * Copy up to size bytes of input, of any size, to ptr.  Returns the number copied, fewer only at end of input.
+ */
+static inline size_t recordReaderCopy(RecordReader *r, void *ptr, size_t size) {
+	size_t copied = 0;
+	while (copied < size) {
+		size_t have = recordReaderFill(r, 1);
+		if (have == 0) break;
+		if (have > size - copied) have = size - copied;
+		memcpy((unsigned char *)ptr + copied, r->buffer + r->pos, have);
+		r->pos += have;
+		copied += have;
+	}
+	return copied;
+}
+
+/*
+ * Skip size bytes of input.  Seeks past them if the input is a file.
+ */
+static inline void recordReaderSkip(RecordReader *r, off_t size) {
+	size_t buffered = r->end - r->pos;
+	if (size <= (off_t)buffered) {
+		r->pos += size;
+		return;
+	}
+	size -= buffered;
+	r->pos = r->end = 0;
+	if (lseek(r->fd, size, SEEK_CUR) != -1) return;
+
+	// not seekable, eg a pipe
+	while (size > 0) {
+		size_t have = recordReaderFill(r, 1);
+		if (have == 0) return;
+		if ((off_t)have > size) have = size;
+		r->pos += have;
+		size -= have;
+	}
+}
+
+/*
+ * Continue reading from a byte offset in the input.  Returns 0 if the input can't seek.
+ */
+static inline int recordReaderSeek(RecordReader *r, off_t offset) {
+	if (lseek(r->fd, offset, SEEK_SET) == -1) return 0;
+	r->pos = r->end = 0;
+	r->eof = 0;
+	return 1;
+}
+
+static inline void recordReaderClose(RecordReader *r) {
+	free(r->buffer);
+	r->buffer = 0;
+}
+
+static inline void recordWriterOpen(RecordWriter *w, FILE *file, char *filename) {
+	w->file = file;
+	w->filename = filename;
+	w->buffer = malloc(RECORD_BUFFER_SIZE);
+	w->pos = 0;
+}
+
+static inline void recordWriterFlush(RecordWriter *w) {
+	if (w->pos == 0) return;
+	fwrite(w->buffer, 1, w->pos, w->file);
+	if (ferror(w->file)) {
+		fprintf(stderr, "Failed writing to file '%s' \n", w->filename);
+		exit(-1);
+	}
+	w->pos = 0;
+}
+
+/*
+ * Space in the buffer to encode the next record, of size bytes, into.
+ */
+static inline unsigned char *recordWrite(RecordWriter *w, size_t size) {
+	if (w->pos + size > RECORD_BUFFER_SIZE) recordWriterFlush(w);
+	unsigned char *record = w->buffer + w->pos;
+	w->pos += size;
+	return record;
+}
+
+/*
+ * Write size bytes, of any size, from ptr.
+ */
+static inline void recordWriterCopy(RecordWriter *w, const void *ptr, size_t size) {
+	if (w->pos + size <= RECORD_BUFFER_SIZE) {
+		memcpy(recordWrite(w, size), ptr, size);
+		return;
+	}
+	recordWriterFlush(w);
+	fwrite(ptr, 1, size, w->file);
+	if (ferror(w->file)) {
+		fprintf(stderr, "Failed writing to file '%s' \n", w->filename);
+		exit(-1);
+	}
+}
+
+static inline void recordWriterClose(RecordWriter *w) {
+	recordWriterFlush(w);
+	fflush(w->file);
+	free(w->buffer);
+	w->buffer = 0;
+}
+
+static inline void decodeStrainRow(const unsigned char *p, int16_t *seq, int32_t *loc, int8_t *allele, char *product) {
+	memcpy(seq, p, 2);
+	memcpy(loc, p + 2, 4);
+	*allele = p[6];
+	*product = p[7];
+}
+
+static inline void encodeStrainRow(unsigned char *p, int16_t seq, int32_t loc, int8_t allele, char product) {
+	memcpy(p, &seq, 2);
+	memcpy(p + 2, &loc, 4);
+	p[6] = allele;
+	p[7] = product;
+}
+
+static inline void decodeMergedRow(const unsigned char *p, int16_t *seq, int32_t *loc, int8_t *allele, char *product, int16_t *strain) {
+	memcpy(seq, p, 2);
+	memcpy(loc, p + 2, 4);
+	*allele = p[6];
+	*product = p[7];
+	memcpy(strain, p + 8, 2);
+}
+
+static inline void encodeMergedRow(unsigned char *p, int16_t seq, int32_t loc, int8_t allele, char product, int16_t strain) {
+	memcpy(p, &seq, 2);
+	memcpy(p + 2, &loc, 4);
+	p[6] = allele;
+	p[7] = product;
+	memcpy(p + 8, &strain, 2);
+}
+
+static inline void decodeConsensusRow(const unsigned char *p, ConsensusRow *row) {
+	memcpy(&row->seq, p, 2);
+	memcpy(&row->loc, p + 2, 4);
+	row->majorAllele = p[6];
+	row->majorProduct = p[7];
+	row->majorProductIsVariable = p[8];
+	row->minorAllele = p[9];
+	row->minorProduct = p[10];
+	row->minorProductIsVariable = p[11];
+	memcpy(&row->majorAllelePerTenThou, p + 12, 2);
+	memcpy(&row->minorAllelePerTenThou, p + 14, 2);
+	row->isTriallelic = p[16];
+}
+
+static inline void encodeConsensusRow(unsigned char *p, const ConsensusRow *row) {
+	memcpy(p, &row->seq, 2);
+	memcpy(p + 2, &row->loc, 4);
+	p[6] = row->majorAllele;
+	p[7] = row->majorProduct;
+	p[8] = row->majorProductIsVariable;
+	p[9] = row->minorAllele;
+	p[10] = row->minorProduct;
+	p[11] = row->minorProductIsVariable;
+	memcpy(p + 12, &row->majorAllelePerTenThou, 2);
+	memcpy(p + 14, &row->minorAllelePerTenThou, 2);
+	p[16] = row->isTriallelic;
+}
+
+static inline void encodeSnpRecord(unsigned char *p, int16_t seq, int32_t loc, int8_t productClass, float knownPercent, float polymorphismsPercent) {
+	memcpy(p, &seq, 2);
+	memcpy(p + 2, &loc, 4);
+	p[6] = productClass;
+	p[7] = 0;
+	memcpy(p + 8, &knownPercent, 4);
+	memcpy(p + 12, &polymorphismsPercent, 4);
+}
+
+#endif
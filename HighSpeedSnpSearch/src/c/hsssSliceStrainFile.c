@@ -0,0 +1,212 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/types.h>
+#include "hsssStrainFile.h"
+
+/*
+ * Write the rows of a strain file (or reference genome file) that fall in a set of genomic regions.
+ *
+ * Uses the block index made by hsssBuildBlockIndex, if present, to seek to each region, so that a
+ * search on a few genes or one contig reads only the blocks that hold those regions.  Without an
+ * index the file is scanned from the start.  A version 2 strain file (see hsssStrainFile.h) needs no
+ * index:  blocks that end before a region are skipped using their headers.  Output is in (version 1)
+ * strain file format, sorted.
+ */
+
+#define INDEX_MAGIC "HSBI"
+#define INDEX_VERSION 1
+#define ROW_SIZE 8
+
+typedef struct {
+	int16_t seq;
+	int32_t start;
+	int32_t end;
+} Region;
+
+typedef struct {
+	int16_t seq;
+	int32_t loc;
+	int64_t offset;
+} IndexEntry;
+
+static char *stdoutStr = "STDOUT";
+
+static inline int freadCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	int bytes = fread(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed reading file '%s' \n", filename );
+	 	exit(-1);
+	}
+	return bytes;
+}
+
+static inline void fwriteCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	fwrite(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed writing to file '%s' \n", filename );
+	 	exit(-1);
+	}
+}
+
+static int compareRegions(const void *a, const void *b) {
+	const Region *r1 = a, *r2 = b;
+	if (r1->seq != r2->seq) return r1->seq < r2->seq? -1 : 1;
+	if (r1->start != r2->start) return r1->start < r2->start? -1 : 1;
+	return 0;
+}
+
+// read, sort and coalesce the regions.  returns the count
+int readRegions(char *filename, Region **regions_p) {
+	char line[1024];
+	int count = 0, capacity = 256;
+	Region *regions = malloc(capacity * sizeof(Region));
+	FILE *f = fopen(filename, "r");
+	if (f == 0) {
+		fprintf(stderr, "Can't open regions file '%s' \n", filename);
+		exit(-1);
+	}
+	while (fgets(line, sizeof(line), f) != 0) {
+		int seq;
+		long start, end;
+		if (sscanf(line, "%i\t%li\t%li", &seq, &start, &end) != 3) continue;
+		if (count == capacity) {
+			capacity *= 2;
+			regions = realloc(regions, capacity * sizeof(Region));
+		}
+		regions[count].seq = seq;
+		regions[count].start = start;
+		regions[count].end = end;
+		count++;
+	}
+	fclose(f);
+
+	qsort(regions, count, sizeof(Region), compareRegions);
+	int i, merged = 0;
+	for (i = 0; i < count; i++) {
+		if (merged > 0 && regions[merged - 1].seq == regions[i].seq && regions[i].start <= regions[merged - 1].end) {
+			if (regions[i].end > regions[merged - 1].end) regions[merged - 1].end = regions[i].end;
+		} else regions[merged++] = regions[i];
+	}
+	*regions_p = regions;
+	return merged;
+}
+
+// read the index for a data file, if there is one.  returns the entry count, 0 if no index
+int readIndex(char *dataFileName, IndexEntry **entries_p) {
+	char indexFileName[4096];
+	char magic[4];
+	int16_t version, rowSize;
+	int32_t blockSize;
+	snprintf(indexFileName, sizeof(indexFileName), "%s.idx", dataFileName);
+	FILE *f = fopen(indexFileName, "rb");
+	if (f == 0) return 0;
+	freadCheck(indexFileName, magic, 1, 4, f);
+	freadCheck(indexFileName, &version, 2, 1, f);
+	freadCheck(indexFileName, &rowSize, 2, 1, f);
+	if (freadCheck(indexFileName, &blockSize, 4, 1, f) == 0 || memcmp(magic, INDEX_MAGIC, 4) != 0 || version != INDEX_VERSION || rowSize != ROW_SIZE) {
+		fprintf(stderr, "Ignoring index file '%s':  not a version %i block index\n", indexFileName, INDEX_VERSION);
+		fclose(f);
+		return 0;
+	}
+	int count = 0, capacity = 1024;
+	IndexEntry *entries = malloc(capacity * sizeof(IndexEntry));
+	unsigned char raw[16];
+	while (freadCheck(indexFileName, raw, 16, 1, f) != 0) {
+		if (count == capacity) {
+			capacity *= 2;
+			entries = realloc(entries, capacity * sizeof(IndexEntry));
+		}
+		memcpy(&entries[count].seq, raw, 2);
+		memcpy(&entries[count].loc, raw + 4, 4);
+		memcpy(&entries[count].offset, raw + 8, 8);
+		count++;
+	}
+	fclose(f);
+	*entries_p = entries;
+	return count;
+}
+
+// offset of the last index entry at or before (seq, loc)
+int64_t findOffset(IndexEntry *entries, int count, int16_t seq, int32_t loc) {
+	int lo = 0, hi = count - 1, found = -1;
+	while (lo <= hi) {
+		int mid = (lo + hi) / 2;
+		if (entries[mid].seq < seq || (entries[mid].seq == seq && entries[mid].loc <= loc)) {
+			found = mid;
+			lo = mid + 1;
+		} else hi = mid - 1;
+	}
+	return found < 0? 0 : entries[found].offset;
+}
+
+int main(int argc, char *argv[]) {
+	Region *regions;
+	IndexEntry *entries = 0;
+
+	if (argc != 3 && argc != 4) {
+		fprintf(stderr, "\nWrite the rows of a strain file that fall within a set of regions.  Writes to stdout.\n\nUsage: %s data_file regions_file [read_freq_threshold]\n\nWhere:\n  data_file: a strain file or referenceGenome.dat.  If data_file.idx (see hsssBuildBlockIndex) exists it is used to seek to the regions.  Version 2 and 3 strain files are sliced using their block headers\n  regions_file: tab delimited: seq_id (HSSS sequence index), start, end\n  read_freq_threshold: needed to read a version 3 strain file, which holds read frequencies (a percent).  The rows written are version 1, called at this threshold\n", argv[0]);
+		return -1;
+	}
+
+	int regionCount = readRegions(argv[2], &regions);
+
+	FILE *in = fopen(argv[1], "rb");
+	if (in == 0) {
+		fprintf(stderr, "Can't open data file '%s' \n", argv[1]);
+		return -1;
+	}
+	StrainFileReader reader;
+	strainFileOpen(&reader, in, argv[1]);
+	if (argc == 4) strainFileSetReadFreqThreshold(&reader, atoi(argv[3]));
+	int entryCount = reader.v2? 0 : readIndex(argv[1], &entries);
+
+	unsigned char row[ROW_SIZE];
+	int16_t seq = 0;
+	int32_t loc = 0;
+	int8_t allele = 0;
+	char product = 0;
+	int64_t position = 0;   // offset of the next row to be read
+	int haveRow = 0;        // row holds an unconsumed row
+	int i;
+	for (i = 0; i < regionCount; i++) {
+		Region *r = &regions[i];
+
+		// skip blocks, or seek forward if the index says this region starts further along than we are
+		if (reader.v2) strainFileSkipTo(&reader, r->seq, r->start);
+		else if (entryCount > 0) {
+			int64_t offset = findOffset(entries, entryCount, r->seq, r->start);
+			if (offset > position) {
+				if (!strainFileSeek(&reader, (off_t)offset)) {
+					fprintf(stderr, "Failed seeking in file '%s' \n", argv[1]);
+					return -1;
+				}
+				position = offset;
+				haveRow = 0;
+			}
+		}
+
+		while (1) {
+			if (!haveRow) {
+				if (strainFileReadRow(&reader, &seq, &loc, &allele, &product) == 0) break;
+				position += ROW_SIZE;
+				haveRow = 1;
+			}
+			if (seq < r->seq || (seq == r->seq && loc < r->start)) {
+				haveRow = 0;
+				continue;
+			}
+			if (seq > r->seq || loc > r->end) break;  // keep row, it might be in the next region
+			memcpy(row, &seq, 2);
+			memcpy(row + 2, &loc, 4);
+			row[6] = allele;
+			row[7] = product;
+			fwriteCheck(stdoutStr, row, ROW_SIZE, 1, stdout);
+			haveRow = 0;
+		}
+	}
+
+	fclose(in);
+	return 0;
+}
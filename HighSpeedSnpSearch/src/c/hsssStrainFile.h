@@ -0,0 +1,418 @@
+#ifndef HSSS_STRAIN_FILE_H
+#define HSSS_STRAIN_FILE_H
+
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/types.h>
+#include "hsssRecords.h"
+
+/*
+ * Reading and writing strain files, in any of their three formats.  See HsssDocumentation.txt for the layouts.
+ *
+ * Version 1 is the original fixed width rows:  seq (2 bytes), location (4), allele (1), product (1).
+ *
+ * Version 2 starts with a magic number, then holds the rows in blocks of one sequence.  Each block has a header
+ * (seq, row count, first and last location, payload size) and a payload in which each row is its location's distance
+ * from the previous row's, as a varint, and its allele and product packed into one byte.  Typical rows take 2 or 3
+ * bytes instead of 8.  The magic, read as a version 1 row, would have seq -32768, so readers tell the formats apart by
+ * the first 4 bytes, and can read either from a pipe.
+ *
+ * Version 3 is version 2 with a read frequency byte after each row's allele and product, so that one file serves
+ * every read frequency threshold, instead of a readFreq dir per threshold holding strain files filtered at it.  The
+ * byte is the allele's read frequency, as a percent, quantized (in files converted from readFreq dirs, to the highest
+ * threshold the allele was called at), with the high bit set if the allele is the reference genome's.  A location's
+ * rows hold every allele the strain has at any threshold, or, if it never has one, a single unknown row.  Given a
+ * threshold (strainFileSetReadFreqThreshold) the reader does the filtering the workflow does for a readFreq dir:  at
+ * each location the alleles at or over the threshold are called.  If none are, it hands back an unknown row.  If only
+ * the reference allele is, it hands back nothing (like reference).  Otherwise it hands back the called alleles.
+ *
+ * The reader hands back version 1 rows whichever format it reads, so tools that consume strain files need no other
+ * change.  Only strain files may be version 2 or 3.  The reference genome file, merged strain streams and the other
+ * streams stay version 1.
+ *
+ * Both are read and written through the buffers of hsssRecords.h.
+ */
+
+#define STRAIN_FILE_V2_MAGIC "\x00\x80H2"
+#define STRAIN_FILE_V3_MAGIC "\x00\x80H3"
+#define STRAIN_FILE_V2_HEADER_SIZE 20
+#define STRAIN_FILE_DEFAULT_BLOCK_ROWS 4096
+
+// the packed byte:  allele in the low 3 bits, product code in the high 5
+#define PACKED_ALLELE_ESCAPE 7       // allele and product follow as literal bytes
+#define PACKED_PRODUCT_STOP 27       // '*'
+#define PACKED_PRODUCT_ESCAPE 31     // product follows as a literal byte
+
+// the version 3 read frequency byte:  the percent in the low 7 bits, and this bit if the allele is the reference's
+#define READ_FREQ_REFERENCE 0x80
+#define READ_FREQ_PERCENT(b) ((b) & 0x7f)
+
+// the most rows a version 3 file may have at one location
+#define STRAIN_FILE_MAX_LOCATION_ROWS 16
+
+typedef struct {
+	int16_t seq;
+	int32_t loc;
+	int8_t allele;
+	char product;
+	unsigned char readFreq;
+} QuantizedRow;
+
+typedef struct {
+	RecordReader in;
+	char *filename;
+	int v2;             // version 2 or 3:  rows are in blocks
+	int quantized;      // version 3
+
+	// version 2:  the current block
+	int haveHeader;     // a block header has been read, but not its payload
+	int16_t seq;
+	int32_t blockRows;
+	int32_t rowsLeft;   // rows not yet read from the block's payload
+	int32_t firstLoc;
+	int32_t lastLoc;
+	int32_t payloadSize;
+	int32_t loc;        // location of the last row read from the block
+	unsigned char *payload;   // in the input buffer, or, if too big for that, in bigPayload
+	unsigned char *bigPayload;
+	int32_t bigPayloadCapacity;
+	int32_t payloadPos;
+
+	// version 3:  the threshold, the called rows of the current location, and the first row of the next
+	int readFreqThreshold;
+	QuantizedRow called[STRAIN_FILE_MAX_LOCATION_ROWS];
+	int calledCount;
+	int calledPos;
+	QuantizedRow next;
+	int haveNext;
+} StrainFileReader;
+
+typedef struct {
+	RecordWriter out;
+	char *filename;
+	int blockRows;
+	int rowCount;
+	int16_t seq;
+	int32_t firstLoc;
+	int32_t loc;
+	int quantized;
+	unsigned char *payload;
+	int32_t payloadSize;
+} StrainFileWriter;
+
+static inline void strainFileCorrupt(StrainFileReader *r, char *problem) {
+	fprintf(stderr, "Strain file '%s' is corrupt:  %s\n", r->filename, problem);
+	exit(-1);
+}
+
+/*
+ * Start reading a strain file, of either format, from an open file (or pipe).
+ */
+static inline void strainFileOpen(StrainFileReader *r, FILE *file, char *filename) {
+	memset(r, 0, sizeof(StrainFileReader));
+	recordReaderOpen(&r->in, file, filename);
+	r->filename = filename;
+	r->readFreqThreshold = -1;
+	if (recordReaderFill(&r->in, 4) >= 4) {
+		if (memcmp(r->in.buffer + r->in.pos, STRAIN_FILE_V2_MAGIC, 4) == 0) r->v2 = 1;
+		else if (memcmp(r->in.buffer + r->in.pos, STRAIN_FILE_V3_MAGIC, 4) == 0) r->v2 = r->quantized = 1;
+		if (r->v2) r->in.pos += 4;
+	}
+}
+
+/*
+ * Set the read frequency threshold, a percent, at which to call alleles from a version 3 file.  Required to read
+ * one.  Ignored for the other versions, whose rows were filtered at a threshold when they were made.
+ */
+static inline void strainFileSetReadFreqThreshold(StrainFileReader *r, int threshold) {
+	r->readFreqThreshold = threshold;
+}
+
+// read the next block header.  0 at end of file
+static inline int strainFileReadHeader(StrainFileReader *r) {
+	unsigned char *header = recordRead(&r->in, STRAIN_FILE_V2_HEADER_SIZE);
+	if (header == 0) {
+		if (recordReaderFill(&r->in, 1) != 0) strainFileCorrupt(r, "partial block header");
+		return 0;
+	}
+	memcpy(&r->seq, header, 2);
+	memcpy(&r->blockRows, header + 4, 4);
+	memcpy(&r->firstLoc, header + 8, 4);
+	memcpy(&r->lastLoc, header + 12, 4);
+	memcpy(&r->payloadSize, header + 16, 4);
+	int minRowSize = r->quantized? 3 : 2;
+	if (r->blockRows <= 0 || r->payloadSize < r->blockRows * minRowSize || r->payloadSize > r->blockRows * (minRowSize + 6))
+		strainFileCorrupt(r, "bad block header");
+	r->haveHeader = 1;
+	return 1;
+}
+
+// read the payload of the block whose header was just read
+static inline void strainFileReadPayload(StrainFileReader *r) {
+	if (r->payloadSize <= RECORD_BUFFER_SIZE) {
+		r->payload = recordRead(&r->in, r->payloadSize);
+		if (r->payload == 0) strainFileCorrupt(r, "partial block");
+	} else {
+		if (r->payloadSize > r->bigPayloadCapacity) {
+			r->bigPayloadCapacity = r->payloadSize;
+			r->bigPayload = realloc(r->bigPayload, r->bigPayloadCapacity);
+		}
+		if (recordReaderCopy(&r->in, r->bigPayload, r->payloadSize) != (size_t)r->payloadSize)
+			strainFileCorrupt(r, "partial block");
+		r->payload = r->bigPayload;
+	}
+	r->payloadPos = 0;
+	r->rowsLeft = r->blockRows;
+	r->loc = r->firstLoc;
+	r->haveHeader = 0;
+}
+
+// read the next row of a version 2 or 3 file, and, for version 3, its read frequency byte.  0 at end of file
+static inline int strainFileReadBlockRow(StrainFileReader *r, int16_t *seq, int32_t *loc, int8_t *allele, char *product, unsigned char *readFreq) {
+	if (r->rowsLeft == 0) {
+		if (!r->haveHeader && !strainFileReadHeader(r)) return 0;
+		strainFileReadPayload(r);
+	}
+
+	// location delta, as a little endian base 128 varint
+	uint32_t delta = 0;
+	int shift = 0;
+	unsigned char b;
+	do {
+		if (r->payloadPos == r->payloadSize || shift > 28) strainFileCorrupt(r, "bad location");
+		b = r->payload[r->payloadPos++];
+		delta |= (uint32_t)(b & 0x7f) << shift;
+		shift += 7;
+	} while (b & 0x80);
+	r->loc += delta;
+
+	if (r->payloadPos == r->payloadSize) strainFileCorrupt(r, "partial row");
+	unsigned char packed = r->payload[r->payloadPos++];
+	int a = packed & 7;
+	int p = packed >> 3;
+	if (a == PACKED_ALLELE_ESCAPE) {
+		if (r->payloadPos + 2 > r->payloadSize) strainFileCorrupt(r, "partial row");
+		*allele = r->payload[r->payloadPos++];
+		*product = r->payload[r->payloadPos++];
+	} else {
+		*allele = a;
+		if (p == 0) *product = 0;
+		else if (p <= 26) *product = 'A' + p - 1;
+		else if (p == PACKED_PRODUCT_STOP) *product = '*';
+		else {
+			if (r->payloadPos == r->payloadSize) strainFileCorrupt(r, "partial row");
+			*product = r->payload[r->payloadPos++];
+		}
+	}
+	if (r->quantized) {
+		if (r->payloadPos == r->payloadSize) strainFileCorrupt(r, "partial row");
+		*readFreq = r->payload[r->payloadPos++];
+	}
+	*seq = r->seq;
+	*loc = r->loc;
+	if (--r->rowsLeft == 0 && r->payloadPos != r->payloadSize) strainFileCorrupt(r, "block has extra bytes");
+	return 1;
+}
+
+static inline int strainFileReadQuantizedRow(StrainFileReader *r, QuantizedRow *row) {
+	return strainFileReadBlockRow(r, &row->seq, &row->loc, &row->allele, &row->product, &row->readFreq);
+}
+
+/*
+ * Call the alleles of one location's version 3 rows at a read frequency threshold, into called.  Returns the number
+ * of rows called:  the alleles at or over the threshold, an unknown row if there are none, or none if only the
+ * reference allele is.
+ */
+static inline int strainFileCallAlleles(QuantizedRow *rows, int count, int threshold, QuantizedRow *called) {
+	int calledCount = 0;
+	int calledRef = 0;
+	int i;
+	for (i = 0; i < count; i++) {
+		// an unknown row is never called.  (the reference allele may be 0, an ambiguous base, and is)
+		int isRef = rows[i].readFreq & READ_FREQ_REFERENCE;
+		if ((rows[i].allele != 0 || isRef) && READ_FREQ_PERCENT(rows[i].readFreq) >= threshold) {
+			called[calledCount++] = rows[i];
+			if (isRef) calledRef = 1;
+		}
+	}
+	if (calledCount == 0) {
+		called[0] = rows[0];
+		called[0].allele = 0;
+		called[0].product = 0;
+		return 1;
+	}
+	if (calledCount == 1 && calledRef) return 0;
+	return calledCount;
+}
+
+// call the alleles of the next location of a version 3 file that has any rows to hand back.  0 at end of file
+static inline int strainFileCallNextLocation(StrainFileReader *r) {
+	if (r->readFreqThreshold < 0) {
+		fprintf(stderr, "Strain file '%s' holds read frequencies (version 3), and needs a read frequency threshold to be read\n", r->filename);
+		exit(-1);
+	}
+	QuantizedRow rows[STRAIN_FILE_MAX_LOCATION_ROWS];
+	r->calledPos = 0;
+	r->calledCount = 0;
+	while (r->calledCount == 0) {
+		if (!r->haveNext && !strainFileReadQuantizedRow(r, &r->next)) return 0;
+		rows[0] = r->next;
+		int count = 1;
+		while ((r->haveNext = strainFileReadQuantizedRow(r, &r->next)) && r->next.seq == rows[0].seq && r->next.loc == rows[0].loc) {
+			if (count == STRAIN_FILE_MAX_LOCATION_ROWS) strainFileCorrupt(r, "too many rows at one location");
+			rows[count++] = r->next;
+		}
+		r->calledCount = strainFileCallAlleles(rows, count, r->readFreqThreshold, r->called);
+	}
+	return 1;
+}
+
+/*
+ * Read the next row.  Returns 0 at end of file.
+ */
+static inline int strainFileReadRow(StrainFileReader *r, int16_t *seq, int32_t *loc, int8_t *allele, char *product) {
+	if (!r->v2) {
+		unsigned char *row = recordRead(&r->in, STRAIN_ROW_SIZE);
+		if (row == 0) return 0;
+		decodeStrainRow(row, seq, loc, allele, product);
+		return 1;
+	}
+	if (!r->quantized) return strainFileReadBlockRow(r, seq, loc, allele, product, 0);
+
+	if (r->calledPos == r->calledCount && !strainFileCallNextLocation(r)) return 0;
+	QuantizedRow *row = &r->called[r->calledPos++];
+	*seq = row->seq;
+	*loc = row->loc;
+	*allele = row->allele;
+	*product = row->product;
+	return 1;
+}
+
+/*
+ * Skip whole blocks that hold only rows before (seq, loc), without reading their payloads.  Only skips at a block
+ * boundary, so rows before (seq, loc) may still be read after.  Does nothing for version 1 files.  (A version 3
+ * location's rows may straddle blocks, so the location just before a skip may be called from only some of its rows.
+ * It is before (seq, loc), so is not wanted anyway.)
+ */
+static inline void strainFileSkipTo(StrainFileReader *r, int16_t seq, int32_t loc) {
+	if (!r->v2 || r->rowsLeft != 0 || r->calledPos != r->calledCount) return;
+	while (1) {
+		if (!r->haveHeader && !strainFileReadHeader(r)) return;
+		if (r->seq > seq || (r->seq == seq && r->lastLoc >= loc)) return;
+		recordReaderSkip(&r->in, (off_t)r->payloadSize);
+		r->haveHeader = 0;
+	}
+}
+
+/*
+ * Seek to a row of a version 1 file, by its byte offset.  Returns 0 on failure.
+ */
+static inline int strainFileSeek(StrainFileReader *r, off_t offset) {
+	if (r->v2) return 0;
+	return recordReaderSeek(&r->in, offset);
+}
+
+static inline void strainFileClose(StrainFileReader *r) {
+	free(r->bigPayload);
+	r->bigPayload = 0;
+	recordReaderClose(&r->in);
+}
+
+/*
+ * Start writing a strain file.  version is 1, 2 or 3.  block_rows is the most rows in a version 2 or 3 block.
+ */
+static inline void strainFileWriterOpen(StrainFileWriter *w, FILE *file, char *filename, int version, int blockRows) {
+	memset(w, 0, sizeof(StrainFileWriter));
+	recordWriterOpen(&w->out, file, filename);
+	w->filename = filename;
+	w->blockRows = version >= 2? blockRows : 0;
+	w->quantized = version == 3;
+	if (w->blockRows > 0) {
+		w->payload = malloc((size_t)blockRows * 9);
+		recordWriterCopy(&w->out, w->quantized? STRAIN_FILE_V3_MAGIC : STRAIN_FILE_V2_MAGIC, 4);
+	}
+}
+
+static inline void strainFileFlushBlock(StrainFileWriter *w) {
+	if (w->rowCount == 0) return;
+	unsigned char *header = recordWrite(&w->out, STRAIN_FILE_V2_HEADER_SIZE);
+	memset(header, 0, STRAIN_FILE_V2_HEADER_SIZE);
+	memcpy(header, &w->seq, 2);
+	memcpy(header + 4, &w->rowCount, 4);
+	memcpy(header + 8, &w->firstLoc, 4);
+	memcpy(header + 12, &w->loc, 4);
+	memcpy(header + 16, &w->payloadSize, 4);
+	recordWriterCopy(&w->out, w->payload, w->payloadSize);
+	w->rowCount = 0;
+	w->payloadSize = 0;
+}
+
+// write a row, and, to a version 3 file, its read frequency byte
+static inline void strainFileWriteBlockRow(StrainFileWriter *w, int16_t seq, int32_t loc, int8_t allele, char product, unsigned char readFreq) {
+	if (w->blockRows == 0) {
+		encodeStrainRow(recordWrite(&w->out, STRAIN_ROW_SIZE), seq, loc, allele, product);
+		return;
+	}
+
+	if (w->rowCount > 0 && (seq != w->seq || w->rowCount == w->blockRows)) strainFileFlushBlock(w);
+	if (w->rowCount == 0) {
+		w->seq = seq;
+		w->firstLoc = loc;
+		w->loc = loc;
+	}
+	if (loc < w->loc) {
+		fprintf(stderr, "Can't write '%s':  rows are not sorted by location (seq %i location %i follows %i)\n", w->filename, seq, loc, w->loc);
+		exit(-1);
+	}
+
+	unsigned char *out = w->payload + w->payloadSize;
+	uint32_t delta = loc - w->loc;
+	while (delta >= 0x80) {
+		*out++ = (delta & 0x7f) | 0x80;
+		delta >>= 7;
+	}
+	*out++ = delta;
+
+	int p = -1;
+	if (product == 0) p = 0;
+	else if (product >= 'A' && product <= 'Z') p = product - 'A' + 1;
+	else if (product == '*') p = PACKED_PRODUCT_STOP;
+	if (allele < 0 || allele >= PACKED_ALLELE_ESCAPE) {
+		*out++ = PACKED_ALLELE_ESCAPE;
+		*out++ = allele;
+		*out++ = product;
+	} else if (p < 0) {
+		*out++ = allele | (PACKED_PRODUCT_ESCAPE << 3);
+		*out++ = product;
+	} else {
+		*out++ = allele | (p << 3);
+	}
+	if (w->quantized) *out++ = readFreq;
+
+	w->payloadSize = out - w->payload;
+	w->loc = loc;
+	w->rowCount++;
+}
+
+static inline void strainFileWriteRow(StrainFileWriter *w, int16_t seq, int32_t loc, int8_t allele, char product) {
+	if (w->quantized) {
+		fprintf(stderr, "Can't write '%s':  a version 3 strain file needs read frequencies\n", w->filename);
+		exit(-1);
+	}
+	strainFileWriteBlockRow(w, seq, loc, allele, product, 0);
+}
+
+static inline void strainFileWriteQuantizedRow(StrainFileWriter *w, QuantizedRow *row) {
+	strainFileWriteBlockRow(w, row->seq, row->loc, row->allele, row->product, row->readFreq);
+}
+
+static inline void strainFileWriterClose(StrainFileWriter *w) {
+	if (w->blockRows > 0) strainFileFlushBlock(w);
+	recordWriterClose(&w->out);
+	free(w->payload);
+	w->payload = 0;
+}
+
+#endif
@@ -0,0 +1,270 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include "hsssStrainFile.h"
+
+/*
+ * Convert a directory of strain files (one readFreq dir) into a bit-sliced strain matrix.
+ *
+ * For each SNP location in the reference genome the matrix holds one bitset per allele
+ * (unknown, A, C, G, T) across all strains, and one per product the strains' known alleles have
+ * there, so that a polymorphism search reduces to AND/popcount against the strain mask of the
+ * request.  See HsssDocumentation.txt for the layout.
+ */
+
+#define MATRIX_MAGIC "HSBM"
+#define MATRIX_VERSION 2
+#define DEFAULT_BLOCK_SIZE 4096
+#define MAX_PRODUCTS 32
+
+typedef struct {
+	FILE *file;
+	StrainFileReader reader;   // strain files may be in either format (see hsssStrainFile.h)
+	char *filename;
+	int got;
+	int16_t seq;
+	int32_t loc;
+	int8_t allele;
+	char product;
+} StrainCursor;
+
+// one record per SNP location.  bitsets are stored as uint64 words, 5 of them (unknown, A, C, G, T), then one per product
+typedef struct {
+	int16_t seq;
+	int32_t loc;
+	int8_t refAllele;
+	char refProduct;
+	uint8_t productCount;
+	char products[MAX_PRODUCTS];   // the known products of the strains' known alleles, in the order first seen
+} LocationHeader;
+
+int strainCount = 0;
+int16_t *strainIds;
+int words;
+int blockSize = DEFAULT_BLOCK_SIZE;
+StrainCursor *cursors;
+FILE *refFile;
+char *refFileName;
+
+static inline int freadCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	int bytes = fread(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed reading file '%s' \n", filename );
+	 	exit(-1);
+	}
+	return bytes;
+}
+
+static inline void fwriteCheck (char *filename, void *ptr, size_t size, size_t count, FILE *stream) {
+	fwrite(ptr, size, count,stream);
+	if (ferror(stream)) {
+		fprintf(stderr, "Failed writing to file '%s' \n", filename );
+	 	exit(-1);
+	}
+}
+
+static inline int readRow(FILE *file, char *filename, int16_t *seq, int32_t *loc, int8_t *allele, char *product) {
+	freadCheck(filename, seq, 2, 1, file);
+	freadCheck(filename, loc, 4, 1, file);
+	freadCheck(filename, allele, 1, 1, file);
+	return freadCheck(filename, product, 1, 1, file);
+}
+
+static inline int compareLocation(int16_t seq1, int32_t loc1, int16_t seq2, int32_t loc2) {
+	if (seq1 != seq2) return seq1 < seq2? -1 : 1;
+	if (loc1 != loc2) return loc1 < loc2? -1 : 1;
+	return 0;
+}
+
+// read the strain ids from the strainIdToName.dat file.  the order here defines the bit order of the matrix
+void readStrainIds(char *dir) {
+	char path[4096];
+	char line[4096];
+	int capacity = 1024;
+	snprintf(path, sizeof(path), "%s/strainIdToName.dat", dir);
+	FILE *f = fopen(path, "r");
+	if (f == 0) {
+		fprintf(stderr, "Can't open strain id file '%s' \n", path);
+		exit(-1);
+	}
+	strainIds = malloc(capacity * sizeof(int16_t));
+	while (fgets(line, sizeof(line), f) != 0) {
+		int id = atoi(line);
+		if (id <= 0) continue;
+		if (strainCount == capacity) {
+			capacity *= 2;
+			strainIds = realloc(strainIds, capacity * sizeof(int16_t));
+		}
+		strainIds[strainCount++] = id;
+	}
+	fclose(f);
+}
+
+void openStrainFiles(char *dir) {
+	char path[4096];
+	int i;
+	cursors = calloc(strainCount, sizeof(StrainCursor));
+	for (i = 0; i < strainCount; i++) {
+		snprintf(path, sizeof(path), "%s/%i", dir, strainIds[i]);
+		cursors[i].filename = strdup(path);
+		cursors[i].file = fopen(path, "rb");
+		if (cursors[i].file == 0) {
+			fprintf(stderr, "Can't open strain file '%s' \n", path);
+			exit(-1);
+		}
+		strainFileOpen(&cursors[i].reader, cursors[i].file, cursors[i].filename);
+		cursors[i].got = strainFileReadRow(&cursors[i].reader, &cursors[i].seq, &cursors[i].loc, &cursors[i].allele, &cursors[i].product);
+	}
+}
+
+// find the index in the block of a location.  -1 if absent (ie, not in the reference genome)
+static inline int findInBlock(LocationHeader *headers, int count, int16_t seq, int32_t loc) {
+	int lo = 0, hi = count - 1;
+	while (lo <= hi) {
+		int mid = (lo + hi) / 2;
+		int c = compareLocation(headers[mid].seq, headers[mid].loc, seq, loc);
+		if (c == 0) return mid;
+		if (c < 0) lo = mid + 1;
+		else hi = mid - 1;
+	}
+	return -1;
+}
+
+// set the bits for all rows of one strain that fall within the block, in the allele bitsets and their products' bitsets
+void fillBlockForStrain(int strainIndex, LocationHeader *headers, uint64_t *bits, uint64_t *productBits, int count) {
+	StrainCursor *c = &cursors[strainIndex];
+	LocationHeader *last = &headers[count - 1];
+	uint64_t bit = (uint64_t)1 << (strainIndex % 64);
+	int word = strainIndex / 64;
+
+	while (c->got != 0 && compareLocation(c->seq, c->loc, last->seq, last->loc) <= 0) {
+		int i = findInBlock(headers, count, c->seq, c->loc);
+		if (i < 0) {
+			fprintf(stderr, "Warning: strain file '%s' has SNP %i %i which is not in the reference genome.  Skipping it.\n", c->filename, c->seq, c->loc);
+		} else if (c->allele >= 0 && c->allele <= 4) {
+			uint64_t *locationBits = bits + (size_t)i * 5 * words;
+			locationBits[c->allele * words + word] |= bit;
+
+			// products of unknowns are not used by the polymorphism search.  'X' is an unknown product
+			if (c->allele != 0 && c->product > 0 && c->product != 'X') {
+				LocationHeader *h = &headers[i];
+				int p;
+				for (p = 0; p < h->productCount && h->products[p] != c->product; p++);
+				if (p == h->productCount) {
+					if (p == MAX_PRODUCTS) {
+						fprintf(stderr, "SNP %i %i has more than %i products\n", c->seq, c->loc, MAX_PRODUCTS);
+						exit(-1);
+					}
+					h->products[h->productCount++] = c->product;
+				}
+				productBits[((size_t)i * MAX_PRODUCTS + p) * words + word] |= bit;
+			}
+		}
+		c->got = strainFileReadRow(&c->reader, &c->seq, &c->loc, &c->allele, &c->product);
+	}
+}
+
+int main(int argc, char *argv[]) {
+
+	if (argc != 3 && argc != 4) {
+		fprintf(stderr, "\nConvert the strain files in a strain files dir into a bit-sliced strain matrix.\n\nUsage: %s strain_files_dir output_file [block_size]\n\nWhere:\n  strain_files_dir: a readFreq dir, holding strain files, referenceGenome.dat and strainIdToName.dat\n  output_file: the strain matrix to write (conventionally strain_files_dir/strainMatrix.dat)\n  block_size: number of SNP locations per block (default %i)\n\nAll strain files are held open at once, so the open files limit must exceed the number of strains.\n", argv[0], DEFAULT_BLOCK_SIZE);
+		return -1;
+	}
+	if (argc == 4) blockSize = atoi(argv[3]);
+	if (blockSize <= 0) {
+		fprintf(stderr, "Invalid block size '%s' \n", argv[3]);
+		return -1;
+	}
+
+	readStrainIds(argv[1]);
+	if (strainCount == 0) {
+		fprintf(stderr, "No strains found in '%s/strainIdToName.dat' \n", argv[1]);
+		return -1;
+	}
+	words = (strainCount + 63) / 64;
+	openStrainFiles(argv[1]);
+
+	char refPath[4096];
+	snprintf(refPath, sizeof(refPath), "%s/referenceGenome.dat", argv[1]);
+	refFileName = refPath;
+	refFile = fopen(refPath, "rb");
+	if (refFile == 0) {
+		fprintf(stderr, "Can't open refGenomeFile '%s' \n", refPath);
+		return -1;
+	}
+
+	FILE *out = fopen(argv[2], "wb");
+	if (out == 0) {
+		fprintf(stderr, "Can't open output file '%s' \n", argv[2]);
+		return -1;
+	}
+
+	// header
+	int16_t version = MATRIX_VERSION;
+	int16_t wordsOut = words;
+	int32_t strainCountOut = strainCount;
+	int32_t blockSizeOut = blockSize;
+	fwriteCheck(argv[2], MATRIX_MAGIC, 1, 4, out);
+	fwriteCheck(argv[2], &version, 2, 1, out);
+	fwriteCheck(argv[2], &wordsOut, 2, 1, out);
+	fwriteCheck(argv[2], &strainCountOut, 4, 1, out);
+	fwriteCheck(argv[2], &blockSizeOut, 4, 1, out);
+	fwriteCheck(argv[2], strainIds, 2, strainCount, out);
+
+	LocationHeader *headers = malloc(blockSize * sizeof(LocationHeader));
+	uint64_t *bits = malloc((size_t)blockSize * 5 * words * sizeof(uint64_t));
+	uint64_t *productBits = malloc((size_t)blockSize * MAX_PRODUCTS * words * sizeof(uint64_t));
+	long locations = 0;
+
+	while (1) {
+		// read a block's worth of locations from the reference genome
+		int count = 0;
+		while (count < blockSize) {
+			LocationHeader *h = &headers[count];
+			memset(h, 0, sizeof(LocationHeader));
+			if (readRow(refFile, refFileName, &h->seq, &h->loc, &h->refAllele, &h->refProduct) == 0) break;
+			count++;
+		}
+		if (count == 0) break;
+
+		memset(bits, 0, (size_t)count * 5 * words * sizeof(uint64_t));
+		memset(productBits, 0, (size_t)count * MAX_PRODUCTS * words * sizeof(uint64_t));
+		int s;
+		for (s = 0; s < strainCount; s++) fillBlockForStrain(s, headers, bits, productBits, count);
+
+		int32_t countOut = count;
+		fwriteCheck(argv[2], &countOut, 4, 1, out);
+		int i;
+		for (i = 0; i < count; i++) {
+			LocationHeader *h = &headers[i];
+			int8_t pad[7] = {0, 0, 0, 0, 0, 0, 0};
+			int p;
+			fwriteCheck(argv[2], &h->seq, 2, 1, out);
+			fwriteCheck(argv[2], &h->loc, 4, 1, out);
+			fwriteCheck(argv[2], &h->refAllele, 1, 1, out);
+			fwriteCheck(argv[2], &h->refProduct, 1, 1, out);
+			fwriteCheck(argv[2], &h->productCount, 1, 1, out);
+			fwriteCheck(argv[2], pad, 1, 7, out);
+			fwriteCheck(argv[2], bits + (size_t)i * 5 * words, 8, 5 * words, out);
+			for (p = 0; p < h->productCount; p++) {
+				fwriteCheck(argv[2], &h->products[p], 1, 1, out);
+				fwriteCheck(argv[2], pad, 1, 7, out);
+				fwriteCheck(argv[2], productBits + ((size_t)i * MAX_PRODUCTS + p) * words, 8, words, out);
+			}
+		}
+		locations += count;
+		if (count < blockSize) break;
+	}
+
+	int s;
+	for (s = 0; s < strainCount; s++) {
+		if (cursors[s].got != 0) fprintf(stderr, "Warning: strain file '%s' has rows beyond the end of the reference genome\n", cursors[s].filename);
+		strainFileClose(&cursors[s].reader);
+		fclose(cursors[s].file);
+	}
+	fclose(refFile);
+	fclose(out);
+	fprintf(stderr, "Wrote %li locations for %i strains to '%s'\n", locations, strainCount, argv[2]);
+	return 0;
+}
@@ -9,6 +9,7 @@ import static org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.PA
 import static org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.PARAM_END_DIRECTION_PREFIX;
 import static org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.PARAM_END_OFFSET_PREFIX;
 import static org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.PARAM_END_PREFIX;
+import static org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.PARAM_ENGINE;
 import static org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.PARAM_OPERATION;
 import static org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.PARAM_OUTPUT;
 import static org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.PARAM_SPAN_PREFIX;
@@ -50,6 +51,10 @@ public class SpanCompositionTest {
 
   private static Logger logger = Logger.getLogger(SpanCompositionTest.class);
 
+  // every case is run with each engine, which must give the same results
+  private static final String[] ENGINES = { SpanCompositionPlugin.PARAM_VALUE_ENGINE_SQL,
+      SpanCompositionPlugin.PARAM_VALUE_ENGINE_SWEEP, SpanCompositionPlugin.PARAM_VALUE_ENGINE_INDEX };
+
   private WdkModel wdkModel;
   private User user;
   private SpanCompositionPlugin plugin;
@@ -64,24 +69,26 @@ public class SpanCompositionTest {
 
   @Test
   public void testSpanLogic() throws Exception {
-    List<SpanCompositionTestCase> testCases = loadTestCases("span-composition.test");
-
-    for (SpanCompositionTestCase testCase : testCases) {
-      logger.warn("++++++++++++++++++++ Test #" + testCase.id + ": "
-          + testCase.description);
-      PluginRequest request = createRequest(testCase);
-      PluginResponse response = getResponse();
-      plugin.execute(request, response);
-
-      // print results
-      String[][] results = response.getPage(0);
-      validateResults(testCase, results);
-    }
     boolean success = true;
     int count = 0;
-    for (SpanCompositionTestCase testCase : testCases) {
-      if (!testCase.success) {
-        logger.warn("Test #" + testCase.id + " FAILED: " + testCase.description);
+    for (String engine : ENGINES) {
+      List<SpanCompositionTestCase> testCases = loadTestCases("span-composition.test");
+
+      for (SpanCompositionTestCase testCase : testCases) {
+        logger.warn("++++++++++++++++++++ Test #" + testCase.id + " (" + engine + "): "
+            + testCase.description);
+        PluginRequest request = createRequest(testCase, engine);
+        PluginResponse response = getResponse();
+        plugin.execute(request, response);
+
+        // print results
+        String[][] results = response.getPage(0);
+        validateResults(testCase, results);
+      }
+      for (SpanCompositionTestCase testCase : testCases) {
+        if (testCase.success)
+          continue;
+        logger.warn("Test #" + testCase.id + " (" + engine + ") FAILED: " + testCase.description);
         logger.warn("============= EXPECT: "
             + FormatUtil.printArray(testCase.expectedOutput));
         logger.warn("============= ACTUAL: "
@@ -123,12 +130,13 @@ public class SpanCompositionTest {
     return testCases;
   }
 
-  private PluginRequest createRequest(SpanCompositionTestCase testCase)
+  private PluginRequest createRequest(SpanCompositionTestCase testCase, String engine)
       throws WdkModelException, WdkUserException {
     // prepare parameters
     Map<String, String> params = new HashMap<String, String>();
 
     params.put(PARAM_OPERATION, testCase.operator);
+    params.put(PARAM_ENGINE, engine);
 
     params.put(PARAM_SPAN_PREFIX + "a", createGeneStep(testCase.inputA));
     params.put(PARAM_BEGIN_PREFIX + "a", testCase.beginA);
@@ -0,0 +1,242 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginUserException;
+
+/**
+ * Decodes the binary SNP records written by hsssFindPolymorphic (and hsssFindPolymorphicMatrix) with the binary
+ * option, into the rows that hsssReconstructSnpId and hsssReconstructChipSnpId would have written as text:  SNP ID,
+ * knowns percent, non-major allele percent, phenotype.  See HsssDocumentation.txt for the record layout.
+ *
+ * The contig index to source_id tables (and, for chip SNPs, the location to SNP ID tables) are read once per file,
+ * and kept in memory for later searches.
+ *
+ * @author steve
+ */
+public class BinarySnpResultDecoder {
+
+  private static final Logger logger = Logger.getLogger(BinarySnpResultDecoder.class);
+
+  public static final int RECORD_SIZE = 16;
+
+  private static final int RECORDS_PER_READ = 4096;
+
+  private static final String CONTIG_ID_FILE_NAME = "contigIdToSourceId.dat";
+  private static final String CHIP_SNP_ID_FILE_NAME = "locationToSourceId.dat";
+
+  /**
+   * Maps a SNP's contig index and location to its SNP ID.
+   */
+  public interface SnpIdMapper {
+    /**
+     * @return the SNP ID, or null if the SNP is filtered out of the result
+     */
+    String getSnpId(short contigIndex, int location) throws PluginModelException;
+  }
+
+  public interface RowHandler {
+    void handleRow(String[] row) throws PluginModelException, PluginUserException;
+  }
+
+  private static class CachedTable<T> {
+    final long lastModified;
+    final T table;
+
+    CachedTable(long lastModified, T table) {
+      this.lastModified = lastModified;
+      this.table = table;
+    }
+  }
+
+  private static final Map<String, CachedTable<Map<Short, String>>> contigTables = new ConcurrentHashMap<>();
+  private static final Map<String, CachedTable<Map<Long, String>>> chipSnpIdTables = new ConcurrentHashMap<>();
+
+  private final SnpIdMapper snpIdMapper;
+
+  public BinarySnpResultDecoder(SnpIdMapper snpIdMapper) {
+    this.snpIdMapper = snpIdMapper;
+  }
+
+  /**
+   * Decode the records in a stream, passing a row for each SNP that is not filtered out to the handler.
+   */
+  public void decode(InputStream in, RowHandler handler)
+      throws IOException, PluginModelException, PluginUserException {
+    byte[] bytes = new byte[RECORD_SIZE * RECORDS_PER_READ];
+    ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    int filled = 0;
+    int count;
+    while ((count = in.read(bytes, filled, bytes.length - filled)) != -1) {
+      filled += count;
+      int complete = filled - filled % RECORD_SIZE;
+      for (int offset = 0; offset < complete; offset += RECORD_SIZE) {
+        String[] row = decodeRecord(buf, offset);
+        if (row != null)
+          handler.handleRow(row);
+      }
+      // keep a partial record for the next read
+      System.arraycopy(bytes, complete, bytes, 0, filled - complete);
+      filled -= complete;
+    }
+    if (filled != 0)
+      throw new EOFException("Binary SNP stream ends with a partial record of " + filled + " bytes");
+  }
+
+  private String[] decodeRecord(ByteBuffer buf, int offset) throws PluginModelException {
+    short contigIndex = buf.getShort(offset);
+    int location = buf.getInt(offset + 2);
+    String snpId = snpIdMapper.getSnpId(contigIndex, location);
+    if (snpId == null)
+      return null;
+    return new String[] { snpId, formatPercent(buf.getFloat(offset + 8)), formatPercent(buf.getFloat(offset + 12)),
+        formatPhenotype(buf.get(offset + 6)) };
+  }
+
+  /**
+   * Format a percent as the C tools' printf("%.1f") does:  the exact value of the float, rounded half even.
+   */
+  static String formatPercent(float percent) {
+    return new BigDecimal(percent).setScale(1, RoundingMode.HALF_EVEN).toPlainString();
+  }
+
+  static String formatPhenotype(int productClass) throws PluginModelException {
+    switch (productClass) {
+      case 0: return "non-coding";
+      case 1: return "syn";
+      case 2: return "non-syn";
+      case -1:
+      case -2: return "has stop codon";
+      default: throw new PluginModelException("Invalid coding class in binary SNP stream: " + productClass);
+    }
+  }
+
+  /**
+   * Map SNPs to IDs of the form prefix + contig_source_id + "." + location + suffix, as hsssReconstructSnpId does.
+   *
+   * @param strainFilesDir a readFreq dir.  Its contigIdToSourceId.dat supplies the contig source_ids
+   * @param prefix the ID prefix, or NULL for none
+   * @param suffix the ID suffix, or NULL for none
+   * @param seqFilter if not null, only SNPs on this sequence, between minLoc and maxLoc inclusive, are kept
+   */
+  public static SnpIdMapper getSnpIdMapper(File strainFilesDir, String prefix, String suffix, String seqFilter,
+      int minLoc, int maxLoc) throws PluginModelException {
+    Map<Short, String> contigs = getContigSourceIds(new File(strainFilesDir, CONTIG_ID_FILE_NAME));
+    String idPrefix = "NULL".equals(prefix) ? "" : prefix;
+    String idSuffix = "NULL".equals(suffix) ? "" : suffix;
+    return (contigIndex, location) -> {
+      String contigSourceId = getContigSourceId(contigs, contigIndex);
+      if (seqFilter != null && (!contigSourceId.equals(seqFilter) || location < minLoc || location > maxLoc))
+        return null;
+      return idPrefix + contigSourceId + "." + location + idSuffix;
+    };
+  }
+
+  /**
+   * Map chip SNPs to their source_ids, from the locationToSourceId.dat in the strain files dir, as
+   * hsssReconstructChipSnpId does.
+   *
+   * @param strainFilesDir a readFreq dir
+   * @param dataType the assay type the SNPs belong to
+   * @param seqFilter if not null, only SNPs on this sequence, strictly between start and end, are kept
+   */
+  public static SnpIdMapper getChipSnpIdMapper(File strainFilesDir, String dataType, String seqFilter, int start,
+      int end) throws PluginModelException {
+    Map<Short, String> contigs = getContigSourceIds(new File(strainFilesDir, CONTIG_ID_FILE_NAME));
+    Map<Long, String> snpIds = getChipSnpIds(new File(strainFilesDir, CHIP_SNP_ID_FILE_NAME), contigs, dataType);
+    return (contigIndex, location) -> {
+      String contigSourceId = getContigSourceId(contigs, contigIndex);
+      String snpId = snpIds.get(toKey(contigIndex, location));
+      if (snpId == null)
+        throw new PluginModelException("No " + dataType + " SNP source id found for " + contigSourceId + " location " +
+            location);
+      if (seqFilter != null && (!contigSourceId.equals(seqFilter) || location <= start || location >= end))
+        return null;
+      return snpId;
+    };
+  }
+
+  private static String getContigSourceId(Map<Short, String> contigs, short contigIndex)
+      throws PluginModelException {
+    String contigSourceId = contigs.get(contigIndex);
+    if (contigSourceId == null)
+      throw new PluginModelException("Can't map contig index " + contigIndex + " in binary SNP stream");
+    return contigSourceId;
+  }
+
+  private static long toKey(short contigIndex, int location) {
+    return ((long) contigIndex << 32) | (location & 0xffffffffL);
+  }
+
+  private static Map<Short, String> getContigSourceIds(File contigIdFile) throws PluginModelException {
+    String key = contigIdFile.getAbsolutePath();
+    CachedTable<Map<Short, String>> cached = contigTables.get(key);
+    if (cached != null && cached.lastModified == contigIdFile.lastModified())
+      return cached.table;
+
+    Map<Short, String> contigs = new HashMap<>();
+    long lastModified = contigIdFile.lastModified();
+    try (BufferedReader reader = new BufferedReader(new FileReader(contigIdFile))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t");
+        if (parts.length < 2)
+          continue;
+        contigs.put(Short.valueOf(parts[0].trim()), parts[1]);
+      }
+    }
+    catch (IOException | NumberFormatException e) {
+      throw new PluginModelException("Failed reading contig ID file " + contigIdFile, e);
+    }
+    contigTables.put(key, new CachedTable<>(lastModified, Collections.unmodifiableMap(contigs)));
+    return contigs;
+  }
+
+  private static Map<Long, String> getChipSnpIds(File snpIdFile, Map<Short, String> contigs, String dataType)
+      throws PluginModelException {
+    String key = snpIdFile.getAbsolutePath() + "\t" + dataType;
+    CachedTable<Map<Long, String>> cached = chipSnpIdTables.get(key);
+    if (cached != null && cached.lastModified == snpIdFile.lastModified())
+      return cached.table;
+
+    Map<String, Short> contigIndexes = new HashMap<>();
+    for (Map.Entry<Short, String> contig : contigs.entrySet())
+      contigIndexes.put(contig.getValue(), contig.getKey());
+
+    // columns:  snp source_id, contig source_id, location, data type
+    Map<Long, String> snpIds = new HashMap<>();
+    long lastModified = snpIdFile.lastModified();
+    try (BufferedReader reader = new BufferedReader(new FileReader(snpIdFile))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t");
+        if (parts.length < 4 || !parts[3].equals(dataType))
+          continue;
+        Short contigIndex = contigIndexes.get(parts[1]);
+        if (contigIndex != null)
+          snpIds.put(toKey(contigIndex, Integer.parseInt(parts[2].trim())), parts[0]);
+      }
+    }
+    catch (IOException | NumberFormatException e) {
+      throw new PluginModelException("Failed reading chip SNP ID file " + snpIdFile, e);
+    }
+    logger.info("Read " + snpIds.size() + " " + dataType + " SNP ids from " + snpIdFile);
+    chipSnpIdTables.put(key, new CachedTable<>(lastModified, Collections.unmodifiableMap(snpIds)));
+    return snpIds;
+  }
+}
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.BinarySnpResultDecoder.SnpIdMapper;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginUserException;
 
@@ -58,11 +59,6 @@ public class FindChipPolymorphismsPlugin extends FindPolymorphismsAbstractPlugin
         return "hsssChipFindPolymorphisms.";
     }
 
-    @Override
-        protected String getResultsFileBaseName() {
-        return "results";
-    }
-
     @Override
      protected List<String> makeCommandToCreateBashScript(File jobDir, Map<String, String> params,
                                                           File organismDir) throws PluginUserException, PluginModelException {
@@ -75,6 +71,17 @@ public class FindChipPolymorphismsPlugin extends FindPolymorphismsAbstractPlugin
         logger.info("running command " + command.toString() + " from CHip Polymorph"); 
         return command;
     }
+
+  @Override
+  protected SnpIdMapper getSnpIdMapper(File readFreqDir, Map<String, String> params, String idPrefix)
+      throws PluginModelException {
+    return BinarySnpResultDecoder.getChipSnpIdMapper(readFreqDir, getDataType(params), null, 0, 0);
+  }
+
+  // the assay type, as named in locationToSourceId.dat
+  protected String getDataType(Map<String, String> params) {
+    return params.get(PARAM_ASSAY_TYPE).replace("Broad_", ".").replaceFirst("\\.", "Broad_");
+  }
     
 
     /**
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.BinarySnpResultDecoder.SnpIdMapper;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginRequest;
 import org.gusdb.wsf.plugin.PluginUserException;
@@ -47,17 +48,35 @@ public class FindChipPolymorphismsWithSeqFilterPlugin extends FindChipPolymorphi
 
   @Override
       protected List<String> makeCommandToCreateBashScript(File jobDir, Map<String, String> params, File organismDir) throws PluginModelException, PluginUserException  {
+    String seq = getSequence(params);
+    String start = params.get(PARAM_START_POINT);
+    int end = getEnd(params);
+    List<String> command = super.makeCommandToCreateBashScript(jobDir, params, organismDir);
+    writeLocationFile(jobDir, seq, start, end);
+    command.add(genomicLocationsFileName);
+    return command;
+  }
+
+  @Override
+  protected SnpIdMapper getSnpIdMapper(File readFreqDir, Map<String, String> params, String idPrefix)
+      throws PluginModelException {
+    String start = params.get(PARAM_START_POINT).trim();
+    return BinarySnpResultDecoder.getChipSnpIdMapper(readFreqDir, getDataType(params), getSequence(params),
+        start.isEmpty() ? 0 : Integer.parseInt(start), getEnd(params));
+  }
+
+  private String getSequence(Map<String, String> params) {
     String chromosome = params.get(PARAM_CHROMOSOME);
     String seq = params.get(PARAM_SEQUENCE);
     //if (seq.equals("")) seq = chromosome;
     if (seq.contains("No Match")) seq = chromosome;
-    String start = params.get(PARAM_START_POINT);
+    return seq.replace("'", "");
+  }
+
+  private int getEnd(Map<String, String> params) {
     int end = Integer.parseInt(params.get(PARAM_END_POINT));
     if (end == 0) end = 1000000000;
-    List<String> command = super.makeCommandToCreateBashScript(jobDir, params, organismDir);
-    writeLocationFile(jobDir, seq.replace("'", ""), start, end);
-    command.add(genomicLocationsFileName);
-    return command;
+    return end;
   }
 
     protected void writeLocationFile(File jobDir, String sourceId, String start, int end) throws PluginModelException {
@@ -4,18 +4,13 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.sql.DataSource;
-
-import org.gusdb.fgputil.db.SqlUtils;
-import org.gusdb.fgputil.runtime.GusHome;
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.BinarySnpResultDecoder.SnpIdMapper;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginRequest;
 import org.gusdb.wsf.plugin.PluginUserException;
@@ -73,79 +68,36 @@ public class FindGenesWithSnpCharsPlugin extends FindPolymorphismsPlugin {
 
   @Override
   protected void initForBashScript(File jobDir, Map<String, String> params, File organismDir) throws PluginModelException {
+    // the unit test uses a few fixed genes.  otherwise the gene locations come from the organism's cached table
+    if (!params.get(PARAM_SNP_CLASS).equals("unit test"))
+      return;
+
     File filtersFile = new File(jobDir, geneLocationsFileName);
-    BufferedWriter bw = null;
-    String snpClass = params.get(PARAM_SNP_CLASS);
-    try {
-      if (!filtersFile.exists())
-        filtersFile.createNewFile();
-      FileWriter w = new FileWriter(filtersFile);
-      bw = new BufferedWriter(w);
-      if (snpClass.equals("unit test")) {
-        String[] testFilters = new String[] { "e99\t1000\t3000\tg1", "f100\t500\t700\tg2",
-            "h103\t30021\t40000\tg3", "j201\t20\t50\tg4" };
-        for (String filter : testFilters) {
-          bw.write(filter);
-          bw.newLine();
-        }
-      }
-      else {
-        DataSource dataSource = wdkModel.getAppDb().getDataSource();
-        String newline = System.lineSeparator();
-
-        String organism = removeSingleQuotes(params.get(PARAM_ORGANISM));
-
-        // can interpolate organism into sql w/o fear of injection because it came from a vocabulary param
-        String sql = "select g.sequence_id, g.start_min, g.end_max, g.source_id" + newline +
-            "from apidbtuning.geneattributes g " + newline + "where g.source_id is not null" + newline +
-            " and g.organism = '" + organism + "'";
-
-        ResultSet rs = null;
-
-        try {
-          rs = SqlUtils.executeQuery(dataSource, sql, "FindGenesWithSnpCharsPlugin");
-
-          while (rs.next()) {
-            String seqId = rs.getString(1);
-            String start = rs.getString(2);
-            String end = rs.getString(3);
-            String geneId = rs.getString(4);
-            bw.write(seqId + "\t" + start + "\t" + end + "\t" + geneId);
-            bw.newLine();
-          }
-
-        }
-        catch (SQLException ex) {
-          throw new PluginModelException(ex);
-        }
-        finally {
-          SqlUtils.closeResultSetAndStatement(rs, null);
-        }
+    try (BufferedWriter bw = new BufferedWriter(new FileWriter(filtersFile))) {
+      String[] testFilters = new String[] { "e99\t1000\t3000\tg1", "f100\t500\t700\tg2",
+          "h103\t30021\t40000\tg3", "j201\t20\t50\tg4" };
+      for (String filter : testFilters) {
+        bw.write(filter);
+        bw.newLine();
       }
     }
     catch (IOException e) {
       throw new PluginModelException("Failed writing to file" + filtersFile, e);
     }
-    finally {
-      try {
-        if (bw != null) {
-          bw.close();
-	  // run Unix sort on newly-created file, so it's ordered like the SNP files
-	  String gusBin = GusHome.getGusHome() + "/bin";
-          ProcessBuilder builder
-	      = new ProcessBuilder(gusBin + "/apiSortNoLocale", "-k", "1,1", "-k", "2,2n", "-o",
-				   jobDir.getPath() + "/" + geneLocationsFileName,
-				   jobDir.getPath() + "/" + geneLocationsFileName);
-	  builder.start().waitFor();
-	}
-      }
-      catch (IOException e) {
-        throw new PluginModelException("Failed closing file" + filtersFile, e);
-      }
-      catch (InterruptedException e) {
-        throw new PluginModelException("Failed sorting file" + filtersFile, e);
-      }
-    }
+  }
+
+  /**
+   * The gene locations for the search:  the organism's binary gene locations table, built on first use and cached
+   * across requests (see GeneLocationsCache), or for the unit test a text file in the job dir
+   */
+  protected String getGeneLocationsFile(Map<String, String> params, File organismDir) throws PluginModelException {
+    if (params.get(PARAM_SNP_CLASS).equals("unit test"))
+      return geneLocationsFileName;
+
+    File readFreqDir = getReadFreqDir(organismDir, params.get(PARAM_READ_FREQ_PERCENT));
+    String organism = removeSingleQuotes(params.get(PARAM_ORGANISM));
+    return GeneLocationsCache.getGeneLocationsTable(getJobsDir(), readFreqDir, organism, getBuildNumber(),
+        wdkModel.getAppDb().getDataSource()).getPath();
   }
 
   @Override
@@ -172,7 +124,7 @@ public class FindGenesWithSnpCharsPlugin extends FindPolymorphismsPlugin {
     String density_max = params.get(PARAM_DENSITY_UPPER);
 
     List<String> command = super.makeCommandToCreateBashScript(jobDir, params, organismDir);
-    command.add(geneLocationsFileName);
+    command.add(getGeneLocationsFile(params, organismDir));
     command.add(snpClass);
     command.add(min);
     command.add(max);
@@ -184,6 +136,12 @@ public class FindGenesWithSnpCharsPlugin extends FindPolymorphismsPlugin {
 
   }
 
+  // the job's output is genes, not SNPs
+  @Override
+  protected SnpIdMapper getSnpIdMapper(File readFreqDir, Map<String, String> params, String idPrefix) {
+    return null;
+  }
+
   @Override
   protected String getGenerateScriptName() {
     return "hsssGenerateGeneCharsScript";
@@ -4,7 +4,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import org.gusdb.fgputil.runtime.GusHome;
 import org.gusdb.wsf.plugin.PluginModelException;
@@ -69,9 +68,6 @@ public class FindMajorAllelesPlugin extends HighSpeedSnpSearchAbstractPlugin {
   @Override
   protected String getJobsDirPrefix() { return "hsssFindMajorAlleles."; }
     
-  @Override
-  protected String getResultsFileBaseName() { return "results"; }
-    
   @Override
       protected List<String> makeCommandToCreateBashScript(File jobDir, Map<String, String> params, File organismDir) throws PluginUserException, PluginModelException  {
     List<String> command = new ArrayList<String>();
@@ -80,14 +76,13 @@ public class FindMajorAllelesPlugin extends HighSpeedSnpSearchAbstractPlugin {
     // set A
     String strainsSql_A = params.get(PARAM_STRAIN_FILTER_A);
     if (strainsSql_A == null) throw new PluginUserException("Strains A param is empty");
-    String strainsA = getParamValueFromSql(strainsSql_A, "FindMajorAllelesPlugin_A", wdkModel.getAppDb().getDataSource()).stream().collect(Collectors.joining(", "));
+    String strainsA = getStrains(strainsSql_A, "FindMajorAllelesPlugin_A");
 
     if (strainsA == null) throw new PluginUserException("Strains param is empty");
     int strainsCountA = writeStrainsFile(jobDir, strainsA, "strainsA");
     String readFreqPercentA = params.get(PARAM_READ_FREQ_PERCENT_A);
-    File readFreqDirA = new File(organismDir, "readFreq" + readFreqPercentA);
-    if (!readFreqDirA.exists()) throw new PluginModelException("StrainsA dir for readFreq ' " + readFreqPercentA
-                                + "' does not exist:\n" + readFreqDirA);
+    File readFreqDirA = getReadFreqDir(organismDir, readFreqPercentA);
+    File mergedStreamA = getAllStrainsMergedStream(readFreqDirA, strainsA);
     int percentMajorAllelesA = Integer.parseInt(params.get(PARAM_MIN_PERCENT_MAJOR_ALLELES_A));
     int percentUnknownsA = 100 - Integer.parseInt(params.get(PARAM_MIN_PERCENT_KNOWNS_A));
     int unknownsThresholdA = (int)Math.floor(strainsCountA * percentUnknownsA / 100.0);  // round down
@@ -96,24 +91,45 @@ public class FindMajorAllelesPlugin extends HighSpeedSnpSearchAbstractPlugin {
     // set B
     String strainsSql_B = params.get(PARAM_STRAIN_FILTER_B);
     if (strainsSql_B == null) throw new PluginUserException("Strains B param is empty");
-    String strainsB = getParamValueFromSql(strainsSql_B, "FindMajorAllelesPlugin_B", wdkModel.getAppDb().getDataSource()).stream().collect(Collectors.joining(", "));
+    String strainsB = getStrains(strainsSql_B, "FindMajorAllelesPlugin_B");
 
     int strainsCountB = writeStrainsFile(jobDir, strainsB, "strainsB");
     String readFreqPercentB = params.get(PARAM_READ_FREQ_PERCENT_B);
-    File readFreqDirB = new File(organismDir, "readFreq" + readFreqPercentB);
-    if (!readFreqDirB.exists()) throw new PluginModelException("StrainsB dir for readFreq ' " + readFreqPercentB
-                                + "' does not exist:\n" + readFreqDirB);
+    File readFreqDirB = getReadFreqDir(organismDir, readFreqPercentB);
+    File mergedStreamB = getAllStrainsMergedStream(readFreqDirB, strainsB);
     int percentMajorAllelesB = Integer.parseInt(params.get(PARAM_MIN_PERCENT_MAJOR_ALLELES_B));
     int percentUnknownsB = 100 - Integer.parseInt(params.get(PARAM_MIN_PERCENT_KNOWNS_B));
     int unknownsThresholdB = (int)Math.floor(strainsCountB * percentUnknownsB / 100.0);  // round down
   
     if (unknownsThresholdB > (strainsCountB - 1)) unknownsThresholdB = strainsCountB - 1;  // must be at least 1 known
 
+    // unless a set reads a merged stream, the job reads each strain file once, for both sets
+    // (see hsssFindGroupMajorAlleles), so a strain in both costs once
+    if (mergedStreamA == null && mergedStreamB == null && readFreqDirA.equals(readFreqDirB))
+      addJobCost(countDistinctStrains(strainsA, strainsB), readFreqDirA);
+    else {
+      if (mergedStreamA != null)
+        addJobCost(mergedStreamA);
+      else
+        addJobCost(strainsCountA, readFreqDirA);
+      if (mergedStreamB != null)
+        addJobCost(mergedStreamB);
+      else
+        addJobCost(strainsCountB, readFreqDirB);
+    }
+
     String suffix = "NULL";
     String prefix = super.getIdPrefix();
     String reconstructCmdName = getReconstructCmdName();
-    // hsssGenerateMajorAllelesScript tmp_dir strain_files_dir_a  set_a_major_alleles_threshold set_a_unknown_threshold set_a_strains_list_file strain_files_dir_a set_b_major_alleles_threshold set_b_unknown_threshold set_b_strains_list_file strains_are_names output_script_file [output_data_file]
+    // hsssGenerateMajorAllelesScript [--merged_stream_a=file] [--merged_stream_b=file] [--read_freq_a=percent] [--read_freq_b=percent] [--partitions=count] tmp_dir strain_files_dir_a  set_a_major_alleles_threshold set_a_unknown_threshold set_a_strains_list_file strain_files_dir_a set_b_major_alleles_threshold set_b_unknown_threshold set_b_strains_list_file strains_are_names output_script_file [output_data_file]
     command.add(gusBin + "/hsssGenerateMajorAllelesScript");
+    if (mergedStreamA != null)
+      command.add("--merged_stream_a=" + mergedStreamA.getPath());
+    if (mergedStreamB != null)
+      command.add("--merged_stream_b=" + mergedStreamB.getPath());
+    addReadFreqOption(command, "read_freq_a", readFreqDirA, readFreqPercentA);
+    addReadFreqOption(command, "read_freq_b", readFreqDirB, readFreqPercentB);
+    addPartitionsOption(command);
     command.add(jobDir.getPath());
     command.add(readFreqDirA.getPath());
     command.add(Integer.valueOf(percentMajorAllelesA).toString());
@@ -128,7 +144,7 @@ public class FindMajorAllelesPlugin extends HighSpeedSnpSearchAbstractPlugin {
     command.add(reconstructCmdName);
     command.add(prefix);
     command.add(suffix);
-    command.add(jobDir.getPath() + "/" + getResultsFileBaseName());
+    // no output_data_file:  the job writes its results to stdout, which is streamed into the response
     return command;
   }
 
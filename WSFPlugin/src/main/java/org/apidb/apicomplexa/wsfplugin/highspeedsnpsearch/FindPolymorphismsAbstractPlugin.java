@@ -1,7 +1,12 @@
 package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -10,8 +15,10 @@ import org.gusdb.fgputil.ArrayUtil;
 import org.gusdb.fgputil.runtime.GusHome;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginRequest;
+import org.gusdb.wsf.plugin.PluginResponse;
 import org.gusdb.wsf.plugin.PluginUserException;
 import org.apache.log4j.Logger;
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.BinarySnpResultDecoder.SnpIdMapper;
 
 /**
  * @author steve
@@ -26,12 +33,30 @@ public abstract class FindPolymorphismsAbstractPlugin extends HighSpeedSnpSearch
   public static final String PARAM_MIN_PERCENT_KNOWNS = "MinPercentIsolateCalls";
   public static final String PARAM_MIN_PERCENT_POLYMORPHISMS = "MinPercentMinorAlleles";
   public static final String PARAM_READ_FREQ_PERCENT = "ReadFrequencyPercent";
+  // optional.  if true, don't run the search, but estimate its result size from a sample of the genome.  no rows are
+  // returned:  the response message is the estimate (see hsssEstimateResultSize)
+  public static final String PARAM_ESTIMATE_RESULT_SIZE = "EstimateResultSize";
+
+  // optional property.  if set, merged strain streams are cached, up to this many MB
+  public static final String PROPERTY_MERGED_STREAM_CACHE_MAX_MB = "mergedStreamCacheMaxMB";
+  // optional property.  the blocks of the reference genome an estimate samples:  every this many'th.  if unset, 20
+  public static final String PROPERTY_ESTIMATE_SAMPLE_INTERVAL = "estimateSampleInterval";
+
+  private static final long DEFAULT_ESTIMATE_SAMPLE_INTERVAL = 20;
+
+  private static final String POLYMORPHISM_SCRIPT_NAME = "hsssGeneratePolymorphismScript";
 
   // required result column definition
   private static final String COLUMN_PERCENT_OF_POLYMORPHISMS = "PercentMinorAlleles";
   private static final String COLUMN_PERCENT_OF_KNOWNS = "PercentIsolateCalls";
   private static final String COLUMN_PHENOTYPE = "Phenotype";
 
+  // decodes the job's binary output, or null if the job writes text
+  private BinarySnpResultDecoder resultDecoder;
+
+  // true if the job only estimates the result size
+  private boolean estimating;
+
   public FindPolymorphismsAbstractPlugin(String propertyFile) {
     super(propertyFile);
   }
@@ -73,11 +98,6 @@ public abstract class FindPolymorphismsAbstractPlugin extends HighSpeedSnpSearch
     return "hsssFindPolymorphisms.";
   }
 
-  @Override
-  protected String getResultsFileBaseName() {
-    return "results";
-  }
-
   /**
    * 
    * @param jobDir
@@ -88,10 +108,26 @@ public abstract class FindPolymorphismsAbstractPlugin extends HighSpeedSnpSearch
   protected void initForBashScript(File jobDir, Map<String, String> params, File organismDir)
       throws PluginModelException {}
 
+  /**
+   * Searches that return SNPs can have the job write binary SNP records, and map them to SNP IDs here, rather than
+   * run a reconstruct command in the job.
+   *
+   * @return the mapper from contig index and location to SNP ID, or null if the job writes text
+   */
+  protected SnpIdMapper getSnpIdMapper(File readFreqDir, Map<String, String> params, String idPrefix)
+      throws PluginModelException {
+    return null;
+  }
+
   @Override
   protected List<String> makeCommandToCreateBashScript(File jobDir, Map<String, String> params,
                                                        File organismDir) throws PluginUserException, PluginModelException {
 
+    // only the SNPs the polymorphism search reports can be counted from a sample, not genes or filtered SNPs
+    estimating = Boolean.parseBoolean(params.get(PARAM_ESTIMATE_RESULT_SIZE));
+    if (estimating && !getGenerateScriptName().equals(POLYMORPHISM_SCRIPT_NAME))
+      throw new PluginUserException("The result size of this search can't be estimated");
+
     initForBashScript(jobDir, params, organismDir);
 
     List<String> command = new ArrayList<String>();
@@ -101,13 +137,18 @@ public abstract class FindPolymorphismsAbstractPlugin extends HighSpeedSnpSearch
  
     if (strainsSql == null)
       throw new PluginUserException("Strains param is empty");
-    String strainsListString = getParamValueFromSql(strainsSql, "FindPolymorphismsPlugin", wdkModel.getAppDb().getDataSource()).stream().collect(Collectors.joining(", "));
+    String strainsListString = getStrains(strainsSql, "FindPolymorphismsPlugin");
     int strainsCount = writeStrainsFile(jobDir, strainsListString, "strains");
     String readFreqPercent = params.get(PARAM_READ_FREQ_PERCENT);
-    File readFreqDir = new File(organismDir, "readFreq" + readFreqPercent);
-    if (!readFreqDir.exists())
-      throw new PluginModelException("Strains dir for readFreq ' " + readFreqPercent + "' does not exist:\n" +
-          readFreqDir);
+    File readFreqDir = getReadFreqDir(organismDir, readFreqPercent);
+    File allStrainsMergedStream = getAllStrainsMergedStream(readFreqDir, strainsListString);
+    // an estimate reads only a sample of the strain files, so it is admitted at the least cost
+    if (!estimating) {
+      if (allStrainsMergedStream != null)
+        addJobCost(allStrainsMergedStream);
+      else
+        addJobCost(strainsCount, readFreqDir);
+    }
     int percentPolymorphisms = Integer.parseInt(params.get(PARAM_MIN_PERCENT_POLYMORPHISMS));
     int percentUnknowns = 100 - Integer.parseInt(params.get(PARAM_MIN_PERCENT_KNOWNS));
     int unknownsThreshold = (int) Math.floor(strainsCount * percentUnknowns / 100.0); // round down
@@ -115,14 +156,32 @@ public abstract class FindPolymorphismsAbstractPlugin extends HighSpeedSnpSearch
       unknownsThreshold = strainsCount - 1; // must be at least 1 known
     String reconstructNameCmd = getReconstructCmdName();
     String prefix = super.getIdPrefix();
-    // hsssGeneratePolymorphismScript strain_files_dir tmp_dir polymorphism_threshold unknown_threshold
-    // strains_list_file 1 output_file result_file
+    SnpIdMapper snpIdMapper = estimating ? null : getSnpIdMapper(readFreqDir, params, prefix);
+    resultDecoder = snpIdMapper == null ? null : new BinarySnpResultDecoder(snpIdMapper);
+    // hsssGeneratePolymorphismScript [--output_format=binary | --estimate=interval] [--read_freq=percent] [--merged_stream=file | --merged_stream_cache=file] [--partitions=count] strain_files_dir job_dir 1 output_script_file ""
+    // polymorphism_threshold unknown_threshold strains_list_file reconstruct_cmd id_prefix
     command.add(gusBin + "/" + getGenerateScriptName());
+    if (resultDecoder != null)
+      command.add("--output_format=binary");
+    addReadFreqOption(command, "read_freq", readFreqDir, readFreqPercent);
+    if (estimating) {
+      // a sample of the genome is read from the strain files, and run here, not on the workers
+      command.add("--estimate=" + getLongProperty(PROPERTY_ESTIMATE_SAMPLE_INTERVAL, DEFAULT_ESTIMATE_SAMPLE_INTERVAL));
+    }
+    else {
+      File mergedStreamCacheFile = allStrainsMergedStream != null ? null :
+          getMergedStreamCacheFile(readFreqDir, readFreqPercent, strainsListString);
+      if (allStrainsMergedStream != null)
+        command.add("--merged_stream=" + allStrainsMergedStream.getPath());
+      else if (mergedStreamCacheFile != null)
+        command.add("--merged_stream_cache=" + mergedStreamCacheFile.getPath());
+      addPartitionsOption(command);
+    }
     command.add(readFreqDir.getPath());
     command.add(jobDir.getPath());
     command.add("1");
     command.add(jobDir.getPath() + "/" + getCommandName());
-    command.add(jobDir.getPath() + "/" + getResultsFileBaseName());
+    command.add("");  // no output file:  the job writes its results to stdout, which is streamed into the response
     command.add(Integer.valueOf(percentPolymorphisms).toString());
     command.add(Integer.valueOf(unknownsThreshold).toString());
     command.add(jobDir.getPath() + "/strains");
@@ -131,8 +190,45 @@ public abstract class FindPolymorphismsAbstractPlugin extends HighSpeedSnpSearch
     return command;
   }
 
+  private File getMergedStreamCacheFile(File readFreqDir, String readFreqPercent, String strainsListString)
+      throws PluginModelException {
+    String maxMegabytes = getProperty(PROPERTY_MERGED_STREAM_CACHE_MAX_MB);
+    if (maxMegabytes == null || maxMegabytes.trim().isEmpty())
+      return null;
+    List<String> strains = Arrays.stream(strainsListString.split(",")).map(String::trim)
+        .filter(strain -> !strain.equals("-1")).collect(Collectors.toList());
+    try {
+      // strain files that hold read frequencies make a different merged stream at each threshold
+      String readFreq = holdsReadFrequencies(readFreqDir) ? readFreqPercent.trim() : null;
+      return new MergedStreamCache(getJobsDir(), Long.parseLong(maxMegabytes.trim())).getCacheFile(readFreqDir,
+          readFreq, strains);
+    }
+    catch (NumberFormatException e) {
+      throw new PluginModelException(PROPERTY_MERGED_STREAM_CACHE_MAX_MB + " must be a number of MB: " + maxMegabytes, e);
+    }
+  }
+
   protected String getGenerateScriptName() {
-    return "hsssGeneratePolymorphismScript";
+    return POLYMORPHISM_SCRIPT_NAME;
+  }
+
+  @Override
+  protected void readResults(PluginResponse response, String projectId, InputStream in, String[] orderedColumns)
+      throws IOException, PluginModelException, PluginUserException {
+    if (estimating) {
+      // one line:  estimated_count, low, high, sampled_blocks, total_blocks
+      String estimate = new BufferedReader(new InputStreamReader(in)).readLine();
+      if (estimate == null || estimate.trim().split("\t").length != 5)
+        throw new PluginModelException("Unexpected result size estimate: " + estimate);
+      response.setMessage(estimate.trim());
+      return;
+    }
+    if (resultDecoder == null) {
+      super.readResults(response, projectId, in, orderedColumns);
+      return;
+    }
+    Map<String, Integer> columns = getColumnPositions(orderedColumns);
+    resultDecoder.decode(in, row -> response.addRow(makeResultRow(row, columns, projectId)));
   }
 
   @Override
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.BinarySnpResultDecoder.SnpIdMapper;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginUserException;
 
@@ -60,6 +61,12 @@ public class FindPolymorphismsPlugin extends FindPolymorphismsAbstractPlugin {
         return command;
     }    
 
+  @Override
+  protected SnpIdMapper getSnpIdMapper(File readFreqDir, Map<String, String> params, String idPrefix)
+      throws PluginModelException {
+    return BinarySnpResultDecoder.getSnpIdMapper(readFreqDir, idPrefix, "NULL", null, 0, 0);
+  }
+
     /**
      * @throws WsfPluginException
      * @throws PluginModelException
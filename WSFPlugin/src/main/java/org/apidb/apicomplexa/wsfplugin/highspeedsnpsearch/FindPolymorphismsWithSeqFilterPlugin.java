@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.List;
 import java.util.Map;
 
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.BinarySnpResultDecoder.SnpIdMapper;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginRequest;
 import org.gusdb.wsf.plugin.PluginUserException;
@@ -41,18 +42,38 @@ public class FindPolymorphismsWithSeqFilterPlugin extends FindPolymorphismsPlugi
 
   @Override
       protected List<String> makeCommandToCreateBashScript(File jobDir, Map<String, String> params, File organismDir) throws PluginModelException, PluginUserException  {
-    String chromosome = params.get(PARAM_CHROMOSOME);
-    String seq = params.get(PARAM_SEQUENCE);
-    //if (seq.equals("")) seq = chromosome;
-    if (seq.contains("No Match")) seq = chromosome;
+    String seq = getSequence(params);
     String start = params.get(PARAM_START_POINT);
-    int end = Integer.parseInt(params.get(PARAM_END_POINT));
-    if (end == 0) end = 1000000000;
+    int end = getEnd(params);
     List<String> command = super.makeCommandToCreateBashScript(jobDir, params, organismDir);
     command.add(seq);
     command.add(start);
     command.add("" + end);
     return command;
   }
+
+  @Override
+  protected SnpIdMapper getSnpIdMapper(File readFreqDir, Map<String, String> params, String idPrefix)
+      throws PluginModelException {
+    // the job script's shell would have stripped the quotes from the sequence arg
+    String seq = getSequence(params).replace("'", "");
+    String start = params.get(PARAM_START_POINT).trim();
+    return BinarySnpResultDecoder.getSnpIdMapper(readFreqDir, idPrefix, "NULL", seq.isEmpty() ? null : seq,
+        start.isEmpty() ? 0 : Integer.parseInt(start), getEnd(params));
+  }
+
+  private String getSequence(Map<String, String> params) {
+    String chromosome = params.get(PARAM_CHROMOSOME);
+    String seq = params.get(PARAM_SEQUENCE);
+    //if (seq.equals("")) seq = chromosome;
+    if (seq.contains("No Match")) seq = chromosome;
+    return seq;
+  }
+
+  private int getEnd(Map<String, String> params) {
+    int end = Integer.parseInt(params.get(PARAM_END_POINT));
+    if (end == 0) end = 1000000000;
+    return end;
+  }
  
 }
@@ -0,0 +1,265 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.gusdb.fgputil.db.SqlUtils;
+import org.gusdb.wsf.plugin.PluginModelException;
+
+/**
+ * Per-organism cache of the binary gene locations tables read by hsssGeneCharacteristics (the format written by
+ * hsssGeneLocationsToBinary; see HsssDocumentation.txt).
+ *
+ * The gene characteristics searches need the locations of all of an organism's genes, in the order of the SNP
+ * streams.  Rather than query and sort them on every request, the table is built once per strain files dir and
+ * build, and kept in a cache dir under the jobs dir.  The build number and the strain files dir (whose path holds
+ * the build) are part of the file name, so a new build gets a new table, and tables from older builds are removed.
+ * The chip and NGS strain files dirs of an organism have tables of their own, told apart by their search dir and the
+ * hash of their path, so neither removes the other's.  Tables are built under a lock per table, so building one
+ * organism's doesn't hold up searches of the others.
+ *
+ * @author steve
+ */
+public class GeneLocationsCache {
+
+  private static final Logger logger = Logger.getLogger(GeneLocationsCache.class);
+
+  private static final String CACHE_DIR_NAME = "geneLocationsCache";
+  private static final String CONTIG_ID_FILE_NAME = "contigIdToSourceId.dat";
+
+  private static final byte[] MAGIC = "HSGL".getBytes(StandardCharsets.US_ASCII);
+  private static final short VERSION = 1;
+
+  private static class GeneLocation {
+    final short seq;
+    final int start;
+    final int end;
+    final byte[] name;
+
+    GeneLocation(short seq, int start, int end, String name) {
+      this.seq = seq;
+      this.start = start;
+      this.end = end;
+      this.name = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    String getName() {
+      return new String(name, StandardCharsets.UTF_8);
+    }
+  }
+
+  private static final Comparator<GeneLocation> SNP_STREAM_ORDER = Comparator
+      .comparingInt((GeneLocation g) -> g.seq)
+      .thenComparingInt(g -> g.start)
+      .thenComparingInt(g -> g.end)
+      .thenComparing(GeneLocation::getName);
+
+  // a lock per table file name
+  private static final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+  // reads the locations of an organism's genes on the given contigs, in any order
+  private interface GeneLocationsReader {
+    List<GeneLocation> read(Map<String, Short> contigIndexes) throws PluginModelException;
+  }
+
+  /**
+   * Get the gene locations table for an organism's strain files dir, building it from the database if it is not
+   * cached.
+   *
+   * @param jobsDir the plugin's jobs dir, under which the cache dir lives
+   * @param strainFilesDir a readFreq dir.  Its contigIdToSourceId.dat supplies the contig indexes
+   * @param organism the organism, from a vocabulary param
+   * @param buildNumber the current build
+   */
+  public static File getGeneLocationsTable(File jobsDir, File strainFilesDir, String organism,
+      String buildNumber, DataSource dataSource) throws PluginModelException {
+    return getGeneLocationsTable(jobsDir, strainFilesDir, organism, buildNumber,
+        contigIndexes -> queryGeneLocations(dataSource, organism, contigIndexes));
+  }
+
+  /**
+   * Get the gene locations table for a strain files dir, building it from a text file of gene locations if it is not
+   * cached:  sequence source ID, start, end and gene source ID, tab delimited, as hsssGenerateSyntheticData writes
+   * them.  For the benchmark (see HsssBenchmarkCli), which has no database.
+   */
+  public static File getGeneLocationsTable(File jobsDir, File strainFilesDir, String organism,
+      String buildNumber, File geneLocationsFile) throws PluginModelException {
+    return getGeneLocationsTable(jobsDir, strainFilesDir, organism, buildNumber,
+        contigIndexes -> readGeneLocations(geneLocationsFile, contigIndexes));
+  }
+
+  private static File getGeneLocationsTable(File jobsDir, File strainFilesDir, String organism,
+      String buildNumber, GeneLocationsReader reader) throws PluginModelException {
+
+    File cacheDir = new File(jobsDir, CACHE_DIR_NAME);
+    if (!cacheDir.exists() && !cacheDir.mkdirs() && !cacheDir.exists())
+      throw new PluginModelException("Failed creating gene locations cache dir " + cacheDir);
+
+    // the organism's tables of this kind of strain files (chip or not, and readFreq), from any build, and those of
+    // this very dir
+    File searchDir = strainFilesDir.getAbsoluteFile().getParentFile();
+    String kindPrefix = (organism + "_" + (searchDir == null ? "" : searchDir.getName()) + "_" +
+        strainFilesDir.getName()).replaceAll("[^A-Za-z0-9.-]", "_") + "_";
+    String namePrefix = kindPrefix + Integer.toHexString(strainFilesDir.getAbsolutePath().hashCode()) + "_";
+    String buildSuffix = "_build" + buildNumber + ".bin";
+    String fileName = namePrefix.substring(0, namePrefix.length() - 1) + buildSuffix;
+    File table = new File(cacheDir, fileName);
+    if (table.exists())
+      return table;
+
+    synchronized (locks.computeIfAbsent(fileName, key -> new Object())) {
+      if (table.exists())
+        return table;
+      buildTable(cacheDir, table, strainFilesDir, reader);
+    }
+
+    // remove this dir's tables from older builds, and any of this kind from older builds.  the other dirs' tables of
+    // this build may be in use
+    File[] stale = cacheDir.listFiles((dir, name) -> name.startsWith(kindPrefix) && !name.equals(fileName) &&
+        !name.contains(".tmp") && (name.startsWith(namePrefix) || !name.endsWith(buildSuffix)));
+    if (stale != null) {
+      for (File file : stale) {
+        logger.info("Removing stale gene locations table " + file);
+        file.delete();
+      }
+    }
+    return table;
+  }
+
+  private static void buildTable(File cacheDir, File table, File strainFilesDir, GeneLocationsReader reader)
+      throws PluginModelException {
+
+    long start = System.currentTimeMillis();
+    Map<String, Short> contigIndexes = readContigIndexes(new File(strainFilesDir, CONTIG_ID_FILE_NAME));
+    List<GeneLocation> genes = reader.read(contigIndexes);
+    genes.sort(SNP_STREAM_ORDER);
+
+    // write to a temp file and rename, so a concurrent reader in another JVM never sees a partial table
+    File tmpTable = new File(cacheDir, table.getName() + ".tmp" + System.nanoTime());
+    writeTable(tmpTable, genes);
+    if (!tmpTable.renameTo(table)) {
+      tmpTable.delete();
+      if (!table.exists())
+        throw new PluginModelException("Failed moving gene locations table into place: " + table);
+    }
+    logger.info("Built gene locations table " + table + " with " + genes.size() + " genes in " +
+        ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+  }
+
+  private static Map<String, Short> readContigIndexes(File contigIdFile) throws PluginModelException {
+    Map<String, Short> contigIndexes = new HashMap<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(contigIdFile))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t");
+        if (parts.length < 2)
+          continue;
+        contigIndexes.put(parts[1].trim(), Short.valueOf(parts[0].trim()));
+      }
+    }
+    catch (IOException | NumberFormatException e) {
+      throw new PluginModelException("Failed reading contig ID file " + contigIdFile, e);
+    }
+    return contigIndexes;
+  }
+
+  private static List<GeneLocation> queryGeneLocations(DataSource dataSource, String organism,
+      Map<String, Short> contigIndexes) throws PluginModelException {
+    String newline = System.lineSeparator();
+
+    // can interpolate organism into sql w/o fear of injection because it came from a vocabulary param
+    String sql = "select g.sequence_id, g.start_min, g.end_max, g.source_id" + newline +
+        "from apidbtuning.geneattributes g " + newline + "where g.source_id is not null" + newline +
+        " and g.organism = '" + organism + "'";
+
+    List<GeneLocation> genes = new ArrayList<>();
+    ResultSet rs = null;
+    try {
+      rs = SqlUtils.executeQuery(dataSource, sql, "GeneLocationsCache");
+      while (rs.next()) {
+        // genes on sequences with no SNPs have no contig index.  they can't have SNP characteristics
+        Short seq = contigIndexes.get(rs.getString(1));
+        if (seq == null)
+          continue;
+        genes.add(new GeneLocation(seq, rs.getInt(2), rs.getInt(3), rs.getString(4)));
+      }
+    }
+    catch (SQLException ex) {
+      throw new PluginModelException(ex);
+    }
+    finally {
+      SqlUtils.closeResultSetAndStatement(rs, null);
+    }
+    return genes;
+  }
+
+  private static List<GeneLocation> readGeneLocations(File geneLocationsFile, Map<String, Short> contigIndexes)
+      throws PluginModelException {
+    List<GeneLocation> genes = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(geneLocationsFile))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t");
+        if (parts.length < 4)
+          continue;
+        Short seq = contigIndexes.get(parts[0].trim());
+        if (seq == null)
+          continue;
+        genes.add(new GeneLocation(seq, Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()),
+            parts[3].trim()));
+      }
+    }
+    catch (IOException | NumberFormatException e) {
+      throw new PluginModelException("Failed reading gene locations file " + geneLocationsFile, e);
+    }
+    return genes;
+  }
+
+  private static void writeTable(File file, List<GeneLocation> genes) throws PluginModelException {
+    int namesSize = 0;
+    for (GeneLocation gene : genes)
+      namesSize += gene.name.length + 1;
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      // the C tools read native (little endian) byte order
+      ByteBuffer buf = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+      buf.put(MAGIC).putShort(VERSION).putShort((short) 0).putInt(genes.size()).putInt(namesSize);
+      out.write(buf.array(), 0, buf.position());
+
+      int nameOffset = 0;
+      for (GeneLocation gene : genes) {
+        buf.clear();
+        buf.putShort(gene.seq).putShort((short) 0).putInt(gene.start).putInt(gene.end).putInt(nameOffset);
+        out.write(buf.array(), 0, buf.position());
+        nameOffset += gene.name.length + 1;
+      }
+      for (GeneLocation gene : genes) {
+        out.write(gene.name);
+        out.write(0);
+      }
+    }
+    catch (IOException e) {
+      file.delete();
+      throw new PluginModelException("Failed writing gene locations table " + file, e);
+    }
+  }
+}
@@ -1,21 +1,38 @@
 package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 import org.eupathdb.common.model.ProjectMapper;
@@ -49,11 +66,49 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
   // property definition
   public static final String PROPERTY_JOBS_DIR = "jobsDir";
   public static final String PROPERTY_PREFIX = "idPrefix";
+  // optional.  the total cost (see addJobCost) of jobs that may run at once on this host.  if unset, no limit
+  public static final String PROPERTY_MAX_CONCURRENT_JOB_COST = "maxConcurrentJobCost";
+  // optional.  how long a job may wait for others to finish before it is refused
+  public static final String PROPERTY_MAX_JOB_QUEUE_WAIT_SECONDS = "maxJobQueueWaitSeconds";
+  // optional.  the number of partitions of the genome a whole genome job runs in parallel.  if unset, 1
+  public static final String PROPERTY_JOB_PARTITIONS = "jobPartitions";
+  // optional.  HSSS workers (see HsssWorker), as host:port, comma delimited.  if set, whole genome jobs are run by the
+  // workers, a partition of the genome each, instead of on this host
+  public static final String PROPERTY_WORKERS = "workers";
+  // required if workers is set.  a file holding the secret the plugins and the workers share
+  public static final String PROPERTY_WORKER_SECRET_FILE = "workerSecretFile";
+  // optional.  if set, search results are cached (see ResultCache), up to this many MB
+  public static final String PROPERTY_RESULT_CACHE_MAX_MB = "resultCacheMaxMB";
+  // optional.  cached results older than this are evicted.  if unset, 24
+  public static final String PROPERTY_RESULT_CACHE_MAX_AGE_HOURS = "resultCacheMaxAgeHours";
+
+  private static final long DEFAULT_MAX_JOB_QUEUE_WAIT_SECONDS = 60;
+  private static final long JOB_TIMEOUT_SECONDS = 2 * 60;
+  private static final int WORKER_CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final long DEFAULT_RESULT_CACHE_MAX_AGE_HOURS = 24;
+
+  private static final String PARTITIONS_OPTION = "--partitions=";
+  private static final String PARTITION_OPTION = "--partition=";
+
+  // made by hsssMergeAllStrains when the data is loaded:  the merged stream of all strains, and their names
+  private static final String ALL_STRAINS_MERGED_FILE = "allStrainsMerged.dat";
+  private static final String ALL_STRAINS_MERGED_STRAINS_FILE = "allStrainsMerged.strains";
+
+  // made by hsssQuantizeReadFreqDirs:  a strain files dir whose strain files hold read frequencies, for any threshold
+  private static final String READ_FREQ_ALL_DIR = "readFreqAll";
 
   private File jobsDir;
   protected WdkModel wdkModel;
   private ProjectMapper projectMapper;
   private String organismNameForFiles_forTesting = null;
+  private long maxJobQueueWaitSeconds = DEFAULT_MAX_JOB_QUEUE_WAIT_SECONDS;
+  private long jobCost = 0;
+  private long jobPartitions = 1;
+  private List<InetSocketAddress> workers = new ArrayList<>();
+  private String workerSecret;
+  private ResultCache resultCache;
+  // the cache entry this request's job output is being saved to, if any
+  private ResultCache.PendingResult pendingResult;
     
   //private String prefix = getIdPrefix();
     
@@ -69,10 +124,31 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
     return projectMapper;
   }
 
+  protected File getJobsDir() {
+    return jobsDir;
+  }
+
   @Override
   public void initialize(PluginRequest request) throws PluginModelException  {
     super.initialize(request);
+    initializeJobs();
+
+    String projectId = request.getProjectId();
+    try {
+      wdkModel = InstanceManager.getInstance(WdkModel.class, projectId);
+      projectMapper = ProjectMapper.getMapper(wdkModel);
+    }
+    catch (WdkModelException ex) {
+      throw new PluginModelException(ex);
+    }
+
+  }
 
+  /**
+   * Set up the jobs dir, admission control, partitioning, workers and result cache from the configuration properties.
+   * Needs no WDK model, so the benchmark (see HsssBenchmarkCli) can run the plugins without one.
+   */
+  protected void initializeJobs() throws PluginModelException {
     // jobs dir
     logger.debug(properties);
     String jobsDirName = getProperty(PROPERTY_JOBS_DIR);
@@ -84,15 +160,22 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
         throw new PluginModelException(PROPERTY_JOBS_DIR
                 + " " + jobsDirName + " does not exist");
 
-    String projectId = request.getProjectId();
-    try {
-      wdkModel = InstanceManager.getInstance(WdkModel.class, projectId);
-      projectMapper = ProjectMapper.getMapper(wdkModel);
+    // admission control
+    JobScheduler.getInstance().setBudget(getLongProperty(PROPERTY_MAX_CONCURRENT_JOB_COST, 0));
+    maxJobQueueWaitSeconds = getLongProperty(PROPERTY_MAX_JOB_QUEUE_WAIT_SECONDS, DEFAULT_MAX_JOB_QUEUE_WAIT_SECONDS);
+    jobPartitions = getLongProperty(PROPERTY_JOB_PARTITIONS, 1);
+    workers = getWorkers();
+    workerSecret = workers.isEmpty() ? null : getWorkerSecret();
+
+    // old job dirs and cached results are removed in the background
+    JobsDirJanitor janitor = JobsDirJanitor.getInstance(jobsDir);
+    janitor.addJobDirPrefix(getJobsDirPrefix());
+    long resultCacheMaxMegabytes = getLongProperty(PROPERTY_RESULT_CACHE_MAX_MB, 0);
+    if (resultCacheMaxMegabytes > 0) {
+      resultCache = new ResultCache(jobsDir, resultCacheMaxMegabytes,
+          getLongProperty(PROPERTY_RESULT_CACHE_MAX_AGE_HOURS, DEFAULT_RESULT_CACHE_MAX_AGE_HOURS) * 60 * 60 * 1000);
+      janitor.setResultCache(resultCache);
     }
-    catch (WdkModelException ex) {
-      throw new PluginModelException(ex);
-    }
-
   }
 
   @Override
@@ -115,19 +198,64 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
 
     // create bash script
     List<String> command = makeCommandToCreateBashScript(jobDir, params, organismDir);
+
+    // an identical search may have been run already
+    String resultKey = resultCache == null ? null :
+        ResultCache.getKey(getClass().getName(), command, jobDir, getBuildNumber());
+    File cachedResult = resultKey == null ? null : resultCache.getResult(resultKey);
+    if (cachedResult != null) {
+      try (InputStream in = new BufferedInputStream(new FileInputStream(cachedResult))) {
+        readResults(response, request.getProjectId(), in, request.getOrderedColumns());
+      }
+      catch (IOException e) {
+        throw new PluginModelException("Failed reading cached result " + cachedResult, e);
+      }
+      logger.info("Done " + commandName + " plugin execute, from the result cache...");
+      return 0;
+    }
+
+    // otherwise run the job, saving its output to the cache as it is read
+    try (ResultCache.PendingResult pending = resultKey == null ? null :
+        resultCache.newResult(resultKey, jobDir.getName())) {
+      pendingResult = pending;
+      int signal = runJob(command, jobDir, commandName, request, response);
+      if (pending != null) {
+        pending.commit();
+        JobsDirJanitor.getInstance(jobsDir).sweepSoon();
+      }
+      return signal;
+    }
+    finally {
+      pendingResult = null;
+    }
+  }
+
+  private int runJob(List<String> command, File jobDir, String commandName, PluginRequest request,
+      PluginResponse response) throws PluginModelException, PluginUserException {
+
+    // a whole genome job may be run by the workers instead, a partition each
+    if (!workers.isEmpty() && command.stream().anyMatch(arg -> arg.startsWith(PARTITIONS_OPTION))) {
+      runOnWorkers(command, jobDir, commandName, response, request.getProjectId(), request.getOrderedColumns());
+      logger.info("Done " + commandName + " plugin execute, on the workers...");
+      return 0;
+    }
+
     //String[] array = new String[command.size()];
     logger.info("running command " + command.toString() + "with commandName" + commandName);
     runCommandToCreateBashScript(command);
 
-    // invoke the command, and set default 2 min as timeout limit
+    // wait for the host to have room for the job, then invoke the command, streaming its results into the response
+    // as it writes them, with a 2 min timeout
     long start = System.currentTimeMillis();
     int signal = 0;
-    try {
+    try (JobScheduler.Admission admission = JobScheduler.getInstance().admit(jobDir.getName(), Math.max(jobCost, 1),
+        maxJobQueueWaitSeconds * 1000)) {
       StringBuffer output = new StringBuffer();
 
+      start = System.currentTimeMillis();
       String[] cmds = { jobDir.getPath() + "/" + commandName };
-      String[] env = { "PATH=" + GusHome.getGusHome() + "/bin:" + System.getenv("PATH"), "GUS_HOME=" + GusHome.getGusHome() };
-      signal = invokeCommand(cmds, output, 2 * 60, env);
+      signal = invokeCommandAndStreamResults(cmds, output, JOB_TIMEOUT_SECONDS, response, request.getProjectId(),
+          request.getOrderedColumns());
       long invoke_end = System.currentTimeMillis();
       logger.info("Running " + commandName + " bash took: " + ((invoke_end - start) / 1000.0)
           + " seconds");
@@ -135,18 +263,12 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
       if (signal != 0)
           throw new PluginModelException("The " + commandName+ " job in jobDir " +
                   jobDir + " failed: " + output);
-
-      // prepare the result
-      prepareResult(response, request.getProjectId(), jobDir.getPath() + "/" + getResultsFileBaseName(),
-                    request.getOrderedColumns());
     } catch (IOException ex) {
       long end = System.currentTimeMillis();
       logger.info("Invocation took: " + ((end - start) / 1000.0)
           + " seconds");
 
       throw new PluginModelException(ex);
-    } finally {
-      cleanup(jobsDirPrefix);
     }
     logger.info("Done " + commandName + " plugin execute...");
     return signal;
@@ -154,6 +276,257 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
 
   protected abstract String getJobsDirPrefix();
 
+  protected String getBuildNumber() {
+    return wdkModel.getBuildNumber();
+  }
+
+  /**
+   * @param strainsSql the value of a strains param:  the SQL that selects the strains
+   * @param queryName names the query in the log
+   * @return the selected strain names, comma delimited, as passed to writeStrainsFile
+   */
+  protected String getStrains(String strainsSql, String queryName) throws PluginModelException {
+    return getParamValueFromSql(strainsSql, queryName, wdkModel.getAppDb().getDataSource()).stream()
+        .collect(Collectors.joining(", "));
+  }
+
+  /**
+   * Add to the estimated cost of this request's job, used for admission control (see JobScheduler).  The cost of
+   * reading a set of strains is the MB of data read:  about the size of the reference genome file for each strain and
+   * for the reference genome.  If the strain files dir has a strain matrix, the matrix is read instead, whatever the
+   * number of strains.
+   *
+   * @param strainCount the number of strains the job reads from strainFilesDir
+   * @param strainFilesDir a readFreq dir
+   */
+  protected void addJobCost(int strainCount, File strainFilesDir) {
+    File strainMatrix = new File(strainFilesDir, "strainMatrix.dat");
+    long bytes = strainMatrix.exists() ? strainMatrix.length()
+        : new File(strainFilesDir, "referenceGenome.dat").length() * (strainCount + 1);
+    jobCost += bytes / (1024 * 1024);
+  }
+
+  /**
+   * Add to the estimated cost of this request's job the MB of a file it reads, such as a merged strain stream.
+   */
+  protected void addJobCost(File inputFile) {
+    jobCost += inputFile.length() / (1024 * 1024);
+  }
+
+  /**
+   * @param strainLists selected strain names, each comma delimited, as passed to writeStrainsFile
+   * @return the number of distinct strains in them
+   */
+  protected static int countDistinctStrains(String... strainLists) {
+    return (int) Arrays.stream(strainLists).flatMap(strains -> Arrays.stream(strains.split(","))).map(String::trim)
+        .filter(strain -> !strain.isEmpty() && !strain.equals("-1")).distinct().count();
+  }
+
+  /**
+   * Get the merged strain stream of all the strains in a strain files dir, if it was made when the data was loaded
+   * (by hsssMergeAllStrains), and the selected strains are exactly those.  Searches on all strains, the most common
+   * selection, read it instead of merging the strain files.
+   *
+   * @param strainFilesDir a readFreq dir
+   * @param strains the selected strain names, comma delimited, as passed to writeStrainsFile
+   * @return the merged stream file, or null
+   */
+  protected File getAllStrainsMergedStream(File strainFilesDir, String strains) throws PluginModelException {
+    // a stream merged from strain files that hold read frequencies would be for one threshold
+    if (holdsReadFrequencies(strainFilesDir))
+      return null;
+    File mergedStream = new File(strainFilesDir, ALL_STRAINS_MERGED_FILE);
+    File mergedStrainsFile = new File(strainFilesDir, ALL_STRAINS_MERGED_STRAINS_FILE);
+    if (!mergedStrainsFile.exists() || !mergedStream.exists())
+      return null;
+
+    List<String> selected = Arrays.stream(strains.split(",")).map(String::trim)
+        .filter(strain -> !strain.isEmpty() && !strain.equals("-1")).collect(Collectors.toList());
+    Set<String> all;
+    try {
+      all = Files.readAllLines(mergedStrainsFile.toPath()).stream().map(String::trim)
+          .filter(strain -> !strain.isEmpty()).collect(Collectors.toSet());
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Failed reading " + mergedStrainsFile, e);
+    }
+    if (selected.size() != all.size() || !all.containsAll(selected))
+      return null;
+    logger.info("Using the merged stream of all strains " + mergedStream);
+    return mergedStream;
+  }
+
+  /**
+   * Get the strain files dir for a read frequency threshold:  the organism's readFreqAll dir, if it has one (see
+   * hsssQuantizeReadFreqDirs), whose strain files hold read frequencies and serve any threshold, or else the readFreq
+   * dir whose strain files were filtered at that threshold.
+   *
+   * @param readFreqPercent the ReadFrequencyPercent param value
+   */
+  protected File getReadFreqDir(File organismDir, String readFreqPercent) throws PluginModelException {
+    File readFreqAllDir = new File(organismDir, READ_FREQ_ALL_DIR);
+    if (readFreqAllDir.exists())
+      return readFreqAllDir;
+    File readFreqDir = new File(organismDir, "readFreq" + readFreqPercent);
+    if (!readFreqDir.exists())
+      throw new PluginModelException("Strains dir for readFreq ' " + readFreqPercent + "' does not exist:\n" +
+          readFreqDir);
+    return readFreqDir;
+  }
+
+  /**
+   * @return true if the strain files dir is a readFreqAll dir, whose strain files hold read frequencies
+   */
+  protected static boolean holdsReadFrequencies(File strainFilesDir) {
+    return strainFilesDir.getName().equals(READ_FREQ_ALL_DIR);
+  }
+
+  /**
+   * Add a script generator's read frequency option, if the strain files dir holds read frequencies, so that the
+   * job calls alleles at the threshold as it reads the strain files.
+   *
+   * @param option the option name, eg read_freq
+   * @param readFreqPercent the ReadFrequencyPercent param value
+   */
+  protected void addReadFreqOption(List<String> command, String option, File strainFilesDir, String readFreqPercent)
+      throws PluginUserException {
+    if (!holdsReadFrequencies(strainFilesDir))
+      return;
+    int percent;
+    try {
+      percent = Integer.parseInt(readFreqPercent.trim());
+    }
+    catch (NumberFormatException | NullPointerException e) {
+      throw new PluginUserException("Read frequency percent must be a whole number: " + readFreqPercent);
+    }
+    if (percent < 1 || percent > 100)
+      throw new PluginUserException("Read frequency percent must be between 1 and 100: " + readFreqPercent);
+    command.add("--" + option + "=" + percent);
+  }
+
+  /**
+   * Add the script generator's --partitions option, if jobs are configured to run partitions of the genome in
+   * parallel, or on workers, one partition each.  The generator only partitions whole genome searches, and only if
+   * the strain files are block indexed.
+   */
+  protected void addPartitionsOption(List<String> command) {
+    if (!workers.isEmpty())
+      command.add(PARTITIONS_OPTION + workers.size());
+    else if (jobPartitions > 1)
+      command.add(PARTITIONS_OPTION + jobPartitions);
+  }
+
+  private List<InetSocketAddress> getWorkers() throws PluginModelException {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    String value = getProperty(PROPERTY_WORKERS);
+    if (value == null || value.trim().isEmpty())
+      return addresses;
+    try {
+      for (String worker : value.split(","))
+        if (!worker.trim().isEmpty())
+          addresses.add(HsssWorker.parseAddress(worker.trim()));
+    }
+    catch (IllegalArgumentException e) {
+      throw new PluginModelException(PROPERTY_WORKERS + " must be a list of host:port: " + value, e);
+    }
+    return addresses;
+  }
+
+  private String getWorkerSecret() throws PluginModelException {
+    String secretFile = getProperty(PROPERTY_WORKER_SECRET_FILE);
+    if (secretFile == null || secretFile.trim().isEmpty())
+      throw new PluginModelException(PROPERTY_WORKER_SECRET_FILE + " is missing from the configuration file.  It " +
+          "is required with " + PROPERTY_WORKERS);
+    try {
+      return HsssWorker.readSecret(new File(secretFile.trim()));
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Failed reading " + PROPERTY_WORKER_SECRET_FILE + " " + secretFile, e);
+    }
+  }
+
+  /**
+   * Run a whole genome job on the workers (see HsssWorker), each running one partition of the genome (the script
+   * generator's --partition option), and read their results into the response in partition order, which gives the
+   * results of the whole genome.  All the workers start at once.  Each worker's results are read when those of the
+   * workers before it are done, and until then wait on the worker.  The workers do their own admission control, and
+   * kill their part of the job if it times out or this one gives up on it.
+   */
+  private void runOnWorkers(List<String> command, File jobDir, String commandName, PluginResponse response,
+      String projectId, String[] orderedColumns) throws PluginModelException, PluginUserException {
+    long start = System.currentTimeMillis();
+    List<Socket> sockets = new ArrayList<>();
+    try {
+      // the files the generator reads from the job dir, such as the strains lists
+      Map<String, byte[]> jobFiles = new LinkedHashMap<>();
+      for (File file : jobDir.listFiles())
+        if (file.isFile())
+          jobFiles.put(file.getName(), Files.readAllBytes(file.toPath()));
+
+      // and those it reads from elsewhere in the jobs dir, such as the cached gene locations table, which the workers
+      // don't have.  they go in the worker's job dir
+      // a partition doesn't read merged streams, which are in this host's jobs dir, so they aren't sent
+      List<String> workerCommand = command.stream().filter(arg -> !arg.startsWith("--merged_stream"))
+          .collect(Collectors.toList());
+      for (int i = 1; i < workerCommand.size(); i++) {
+        File file = new File(workerCommand.get(i));
+        if (!workerCommand.get(i).startsWith("--") && file.isFile() &&
+            file.getAbsolutePath().startsWith(jobsDir.getAbsolutePath() + File.separator) &&
+            !file.getAbsoluteFile().getParentFile().equals(jobDir.getAbsoluteFile())) {
+          jobFiles.put(file.getName(), Files.readAllBytes(file.toPath()));
+          workerCommand.set(i, new File(jobDir, file.getName()).getPath());
+        }
+      }
+
+      List<InputStream> results = new ArrayList<>();
+      for (int i = 0; i < workers.size(); i++) {
+        List<String> partitionCommand = new ArrayList<>(workerCommand);
+        partitionCommand.add(1, PARTITION_OPTION + i);
+        HsssWorkerProtocol.Request workerRequest = new HsssWorkerProtocol.Request(workerSecret, jobDir.getPath(),
+            commandName, partitionCommand, jobFiles, Math.max(jobCost / workers.size(), 1), JOB_TIMEOUT_SECONDS,
+            maxJobQueueWaitSeconds);
+        Socket socket = new Socket();
+        sockets.add(socket);
+        socket.connect(workers.get(i), WORKER_CONNECT_TIMEOUT_MILLIS);
+        socket.setSoTimeout((int) ((JOB_TIMEOUT_SECONDS + maxJobQueueWaitSeconds) * 1000) +
+            WORKER_CONNECT_TIMEOUT_MILLIS);
+        HsssWorkerProtocol.writeRequest(new BufferedOutputStream(socket.getOutputStream()), workerRequest);
+        results.add(new HsssWorkerProtocol.ResultInputStream(new BufferedInputStream(socket.getInputStream()),
+            workers.get(i).toString()));
+      }
+      readJobResults(response, projectId, new SequenceInputStream(Collections.enumeration(results)), orderedColumns);
+      logger.info("Running " + commandName + " on " + workers.size() + " workers took: " +
+          ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+    }
+    catch (IOException e) {
+      throw new PluginModelException("The " + commandName + " job in jobDir " + jobDir + " failed on the workers: " +
+          e.getMessage(), e);
+    }
+    finally {
+      // closing a worker's connection early kills its part of the job
+      for (Socket socket : sockets) {
+        try {
+          socket.close();
+        }
+        catch (IOException e) {
+          logger.warn("Failed closing the connection to a worker", e);
+        }
+      }
+    }
+  }
+
+  protected long getLongProperty(String name, long defaultValue) throws PluginModelException {
+    String value = getProperty(name);
+    if (value == null || value.trim().isEmpty())
+      return defaultValue;
+    try {
+      return Long.parseLong(value.trim());
+    }
+    catch (NumberFormatException e) {
+      throw new PluginModelException(name + " must be a whole number: " + value, e);
+    }
+  }
+
   protected String getIdPrefix()
     {
         String idPrefix = getProperty(PROPERTY_PREFIX);
@@ -172,8 +545,6 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
 
   protected abstract String getReconstructCmdName();
 
-  protected abstract String getResultsFileBaseName();
-
   protected String getProjectId(Map<String, String> params) throws PluginModelException {
     String organism = removeSingleQuotes(params.get(PARAM_ORGANISM));
     
@@ -280,20 +651,104 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
   }
 
   /**
-   * unpack result from result file and pack it into rows needed by wsf framework
-   * @throws PluginUserException 
-   * @throws PluginModelException 
-   * @throws WsfException 
+   * Run the job, which writes its results to stdout, and add each result row to the response as it arrives, so that
+   * rows reach the WSF framework while the pipeline is still running, and the results never go to disk.  The job's
+   * stderr (its bash trace, and any errors) is collected into output.  If the job runs longer than the timeout, or
+   * this thread is interrupted, or the rows can't be written to the response (eg, the client went away), the job's
+   * whole process group is killed (see JobProcessGroups).
+   *
+   * @return the job's exit value
    */
-  protected void prepareResult(PluginResponse response, String projectId, String resultFileName, String[] orderedColumns) throws IOException, PluginModelException, PluginUserException {
-    // create a map of <column/position>
-    Map<String, Integer> columns = new HashMap<String, Integer>(orderedColumns.length);
-    for (int i = 0; i < orderedColumns.length; i++) {
-      columns.put(orderedColumns[i], i);
+  protected int invokeCommandAndStreamResults(String[] cmds, StringBuffer output, long timeoutSeconds,
+      PluginResponse response, String projectId, String[] orderedColumns)
+      throws IOException, PluginModelException, PluginUserException {
+    ProcessBuilder builder = new ProcessBuilder(cmds);
+    Map<String,String> env = builder.environment();
+    env.put("PATH", GusHome.getGusHome() + "/bin:" + env.get("PATH"));
+    env.put("GUS_HOME", GusHome.getGusHome());
+    Process process = builder.start();
+    JobProcessGroups.register(process, cmds[0]);
+    process.getOutputStream().close();
+
+    // drain stderr in the background, so the job never blocks on a full pipe
+    Thread stderrReader = new Thread(() -> {
+      try (BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+        String line;
+        while ((line = err.readLine()) != null)
+          output.append(line).append(System.lineSeparator());
+      }
+      catch (IOException e) {
+        logger.warn("Failed reading stderr of " + cmds[0], e);
+      }
+    });
+    stderrReader.setDaemon(true);
+    stderrReader.start();
+
+    AtomicBoolean timedOut = new AtomicBoolean(false);
+    Timer timer = new Timer(true);
+    timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        timedOut.set(true);
+        JobProcessGroups.cancel(process, "timed out after " + timeoutSeconds + " seconds");
+      }
+    }, timeoutSeconds * 1000);
+
+    boolean completed = false;
+    try {
+      try (InputStream in = process.getInputStream()) {
+        readJobResults(response, projectId, in, orderedColumns);
+      }
+      int exitValue = process.waitFor();
+      completed = true;
+      stderrReader.join(1000);
+      if (timedOut.get())
+        throw new PluginModelException("The job " + cmds[0] + " timed out after " + timeoutSeconds + " seconds: " + output);
+      return exitValue;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted while running " + cmds[0], e);
+    }
+    finally {
+      timer.cancel();
+      // if we stopped early (interrupted, a bad row, or the response could not be written), don't leave the pipeline running
+      if (!completed && !timedOut.get())
+        JobProcessGroups.cancel(process, "abandoned");
+      JobProcessGroups.unregister(process);
+    }
+  }
+
+  /**
+   * read the job's output stream into the response, and, if the result is to be cached, save all of the output to
+   * the cache as it goes by
+   */
+  private void readJobResults(PluginResponse response, String projectId, InputStream in, String[] orderedColumns)
+      throws IOException, PluginModelException, PluginUserException {
+    if (pendingResult == null) {
+      readResults(response, projectId, in, orderedColumns);
+      return;
     }
+    InputStream tee = pendingResult.tee(in);
+    readResults(response, projectId, tee, orderedColumns);
+    tee.transferTo(OutputStream.nullOutputStream());
+  }
+
+  /**
+   * read the job's output stream into the response.  by default the job writes text rows, which prepareResult unpacks.
+   * a cached result (see ResultCache) is read the same way
+   */
+  protected void readResults(PluginResponse response, String projectId, InputStream in, String[] orderedColumns) throws IOException, PluginModelException, PluginUserException {
+    prepareResult(response, projectId, new BufferedReader(new InputStreamReader(in)), orderedColumns);
+  }
 
-    // read from the buffered stream
-    BufferedReader in = new BufferedReader(new FileReader(resultFileName));
+  /**
+   * unpack result from the job's output stream and pack it into rows needed by wsf framework
+   * @throws PluginUserException 
+   * @throws PluginModelException 
+   */
+  protected void prepareResult(PluginResponse response, String projectId, BufferedReader in, String[] orderedColumns) throws IOException, PluginModelException, PluginUserException {
+    Map<String, Integer> columns = getColumnPositions(orderedColumns);
 
     String line;
     while ((line = in.readLine()) != null) {
@@ -302,7 +757,15 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
 
       response.addRow(makeResultRow(parts, columns, projectId));
     }
-    in.close();
+  }
+
+  // create a map of <column/position>
+  protected static Map<String, Integer> getColumnPositions(String[] orderedColumns) {
+    Map<String, Integer> columns = new HashMap<String, Integer>(orderedColumns.length);
+    for (int i = 0; i < orderedColumns.length; i++) {
+      columns.put(orderedColumns[i], i);
+    }
+    return columns;
   }
 
   protected abstract String[] makeResultRow(String [] parts, Map<String, Integer> columns, String projectId) throws PluginUserException, PluginModelException ;
@@ -341,19 +804,4 @@ public abstract class HighSpeedSnpSearchAbstractPlugin extends AbstractPlugin {
       throws SQLException, WdkModelException {
     return wdkModel.getConnection(WdkModel.DB_INSTANCE_APP);
   }
-
-  private void cleanup(String jobsDirPrefix) {
-    long todayLong = new Date().getTime();
-    // remove files older than a week (500000000)
-    for (File jobDir : jobsDir.listFiles()) {
-      if (jobDir.isDirectory() && jobsDir.canWrite() 
-          && jobDir.getPath().contains(jobsDirPrefix)
-          && (todayLong - (jobDir.lastModified())) > 500000000) {
-        if (jobDir.listFiles() == null) logger.warn("was null: " + jobDir.getPath());
-        for (File tmpFile : jobDir.listFiles()) tmpFile.delete();
-        logger.info("Job dir to be deleted: " + jobDir.getAbsolutePath() + "\n");
-        jobDir.delete();
-      }
-    }
-  }
 }
@@ -0,0 +1,475 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.gusdb.fgputil.ArrayUtil;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginRequest;
+import org.gusdb.wsf.plugin.PluginResponse;
+
+/**
+ * Runs the HSSS searches end to end against a strain files dir, typically a synthetic one made by
+ * hsssGenerateSyntheticData, and reports where the time goes.
+ *
+ * The searches are run by their plugins (FindPolymorphismsPlugin, FindPolymorphismsWithSeqFilterPlugin,
+ * FindGenesWithSnpCharsPlugin and FindMajorAllelesPlugin), so they run the script generator command lines, merged
+ * stream and result caches, and admission control of the web service, configured by the plugin properties given on
+ * the command line.  The plugins need a WDK model and the application database only to find the organism's files
+ * dir, resolve their strain params and build the gene locations table, so they are run as subclasses that supply
+ * those instead:  the strain params hold the strain names, the organism is the one whose dir holds the strain files
+ * dir, and the gene locations table is built from the strain files dir's geneLocations.txt.  The results are counted,
+ * not kept.
+ *
+ * While a job runs its process group is sampled from /proc.  For each stage of the pipeline (the processes running
+ * one executable) it reports the number of processes, wall time (first seen to last seen), CPU seconds and bytes
+ * read.  A process's counters are as of the last sample before it exited, so stages that run for less than the
+ * sample interval are under counted.  The plugin itself (making the job, and reading its results) is reported as the
+ * "java" stage.
+ *
+ * This is Linux specific (it reads /proc).
+ *
+ * @author steve
+ */
+public class HsssBenchmarkCli {
+
+  private static final long SAMPLE_INTERVAL_MILLIS = 20;
+
+  // clock ticks per second in /proc/<pid>/stat.  USER_HZ is 100 on all mainstream Linux builds
+  private static final double CLOCK_TICKS_PER_SECOND = 100;
+
+  private static final String PERCENT_POLYMORPHISMS = "20";
+  private static final String PERCENT_KNOWNS = "80";
+  private static final String PERCENT_MAJOR_ALLELES = "60";
+
+  // the read frequency threshold the searches use, if the strain files dir is a readFreqAll dir
+  private static final String DEFAULT_READ_FREQ_PERCENT = "80";
+
+  private static final String PROJECT_ID = "HsssBenchmark";
+  private static final String BUILD_NUMBER = "benchmark";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3)
+      usageAndExit();
+    File strainFilesDir = new File(args[0]).getAbsoluteFile();
+    File jobsDir = new File(args[1]).getAbsoluteFile();
+    if (!new File(strainFilesDir, "referenceGenome.dat").exists() || !jobsDir.isDirectory()) {
+      System.err.println(strainFilesDir + " is not a strain files dir, or " + jobsDir + " is not a dir.");
+      System.exit(2);
+    }
+    if (!strainFilesDir.getName().matches("readFreq(\\d+|All)") ||
+        !strainFilesDir.getParentFile().getName().equals("highSpeedSnpSearch")) {
+      System.err.println(strainFilesDir + " is not a readFreq dir in an organism's highSpeedSnpSearch dir.");
+      System.exit(2);
+    }
+    List<String> strainNames = readStrainNames(strainFilesDir);
+
+    Properties pluginProperties = new Properties();
+    for (int i = 3; i < args.length; i++) {
+      String[] property = args[i].split("=", 2);
+      if (property.length != 2)
+        usageAndExit();
+      pluginProperties.setProperty(property[0], property[1]);
+    }
+    pluginProperties.setProperty(HighSpeedSnpSearchAbstractPlugin.PROPERTY_JOBS_DIR, jobsDir.getPath());
+
+    for (String count : args[2].split(",")) {
+      int strainCount = Integer.parseInt(count.trim());
+      if (strainCount < 2 || strainCount > strainNames.size()) {
+        System.err.println("Strain counts must be between 2 and " + strainNames.size() + ": " + strainCount);
+        System.exit(2);
+      }
+      List<String> strains = strainNames.subList(0, strainCount);
+      HsssBenchmarkCli benchmark = new HsssBenchmarkCli(strainFilesDir, pluginProperties);
+      benchmark.runPolymorphisms(strains, null);
+      benchmark.runPolymorphisms(strains, benchmark.getMiddleOfFirstContig());
+      benchmark.runGeneChars(strains);
+      benchmark.runMajorAlleles(strains);
+    }
+  }
+
+  private static void usageAndExit() {
+    System.err.println("USAGE: fgpJava " + HsssBenchmarkCli.class.getName() +
+        " <strain_files_dir> <jobs_dir> <strain_count>[,<strain_count>...] [<property>=<value> ...]" + "\n\n" +
+        "Runs the polymorphism (with and without a sequence filter), gene characteristics and major alleles searches" +
+        "\non the first strain_count strains, for each strain count, and reports each stage's wall time, CPU" +
+        "\nand bytes read.  The hsss tools must be installed in $GUS_HOME/bin.  The strain files dir must be a" +
+        "\nreadFreq dir in an organism's highSpeedSnpSearch dir, eg <organism>/highSpeedSnpSearch/readFreq80.  The" +
+        "\ngene characteristics search uses its geneLocations.txt.  The properties are the plugins' configuration" +
+        "\nproperties, eg jobPartitions=4 mergedStreamCacheMaxMB=1000.  The jobs dir is jobs_dir.");
+    System.exit(1);
+  }
+
+  // the usage stats of one stage of a job
+  private static class Stage {
+    int processes;
+    long firstSeenNanos = Long.MAX_VALUE;
+    long lastSeenNanos;
+    double cpuSeconds;
+    long bytesRead;
+  }
+
+  // the last sample of one process
+  private static class ProcessSample {
+    String stage;
+    long firstSeenNanos;
+    long lastSeenNanos;
+    long cpuTicks;
+    long bytesRead;
+  }
+
+  private final File strainFilesDir;
+  private final Properties pluginProperties;
+  // the time the last job's script generator took
+  private long generateNanos;
+
+  private HsssBenchmarkCli(File strainFilesDir, Properties pluginProperties) {
+    this.strainFilesDir = strainFilesDir;
+    this.pluginProperties = pluginProperties;
+  }
+
+  private void runPolymorphisms(List<String> strains, String[] seqFilter) throws Exception {
+    Map<String, String> params = getParams();
+    params.put(FindPolymorphismsPlugin.PARAM_MIN_PERCENT_KNOWNS, PERCENT_KNOWNS);
+    params.put(FindPolymorphismsPlugin.PARAM_MIN_PERCENT_POLYMORPHISMS, PERCENT_POLYMORPHISMS);
+    params.put(FindPolymorphismsPlugin.PARAM_READ_FREQ_PERCENT, getReadFreqPercent());
+    if (seqFilter == null) {
+      FindPolymorphismsPlugin plugin = new FindPolymorphismsPlugin() {
+        @Override
+        public void initialize(PluginRequest request) throws PluginModelException {
+          properties.putAll(pluginProperties);
+          initializeJobs();
+        }
+
+        @Override
+        protected String getBuildNumber() {
+          return BUILD_NUMBER;
+        }
+
+        @Override
+        protected String getStrains(String strainsSql, String queryName) {
+          return strainsSql;
+        }
+
+        @Override
+        protected void runCommandToCreateBashScript(List<String> command) throws PluginModelException {
+          long start = System.nanoTime();
+          super.runCommandToCreateBashScript(command);
+          generateNanos = System.nanoTime() - start;
+        }
+      };
+      params.put(plugin.getStrainFilterParamName(), String.join(",", strains));
+      run("polymorphisms", strains.size(), plugin, params, plugin.getColumns(null));
+    }
+    else {
+      FindPolymorphismsWithSeqFilterPlugin plugin = new FindPolymorphismsWithSeqFilterPlugin() {
+        @Override
+        public void initialize(PluginRequest request) throws PluginModelException {
+          properties.putAll(pluginProperties);
+          initializeJobs();
+        }
+
+        @Override
+        protected String getBuildNumber() {
+          return BUILD_NUMBER;
+        }
+
+        @Override
+        protected String getStrains(String strainsSql, String queryName) {
+          return strainsSql;
+        }
+
+        @Override
+        protected void runCommandToCreateBashScript(List<String> command) throws PluginModelException {
+          long start = System.nanoTime();
+          super.runCommandToCreateBashScript(command);
+          generateNanos = System.nanoTime() - start;
+        }
+      };
+      params.put(plugin.getStrainFilterParamName(), String.join(",", strains));
+      params.put(FindPolymorphismsWithSeqFilterPlugin.PARAM_CHROMOSOME, seqFilter[0]);
+      params.put(FindPolymorphismsWithSeqFilterPlugin.PARAM_SEQUENCE, seqFilter[0]);
+      params.put(FindPolymorphismsWithSeqFilterPlugin.PARAM_START_POINT, seqFilter[1]);
+      params.put(FindPolymorphismsWithSeqFilterPlugin.PARAM_END_POINT, seqFilter[2]);
+      run("polymorphisms, seq filter " + String.join(" ", seqFilter), strains.size(), plugin, params,
+          plugin.getColumns(null));
+    }
+  }
+
+  private void runGeneChars(List<String> strains) throws Exception {
+    FindGenesWithSnpCharsPlugin plugin = new FindGenesWithSnpCharsPlugin() {
+      @Override
+      public void initialize(PluginRequest request) throws PluginModelException {
+        properties.putAll(pluginProperties);
+        initializeJobs();
+      }
+
+      @Override
+      protected String getBuildNumber() {
+        return BUILD_NUMBER;
+      }
+
+      @Override
+      protected String getStrains(String strainsSql, String queryName) {
+        return strainsSql;
+      }
+
+      @Override
+      protected void runCommandToCreateBashScript(List<String> command) throws PluginModelException {
+        long start = System.nanoTime();
+        super.runCommandToCreateBashScript(command);
+        generateNanos = System.nanoTime() - start;
+      }
+
+      @Override
+      protected String getGeneLocationsFile(Map<String, String> params, File organismDir)
+          throws PluginModelException {
+        File readFreqDir = getReadFreqDir(organismDir, params.get(PARAM_READ_FREQ_PERCENT));
+        return GeneLocationsCache.getGeneLocationsTable(getJobsDir(), readFreqDir, params.get(PARAM_ORGANISM),
+            getBuildNumber(), new File(readFreqDir, "geneLocations.txt")).getPath();
+      }
+    };
+    Map<String, String> params = getParams();
+    params.put(plugin.getStrainFilterParamName(), String.join(",", strains));
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_MIN_PERCENT_KNOWNS, PERCENT_KNOWNS);
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_MIN_PERCENT_POLYMORPHISMS, PERCENT_POLYMORPHISMS);
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_READ_FREQ_PERCENT, getReadFreqPercent());
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_SNP_CLASS, "all");
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_OCCURENCES_LOWER, "1");
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_OCCURENCES_UPPER, "1000000");
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_DNDS_LOWER, "0");
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_DNDS_UPPER, "1000000");
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_DENSITY_LOWER, "0");
+    params.put(FindGenesWithSnpCharsPlugin.PARAM_DENSITY_UPPER, "1000000");
+    // the columns of the WDK query, which has two the plugin doesn't declare
+    String[] columns = ArrayUtil.concatenate(plugin.getColumns(null), new String[] {
+        FindGenesWithSnpCharsPlugin.COLUMN_SOURCE_ID, FindGenesWithSnpCharsPlugin.COLUMN_MATCHED_RESULT });
+    run("gene characteristics", strains.size(), plugin, params, columns);
+  }
+
+  private void runMajorAlleles(List<String> strains) throws Exception {
+    FindMajorAllelesPlugin plugin = new FindMajorAllelesPlugin() {
+      @Override
+      public void initialize(PluginRequest request) throws PluginModelException {
+        properties.putAll(pluginProperties);
+        initializeJobs();
+      }
+
+      @Override
+      protected String getBuildNumber() {
+        return BUILD_NUMBER;
+      }
+
+      @Override
+      protected String getStrains(String strainsSql, String queryName) {
+        return strainsSql;
+      }
+
+      @Override
+      protected void runCommandToCreateBashScript(List<String> command) throws PluginModelException {
+        long start = System.nanoTime();
+        super.runCommandToCreateBashScript(command);
+        generateNanos = System.nanoTime() - start;
+      }
+    };
+    Map<String, String> params = getParams();
+    params.put(FindMajorAllelesPlugin.PARAM_STRAIN_FILTER_A, String.join(",", strains.subList(0, strains.size() / 2)));
+    params.put(FindMajorAllelesPlugin.PARAM_MIN_PERCENT_KNOWNS_A, PERCENT_KNOWNS);
+    params.put(FindMajorAllelesPlugin.PARAM_MIN_PERCENT_MAJOR_ALLELES_A, PERCENT_MAJOR_ALLELES);
+    params.put(FindMajorAllelesPlugin.PARAM_READ_FREQ_PERCENT_A, getReadFreqPercent());
+    params.put(FindMajorAllelesPlugin.PARAM_STRAIN_FILTER_B,
+        String.join(",", strains.subList(strains.size() / 2, strains.size())));
+    params.put(FindMajorAllelesPlugin.PARAM_MIN_PERCENT_KNOWNS_B, PERCENT_KNOWNS);
+    params.put(FindMajorAllelesPlugin.PARAM_MIN_PERCENT_MAJOR_ALLELES_B, PERCENT_MAJOR_ALLELES);
+    params.put(FindMajorAllelesPlugin.PARAM_READ_FREQ_PERCENT_B, getReadFreqPercent());
+    run("major alleles", strains.size(), plugin, params, plugin.getColumns(null));
+  }
+
+  // the organism and its files dir, as findOrganismDir finds them:  the organism's dir holds the highSpeedSnpSearch
+  // dir that holds the strain files dir
+  private Map<String, String> getParams() {
+    File organismFilesDir = strainFilesDir.getParentFile().getParentFile();
+    Map<String, String> params = new HashMap<>();
+    params.put(HighSpeedSnpSearchAbstractPlugin.PARAM_ORGANISM, organismFilesDir.getName());
+    params.put(HighSpeedSnpSearchAbstractPlugin.PARAM_WEBSVCPATH, organismFilesDir.getParent());
+    return params;
+  }
+
+  private String getReadFreqPercent() {
+    String percent = strainFilesDir.getName().substring("readFreq".length());
+    return percent.equals("All") ? DEFAULT_READ_FREQ_PERCENT : percent;
+  }
+
+  // the middle tenth of the first contig, as a sequence filter:  sequence, start, end
+  private String[] getMiddleOfFirstContig() throws IOException {
+    String contig = readLines(new File(strainFilesDir, "contigIdToSourceId.dat")).get(0).split("\t")[1];
+    long lastLocation = 0;
+    byte[] row = new byte[8];
+    try (InputStream in = Files.newInputStream(new File(strainFilesDir, "referenceGenome.dat").toPath())) {
+      while (in.readNBytes(row, 0, 8) == 8 && row[0] == 1 && row[1] == 0)
+        lastLocation = (row[2] & 0xff) | (row[3] & 0xff) << 8 | (row[4] & 0xff) << 16 | (row[5] & 0xff) << 24;
+    }
+    return new String[] { contig, "" + lastLocation * 45 / 100, "" + lastLocation * 55 / 100 };
+  }
+
+  private void run(String search, int strainCount, HighSpeedSnpSearchAbstractPlugin plugin,
+      Map<String, String> params, String[] columns) throws Exception {
+    plugin.setOrganismNameForFiles(params.get(HighSpeedSnpSearchAbstractPlugin.PARAM_ORGANISM));
+    PluginRequest request = new PluginRequest();
+    request.setProjectId(PROJECT_ID);
+    request.setParams(params);
+    request.setOrderedColumns(columns);
+    request.setContext(new HashMap<String, String>());
+    plugin.initialize(request);
+
+    // the rows are counted, not stored
+    File storageDir = new File(plugin.getJobsDir(), "hsssBenchmarkResponses");
+    new File(storageDir, "0").mkdirs();
+    long[] rows = { 0 };
+    PluginResponse response = new PluginResponse(storageDir, 0) {
+      @Override
+      public void addRow(String[] row) {
+        rows[0]++;
+      }
+    };
+
+    // sample the job's process group while the plugin runs it
+    generateNanos = 0;
+    Map<Long, ProcessSample> samples = new LinkedHashMap<>();
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread sampler = new Thread(() -> {
+      while (running.get()) {
+        for (Long pgid : JobProcessGroups.getRunningJobs())
+          sample(pgid, samples);
+        try {
+          Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+      }
+    }, "HSSS benchmark sampler");
+    sampler.setDaemon(true);
+    sampler.start();
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long javaCpuStart = threads.getCurrentThreadCpuTime();
+    long start = System.nanoTime();
+    try {
+      plugin.execute(request, response);
+    }
+    finally {
+      running.set(false);
+      sampler.join();
+    }
+    long wallNanos = System.nanoTime() - start;
+    long javaCpuNanos = threads.getCurrentThreadCpuTime() - javaCpuStart;
+
+    Map<String, Stage> stages = new LinkedHashMap<>();
+    synchronized (samples) {
+      for (ProcessSample sample : samples.values()) {
+        Stage stage = stages.computeIfAbsent(sample.stage, name -> new Stage());
+        stage.processes++;
+        stage.firstSeenNanos = Math.min(stage.firstSeenNanos, sample.firstSeenNanos);
+        stage.lastSeenNanos = Math.max(stage.lastSeenNanos, sample.lastSeenNanos);
+        stage.cpuSeconds += sample.cpuTicks / CLOCK_TICKS_PER_SECOND;
+        stage.bytesRead += sample.bytesRead;
+      }
+    }
+
+    System.out.println(search + ", " + strainCount + " strains:  " + rows[0] + " rows in " +
+        format(wallNanos / 1e9) + " s (script generator " + format(generateNanos / 1e9) + " s)");
+    System.out.println(String.format("  %-32s %9s %9s %9s %12s", "stage", "processes", "wall s", "cpu s", "MB read"));
+    for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+      Stage stage = entry.getValue();
+      System.out.println(String.format("  %-32s %9d %9s %9s %12s", entry.getKey(), stage.processes,
+          format((stage.lastSeenNanos - stage.firstSeenNanos) / 1e9), format(stage.cpuSeconds),
+          format(stage.bytesRead / (1024.0 * 1024))));
+    }
+    System.out.println(String.format("  %-32s %9d %9s %9s %12s", "java", 1, format(wallNanos / 1e9),
+        format(javaCpuNanos / 1e9), "-"));
+  }
+
+  // record the current counters of every process in the job's group
+  private static void sample(long pgid, Map<Long, ProcessSample> samples) {
+    long now = System.nanoTime();
+    for (Long pid : JobProcessGroups.getGroupMembers(pgid)) {
+      File proc = new File("/proc", pid.toString());
+      String[] stat = JobProcessGroups.readStat(proc);
+      String stage = getStageName(proc);
+      if (stat == null || stage == null)
+        continue;
+      synchronized (samples) {
+        ProcessSample sample = samples.get(pid);
+        if (sample == null || !sample.stage.equals(stage)) {
+          // a new process, or one that has exec'd a new program since the last sample
+          sample = new ProcessSample();
+          sample.stage = stage;
+          sample.firstSeenNanos = now;
+          samples.put(pid, sample);
+        }
+        sample.lastSeenNanos = now;
+        sample.cpuTicks = Long.parseLong(stat[11]) + Long.parseLong(stat[12]);  // utime, stime
+        sample.bytesRead = readBytesRead(proc, sample.bytesRead);
+      }
+    }
+  }
+
+  // the name of the program a process is running.  for interpreted scripts, the script's name
+  private static String getStageName(File proc) {
+    try {
+      String[] argv = new String(Files.readAllBytes(new File(proc, "cmdline").toPath()), StandardCharsets.UTF_8)
+          .split("\0");
+      if (argv.length == 0 || argv[0].isEmpty())
+        return null;
+      String program = new File(argv[0]).getName();
+      if (argv.length > 1 && (program.equals("perl") || program.equals("bash") || program.equals("sh")))
+        return new File(argv[1]).getName();
+      return program;
+    }
+    catch (IOException e) {
+      // the process has exited
+      return null;
+    }
+  }
+
+  // rchar from /proc/<pid>/io:  bytes read from files and pipes
+  private static long readBytesRead(File proc, long previous) {
+    try {
+      for (String line : Files.readAllLines(new File(proc, "io").toPath()))
+        if (line.startsWith("rchar:"))
+          return Long.parseLong(line.substring(6).trim());
+    }
+    catch (IOException | RuntimeException e) {
+      // the process has exited
+    }
+    return previous;
+  }
+
+  private static List<String> readStrainNames(File strainFilesDir) throws IOException {
+    List<String> names = new ArrayList<>();
+    for (String line : readLines(new File(strainFilesDir, "strainIdToName.dat")))
+      names.add(line.split("\t")[1]);
+    return names;
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+  }
+
+  private static String format(double value) {
+    return String.format("%.2f", value);
+  }
+}
@@ -0,0 +1,397 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.HsssWorkerProtocol.Request;
+import org.gusdb.fgputil.runtime.GusHome;
+import org.gusdb.wsf.plugin.PluginModelException;
+
+/**
+ * A standalone process that runs HSSS jobs for the plugins on other hosts, so that the searches can scale out past
+ * one web service host.  See HsssWorkerProtocol for the protocol, and HsssDocumentation.txt.
+ *
+ * The plugins send each worker the same whole genome search, as one partition of the genome (the script generators'
+ * --partition option), and concatenate the workers' results in partition order, which gives the results of the whole
+ * genome.  A worker needs the strain files at the same paths as the web service host, but only reads its own
+ * partition's blocks of them, so its page cache holds its shard of the data.
+ *
+ * Each job is run as the plugins run it locally:  the script generator, then the script, in a job dir of its own,
+ * with its process group tracked (see JobProcessGroups), so that it is killed if it times out or the plugin goes away.
+ * Jobs are admitted by the worker's own JobScheduler.  The job dir is removed when the job is done.
+ *
+ * The script generators write their args into the job script unquoted, so a request could run any command.  A worker
+ * only runs requests that hold the secret it shares with the plugins, and only a script generator, with args that the
+ * shell won't interpret, and paths in its job dir or under its data roots.  The job's cost, timeout and queue wait,
+ * sent by the plugin, are clamped to the worker's limits.  It listens on the loopback address unless another is
+ * given.
+ *
+ * @author steve
+ */
+public class HsssWorker {
+
+  private static final Logger logger = Logger.getLogger(HsssWorker.class);
+
+  private static final String JOB_DIR_PREFIX = "hsssWorker.";
+
+  // the commands a worker runs:  the script generators
+  private static final Pattern GENERATOR = Pattern.compile("hsssGenerate[A-Za-z]+Script");
+  // the characters a generator arg may hold:  none that the job script's shell would interpret
+  private static final Pattern SAFE_ARG = Pattern.compile("[A-Za-z0-9_.,/:=+-]*");
+  // the plugin's job dir, which the worker replaces with its own in the args
+  private static final Pattern JOB_DIR = Pattern.compile("(/[A-Za-z0-9_.-]+)+");
+
+  private static final long MAX_TIMEOUT_SECONDS = 10 * 60;
+  private static final long MAX_QUEUE_WAIT_SECONDS = 10 * 60;
+
+  // how long a client has to send its request, before it is authenticated
+  private static final int REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+  // the most connections served at once (each holds a thread while its job waits to be admitted and runs), and the
+  // most waiting for a thread.  connections beyond those are closed
+  private static final int MAX_CONNECTIONS = 64;
+  private static final int MAX_QUEUED_CONNECTIONS = 64;
+
+  private final File jobsDir;
+  private final List<Path> dataRoots = new ArrayList<>();
+  private final byte[] secret;
+  private final long maxJobCost;
+  private final String gusBin = GusHome.getGusHome() + "/bin";
+  private final AtomicLong jobNumber = new AtomicLong();
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 4 || args.length > 6)
+      usageAndExit();
+    int port = Integer.parseInt(args[0]);
+    File jobsDir = new File(args[1]).getAbsoluteFile();
+    if (!jobsDir.isDirectory()) {
+      System.err.println(jobsDir + " is not a dir.");
+      System.exit(2);
+    }
+    List<File> dataRoots = new ArrayList<>();
+    for (String dataRoot : args[2].split(","))
+      if (!dataRoot.trim().isEmpty())
+        dataRoots.add(new File(dataRoot.trim()));
+    String secret = readSecret(new File(args[3]));
+    long maxConcurrentJobCost = args.length > 4 ? Long.parseLong(args[4]) : 0;
+    JobScheduler.getInstance().setBudget(maxConcurrentJobCost);
+    InetAddress bindAddress = args.length > 5 ? InetAddress.getByName(args[5]) : InetAddress.getLoopbackAddress();
+
+    try (ServerSocket server = new ServerSocket(port, 50, bindAddress)) {
+      new HsssWorker(jobsDir, dataRoots, secret, maxConcurrentJobCost).serve(server);
+    }
+  }
+
+  private static void usageAndExit() {
+    System.err.println("USAGE: fgpJava " + HsssWorker.class.getName() +
+        " <port> <jobs_dir> <data_roots> <secret_file> [max_concurrent_job_cost] [bind_address]" + "\n\n" +
+        "Runs HSSS jobs sent by the plugins (see their workers property), each in its own dir in jobs_dir.  The hsss" +
+        "\ntools must be installed in $GUS_HOME/bin, and the strain files must be at the same paths as on the web" +
+        "\nservice hosts, under one of data_roots (comma delimited dirs).  Only requests holding the secret in" +
+        "\nsecret_file, as in the plugins' workerSecretFile, are run.  Jobs are admitted while their total cost is" +
+        "\nwithin max_concurrent_job_cost, as with the plugins' maxConcurrentJobCost property (default, no limit)." +
+        "\nListens on the loopback address unless bind_address is given.");
+    System.exit(1);
+  }
+
+  /**
+   * @param dataRoots the dirs the strain files are under
+   * @param secret the secret the plugins send (see their workerSecretFile property)
+   * @param maxJobCost the most a job may cost (see JobScheduler), or 0 for no limit
+   */
+  public HsssWorker(File jobsDir, List<File> dataRoots, String secret, long maxJobCost) {
+    this.jobsDir = jobsDir.getAbsoluteFile();
+    for (File dataRoot : dataRoots)
+      this.dataRoots.add(dataRoot.getAbsoluteFile().toPath().normalize());
+    this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    this.maxJobCost = maxJobCost;
+  }
+
+  /**
+   * @return the secret the plugins and workers share, from a file that holds it (and perhaps white space)
+   */
+  public static String readSecret(File secretFile) throws IOException {
+    String secret = new String(Files.readAllBytes(secretFile.toPath()), StandardCharsets.UTF_8).trim();
+    if (secret.isEmpty())
+      throw new IOException("The HSSS worker secret file " + secretFile + " is empty");
+    return secret;
+  }
+
+  /**
+   * Accept connections until the server socket is closed, running each one's job in a thread of a bounded pool.
+   */
+  public void serve(ServerSocket server) throws IOException {
+    logger.info("HSSS worker listening on " + server.getLocalSocketAddress() + ", with jobs dir " + jobsDir);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(MAX_QUEUED_CONNECTIONS), runnable -> {
+          Thread thread = new Thread(runnable, "HSSS worker connection");
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    try {
+      while (!server.isClosed()) {
+        Socket socket;
+        try {
+          socket = server.accept();
+        }
+        catch (IOException e) {
+          if (server.isClosed())
+            return;
+          throw e;
+        }
+        serve(executor, socket);
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  private void serve(ExecutorService executor, Socket socket) {
+    try {
+      executor.execute(() -> handle(socket));
+    }
+    catch (RejectedExecutionException e) {
+      logger.warn("Too many connections:  closing the connection from " + socket.getRemoteSocketAddress());
+      try {
+        socket.close();
+      }
+      catch (IOException closeException) {
+        logger.warn("Failed closing the connection from " + socket.getRemoteSocketAddress(), closeException);
+      }
+    }
+  }
+
+  private void handle(Socket socket) {
+    try (Socket s = socket;
+         InputStream in = new BufferedInputStream(s.getInputStream());
+         OutputStream out = new BufferedOutputStream(s.getOutputStream(), HsssWorkerProtocol.DATA_FRAME_SIZE + 5)) {
+      s.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+      Request request = HsssWorkerProtocol.readRequest(in);
+      File jobDir = new File(jobsDir, JOB_DIR_PREFIX + System.currentTimeMillis() + "." + jobNumber.incrementAndGet());
+      try {
+        runJob(request, s, jobDir, out);
+      }
+      catch (PluginModelException e) {
+        logger.warn("Failed running HSSS job " + jobDir.getName() + " for " + s.getRemoteSocketAddress(), e);
+        HsssWorkerProtocol.writeError(out, e.getMessage());
+      }
+      finally {
+        JobsDirJanitor.delete(jobDir);
+      }
+    }
+    catch (IOException e) {
+      logger.warn("Lost the connection to " + socket.getRemoteSocketAddress(), e);
+    }
+    catch (RuntimeException e) {
+      logger.error("Failed handling the connection from " + socket.getRemoteSocketAddress(), e);
+    }
+  }
+
+  private void runJob(Request request, Socket socket, File jobDir, OutputStream out)
+      throws PluginModelException, IOException {
+    List<String> command = getCommand(request, jobDir);
+    // authenticated:  the job may wait to be admitted, and run, for as long as its limits allow
+    socket.setSoTimeout(0);
+    if (!jobDir.mkdirs())
+      throw new PluginModelException("Can't make job dir " + jobDir);
+    for (Map.Entry<String, byte[]> file : request.getJobFiles().entrySet()) {
+      File jobFile = new File(jobDir, new File(file.getKey()).getName());
+      Files.write(jobFile.toPath(), file.getValue());
+    }
+    File script = new File(jobDir, new File(request.getScriptName()).getName());
+
+    long cost = Math.max(request.getCost(), 1);
+    if (maxJobCost > 0)
+      cost = Math.min(cost, maxJobCost);
+    long maxQueueWaitSeconds = Math.min(Math.max(request.getMaxQueueWaitSeconds(), 0), MAX_QUEUE_WAIT_SECONDS);
+    long timeoutSeconds = Math.min(Math.max(request.getTimeoutSeconds(), 1), MAX_TIMEOUT_SECONDS);
+    try (JobScheduler.Admission admission = JobScheduler.getInstance().admit(jobDir.getName(), cost,
+        maxQueueWaitSeconds * 1000)) {
+      runCommand(command, jobDir);
+      long start = System.currentTimeMillis();
+      int exitValue = runScript(script, timeoutSeconds, out);
+      logger.info("Ran HSSS job " + jobDir.getName() + " in " + ((System.currentTimeMillis() - start) / 1000.0) +
+          " seconds, with exit value " + exitValue);
+    }
+  }
+
+  /**
+   * Check that a request is from a plugin, and runs a script generator on the data only.
+   *
+   * @return the plugin's generator command, to run in this job dir, with this host's tools
+   */
+  List<String> getCommand(Request request, File jobDir) throws PluginModelException {
+    if (!MessageDigest.isEqual(secret, request.getSecret().getBytes(StandardCharsets.UTF_8)))
+      throw new PluginModelException("Refused the job:  it does not hold the HSSS worker secret");
+    List<String> command = request.getCommand();
+    if (command.isEmpty() || !GENERATOR.matcher(new File(command.get(0)).getName()).matches())
+      throw new PluginModelException("Refused the job:  it is not an HSSS script generator: " + command);
+    if (!JOB_DIR.matcher(request.getJobDir()).matches())
+      throw new PluginModelException("Refused the job:  its job dir is not an absolute path: " + request.getJobDir());
+
+    List<String> workerCommand = new ArrayList<>();
+    workerCommand.add(gusBin + "/" + new File(command.get(0)).getName());
+    for (String arg : command.subList(1, command.size())) {
+      String workerArg = arg.replace(request.getJobDir(), jobDir.getPath());
+      if (!SAFE_ARG.matcher(workerArg).matches())
+        throw new PluginModelException("Refused the job:  an arg holds characters the shell would interpret: " + arg);
+      // an option's value, eg --read_freq=80, or the arg
+      String value = workerArg.startsWith("--") ? workerArg.substring(workerArg.indexOf('=') + 1) : workerArg;
+      if (value.contains("/") && !isIn(value, jobDir) && dataRoots.stream().noneMatch(root -> isUnder(value, root)))
+        throw new PluginModelException("Refused the job:  a path is not in the job dir or under a data root: " + arg);
+      workerCommand.add(workerArg);
+    }
+    return workerCommand;
+  }
+
+  // true if path is an absolute path to dir or under it, after removing any ..
+  private static boolean isIn(String path, File dir) {
+    Path dirPath = dir.getAbsoluteFile().toPath().normalize();
+    return Paths.get(path).normalize().equals(dirPath) || isUnder(path, dirPath);
+  }
+
+  // true if path is an absolute path under dir, after removing any ..
+
+  private static boolean isUnder(String path, Path dir) {
+    Path normalized = Paths.get(path).normalize();
+    return normalized.isAbsolute() && normalized.startsWith(dir) && !normalized.equals(dir);
+  }
+
+  private ProcessBuilder getProcessBuilder(List<String> command) {
+    ProcessBuilder builder = new ProcessBuilder(command);
+    Map<String, String> env = builder.environment();
+    env.put("PATH", gusBin + ":" + env.get("PATH"));
+    env.put("GUS_HOME", GusHome.getGusHome());
+    return builder;
+  }
+
+  // run the script generator
+  private void runCommand(List<String> command, File jobDir) throws PluginModelException {
+    try {
+      Process process = getProcessBuilder(command).directory(jobDir).redirectErrorStream(true).start();
+      process.getOutputStream().close();
+      String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+      if (process.waitFor() != 0)
+        throw new PluginModelException("Failed running " + String.join(" ", command) + ": " + output);
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Exception running " + String.join(" ", command), e);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted running " + String.join(" ", command), e);
+    }
+  }
+
+  /**
+   * Run the job script, sending its stdout in DATA frames as it is written, and then its exit value and stderr in the
+   * END frame.  If it runs longer than the timeout, or the output can't be sent (the plugin went away), the job's
+   * whole process group is killed.
+   */
+  private int runScript(File script, long timeoutSeconds, OutputStream out) throws IOException, PluginModelException {
+    String[] cmds = { script.getPath() };
+    Process process = getProcessBuilder(List.of(cmds)).start();
+    JobProcessGroups.register(process, script.getParentFile().getName());
+    process.getOutputStream().close();
+
+    // drain stderr in the background, so the job never blocks on a full pipe
+    StringBuffer stderr = new StringBuffer();
+    Thread stderrReader = new Thread(() -> {
+      try (InputStream err = process.getErrorStream()) {
+        stderr.append(new String(err.readAllBytes(), StandardCharsets.UTF_8));
+      }
+      catch (IOException e) {
+        logger.warn("Failed reading stderr of " + cmds[0], e);
+      }
+    });
+    stderrReader.setDaemon(true);
+    stderrReader.start();
+
+    AtomicBoolean timedOut = new AtomicBoolean(false);
+    Timer timer = new Timer(true);
+    timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        timedOut.set(true);
+        JobProcessGroups.cancel(process, "timed out after " + timeoutSeconds + " seconds");
+      }
+    }, timeoutSeconds * 1000);
+
+    boolean completed = false;
+    try {
+      byte[] buffer = new byte[HsssWorkerProtocol.DATA_FRAME_SIZE];
+      try (InputStream in = process.getInputStream()) {
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+          HsssWorkerProtocol.writeFrame(out, HsssWorkerProtocol.DATA, buffer, 0, n);
+          // send what we have if the job pauses, so the plugin sees rows as they are made
+          if (in.available() == 0)
+            out.flush();
+        }
+      }
+      int exitValue = process.waitFor();
+      completed = true;
+      stderrReader.join(1000);
+      if (timedOut.get())
+        throw new PluginModelException("The job " + cmds[0] + " timed out after " + timeoutSeconds + " seconds: " +
+            stderr);
+      HsssWorkerProtocol.writeEnd(out, exitValue, exitValue == 0 ? "" : stderr.toString());
+      return exitValue;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted while running " + cmds[0], e);
+    }
+    finally {
+      timer.cancel();
+      // if we stopped early (interrupted, or the plugin went away), don't leave the pipeline running
+      if (!completed && !timedOut.get())
+        JobProcessGroups.cancel(process, "abandoned");
+      JobProcessGroups.unregister(process);
+    }
+  }
+
+  /**
+   * @return the address of a worker, from host:port
+   */
+  public static InetSocketAddress parseAddress(String worker) {
+    int colon = worker.lastIndexOf(':');
+    if (colon <= 0)
+      throw new IllegalArgumentException("HSSS worker address must be host:port: " + worker);
+    try {
+      return new InetSocketAddress(worker.substring(0, colon).trim(),
+          Integer.parseInt(worker.substring(colon + 1).trim()));
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException("HSSS worker address must be host:port: " + worker, e);
+    }
+  }
+}
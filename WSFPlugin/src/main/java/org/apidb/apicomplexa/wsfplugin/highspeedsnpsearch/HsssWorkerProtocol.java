@@ -0,0 +1,272 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The protocol between the plugins and HSSS workers (see HsssWorker), over a TCP connection per job.
+ *
+ * Everything is sent as frames:  a type byte, a 4 byte length (big endian, as DataOutputStream writes) and that many
+ * bytes of payload.  The plugin sends one REQUEST frame, holding a Request, with the secret the plugins and workers
+ * share, so that the worker runs jobs for them only.  The worker sends back the job's output,
+ * as it is written, in DATA frames, and then an END frame holding the job's exit value and its stderr.  If the job
+ * can't be run (eg, its script generator fails, or the worker is too busy), the worker sends an ERROR frame, holding
+ * the message, instead.
+ *
+ * @author steve
+ */
+public class HsssWorkerProtocol {
+
+  public static final int VERSION = 2;
+
+  static final byte REQUEST = 'Q';
+  static final byte DATA = 'D';
+  static final byte END = 'E';
+  static final byte ERROR = 'X';
+
+  // the most the worker sends in one DATA frame, and the most any frame may hold
+  static final int DATA_FRAME_SIZE = 65536;
+  private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * A job for a worker:  a script generator command, as the plugin would run it, and the files in the plugin's job
+   * dir (such as the strains list files) that the command reads.  The worker runs the command in its own job dir,
+   * with each mention of the plugin's job dir replaced by its own, and then runs the script it makes.
+   */
+  public static class Request {
+    private final String secret;
+    private final String jobDir;
+    private final String scriptName;
+    private final List<String> command;
+    private final Map<String, byte[]> jobFiles;
+    private final long cost;
+    private final long timeoutSeconds;
+    private final long maxQueueWaitSeconds;
+
+    /**
+     * @param secret the secret the plugins and workers share
+     * @param jobDir the plugin's job dir, as it appears in the command
+     * @param scriptName the name of the script the command writes in the job dir
+     * @param command the script generator command.  The worker runs the generator of that name in its own $GUS_HOME/bin
+     * @param jobFiles the files the command reads from the job dir, by name
+     * @param cost the job's cost, for the worker's admission control (see JobScheduler)
+     * @param timeoutSeconds how long the script may run
+     * @param maxQueueWaitSeconds how long the job may wait to be admitted
+     */
+    public Request(String secret, String jobDir, String scriptName, List<String> command, Map<String, byte[]> jobFiles,
+        long cost, long timeoutSeconds, long maxQueueWaitSeconds) {
+      this.secret = secret;
+      this.jobDir = jobDir;
+      this.scriptName = scriptName;
+      this.command = Collections.unmodifiableList(new ArrayList<>(command));
+      this.jobFiles = Collections.unmodifiableMap(new LinkedHashMap<>(jobFiles));
+      this.cost = cost;
+      this.timeoutSeconds = timeoutSeconds;
+      this.maxQueueWaitSeconds = maxQueueWaitSeconds;
+    }
+
+    public String getSecret() { return secret; }
+    public String getJobDir() { return jobDir; }
+    public String getScriptName() { return scriptName; }
+    public List<String> getCommand() { return command; }
+    public Map<String, byte[]> getJobFiles() { return jobFiles; }
+    public long getCost() { return cost; }
+    public long getTimeoutSeconds() { return timeoutSeconds; }
+    public long getMaxQueueWaitSeconds() { return maxQueueWaitSeconds; }
+  }
+
+  public static void writeRequest(OutputStream out, Request request) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeInt(VERSION);
+    writeString(payload, request.secret);
+    writeString(payload, request.jobDir);
+    writeString(payload, request.scriptName);
+    payload.writeInt(request.command.size());
+    for (String arg : request.command)
+      writeString(payload, arg);
+    payload.writeInt(request.jobFiles.size());
+    for (Map.Entry<String, byte[]> file : request.jobFiles.entrySet()) {
+      writeString(payload, file.getKey());
+      payload.writeInt(file.getValue().length);
+      payload.write(file.getValue());
+    }
+    payload.writeLong(request.cost);
+    payload.writeLong(request.timeoutSeconds);
+    payload.writeLong(request.maxQueueWaitSeconds);
+    writeFrame(out, REQUEST, bytes.toByteArray(), 0, bytes.size());
+    out.flush();
+  }
+
+  public static Request readRequest(InputStream in) throws IOException {
+    DataInputStream frame = new DataInputStream(in);
+    byte type = frame.readByte();
+    if (type != REQUEST)
+      throw new IOException("Expected a request, but got a frame of type " + (char) type);
+    DataInputStream payload = new DataInputStream(new ByteArrayInputStream(readPayload(frame)));
+    int version = payload.readInt();
+    if (version != VERSION)
+      throw new IOException("Unsupported HSSS worker protocol version " + version + ".  Expected " + VERSION);
+    String secret = readString(payload);
+    String jobDir = readString(payload);
+    String scriptName = readString(payload);
+    List<String> command = new ArrayList<>();
+    for (int i = payload.readInt(); i > 0; i--)
+      command.add(readString(payload));
+    Map<String, byte[]> jobFiles = new LinkedHashMap<>();
+    for (int i = payload.readInt(); i > 0; i--) {
+      String name = readString(payload);
+      jobFiles.put(name, readBytes(payload, "job file"));
+    }
+    return new Request(secret, jobDir, scriptName, command, jobFiles, payload.readLong(), payload.readLong(),
+        payload.readLong());
+  }
+
+  static void writeFrame(OutputStream out, byte type, byte[] payload, int offset, int length) throws IOException {
+    DataOutputStream frame = new DataOutputStream(out);
+    frame.writeByte(type);
+    frame.writeInt(length);
+    frame.write(payload, offset, length);
+  }
+
+  static void writeEnd(OutputStream out, int exitValue, String stderr) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeInt(exitValue);
+    payload.write(stderr.getBytes(StandardCharsets.UTF_8));
+    writeFrame(out, END, bytes.toByteArray(), 0, bytes.size());
+    out.flush();
+  }
+
+  static void writeError(OutputStream out, String message) throws IOException {
+    byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+    writeFrame(out, ERROR, payload, 0, payload.length);
+    out.flush();
+  }
+
+  private static byte[] readPayload(DataInputStream frame) throws IOException {
+    int length = frame.readInt();
+    if (length < 0 || length > MAX_FRAME_SIZE)
+      throw new IOException("Bad HSSS worker frame length " + length);
+    byte[] payload = new byte[length];
+    frame.readFully(payload);
+    return payload;
+  }
+
+  // strings are a length and UTF-8 bytes, as writeUTF is limited to 64K
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return new String(readBytes(in, "string"), StandardCharsets.UTF_8);
+  }
+
+  // a length and that many bytes, from a payload, which must hold them:  a bad length mustn't make a worker allocate
+  // more than the frame it read
+  private static byte[] readBytes(DataInputStream in, String what) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME_SIZE || length > in.available())
+      throw new IOException("Bad HSSS worker " + what + " length " + length);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * The job's output, read from a worker's DATA frames.  At the END frame it is the end of the stream if the job
+   * succeeded.  If the job failed, or the worker sent an ERROR frame, or the connection ended early, reading throws
+   * an IOException saying why.
+   */
+  public static class ResultInputStream extends InputStream {
+    private final DataInputStream in;
+    private final String workerName;
+    private byte[] data = new byte[0];
+    private int pos = 0;
+    private boolean ended = false;
+
+    public ResultInputStream(InputStream in, String workerName) {
+      this.in = new DataInputStream(in);
+      this.workerName = workerName;
+    }
+
+    // read frames until there is data, or the end.  returns false at the end
+    private boolean fill() throws IOException {
+      while (pos == data.length) {
+        if (ended)
+          return false;
+        byte type;
+        byte[] payload;
+        try {
+          type = in.readByte();
+          payload = readPayload(in);
+        }
+        catch (EOFException e) {
+          throw new IOException("HSSS worker " + workerName + " closed the connection before the job ended", e);
+        }
+        if (type == DATA) {
+          data = payload;
+          pos = 0;
+        }
+        else if (type == END) {
+          ended = true;
+          DataInputStream end = new DataInputStream(new ByteArrayInputStream(payload));
+          int exitValue = end.readInt();
+          if (exitValue != 0)
+            throw new IOException("The job on HSSS worker " + workerName + " failed, with exit value " + exitValue +
+                ": " + new String(end.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        else if (type == ERROR) {
+          ended = true;
+          throw new IOException("HSSS worker " + workerName + " could not run the job: " +
+              new String(payload, StandardCharsets.UTF_8));
+        }
+        else {
+          throw new IOException("Unexpected frame of type " + (char) type + " from HSSS worker " + workerName);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? data[pos++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if (!fill())
+        return -1;
+      int n = Math.min(len, data.length - pos);
+      System.arraycopy(data, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return data.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
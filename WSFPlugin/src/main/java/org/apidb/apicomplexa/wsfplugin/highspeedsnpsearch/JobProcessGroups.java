@@ -0,0 +1,158 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tracks the process groups of running HSSS jobs, so that an abandoned job's whole pipeline can be killed.
+ *
+ * The job's perl wrapper (see HsssScriptGenerator) makes itself the leader of a new process group, which every process
+ * in the pipeline inherits.  Killing only the wrapper and its descendants can miss pipeline processes whose parent has
+ * already exited, which then keep reading strain files.  So a job is cancelled by signalling its whole group:  first
+ * TERM, so the job script's trap removes its fifos and temp files, then, after a grace period, KILL for anything left.
+ *
+ * For each cancelled job the CPU time its processes had used is logged and added to a running total.  That is the
+ * CPU the pipeline would have kept burning, at least, had it been left to run.
+ *
+ * This is Linux specific (it reads /proc).  Where /proc is missing the job's descendants are killed instead.
+ *
+ * @author steve
+ */
+public class JobProcessGroups {
+
+  private static final Logger logger = Logger.getLogger(JobProcessGroups.class);
+
+  private static final long KILL_GRACE_MILLIS = 2000;
+
+  // clock ticks per second in /proc/<pid>/stat.  USER_HZ is 100 on all mainstream Linux builds
+  private static final double CLOCK_TICKS_PER_SECOND = 100;
+
+  // process group id (the wrapper's pid) to job name
+  private static final Map<Long, String> runningJobs = new ConcurrentHashMap<>();
+
+  private static final AtomicLong cancelledJobs = new AtomicLong();
+  private static final AtomicLong cancelledCpuMillis = new AtomicLong();
+
+  private static final ScheduledExecutorService killer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "HSSS job killer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  static {
+    // don't leave pipelines running if the web service is shut down
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (Long pgid : runningJobs.keySet())
+        signalGroup(pgid, "KILL");
+    }));
+  }
+
+  public static void register(Process process, String jobName) {
+    runningJobs.put(process.pid(), jobName);
+  }
+
+  // the process group ids of the jobs running now
+  static List<Long> getRunningJobs() {
+    return new ArrayList<>(runningJobs.keySet());
+  }
+
+  public static void unregister(Process process) {
+    runningJobs.remove(process.pid());
+  }
+
+  /**
+   * Kill a job's pipeline.  Returns at once;  the KILL, if needed, is sent later.
+   *
+   * @param reason for the log, eg "timed out"
+   */
+  public static void cancel(Process process, String reason) {
+    long pgid = process.pid();
+    String jobName = runningJobs.getOrDefault(pgid, String.valueOf(pgid));
+    List<Long> members = getGroupMembers(pgid);
+    double cpuSeconds = getCpuSeconds(members);
+
+    if (members.isEmpty() || !signalGroup(pgid, "TERM")) {
+      // no /proc, or the wrapper has not yet made its group
+      process.descendants().forEach(ProcessHandle::destroyForcibly);
+      process.destroyForcibly();
+    }
+    else {
+      killer.schedule(() -> {
+        if (!getGroupMembers(pgid).isEmpty())
+          signalGroup(pgid, "KILL");
+      }, KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    unregister(process);
+
+    long jobs = cancelledJobs.incrementAndGet();
+    long totalCpuMillis = cancelledCpuMillis.addAndGet((long) (cpuSeconds * 1000));
+    logger.info("Cancelled HSSS job " + jobName + " (" + reason + "):  killed " + members.size() +
+        " processes that had used " + String.format("%.2f", cpuSeconds) + " CPU seconds.  Cancelled jobs: " + jobs +
+        ", their CPU seconds: " + String.format("%.2f", totalCpuMillis / 1000.0) + ", jobs still running: " +
+        runningJobs.size());
+  }
+
+  private static boolean signalGroup(long pgid, String signal) {
+    try {
+      Process kill = new ProcessBuilder("kill", "-" + signal, "--", "-" + pgid).redirectErrorStream(true).start();
+      kill.getInputStream().readAllBytes();
+      return kill.waitFor() == 0;
+    }
+    catch (IOException e) {
+      logger.warn("Failed sending " + signal + " to process group " + pgid, e);
+      return false;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  // the pids in a process group, from /proc.  empty if none, or no /proc
+  static List<Long> getGroupMembers(long pgid) {
+    List<Long> members = new ArrayList<>();
+    File[] procs = new File("/proc").listFiles((dir, name) -> name.chars().allMatch(Character::isDigit));
+    if (procs == null)
+      return members;
+    for (File proc : procs) {
+      String[] stat = readStat(proc);
+      if (stat != null && Long.parseLong(stat[2]) == pgid)
+        members.add(Long.valueOf(proc.getName()));
+    }
+    return members;
+  }
+
+  private static double getCpuSeconds(List<Long> pids) {
+    long ticks = 0;
+    for (Long pid : pids) {
+      String[] stat = readStat(new File("/proc", pid.toString()));
+      if (stat != null)
+        ticks += Long.parseLong(stat[11]) + Long.parseLong(stat[12]);  // utime, stime
+    }
+    return ticks / CLOCK_TICKS_PER_SECOND;
+  }
+
+  // the fields of /proc/<pid>/stat after the command name, which may contain spaces.  starts with state, ppid, pgrp
+  static String[] readStat(File proc) {
+    try {
+      String stat = new String(Files.readAllBytes(new File(proc, "stat").toPath()), StandardCharsets.US_ASCII);
+      return stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+    }
+    catch (IOException | RuntimeException e) {
+      // the process has exited
+      return null;
+    }
+  }
+}
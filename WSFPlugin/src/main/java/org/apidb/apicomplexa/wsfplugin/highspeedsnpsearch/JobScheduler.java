@@ -0,0 +1,166 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.PluginModelException;
+
+/**
+ * Node-wide admission control for HSSS jobs.
+ *
+ * Each job runs a pipeline of many processes, whose cost is dominated by reading strain files.  Running too many at
+ * once thrashes the host's disks, and then every job hits its timeout.  So each job is given a cost (roughly, the MB
+ * of strain data it will read; see HighSpeedSnpSearchAbstractPlugin.addJobCost), and jobs are admitted while the
+ * total cost of running jobs is within a budget.  Others wait in a first come first served queue, so a big job is not
+ * starved by a stream of small ones.  A job that waits longer than the max wait is refused.  A job bigger than the
+ * whole budget is admitted when nothing else is running.
+ *
+ * With no budget (the default) jobs are admitted at once, but are still counted, so the status is always available.
+ *
+ * @author steve
+ */
+public class JobScheduler {
+
+  private static final Logger logger = Logger.getLogger(JobScheduler.class);
+
+  private static final JobScheduler instance = new JobScheduler();
+
+  // a job waiting to be admitted
+  private static class Ticket {
+    final long cost;
+
+    Ticket(long cost) {
+      this.cost = cost;
+    }
+  }
+
+  /**
+   * An admitted job.  Close it when the job is done, to release its cost.
+   */
+  public class Admission implements AutoCloseable {
+    private final long cost;
+    private final long waitMillis;
+    private boolean released = false;
+
+    private Admission(long cost, long waitMillis) {
+      this.cost = cost;
+      this.waitMillis = waitMillis;
+    }
+
+    public long getWaitMillis() {
+      return waitMillis;
+    }
+
+    @Override
+    public void close() {
+      synchronized (JobScheduler.this) {
+        if (released)
+          return;
+        released = true;
+        runningCost -= cost;
+        runningJobs--;
+        JobScheduler.this.notifyAll();
+      }
+    }
+  }
+
+  private final Deque<Ticket> queue = new ArrayDeque<>();
+  private long budget = 0;  // 0 means no limit
+  private long runningCost = 0;
+  private int runningJobs = 0;
+
+  // statistics since startup
+  private long admittedJobs = 0;
+  private long refusedJobs = 0;
+  private long totalWaitMillis = 0;
+  private long longestWaitMillis = 0;
+
+  public static JobScheduler getInstance() {
+    return instance;
+  }
+
+  private JobScheduler() {}
+
+  /**
+   * Set the total cost of jobs that may run at once.  0 for no limit.  The plugins share this scheduler, so should all
+   * be configured with the same budget.
+   */
+  public synchronized void setBudget(long budget) {
+    if (budget != this.budget)
+      logger.info("HSSS job cost budget set to " + budget);
+    this.budget = budget;
+    notifyAll();
+  }
+
+  /**
+   * Wait until a job may run.
+   *
+   * @param jobName for logging
+   * @param cost the job's estimated cost
+   * @param maxWaitMillis how long the job may wait in the queue
+   * @return the admission, to close when the job is done
+   * @throws PluginModelException if the job waited too long (the host is too busy), or was interrupted
+   */
+  public synchronized Admission admit(String jobName, long cost, long maxWaitMillis) throws PluginModelException {
+    Ticket ticket = new Ticket(cost);
+    queue.addLast(ticket);
+    long start = System.currentTimeMillis();
+    long deadline = start + maxWaitMillis;
+    try {
+      while (queue.peekFirst() != ticket || !fits(ticket.cost)) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          queue.remove(ticket);
+          refusedJobs++;
+          notifyAll();
+          logger.warn("Refused HSSS job " + jobName + " (cost " + cost + ") after waiting " + maxWaitMillis +
+              " ms.  " + getStatus());
+          throw new PluginModelException("The server is too busy to run this search now.  Please try again later.");
+        }
+        wait(remaining);
+      }
+    }
+    catch (InterruptedException e) {
+      queue.remove(ticket);
+      notifyAll();
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted while waiting to run HSSS job " + jobName, e);
+    }
+
+    queue.removeFirst();
+    runningCost += cost;
+    runningJobs++;
+    long waitMillis = System.currentTimeMillis() - start;
+    admittedJobs++;
+    totalWaitMillis += waitMillis;
+    longestWaitMillis = Math.max(longestWaitMillis, waitMillis);
+    // the next job in the queue might fit too
+    notifyAll();
+    logger.info("Admitted HSSS job " + jobName + " (cost " + cost + ") after waiting " + waitMillis + " ms.  " +
+        getStatus());
+    return new Admission(cost, waitMillis);
+  }
+
+  private boolean fits(long cost) {
+    return budget <= 0 || runningJobs == 0 || runningCost + cost <= budget;
+  }
+
+  public synchronized int getQueueDepth() {
+    return queue.size();
+  }
+
+  public synchronized int getRunningJobs() {
+    return runningJobs;
+  }
+
+  /**
+   * A one line summary of the scheduler's state and wait times, for the log.
+   */
+  public synchronized String getStatus() {
+    return "HSSS jobs running: " + runningJobs + " (cost " + runningCost + (budget > 0 ? " of " + budget : "") +
+        "), queued: " + queue.size() + ", admitted: " + admittedJobs + ", refused: " + refusedJobs +
+        ", mean wait: " + (admittedJobs == 0 ? 0 : totalWaitMillis / admittedJobs) + " ms, max wait: " +
+        longestWaitMillis + " ms";
+  }
+}
@@ -0,0 +1,127 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cleans up a jobs dir in the background:  removes the job dirs of finished jobs once they are old enough that no one
+ * will want to debug them, and evicts the result cache (see ResultCache).  The plugins used to scan the jobs dir for
+ * old job dirs on every request.
+ *
+ * There is one janitor per jobs dir, shared by the plugin instances that use it.  It sweeps every SWEEP_PERIOD_MINUTES,
+ * and soon after a result is cached, so that the cache does not stay over its size limit for long.
+ *
+ * @author steve
+ */
+public class JobsDirJanitor {
+
+  private static final Logger logger = Logger.getLogger(JobsDirJanitor.class);
+
+  private static final long SWEEP_PERIOD_MINUTES = 60;
+
+  // job dirs are kept this long (about 6 days), for debugging
+  private static final long JOB_DIR_MAX_AGE_MILLIS = 500000000L;
+
+  private static final Map<File, JobsDirJanitor> janitors = new HashMap<>();
+
+  private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "HSSS jobs dir janitor");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final File jobsDir;
+  private final Set<String> jobDirPrefixes = ConcurrentHashMap.newKeySet();
+  private volatile ResultCache resultCache;
+  private final AtomicBoolean sweepPending = new AtomicBoolean(false);
+
+  /**
+   * @return the janitor for a jobs dir, which is started if it is new
+   */
+  public static synchronized JobsDirJanitor getInstance(File jobsDir) {
+    File key = jobsDir.getAbsoluteFile();
+    JobsDirJanitor janitor = janitors.get(key);
+    if (janitor == null) {
+      janitor = new JobsDirJanitor(key);
+      janitors.put(key, janitor);
+      executor.scheduleWithFixedDelay(janitor::sweep, SWEEP_PERIOD_MINUTES, SWEEP_PERIOD_MINUTES, TimeUnit.MINUTES);
+    }
+    return janitor;
+  }
+
+  JobsDirJanitor(File jobsDir) {
+    this.jobsDir = jobsDir;
+  }
+
+  /**
+   * Have the janitor remove old job dirs whose names start with this prefix
+   */
+  public void addJobDirPrefix(String prefix) {
+    jobDirPrefixes.add(prefix);
+  }
+
+  /**
+   * Have the janitor evict this result cache.  It replaces any given before, so the latest configuration wins
+   */
+  public void setResultCache(ResultCache resultCache) {
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * Sweep soon, in the background.  Any number of calls before then make one sweep
+   */
+  public void sweepSoon() {
+    if (sweepPending.compareAndSet(false, true))
+      executor.execute(this::sweep);
+  }
+
+  void sweep() {
+    sweepPending.set(false);
+    try {
+      removeOldJobDirs();
+      ResultCache cache = resultCache;
+      if (cache != null)
+        cache.evict();
+    }
+    catch (RuntimeException e) {
+      // keep the janitor scheduled
+      logger.error("Failed cleaning up jobs dir " + jobsDir, e);
+    }
+  }
+
+  private void removeOldJobDirs() {
+    File[] jobDirs = jobsDir.listFiles(file -> file.isDirectory() &&
+        jobDirPrefixes.stream().anyMatch(prefix -> file.getName().startsWith(prefix)));
+    if (jobDirs == null)
+      return;
+    long now = System.currentTimeMillis();
+    for (File jobDir : jobDirs) {
+      if (now - jobDir.lastModified() > JOB_DIR_MAX_AGE_MILLIS) {
+        logger.info("Job dir to be deleted: " + jobDir.getAbsolutePath());
+        delete(jobDir);
+      }
+    }
+  }
+
+  static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File file : files) {
+        if (file.isDirectory() && !Files.isSymbolicLink(file.toPath()))
+          delete(file);
+        else
+          file.delete();
+      }
+    dir.delete();
+  }
+}
@@ -0,0 +1,119 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.PluginModelException;
+
+/**
+ * A size bounded cache of merged strain streams, shared by all users of a polymorphism search.
+ *
+ * Merging the strain files is the expensive part of a polymorphism search, and its output does not depend on the
+ * polymorphism or unknowns thresholds.  Users commonly re-run a search on the same strains while adjusting those
+ * thresholds, so the script generator saves the merged stream to the file named here (option
+ * --merged_stream_cache) and, if the file already exists, runs only the threshold pass against it.  The script hard
+ * links the file into its job dir first, so evicting it doesn't disturb a running job, and merges the strain files
+ * instead if it was evicted before the script ran.
+ *
+ * Files are keyed by the strain files dir (which identifies the organism, build and read frequency), the read
+ * frequency threshold if the strain files hold read frequencies (a readFreqAll dir), and the sorted set of strains.  When the cache is over its size limit the least recently used files are removed.
+ *
+ * @author steve
+ */
+public class MergedStreamCache {
+
+  private static final Logger logger = Logger.getLogger(MergedStreamCache.class);
+
+  private static final String CACHE_DIR_NAME = "mergedStreamCache";
+  private static final String SUFFIX = ".merged";
+
+  // incomplete files older than this were abandoned by a failed or killed job
+  private static final long ABANDONED_TMP_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+
+  private final File cacheDir;
+  private final long maxBytes;
+
+  public MergedStreamCache(File jobsDir, long maxMegabytes) {
+    this.cacheDir = new File(jobsDir, CACHE_DIR_NAME);
+    this.maxBytes = maxMegabytes * 1024 * 1024;
+  }
+
+  /**
+   * Get the cache file for a set of strains, and mark it as recently used.  The file may not exist yet, in which
+   * case the search will create it.  Makes room for it first, by evicting least recently used files.
+   *
+   * @param strainFilesDir the readFreq dir the strain files are in
+   * @param readFreq the read frequency threshold the strain files are read at, if they hold read frequencies, else
+   * null
+   * @param strains the strains, in any order
+   */
+  public File getCacheFile(File strainFilesDir, String readFreq, List<String> strains) throws PluginModelException {
+    String key = strainFilesDir.getAbsolutePath() + "\n" + (readFreq == null ? "" : "readFreq " + readFreq + "\n") +
+        strains.stream().map(String::trim).sorted().collect(Collectors.joining(","));
+    File cacheFile = new File(cacheDir, sha1(key) + SUFFIX);
+
+    // plugin instances share the cache dir
+    synchronized (MergedStreamCache.class) {
+      if (!cacheDir.exists() && !cacheDir.mkdirs() && !cacheDir.exists())
+        throw new PluginModelException("Failed creating merged stream cache dir " + cacheDir);
+      if (cacheFile.exists()) {
+        cacheFile.setLastModified(System.currentTimeMillis());
+        logger.info("Using cached merged strain stream " + cacheFile);
+      }
+      evict(cacheFile);
+    }
+    return cacheFile;
+  }
+
+  // remove least recently used files, other than the one about to be used, until the cache is within its limit
+  private void evict(File keep) {
+    File[] files = cacheDir.listFiles();
+    if (files == null)
+      return;
+
+    long now = System.currentTimeMillis();
+    long total = 0;
+    for (File file : files) {
+      if (!file.getName().endsWith(SUFFIX) && now - file.lastModified() > ABANDONED_TMP_AGE_MILLIS)
+        file.delete();
+      else
+        total += file.length();
+    }
+
+    File[] cached = cacheDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+    if (cached == null)
+      return;
+    Arrays.sort(cached, Comparator.comparingLong(File::lastModified));
+    for (File file : cached) {
+      if (total <= maxBytes)
+        break;
+      if (file.equals(keep))
+        continue;
+      long length = file.length();
+      if (file.delete()) {
+        logger.info("Evicted merged strain stream " + file);
+        total -= length;
+      }
+    }
+  }
+
+  static String sha1(String key) throws PluginModelException {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest)
+        hex.append(String.format("%02x", b));
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new PluginModelException(e);
+    }
+  }
+}
@@ -0,0 +1,282 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.PluginModelException;
+
+/**
+ * A size and age bounded cache of search results, shared by all users of the HSSS searches.
+ *
+ * Users commonly run a search that was run moments ago, eg by going back to a strategy, or by revising it and then
+ * returning to the first version.  Each run made a new job dir and script and ran the whole pipeline again.  Instead,
+ * the job's output is saved as it is read into the response, and an identical search reads it back, without running
+ * a job.  The output is saved as the job wrote it, so for the searches that return SNPs it is the compact binary SNP
+ * records (see BinarySnpResultDecoder), and it is decoded into rows again on each read.  A result is saved only if
+ * the job succeeded, and only once it is complete.
+ *
+ * Results are keyed by a canonical form of the search (see getKey):  the plugin, the script generator command with
+ * its options sorted, and those that don't change the result (how the job is run, eg --partitions) left out, the
+ * contents of the job dir files it reads (the strains lists, with the strains sorted), and the dataset:  the build,
+ * and the last modified times of the strain files dirs and data files it names.  So a reloaded dataset is never served
+ * stale results.
+ *
+ * Eviction is done by the JobsDirJanitor, in the background:  results older than the max age are removed, then the
+ * least recently used, until the cache is within its size limit.
+ *
+ * @author steve
+ */
+public class ResultCache {
+
+  private static final Logger logger = Logger.getLogger(ResultCache.class);
+
+  private static final String CACHE_DIR_NAME = "resultCache";
+  private static final String SUFFIX = ".result";
+
+  // incomplete files older than this were abandoned by a failed or killed JVM
+  private static final long ABANDONED_TMP_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+
+  // generator options that change how the job is run, or what it reads, but not its results
+  private static final List<String> RESULT_NEUTRAL_OPTIONS = Arrays.asList("--merged_stream=",
+      "--merged_stream_cache=", "--partitions=", "--partition=");
+
+  private static final String JOB_DIR_PLACEHOLDER = "JOB_DIR";
+
+  private final File cacheDir;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+
+  public ResultCache(File jobsDir, long maxMegabytes, long maxAgeMillis) {
+    this.cacheDir = new File(jobsDir, CACHE_DIR_NAME);
+    this.maxBytes = maxMegabytes * 1024 * 1024;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * @param searchName the search, eg the plugin class name.  Searches that share a script generator can give different
+   * rows from the same output
+   * @param command the script generator command
+   * @param jobDir the job dir the command names.  The files in it are part of the search
+   * @param buildNumber the current build
+   * @return the key of the search's result
+   */
+  public static String getKey(String searchName, List<String> command, File jobDir, String buildNumber)
+      throws PluginModelException {
+    String jobDirPath = jobDir.getPath();
+    StringBuilder key = new StringBuilder(searchName).append("\nbuild ").append(buildNumber).append("\n");
+
+    // options may appear anywhere in the command, so sort them.  args are in order
+    List<String> options = new ArrayList<>();
+    List<String> args = new ArrayList<>();
+    for (int i = 1; i < command.size(); i++) {
+      String arg = command.get(i);
+      if (arg.startsWith("--")) {
+        if (RESULT_NEUTRAL_OPTIONS.stream().noneMatch(arg::startsWith))
+          options.add(arg);
+      }
+      else {
+        args.add(arg);
+      }
+    }
+    options.sort(null);
+    key.append(new File(command.get(0)).getName()).append("\n");
+    for (String option : options)
+      key.append(option).append("\n");
+    for (String arg : args) {
+      key.append(arg.replace(jobDirPath, JOB_DIR_PLACEHOLDER)).append("\n");
+      // the dataset's files:  a strain files dir, or a data file such as the gene locations table
+      File file = new File(arg);
+      if (!arg.isEmpty() && !arg.startsWith(jobDirPath) && file.isAbsolute() && file.exists()) {
+        key.append("  modified ").append(file.lastModified());
+        File refGenome = new File(file, "referenceGenome.dat");
+        if (file.isDirectory() && refGenome.exists())
+          key.append(" ").append(refGenome.lastModified());
+        key.append("\n");
+      }
+    }
+
+    // the files the generator reads from the job dir.  their lines (eg, strains) are in no particular order
+    File[] jobFiles = jobDir.listFiles(File::isFile);
+    if (jobFiles != null) {
+      Arrays.sort(jobFiles);
+      for (File jobFile : jobFiles) {
+        try {
+          key.append(jobFile.getName()).append(":\n").append(Files.readAllLines(jobFile.toPath()).stream()
+              .map(String::trim).filter(line -> !line.isEmpty()).sorted().collect(Collectors.joining("\n")))
+              .append("\n");
+        }
+        catch (IOException e) {
+          throw new PluginModelException("Failed reading job file " + jobFile, e);
+        }
+      }
+    }
+    return MergedStreamCache.sha1(key.toString());
+  }
+
+  /**
+   * Get the cached result for a key, and mark it as recently used.
+   *
+   * @return the result file, or null if it is not cached
+   */
+  public File getResult(String key) {
+    File result = new File(cacheDir, key + SUFFIX);
+    if (!result.exists())
+      return null;
+    result.setLastModified(System.currentTimeMillis());
+    logger.info("Using cached result " + result);
+    return result;
+  }
+
+  /**
+   * Start saving a result, which is not cached until it is committed.
+   *
+   * @param jobName a name unique to this job, such as its job dir name
+   */
+  public PendingResult newResult(String key, String jobName) throws PluginModelException {
+    if (!cacheDir.exists() && !cacheDir.mkdirs() && !cacheDir.exists())
+      throw new PluginModelException("Failed creating result cache dir " + cacheDir);
+    return new PendingResult(new File(cacheDir, key + SUFFIX), new File(cacheDir, key + ".tmp." + jobName));
+  }
+
+  /**
+   * A result being saved, as the job's output is read through it.
+   */
+  public class PendingResult implements AutoCloseable {
+    private final File result;
+    private final File tmpResult;
+    private OutputStream out;
+    private boolean failed = false;
+    private boolean committed = false;
+
+    private PendingResult(File result, File tmpResult) {
+      this.result = result;
+      this.tmpResult = tmpResult;
+    }
+
+    /**
+     * @return the stream, which also writes what is read from it to the pending result.  Drain it, or the result will
+     * be incomplete
+     */
+    public InputStream tee(InputStream in) {
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b != -1)
+            write(new byte[] { (byte) b }, 0, 1);
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int n = super.read(b, off, len);
+          if (n > 0)
+            write(b, off, n);
+          return n;
+        }
+      };
+    }
+
+    // a result that can't be written is not cached, but the search goes on
+    private void write(byte[] b, int off, int len) {
+      if (failed)
+        return;
+      try {
+        if (out == null)
+          out = new FileOutputStream(tmpResult);
+        out.write(b, off, len);
+      }
+      catch (IOException e) {
+        logger.warn("Failed writing result to cache file " + tmpResult, e);
+        failed = true;
+      }
+    }
+
+    /**
+     * Cache the result.  Call only once all the job's output has been read, and the job succeeded.
+     */
+    public void commit() {
+      try {
+        if (out == null)
+          out = new FileOutputStream(tmpResult);
+        out.close();
+      }
+      catch (IOException e) {
+        logger.warn("Failed writing result to cache file " + tmpResult, e);
+        failed = true;
+      }
+      if (failed)
+        return;
+      // a concurrent identical search may have saved it first.  they are the same
+      if (tmpResult.renameTo(result) || result.exists())
+        committed = true;
+    }
+
+    /**
+     * Remove the result if it was not committed.
+     */
+    @Override
+    public void close() {
+      if (committed)
+        return;
+      try {
+        if (out != null)
+          out.close();
+      }
+      catch (IOException e) {
+        logger.warn("Failed closing cache file " + tmpResult, e);
+      }
+      tmpResult.delete();
+    }
+  }
+
+  /**
+   * Remove results older than the max age, and incomplete ones that were abandoned, and then the least recently used
+   * results, until the cache is within its size limit.
+   */
+  public void evict() {
+    File[] files = cacheDir.listFiles();
+    if (files == null)
+      return;
+
+    long now = System.currentTimeMillis();
+    List<File> results = new ArrayList<>();
+    long total = 0;
+    for (File file : files) {
+      boolean isResult = file.getName().endsWith(SUFFIX);
+      long age = now - file.lastModified();
+      if (isResult ? age > maxAgeMillis : age > ABANDONED_TMP_AGE_MILLIS) {
+        if (file.delete())
+          logger.info("Evicted expired result " + file);
+      }
+      else {
+        total += file.length();
+        if (isResult)
+          results.add(file);
+      }
+    }
+
+    results.sort(Comparator.comparingLong(File::lastModified));
+    for (File file : results) {
+      if (total <= maxBytes)
+        break;
+      long length = file.length();
+      if (file.delete()) {
+        logger.info("Evicted result " + file);
+        total -= length;
+      }
+    }
+  }
+}
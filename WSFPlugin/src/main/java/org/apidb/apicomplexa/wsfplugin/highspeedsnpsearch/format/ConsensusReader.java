@@ -0,0 +1,104 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a consensus stream saved to a file (as written by hsssMergedToConsensus or hsssConsensusTextFileToBinary),
+ * memory mapped.  Rows are 17 bytes, packed:  seq_id (2), location (4), major allele, its product and whether that is
+ * variable (1 each), the same for the minor allele, major and minor allele per ten thousand (2 each) and is
+ * triallelic (1).  See HsssDocumentation.txt.
+ *
+ * A cursor, like StrainFileReader.
+ *
+ * @author steve
+ */
+public class ConsensusReader {
+
+  public static final int ROW_SIZE = 17;
+
+  private final MappedRowFile rows;
+  private long row = -1;
+  private ByteBuffer segment;
+  private int offset;
+
+  public ConsensusReader(File file) throws IOException {
+    rows = new MappedRowFile(file, 0, ROW_SIZE);
+  }
+
+  public File getFile() {
+    return rows.getFile();
+  }
+
+  public long getRowCount() {
+    return rows.getRowCount();
+  }
+
+  /**
+   * Move to the next row.
+   *
+   * @return false at the end of the file
+   */
+  public boolean next() {
+    if (row + 1 >= rows.getRowCount()) {
+      row = rows.getRowCount();
+      return false;
+    }
+    row++;
+    segment = rows.segment(row);
+    offset = rows.offset(row);
+    return true;
+  }
+
+  /**
+   * Move to just before the first row at or after (seq, location).
+   */
+  public void seek(short seq, int location) {
+    row = rows.findRow(seq, location) - 1;
+  }
+
+  public short getSeq() {
+    return segment.getShort(offset);
+  }
+
+  public int getLocation() {
+    return segment.getInt(offset + 2);
+  }
+
+  public byte getMajorAllele() {
+    return segment.get(offset + 6);
+  }
+
+  public byte getMajorProduct() {
+    return segment.get(offset + 7);
+  }
+
+  public boolean isMajorProductVariable() {
+    return segment.get(offset + 8) != 0;
+  }
+
+  public byte getMinorAllele() {
+    return segment.get(offset + 9);
+  }
+
+  public byte getMinorProduct() {
+    return segment.get(offset + 10);
+  }
+
+  public boolean isMinorProductVariable() {
+    return segment.get(offset + 11) != 0;
+  }
+
+  public short getMajorAllelePerTenThousand() {
+    return segment.getShort(offset + 12);
+  }
+
+  public short getMinorAllelePerTenThousand() {
+    return segment.getShort(offset + 14);
+  }
+
+  public boolean isTriallelic() {
+    return segment.get(offset + 16) != 0;
+  }
+}
@@ -0,0 +1,27 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes a consensus stream to a file, as hsssConsensusTextFileToBinary does.  Rows must be written in order of
+ * seq_id and location.
+ *
+ * @author steve
+ */
+public class ConsensusWriter extends RowWriter {
+
+  public ConsensusWriter(File file) throws IOException {
+    super(file);
+  }
+
+  public void write(short seq, int location, byte majorAllele, byte majorProduct, boolean majorProductIsVariable,
+      byte minorAllele, byte minorProduct, boolean minorProductIsVariable, short majorAllelePerTenThousand,
+      short minorAllelePerTenThousand, boolean isTriallelic) throws IOException {
+    checkOrder(seq, location);
+    getBuffer(ConsensusReader.ROW_SIZE).putShort(seq).putInt(location)
+        .put(majorAllele).put(majorProduct).put((byte) (majorProductIsVariable ? 1 : 0))
+        .put(minorAllele).put(minorProduct).put((byte) (minorProductIsVariable ? 1 : 0))
+        .putShort(majorAllelePerTenThousand).putShort(minorAllelePerTenThousand).put((byte) (isTriallelic ? 1 : 0));
+  }
+}
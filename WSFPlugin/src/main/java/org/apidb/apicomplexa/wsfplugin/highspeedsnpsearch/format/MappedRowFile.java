@@ -0,0 +1,92 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file of fixed width rows, memory mapped.  Every HSSS row format starts with seq_id (2 bytes) and location (4
+ * bytes), and the rows are sorted by them, so rows can be found by binary search.
+ *
+ * A single mapping is limited to 2 GB, so a bigger file is mapped in segments, each holding whole rows.
+ *
+ * @author steve
+ */
+final class MappedRowFile {
+
+  private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+  private final File file;
+  private final int rowSize;
+  private final long rowCount;
+  private final int rowsPerSegment;
+  private final ByteBuffer[] segments;
+
+  /**
+   * @param start the offset of the first row, after any header
+   */
+  MappedRowFile(File file, long start, int rowSize) throws IOException {
+    this.file = file;
+    this.rowSize = rowSize;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size() - start;
+      if (size < 0 || size % rowSize != 0)
+        throw new IOException("File '" + file + "' is corrupt:  it is not a whole number of " + rowSize + " byte rows");
+      rowCount = size / rowSize;
+      rowsPerSegment = (int) (MAX_SEGMENT_BYTES / rowSize);
+      segments = new ByteBuffer[(int) ((rowCount + rowsPerSegment - 1) / rowsPerSegment)];
+      for (int i = 0; i < segments.length; i++) {
+        long firstRow = (long) i * rowsPerSegment;
+        long rows = Math.min(rowsPerSegment, rowCount - firstRow);
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + firstRow * rowSize, rows * rowSize)
+            .order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  long getRowCount() {
+    return rowCount;
+  }
+
+  // the segment holding a row
+  ByteBuffer segment(long row) {
+    return segments[(int) (row / rowsPerSegment)];
+  }
+
+  // the offset of a row in its segment
+  int offset(long row) {
+    return (int) (row % rowsPerSegment) * rowSize;
+  }
+
+  short getSeq(long row) {
+    return segment(row).getShort(offset(row));
+  }
+
+  int getLocation(long row) {
+    return segment(row).getInt(offset(row) + 2);
+  }
+
+  /**
+   * @return the first row at or after (seq, location), or the row count if there is none
+   */
+  long findRow(short seq, int location) {
+    long low = 0;
+    long high = rowCount;
+    while (low < high) {
+      long middle = (low + high) >>> 1;
+      short middleSeq = getSeq(middle);
+      if (middleSeq < seq || (middleSeq == seq && getLocation(middle) < location))
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+}
@@ -0,0 +1,97 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a merged strain stream saved to a file (eg a merged stream cache file), memory mapped.  Rows are those of a
+ * version 1 strain file plus a strain_id (2 bytes).  A row with allele 0 and product -1 stands for several unknowns:
+ * its strain_id column holds their count.  See HsssDocumentation.txt.
+ *
+ * A cursor, like StrainFileReader.
+ *
+ * @author steve
+ */
+public class MergedStreamReader {
+
+  public static final int ROW_SIZE = 10;
+
+  private final MappedRowFile rows;
+  private long row = -1;
+  private short seq;
+  private int location;
+  private byte allele;
+  private byte product;
+  private short strain;
+
+  public MergedStreamReader(File file) throws IOException {
+    rows = new MappedRowFile(file, 0, ROW_SIZE);
+  }
+
+  public File getFile() {
+    return rows.getFile();
+  }
+
+  public long getRowCount() {
+    return rows.getRowCount();
+  }
+
+  /**
+   * Move to the next row.
+   *
+   * @return false at the end of the file
+   */
+  public boolean next() {
+    if (row + 1 >= rows.getRowCount()) {
+      row = rows.getRowCount();
+      return false;
+    }
+    row++;
+    ByteBuffer segment = rows.segment(row);
+    int offset = rows.offset(row);
+    seq = segment.getShort(offset);
+    location = segment.getInt(offset + 2);
+    allele = segment.get(offset + 6);
+    product = segment.get(offset + 7);
+    strain = segment.getShort(offset + 8);
+    return true;
+  }
+
+  /**
+   * Move to just before the first row at or after (seq, location).
+   */
+  public void seek(short seq, int location) {
+    row = rows.findRow(seq, location) - 1;
+  }
+
+  public short getSeq() {
+    return seq;
+  }
+
+  public int getLocation() {
+    return location;
+  }
+
+  public byte getAllele() {
+    return allele;
+  }
+
+  public byte getProduct() {
+    return product;
+  }
+
+  /**
+   * @return the strain id, or, if isUnknownCount(), the number of unknowns the row stands for
+   */
+  public short getStrain() {
+    return strain;
+  }
+
+  /**
+   * @return true if the row stands for several unknowns, counted by getStrain()
+   */
+  public boolean isUnknownCount() {
+    return allele == 0 && product == -1;
+  }
+}
@@ -0,0 +1,24 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes a merged strain stream to a file.  Rows must be written in order of seq_id and location.
+ *
+ * @author steve
+ */
+public class MergedStreamWriter extends RowWriter {
+
+  public MergedStreamWriter(File file) throws IOException {
+    super(file);
+  }
+
+  /**
+   * @param strain the strain id, or, for a row of allele 0 and product -1, a count of unknowns
+   */
+  public void write(short seq, int location, byte allele, byte product, short strain) throws IOException {
+    checkOrder(seq, location);
+    getBuffer(MergedStreamReader.ROW_SIZE).putShort(seq).putInt(location).put(allele).put(product).putShort(strain);
+  }
+}
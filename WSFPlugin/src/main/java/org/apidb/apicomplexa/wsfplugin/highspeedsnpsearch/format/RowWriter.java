@@ -0,0 +1,73 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes little endian rows to a file, through a buffer, and checks that they are sorted by seq_id and location, as
+ * every HSSS format requires.
+ *
+ * @author steve
+ */
+abstract class RowWriter implements AutoCloseable {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  protected final File file;
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private short lastSeq = Short.MIN_VALUE;
+  private int lastLocation = Integer.MIN_VALUE;
+
+  protected RowWriter(File file) throws IOException {
+    this.file = file;
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the row is before the last one written
+   */
+  protected void checkOrder(short seq, int location) {
+    if (seq < lastSeq || (seq == lastSeq && location < lastLocation))
+      throw new IllegalArgumentException("Can't write '" + file + "':  rows are not sorted by location (seq " + seq +
+          " location " + location + " follows seq " + lastSeq + " location " + lastLocation + ")");
+    lastSeq = seq;
+    lastLocation = location;
+  }
+
+  // the buffer, with room for this many bytes
+  protected ByteBuffer getBuffer(int bytes) throws IOException {
+    if (buffer.remaining() < bytes)
+      flush();
+    return buffer;
+  }
+
+  protected void write(byte[] bytes, int length) throws IOException {
+    flush();
+    ByteBuffer data = ByteBuffer.wrap(bytes, 0, length);
+    while (data.hasRemaining())
+      channel.write(data);
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    }
+    finally {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the readers' sequential scan throughput and seek rate on real files.
+ *
+ * Each file is scanned a few times to warm up (and to get it into the page cache), then timed over several scans,
+ * reporting the best.  Then it times seeks to locations picked at random from the file's own rows.  A checksum of
+ * the values read is printed, so that the reads can't be optimized away.
+ *
+ * @author steve
+ */
+public class ScanBenchmarkCli {
+
+  private static final int WARMUP_SCANS = 3;
+  private static final int TIMED_SCANS = 5;
+  private static final int SEEKS = 100000;
+
+  // the readers, as one cursor
+  private interface Cursor {
+    boolean next() throws IOException;
+    void seek(short seq, int location) throws IOException;
+    short getSeq();
+    int getLocation();
+    long getChecksum();  // of the other values in the row
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2 || !List.of("strain", "merged", "consensus").contains(args[0])) {
+      System.err.println("USAGE: fgpJava " + ScanBenchmarkCli.class.getName() +
+          " strain|merged|consensus <file> [<file>...]" + "\n\n" +
+          "Times sequential scans of each file, and seeks in it, with the memory mapped readers.  strain reads" +
+          "\nstrain files of either version, and referenceGenome.dat.");
+      System.exit(1);
+    }
+    for (int i = 1; i < args.length; i++)
+      benchmark(args[0], new File(args[i]));
+  }
+
+  private static void benchmark(String format, File file) throws IOException {
+    long bytes = file.length();
+    Cursor cursor = open(format, file);
+
+    long rows = 0;
+    long checksum = 0;
+    for (int i = 0; i < WARMUP_SCANS; i++) {
+      cursor.seek(Short.MIN_VALUE, Integer.MIN_VALUE);
+      rows = 0;
+      while (cursor.next()) {
+        checksum += cursor.getSeq() + cursor.getLocation() + cursor.getChecksum();
+        rows++;
+      }
+    }
+    long bestNanos = Long.MAX_VALUE;
+    for (int i = 0; i < TIMED_SCANS; i++) {
+      long start = System.nanoTime();
+      cursor.seek(Short.MIN_VALUE, Integer.MIN_VALUE);
+      while (cursor.next())
+        checksum += cursor.getSeq() + cursor.getLocation() + cursor.getChecksum();
+      bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+    }
+    double seconds = bestNanos / 1e9;
+    System.out.println(file + ":  " + rows + " rows, " + format(bytes / 1e6) + " MB.  Scan:  " +
+        format(seconds * 1000) + " ms, " + format(rows / seconds / 1e6) + " M rows/s, " +
+        format(bytes / seconds / 1e6) + " MB/s");
+
+    if (rows == 0)
+      return;
+    // seek to rows picked at random
+    List<long[]> targets = new ArrayList<>();
+    Random random = new Random(1);
+    double keep = Math.min(1, 10000.0 / rows);
+    cursor.seek(Short.MIN_VALUE, Integer.MIN_VALUE);
+    while (cursor.next())
+      if (random.nextDouble() < keep)
+        targets.add(new long[] { cursor.getSeq(), cursor.getLocation() });
+    long start = System.nanoTime();
+    for (int i = 0; i < SEEKS; i++) {
+      long[] target = targets.get(random.nextInt(targets.size()));
+      cursor.seek((short) target[0], (int) target[1]);
+      if (cursor.next())
+        checksum += cursor.getChecksum();
+    }
+    seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println("  Seeks:  " + format(SEEKS / seconds / 1000) + " K seeks/s (checksum " + checksum + ")");
+  }
+
+  private static Cursor open(String format, File file) throws IOException {
+    switch (format) {
+      case "strain":
+        StrainFileReader strains = StrainFileReader.open(file);
+        return new Cursor() {
+          public boolean next() throws IOException { return strains.next(); }
+          public void seek(short seq, int location) throws IOException { strains.seek(seq, location); }
+          public short getSeq() { return strains.getSeq(); }
+          public int getLocation() { return strains.getLocation(); }
+          public long getChecksum() { return strains.getAllele() + strains.getProduct(); }
+        };
+      case "merged":
+        MergedStreamReader merged = new MergedStreamReader(file);
+        return new Cursor() {
+          public boolean next() { return merged.next(); }
+          public void seek(short seq, int location) { merged.seek(seq, location); }
+          public short getSeq() { return merged.getSeq(); }
+          public int getLocation() { return merged.getLocation(); }
+          public long getChecksum() { return merged.getAllele() + merged.getProduct() + merged.getStrain(); }
+        };
+      default:
+        ConsensusReader consensus = new ConsensusReader(file);
+        return new Cursor() {
+          public boolean next() { return consensus.next(); }
+          public void seek(short seq, int location) { consensus.seek(seq, location); }
+          public short getSeq() { return consensus.getSeq(); }
+          public int getLocation() { return consensus.getLocation(); }
+          public long getChecksum() {
+            return consensus.getMajorAllele() + consensus.getMinorAllele() + consensus.getMajorAllelePerTenThousand();
+          }
+        };
+    }
+  }
+
+  private static String format(double value) {
+    return String.format("%.2f", value);
+  }
+}
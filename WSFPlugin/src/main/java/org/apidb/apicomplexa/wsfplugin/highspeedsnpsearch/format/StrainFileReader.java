@@ -0,0 +1,337 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a strain file, of either version, memory mapped.  The reference genome file (referenceGenome.dat) is a
+ * version 1 strain file.  See HsssDocumentation.txt, and hsssStrainFile.h for the reader the C tools use.
+ *
+ * A cursor:  next() moves to the next row, whose values the getters return.  seek() moves to just before the first
+ * row at or after a (seq_id, location), so that next() reads it.  For version 1 files that is a binary search of the
+ * rows.  For version 2 files it is a binary search of the block headers, which are read when the file is opened, and
+ * then a scan of one block.
+ *
+ * Corrupt files throw IOException, as the C tools exit with an error.  So do version 3 files, which hold read
+ * frequencies and are only read by the C tools (see hsssStrainFile.h).
+ *
+ * @author steve
+ */
+public abstract class StrainFileReader {
+
+  public static final int ROW_SIZE = 8;
+
+  static final byte[] V2_MAGIC = { 0, (byte) 0x80, 'H', '2' };
+  static final int V2_HEADER_SIZE = 20;
+
+  // the packed byte of a version 2 row:  allele in the low 3 bits, product code in the high 5
+  static final int PACKED_ALLELE_ESCAPE = 7;    // allele and product follow as literal bytes
+  static final int PACKED_PRODUCT_STOP = 27;    // '*'
+  static final int PACKED_PRODUCT_ESCAPE = 31;  // product follows as a literal byte
+
+  protected final File file;
+  protected short seq;
+  protected int location;
+  protected byte allele;
+  protected byte product;
+
+  /**
+   * Open a strain file, of either version.
+   */
+  public static StrainFileReader open(File file) throws IOException {
+    return isVersion2(file) ? new Version2(file) : new Version1(file);
+  }
+
+  private static boolean isVersion2(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(V2_MAGIC.length);
+      while (magic.hasRemaining() && channel.read(magic) > 0);
+      if (magic.hasRemaining())
+        return false;
+      byte[] bytes = magic.array();
+      if (bytes[0] != V2_MAGIC[0] || bytes[1] != V2_MAGIC[1] || bytes[2] != V2_MAGIC[2])
+        return false;
+      // version 3 files, which hold read frequencies, have the same magic but for the version
+      if (bytes[3] != V2_MAGIC[3])
+        throw new IOException("Strain file " + file + " is version " + (char) bytes[3] + ", which can't be read here");
+      return true;
+    }
+  }
+
+  protected StrainFileReader(File file) {
+    this.file = file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return 1 or 2
+   */
+  public abstract int getVersion();
+
+  /**
+   * Move to the next row.
+   *
+   * @return false at the end of the file
+   */
+  public abstract boolean next() throws IOException;
+
+  /**
+   * Move to just before the first row at or after (seq, location).
+   */
+  public abstract void seek(short seq, int location) throws IOException;
+
+  public short getSeq() {
+    return seq;
+  }
+
+  public int getLocation() {
+    return location;
+  }
+
+  /**
+   * @return 0 (unknown) or 1-4 (A, C, G, T)
+   */
+  public byte getAllele() {
+    return allele;
+  }
+
+  /**
+   * @return the amino acid (an ASCII letter, or '*' for a stop codon), or 0 if non-coding
+   */
+  public byte getProduct() {
+    return product;
+  }
+
+  protected IOException corrupt(String problem) {
+    return new IOException("Strain file '" + file + "' is corrupt:  " + problem);
+  }
+
+  private static final class Version1 extends StrainFileReader {
+
+    private final MappedRowFile rows;
+    private long row = -1;
+
+    Version1(File file) throws IOException {
+      super(file);
+      rows = new MappedRowFile(file, 0, ROW_SIZE);
+    }
+
+    @Override
+    public int getVersion() {
+      return 1;
+    }
+
+    @Override
+    public boolean next() {
+      if (row + 1 >= rows.getRowCount()) {
+        row = rows.getRowCount();
+        return false;
+      }
+      row++;
+      ByteBuffer segment = rows.segment(row);
+      int offset = rows.offset(row);
+      seq = segment.getShort(offset);
+      location = segment.getInt(offset + 2);
+      allele = segment.get(offset + 6);
+      product = segment.get(offset + 7);
+      return true;
+    }
+
+    @Override
+    public void seek(short seq, int location) {
+      row = rows.findRow(seq, location) - 1;
+    }
+  }
+
+  private static final class Version2 extends StrainFileReader {
+
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+    // the block headers
+    private final short[] blockSeqs;
+    private final int[] blockRows;
+    private final int[] blockFirstLocations;
+    private final int[] blockLastLocations;
+    private final int[] blockSizes;
+    // where each block's payload is:  a segment of the file, and an offset in it
+    private final int[] blockSegments;
+    private final int[] blockOffsets;
+    private final ByteBuffer[] segments;
+
+    private int block = -1;
+    private ByteBuffer payload;
+    private int position;
+    private int payloadEnd;
+    private int rowsLeft = 0;
+    private boolean pending = false;  // seek() has read the row that next() should return
+
+    Version2(File file) throws IOException {
+      super(file);
+      List<long[]> headers = new ArrayList<>();
+      List<ByteBuffer> segmentList = new ArrayList<>();
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(V2_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = V2_MAGIC.length;
+        long segmentStart = offset;
+        while (offset < size) {
+          header.clear();
+          while (header.hasRemaining() && channel.read(header, offset + header.position()) > 0);
+          if (header.hasRemaining())
+            throw corrupt("partial block header");
+          int rows = header.getInt(4);
+          int payloadSize = header.getInt(16);
+          if (rows <= 0 || payloadSize < rows * 2L || payloadSize > rows * 8L)
+            throw corrupt("bad block header");
+          long payloadStart = offset + V2_HEADER_SIZE;
+          if (payloadStart + payloadSize > size)
+            throw corrupt("partial block");
+
+          // map the file in segments of whole blocks
+          if (payloadStart + payloadSize - segmentStart > MAX_SEGMENT_BYTES) {
+            segmentList.add(map(channel, segmentStart, offset));
+            segmentStart = offset;
+          }
+          headers.add(new long[] { header.getShort(0), rows, header.getInt(8), header.getInt(12), payloadSize,
+              segmentList.size(), payloadStart - segmentStart });
+          offset = payloadStart + payloadSize;
+        }
+        if (offset > segmentStart)
+          segmentList.add(map(channel, segmentStart, offset));
+      }
+
+      int count = headers.size();
+      blockSeqs = new short[count];
+      blockRows = new int[count];
+      blockFirstLocations = new int[count];
+      blockLastLocations = new int[count];
+      blockSizes = new int[count];
+      blockSegments = new int[count];
+      blockOffsets = new int[count];
+      for (int i = 0; i < count; i++) {
+        long[] header = headers.get(i);
+        blockSeqs[i] = (short) header[0];
+        blockRows[i] = (int) header[1];
+        blockFirstLocations[i] = (int) header[2];
+        blockLastLocations[i] = (int) header[3];
+        blockSizes[i] = (int) header[4];
+        blockSegments[i] = (int) header[5];
+        blockOffsets[i] = (int) header[6];
+      }
+      segments = segmentList.toArray(new ByteBuffer[0]);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long end) throws IOException {
+      return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    @Override
+    public int getVersion() {
+      return 2;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (pending) {
+        pending = false;
+        return true;
+      }
+      if (rowsLeft == 0) {
+        if (block + 1 >= blockSeqs.length) {
+          block = blockSeqs.length;
+          return false;
+        }
+        startBlock(block + 1);
+      }
+      readRow();
+      return true;
+    }
+
+    @Override
+    public void seek(short seq, int location) throws IOException {
+      // the first block that ends at or after (seq, location)
+      int low = 0;
+      int high = blockSeqs.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (blockSeqs[middle] < seq || (blockSeqs[middle] == seq && blockLastLocations[middle] < location))
+          low = middle + 1;
+        else
+          high = middle;
+      }
+      pending = false;
+      rowsLeft = 0;
+      block = low - 1;
+      if (low == blockSeqs.length)
+        return;
+
+      startBlock(low);
+      do {
+        readRow();
+      } while (this.seq == seq && this.location < location);
+      pending = true;
+    }
+
+    private void startBlock(int next) {
+      block = next;
+      payload = segments[blockSegments[block]];
+      position = blockOffsets[block];
+      payloadEnd = position + blockSizes[block];
+      rowsLeft = blockRows[block];
+      seq = blockSeqs[block];
+      location = blockFirstLocations[block];
+    }
+
+    private void readRow() throws IOException {
+      // location delta, as a little endian base 128 varint
+      int delta = 0;
+      int shift = 0;
+      int b;
+      do {
+        if (position == payloadEnd || shift > 28)
+          throw corrupt("bad location");
+        b = payload.get(position++) & 0xff;
+        delta |= (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      location += delta;
+
+      if (position == payloadEnd)
+        throw corrupt("partial row");
+      int packed = payload.get(position++) & 0xff;
+      int a = packed & 7;
+      int p = packed >> 3;
+      if (a == PACKED_ALLELE_ESCAPE) {
+        if (position + 2 > payloadEnd)
+          throw corrupt("partial row");
+        allele = payload.get(position++);
+        product = payload.get(position++);
+      }
+      else {
+        allele = (byte) a;
+        if (p == 0)
+          product = 0;
+        else if (p <= 26)
+          product = (byte) ('A' + p - 1);
+        else if (p == PACKED_PRODUCT_STOP)
+          product = '*';
+        else {
+          if (position == payloadEnd)
+            throw corrupt("partial row");
+          product = payload.get(position++);
+        }
+      }
+      if (--rowsLeft == 0 && position != payloadEnd)
+        throw corrupt("block has extra bytes");
+    }
+  }
+}
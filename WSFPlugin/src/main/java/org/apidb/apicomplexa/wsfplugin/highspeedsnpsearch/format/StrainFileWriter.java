@@ -0,0 +1,124 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format.StrainFileReader.PACKED_ALLELE_ESCAPE;
+import static org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format.StrainFileReader.PACKED_PRODUCT_ESCAPE;
+import static org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format.StrainFileReader.PACKED_PRODUCT_STOP;
+import static org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format.StrainFileReader.ROW_SIZE;
+import static org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format.StrainFileReader.V2_HEADER_SIZE;
+import static org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format.StrainFileReader.V2_MAGIC;
+
+/**
+ * Writes a strain file, of either version.  Writes the same bytes as hsssConvertStrainFile, for the same rows and
+ * block size.  Rows must be written in order of seq_id and location.
+ *
+ * @author steve
+ */
+public class StrainFileWriter extends RowWriter {
+
+  public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+  private final int blockRows;  // 0 for version 1
+
+  // version 2:  the block being written
+  private final byte[] payload;
+  private int payloadSize = 0;
+  private int rowCount = 0;
+  private short blockSeq;
+  private int firstLocation;
+  private int lastLocation;
+
+  /**
+   * @param version 1 or 2
+   */
+  public StrainFileWriter(File file, int version) throws IOException {
+    this(file, version, DEFAULT_BLOCK_ROWS);
+  }
+
+  /**
+   * @param version 1 or 2
+   * @param blockRows the most rows in a version 2 block
+   */
+  public StrainFileWriter(File file, int version, int blockRows) throws IOException {
+    super(file);
+    if (version != 1 && version != 2)
+      throw new IllegalArgumentException("Unknown strain file version " + version);
+    if (version == 2 && blockRows <= 0)
+      throw new IllegalArgumentException("Block rows must be positive: " + blockRows);
+    this.blockRows = version == 2 ? blockRows : 0;
+    payload = new byte[this.blockRows * ROW_SIZE];
+    if (version == 2)
+      getBuffer(V2_MAGIC.length).put(V2_MAGIC);
+  }
+
+  public void write(short seq, int location, byte allele, byte product) throws IOException {
+    checkOrder(seq, location);
+    if (blockRows == 0) {
+      getBuffer(ROW_SIZE).putShort(seq).putInt(location).put(allele).put(product);
+      return;
+    }
+
+    if (rowCount > 0 && (seq != blockSeq || rowCount == blockRows))
+      flushBlock();
+    if (rowCount == 0) {
+      blockSeq = seq;
+      firstLocation = location;
+      lastLocation = location;
+    }
+
+    int delta = location - lastLocation;
+    while ((delta & ~0x7f) != 0) {
+      payload[payloadSize++] = (byte) ((delta & 0x7f) | 0x80);
+      delta >>>= 7;
+    }
+    payload[payloadSize++] = (byte) delta;
+
+    int p = -1;
+    if (product == 0)
+      p = 0;
+    else if (product >= 'A' && product <= 'Z')
+      p = product - 'A' + 1;
+    else if (product == '*')
+      p = PACKED_PRODUCT_STOP;
+    if (allele < 0 || allele >= PACKED_ALLELE_ESCAPE) {
+      payload[payloadSize++] = PACKED_ALLELE_ESCAPE;
+      payload[payloadSize++] = allele;
+      payload[payloadSize++] = product;
+    }
+    else if (p < 0) {
+      payload[payloadSize++] = (byte) (allele | (PACKED_PRODUCT_ESCAPE << 3));
+      payload[payloadSize++] = product;
+    }
+    else {
+      payload[payloadSize++] = (byte) (allele | (p << 3));
+    }
+
+    lastLocation = location;
+    rowCount++;
+  }
+
+  private void flushBlock() throws IOException {
+    if (rowCount == 0)
+      return;
+    ByteBuffer header = getBuffer(V2_HEADER_SIZE);
+    header.putShort(blockSeq).putShort((short) 0).putInt(rowCount).putInt(firstLocation).putInt(lastLocation)
+        .putInt(payloadSize);
+    write(payload, payloadSize);
+    rowCount = 0;
+    payloadSize = 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (blockRows > 0)
+        flushBlock();
+    }
+    finally {
+      super.close();
+    }
+  }
+}
@@ -1,22 +1,26 @@
 package org.apidb.apicomplexa.wsfplugin.spanlogic;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
-import org.gusdb.fgputil.db.SqlUtils;
-import org.gusdb.fgputil.db.platform.DBPlatform;
+import org.apidb.apicomplexa.wsfplugin.spanlogic.SpanSweepJoin.MatchHandler;
 import org.gusdb.fgputil.runtime.InstanceManager;
 import org.gusdb.fgputil.validation.ValidationLevel;
 import org.gusdb.oauth2.client.ValidatedToken;
@@ -39,20 +43,35 @@ import org.gusdb.wsf.plugin.PluginUserException;
 
 Approach: there are two input answervalues. One is considered the "output" and the other the "reference."
 The output av is the one whose records we output --those that match the spans of the reference.
-For both avs, we make a temp table that has columns for the genomic locations.  We then join the tables,
+For both avs, we make a subquery that has columns for the genomic locations.  We then join the subqueries,
 using the user's choice of operation, to produce a set of match rows. These are sorted by the output source_id.
 
-To produce output, we scan the joined result, and accumulate into Feature datastructure all the matches belonging
-to each output record. We print that record when the cursor moves to the next record.
+The subqueries are in the WITH clause of the join, so no tables are created or dropped (they used to be temp tables,
+made with CREATE TABLE AS, which cost DDL and redo on every request, and leaked if the request failed).  Large avs are
+materialized, once, into the session's temp space; small ones are inlined, so the optimizer can merge them into the join.
 
-There are a few hacks to accomodate alt splice.  We force the temp tables to have a gene_source_id, regardless of
+To produce output, we scan the joined result, and accumulate into Feature datastructure the matches belonging
+to each output record:  their count, and as many of their regions, formatted, as fill the matched regions column, so a
+record's memory doesn't grow with its matches.  We print that record when the cursor moves to the next record, and
+reuse its Feature, and buffer, for the next.
+
+There are a few hacks to accomodate alt splice.  We force the subqueries to have a gene_source_id, regardless of
 record type.  For transcript records, this value is correctly set.   For all others, it is set to "dontcare".  Also, the
-temp table for transcripts is expanded to include all transcripts of the genes found.  Each has an identical span
+subquery for transcripts is expanded to include all transcripts of the genes found.  Each has an identical span
 location, that of the gene.
 
 If the reference av is transcripts, then we only accumulate one match per gene, and print the gene_source_id as the match's ID,
 rather than the usual source_id.
 
+With span_engine=sweep, no tables are made.  Both avs' locations are read with plain queries, sorted by sequence and begin,
+and joined in memory by a SpanSweepJoin.  The matches are accumulated into Features by output record, and printed in the
+order of the output ids, as from the joined result.
+
+With span_engine=index, only the avs' ids are read.  Their locations are in resident SpanIntervalIndexes, one per
+project and feature type, loaded on first use and kept until the build changes, and they are joined by a SpanIndexJoin.
+Each sequence is joined as a task of the common fork-join pool, into Features of its own, and the tasks' Features are
+merged in order of sequence, so the matches of a record are in the same order as from a serial join.
+
  */
 public class SpanCompositionPlugin extends AbstractPlugin {
 
@@ -60,23 +79,34 @@ public class SpanCompositionPlugin extends AbstractPlugin {
 
   protected static class Feature {
 
-    private static NumberFormat format = NumberFormat.getIntegerInstance();
+    // the size of the matched regions column
+    private static final int MAX_MATCHED_LENGTH = 4000;
+
+    // the tasks of the index engine format regions in parallel
+    private static final ThreadLocal<NumberFormat> format = ThreadLocal.withInitial(NumberFormat::getIntegerInstance);
 
     public String sourceId;
     public String geneSourceId;  // for transcript subclass.  ok, a hack, but so what
     public String projectId;
+    public String sequenceSourceId;
     public int begin;
     public int end;
     public int weight;
     public boolean reversed;
-    public List<Feature> matched = new ArrayList<Feature>();
+    public int matchedCount;
+    // the matched regions, formatted, until they fill the column, and one more, so they are truncated as the whole
+    // would be.  the first isn't counted toward the column, so addMatches can drop it
+    private StringBuilder matchedRegions;
+    private int firstMatchedLength;
+    private String firstMatchedGene;
+    private String prevMatchedGene;
 
     public String getBegin() {
-      return format.format(begin);
+      return format.get().format(begin);
     }
 
     public String getEnd() {
-      return format.format(end);
+      return format.get().format(end);
     }
 
     public String getReversed() {
@@ -95,12 +125,174 @@ public class SpanCompositionPlugin extends AbstractPlugin {
       return buffer.toString();
     }
 
+    /**
+     * add a reference that matches this feature.  if refs are genes, only add one match per gene.  (non-gene refs
+     * have dontcare as gene_source_id)
+     */
+    public void addMatch(Feature reference) {
+      if (prevMatchedGene == null || reference.geneSourceId.equals("dontcare") ||
+          !reference.geneSourceId.equals(prevMatchedGene)) {
+        if (matchedRegions == null)
+          matchedRegions = new StringBuilder();
+        if (matchedCount == 0) {
+          firstMatchedGene = reference.geneSourceId;
+          reference.appendMatchedRegion(matchedRegions);
+          firstMatchedLength = matchedRegions.length();
+        }
+        else if (matchedRegions.length() - firstMatchedLength <= MAX_MATCHED_LENGTH) {
+          matchedRegions.append("; ");
+          reference.appendMatchedRegion(matchedRegions);
+        }
+        matchedCount++;
+      }
+      prevMatchedGene = reference.geneSourceId;
+    }
+
+    /**
+     * add the matches of the same record, found on a later sequence, as if they had been added one by one
+     */
+    public void addMatches(Feature feature) {
+      if (feature.matchedCount == 0)
+        return;
+      if (matchedCount == 0) {
+        matchedCount = feature.matchedCount;
+        matchedRegions = feature.matchedRegions;
+        firstMatchedLength = feature.firstMatchedLength;
+        firstMatchedGene = feature.firstMatchedGene;
+        prevMatchedGene = feature.prevMatchedGene;
+        return;
+      }
+
+      // the later first match is dropped if it's the same gene as the last one here
+      boolean dropFirst = !feature.firstMatchedGene.equals("dontcare") &&
+          feature.firstMatchedGene.equals(prevMatchedGene);
+      matchedCount += dropFirst ? feature.matchedCount - 1 : feature.matchedCount;
+      int start = dropFirst ? feature.firstMatchedLength + 2 : 0;
+      if (start < feature.matchedRegions.length() &&
+          matchedRegions.length() - firstMatchedLength <= MAX_MATCHED_LENGTH)
+        matchedRegions.append("; ").append(feature.matchedRegions, start, feature.matchedRegions.length());
+      prevMatchedGene = feature.prevMatchedGene;
+    }
+
+    /**
+     * @return the matched regions, truncated to the size of the column
+     */
+    public String getMatchedRegions() {
+      if (matchedRegions == null)
+        return "";
+      if (matchedRegions.length() > MAX_MATCHED_LENGTH)
+        return matchedRegions.substring(0, MAX_MATCHED_LENGTH - 3) + "...";
+      return matchedRegions.toString();
+    }
+
+    /**
+     * forget the matches, to reuse this feature, and its buffer, for another record
+     */
+    public void clearMatches() {
+      matchedCount = 0;
+      if (matchedRegions != null)
+        matchedRegions.setLength(0);
+      firstMatchedLength = 0;
+      firstMatchedGene = null;
+      prevMatchedGene = null;
+    }
+
+    private void appendMatchedRegion(StringBuilder buffer) {
+      buffer.append(geneSourceId.equals("dontcare") ? sourceId : geneSourceId);
+      buffer.append(": ").append(getBegin()).append(" - ").append(getEnd());
+      buffer.append(" (").append(getReversed()).append(")");
+    }
+
   }
 
   private static class Flag {
     private boolean hasSnp = false;
   }
 
+  /**
+   * The user's choice of the begin & end of the derived region of a feature
+   */
+  private static class Region implements SpanIndexJoin.Locator {
+    private String begin;
+    private String end;
+    private int beginOff; // negative if upstream
+    private int endOff;
+
+    /**
+     * get the sql of the begin & end.  The offsets are bind variables, bound to getBinds().
+     */
+    private String[] getSql() {
+      String table = "fl.";
+
+      // depending on whether the feature is on forward or reversed strand,
+      // and user's choice of begin and end, we get the proper begin of the
+      // region.
+      StringBuilder sql = new StringBuilder("(CASE ");
+      sql.append(" WHEN NVL(" + table + "is_reversed, 0) = 0 THEN (");
+      sql.append(begin.equals(PARAM_VALUE_START) ? "start_min" : "end_max");
+      sql.append(" + 1*(?)) ");
+      sql.append(" WHEN NVL(" + table + "is_reversed, 0) = 1 THEN (");
+      sql.append(end.equals(PARAM_VALUE_START) ? "end_max" : "start_min");
+      sql.append(" - 1*(?)) ");
+      sql.append("END)");
+      String start = sql.toString();
+
+      // we get the proper end of the region.
+      sql = new StringBuilder("(CASE ");
+      sql.append(" WHEN NVL(" + table + "is_reversed, 0) = 0 THEN (");
+      sql.append(end.equals(PARAM_VALUE_START) ? "start_min" : "end_max");
+      sql.append(" + 1*(?)) ");
+      sql.append(" WHEN NVL(" + table + "is_reversed, 0) = 1 THEN (");
+      sql.append(begin.equals(PARAM_VALUE_START) ? "end_max" : "start_min");
+      sql.append(" - 1*(?)) ");
+      sql.append("END)");
+      String stop = sql.toString();
+
+      return new String[] { start, stop };
+    }
+
+    /**
+     * @return the values of the bind variables of getSql(), begin then end
+     */
+    private int[] getBinds() {
+      return new int[] { beginOff, endOff, endOff, beginOff };
+    }
+
+    /**
+     * set the begin & end of a feature from its location, as getSql() does
+     */
+    @Override
+    public void locate(Feature feature, int startMin, int endMax, boolean isReversed) {
+      long regionBegin, regionEnd;
+      if (!isReversed) {
+        regionBegin = (long) (begin.equals(PARAM_VALUE_START) ? startMin : endMax) + beginOff;
+        regionEnd = (long) (end.equals(PARAM_VALUE_START) ? startMin : endMax) + endOff;
+      }
+      else {
+        regionBegin = (long) (end.equals(PARAM_VALUE_START) ? endMax : startMin) - endOff;
+        regionEnd = (long) (begin.equals(PARAM_VALUE_START) ? endMax : startMin) - beginOff;
+      }
+      feature.begin = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, regionBegin));
+      feature.end = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, regionEnd));
+      feature.reversed = isReversed;
+    }
+
+    @Override
+    public int getMaxOffset() {
+      return (int) Math.min(Integer.MAX_VALUE, Math.max(Math.abs((long) beginOff), Math.abs((long) endOff)));
+    }
+  }
+
+  /**
+   * One of the two input avs:  the sql of its ids, and where to find their locations
+   */
+  private static class Operand {
+    private String recordClass;
+    private String cacheSql;
+    private String locTable;
+    private AnswerValue answerValue;
+  }
+
   public static final String COLUMN_SOURCE_ID = "source_id";
   public static final String COLUMN_PROJECT_ID = "project_id";
   public static final String COLUMN_WDK_WEIGHT = "wdk_weight";
@@ -119,6 +311,7 @@ public class SpanCompositionPlugin extends AbstractPlugin {
   public static final String PARAM_END_PREFIX = "span_end_";
   public static final String PARAM_END_DIRECTION_PREFIX = "span_end_direction_";
   public static final String PARAM_END_OFFSET_PREFIX = "span_end_offset_";
+  public static final String PARAM_ENGINE = "span_engine";
 
   // values for span_operation
   public static final String PARAM_VALUE_OVERLAP = "overlap";
@@ -142,9 +335,19 @@ public class SpanCompositionPlugin extends AbstractPlugin {
   public static final String PARAM_VALUE_SAME_STRAND = "same_strand";
   public static final String PARAM_VALUE_OPPOSITE_STRANDS = "opposite_strands";
 
-  private static final String TEMP_TABLE_PREFIX = "spanlogic";
+  // values for span_engine
+  public static final String PARAM_VALUE_ENGINE_SQL = "sql";
+  public static final String PARAM_VALUE_ENGINE_SWEEP = "sweep";
+  public static final String PARAM_VALUE_ENGINE_INDEX = "index";
 
-  private final Random random = new Random();
+  // avs with more records than this are materialized in the WITH clause of the span sql
+  private static final int MATERIALIZE_MIN_SIZE = 1000;
+
+  // rows fetched per round trip by the sweep engine
+  private static final int SWEEP_FETCH_SIZE = 1000;
+
+  // rows fetched per round trip loading a SpanIntervalIndex
+  private static final int INDEX_FETCH_SIZE = 10000;
 
   @Override
   public String[] getColumns(PluginRequest request) {
@@ -167,6 +370,8 @@ public class SpanCompositionPlugin extends AbstractPlugin {
         PARAM_VALUE_SAME_STRAND, PARAM_VALUE_OPPOSITE_STRANDS));
     Set<String> anchors = new HashSet<String>(Arrays.asList(PARAM_VALUE_START, PARAM_VALUE_STOP));
     Set<String> directions = new HashSet<String>(Arrays.asList(PARAM_VALUE_DOWNSTREAM, PARAM_VALUE_UPSTREAM));
+    Set<String> engines = new HashSet<String>(Arrays.asList(PARAM_VALUE_ENGINE_SQL, PARAM_VALUE_ENGINE_SWEEP,
+        PARAM_VALUE_ENGINE_INDEX));
 
     // validate operator
     if (params.containsKey(PARAM_OPERATION)) {
@@ -189,6 +394,13 @@ public class SpanCompositionPlugin extends AbstractPlugin {
         throw new PluginUserException("Invalid " + PARAM_STRAND + ": " + strand);
     }
 
+    // validate engine
+    if (params.containsKey(PARAM_ENGINE)) {
+      String engine = params.get(PARAM_ENGINE);
+      if (!engines.contains(engine))
+        throw new PluginUserException("Invalid " + PARAM_ENGINE + ": " + engine);
+    }
+
     // validate begin a
     validateAnchorParams(params, anchors, PARAM_BEGIN_PREFIX + "a");
     validateDirectionParams(params, directions, PARAM_BEGIN_DIRECTION_PREFIX + "a");
@@ -253,11 +465,14 @@ public class SpanCompositionPlugin extends AbstractPlugin {
     if (strand == null)
       strand = PARAM_VALUE_BOTH_STRANDS;
 
+    String engine = params.get(PARAM_ENGINE);
+    if (engine == null)
+      engine = PARAM_VALUE_ENGINE_SQL;
+
     // get the proper begin & end of the derived regions.
-    String[] startStopA = getStartStop(params, "a");
-    String[] startStopB = getStartStop(params, "b");
+    Region regionA = getRegion(params, "a");
+    Region regionB = getRegion(params, "b");
 
-    String tempA = null, tempB = null;
     try {
       WdkModel wdkModel = InstanceManager.getInstance(WdkModel.class, request.getProjectId());
 
@@ -267,45 +482,53 @@ public class SpanCompositionPlugin extends AbstractPlugin {
       ValidatedToken token = factory.validateBearerToken(bearerToken);
       User user = factory.convertToUser(token);
 
-      // create temp tables from caches
       Flag flag = new Flag();
-      tempA = getSpanSql(wdkModel, user, params, startStopA, "a", flag);
-      tempB = getSpanSql(wdkModel, user, params, startStopB, "b", flag);
+      Operand operandA = getOperand(wdkModel, user, params, "a", flag);
+      Operand operandB = getOperand(wdkModel, user, params, "b", flag);
+
+      if (engine.equals(PARAM_VALUE_ENGINE_SWEEP)) {
+        SpanSweepJoin join = new SpanSweepJoin(operation, strand, flag.hasSnp);
+        sweepResult(wdkModel, response, request.getOrderedColumns(), join, operandA, regionA, operandB, regionB,
+            output);
+        return 0;
+      }
+
+      if (engine.equals(PARAM_VALUE_ENGINE_INDEX)) {
+        SpanIndexJoin join = new SpanIndexJoin(new SpanSweepJoin(operation, strand, flag.hasSnp));
+        indexResult(wdkModel, response, request.getOrderedColumns(), join, operandA, regionA, operandB, regionB,
+            output);
+        return 0;
+      }
 
       // compose the final sql by comparing two regions with span
       // operation.
-      String sql = composeSql(operation, tempA, tempB, strand, output, flag);
+      String sql = composeSql(operation, getSpanSql(operandA, regionA), getSpanSql(operandB, regionB), strand,
+          output, flag);
 
       logger.debug("SPAN LOGIC SQL:\n" + sql);
 
       // execute the final sql, and fetch the result for the output.
-      prepareResult(wdkModel, response, sql, request.getOrderedColumns(), output);
-
-      // drop the cache tables
-      DBPlatform platform = wdkModel.getAppDb().getPlatform();
-      DataSource dataSource = wdkModel.getAppDb().getDataSource();
-      String schema = wdkModel.getAppDb().getDefaultSchema();
-      platform.dropTable(dataSource, schema, tempA, true);
-      platform.dropTable(dataSource, schema, tempB, true);
+      int[] binds = new int[8];
+      System.arraycopy(regionA.getBinds(), 0, binds, 0, 4);
+      System.arraycopy(regionB.getBinds(), 0, binds, 4, 4);
+      prepareResult(wdkModel, response, sql, binds, request.getOrderedColumns(), output);
 
       return 0;
     }
     catch (Exception ex) {
       throw new PluginModelException(ex);
     }
-    finally {
-      // dropTempTables(wdkModel, tempA, tempB);
-    }
   }
 
-  private String[] getStartStop(Map<String, String> params, String suffix) {
+  private Region getRegion(Map<String, String> params, String suffix) {
     // get the user's choice of begin & end, and the offsets from params.
-    String begin = params.get(PARAM_BEGIN_PREFIX + suffix);
-    if (begin == null)
-      begin = PARAM_VALUE_START;
-    String end = params.get(PARAM_END_PREFIX + suffix);
-    if (end == null)
-      end = PARAM_VALUE_STOP;
+    Region region = new Region();
+    region.begin = params.get(PARAM_BEGIN_PREFIX + suffix);
+    if (region.begin == null)
+      region.begin = PARAM_VALUE_START;
+    region.end = params.get(PARAM_END_PREFIX + suffix);
+    if (region.end == null)
+      region.end = PARAM_VALUE_STOP;
 
     String beginDir = params.get(PARAM_BEGIN_DIRECTION_PREFIX + suffix);
     if (beginDir == null)
@@ -314,50 +537,24 @@ public class SpanCompositionPlugin extends AbstractPlugin {
     if (endDir == null)
       endDir = PARAM_VALUE_UPSTREAM;
 
-    int beginOff = 0;
     if (params.containsKey(PARAM_BEGIN_OFFSET_PREFIX + suffix))
-      beginOff = Integer.valueOf(params.get(PARAM_BEGIN_OFFSET_PREFIX + suffix));
-    int endOff = 0;
+      region.beginOff = Integer.valueOf(params.get(PARAM_BEGIN_OFFSET_PREFIX + suffix));
     if (params.containsKey(PARAM_END_OFFSET_PREFIX + suffix))
-      endOff = Integer.valueOf(params.get(PARAM_END_OFFSET_PREFIX + suffix));
+      region.endOff = Integer.valueOf(params.get(PARAM_END_OFFSET_PREFIX + suffix));
 
     if (beginDir.equals(PARAM_VALUE_UPSTREAM))
-      beginOff *= -1;
+      region.beginOff *= -1;
     if (endDir.equals(PARAM_VALUE_UPSTREAM))
-      endOff *= -1;
-
-    String table = "fl.";
-
-    // depending on whether the feature is on forward or reversed strand,
-    // and user's choice of begin and end, we get the proper begin of the
-    // region.
-    StringBuilder sql = new StringBuilder("(CASE ");
-    sql.append(" WHEN NVL(" + table + "is_reversed, 0) = 0 THEN (");
-    sql.append(begin.equals(PARAM_VALUE_START) ? "start_min" : "end_max");
-    sql.append(" + 1*(" + beginOff + ")) ");
-    sql.append(" WHEN NVL(" + table + "is_reversed, 0) = 1 THEN (");
-    sql.append(end.equals(PARAM_VALUE_START) ? "end_max" : "start_min");
-    sql.append(" - 1*(" + endOff + ")) ");
-    sql.append("END)");
-    String start = sql.toString();
-
-    // we get the proper end of the region.
-    sql = new StringBuilder("(CASE ");
-    sql.append(" WHEN NVL(" + table + "is_reversed, 0) = 0 THEN (");
-    sql.append(end.equals(PARAM_VALUE_START) ? "start_min" : "end_max");
-    sql.append(" + 1*(" + endOff + ")) ");
-    sql.append(" WHEN NVL(" + table + "is_reversed, 0) = 1 THEN (");
-    sql.append(begin.equals(PARAM_VALUE_START) ? "end_max" : "start_min");
-    sql.append(" - 1*(" + beginOff + ")) ");
-    sql.append("END)");
-    String stop = sql.toString();
-
-    return new String[] { start, stop };
-  }
-
-  private String composeSql(String operation, String tempTableA, String tempTableB,
+      region.endOff *= -1;
+
+    return region;
+  }
+
+  private String composeSql(String operation, String spanSqlA, String spanSqlB,
       String strand, String output, Flag flag) {
     StringBuilder builder = new StringBuilder();
+    builder.append("WITH fa AS (" + spanSqlA + "), ");
+    builder.append("     fb AS (" + spanSqlB + ") ");
 
     // determine the output type
     builder.append("SELECT fa.source_id AS source_id_a, ");
@@ -372,7 +569,7 @@ public class SpanCompositionPlugin extends AbstractPlugin {
     builder.append("       fb.wdk_weight AS wdk_weight_b, ");
     builder.append("       fb.begin AS begin_b, fb.end AS end_b, ");
     builder.append("       fb.is_reversed AS is_reversed_b ");
-    builder.append("FROM (" + tempTableA + ") fa, (" + tempTableB + ") fb ");
+    builder.append("FROM fa, fb ");
 
     // make sure the regions come from sequence source.
     builder.append("WHERE fa.sequence_source_id = fb.sequence_source_id ");
@@ -412,8 +609,8 @@ public class SpanCompositionPlugin extends AbstractPlugin {
     return builder.toString();
   }
 
-  private String getSpanSql(WdkModel wdkModel, User user, Map<String, String> params, String[] region,
-      String suffix, Flag flag) throws WdkModelException, WdkUserException {
+  private Operand getOperand(WdkModel wdkModel, User user, Map<String, String> params, String suffix, Flag flag)
+      throws WdkModelException, WdkUserException {
     int stepId = Integer.parseInt(params.get(PARAM_SPAN_PREFIX + suffix));
     WdkUserException e = new WdkUserException("No step with ID " + stepId + " exists for user " + user.getUserId());
     Step step = new StepFactory(user).getStepByIdAndUserId(stepId, user.getUserId(),
@@ -450,36 +647,34 @@ public class SpanCompositionPlugin extends AbstractPlugin {
       locTable = "apidb.FeatureLocation";
     }
 
-    // get a temp table name
-    DBPlatform platform = wdkModel.getAppDb().getPlatform();
-    DataSource dataSource = wdkModel.getAppDb().getDataSource();
-    String schema = wdkModel.getAppDb().getDefaultSchema();
-    try {
-      String tableName = null;
-      while (true) {
-        tableName = TEMP_TABLE_PREFIX + random.nextInt(Integer.MAX_VALUE);
-        if (!platform.checkTableExists(dataSource, schema, tableName))
-          break;
-      }
-
-      String sql = rcName.equals("TranscriptRecordClasses.TranscriptRecordClass")
-          ? getTranscriptSpanSql(tableName, region, cacheSql)
-          : getStandardSpanSql(tableName, region, locTable, cacheSql);
-      logger.debug("SPAN SQL: " + sql);
+    Operand operand = new Operand();
+    operand.recordClass = rcName;
+    operand.cacheSql = cacheSql;
+    operand.locTable = locTable;
+    operand.answerValue = answerValue;
+    return operand;
+  }
 
-      // cache the sql
-      SqlUtils.executeUpdate(dataSource, sql, "span-logic-child");
+  /**
+   * get the sql of an av's locations, for the WITH clause of composeSql, with the offsets as bind variables
+   */
+  private String getSpanSql(Operand operand, Region region) throws WdkModelException {
+    // only the sql engine needs the size, so the other engines don't pay for counting the step
+    int size = operand.answerValue.getResultSizeFactory().getResultSize();
+    String hint = size > MATERIALIZE_MIN_SIZE ? "/*+ MATERIALIZE */" : "/*+ INLINE */";
+    String sql = getSelectSql(operand, region.getSql()).replaceFirst("^SELECT ", "SELECT " + hint + " ");
+    logger.debug("SPAN SQL: " + sql);
+    return sql;
+  }
 
-      return tableName;
-    }
-    catch (SQLException ex) {
-      throw new WdkModelException(ex);
-    }
+  private String getSelectSql(Operand operand, String[] region) {
+    return operand.recordClass.equals("TranscriptRecordClasses.TranscriptRecordClass")
+        ? getTranscriptSpanSql(region, operand.cacheSql)
+        : getStandardSpanSql(region, operand.locTable, operand.cacheSql);
   }
 
-  private String getStandardSpanSql(String tableName, String[] region, String locTable, String cacheSql ) {
+  private String getStandardSpanSql(String[] region, String locTable, String cacheSql ) {
     StringBuilder builder = new StringBuilder();
-    builder.append("CREATE TABLE " + tableName + " AS ");
     builder.append("SELECT DISTINCT fl.feature_source_id AS source_id, 'dontcare' as gene_source_id, ");
     builder.append("       fl.sequence_source_id, fl.feature_type, ");
     builder.append("       ca.wdk_weight, ca.project_id, ");
@@ -498,9 +693,8 @@ public class SpanCompositionPlugin extends AbstractPlugin {
     
   }
   
-  private String getTranscriptSpanSql(String tableName, String[] region, String cacheSql ) {
+  private String getTranscriptSpanSql(String[] region, String cacheSql ) {
     StringBuilder builder = new StringBuilder();
-    builder.append("CREATE TABLE " + tableName + " AS ");
     builder.append("SELECT DISTINCT ca.source_id, ca.gene_source_id, ");
     builder.append("       fl.sequence_source_id, fl.feature_type, ");
     builder.append("       ca.wdk_weight, ca.project_id, ");
@@ -514,8 +708,8 @@ public class SpanCompositionPlugin extends AbstractPlugin {
     
   }
 
-  private void prepareResult(WdkModel wdkModel, PluginResponse response, String sql, String[] orderedColumns,
-      String output) throws SQLException, PluginModelException, PluginUserException {
+  private void prepareResult(WdkModel wdkModel, PluginResponse response, String sql, int[] binds,
+      String[] orderedColumns, String output) throws SQLException, PluginModelException, PluginUserException {
     // prepare column order
     Map<String, Integer> columnOrders = new LinkedHashMap<>(orderedColumns.length);
     for (int i = 0; i < orderedColumns.length; i++) {
@@ -524,59 +718,274 @@ public class SpanCompositionPlugin extends AbstractPlugin {
 
     // read results
     DataSource dataSource = wdkModel.getAppDb().getDataSource();
-    ResultSet resultSet = null;
-    Feature prevFeature = null;
-    Feature prevReference = null;
-    try {
-      resultSet = SqlUtils.executeQuery(dataSource, sql, "span-logic-cached");
-      Feature feature = null;
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql)) {
+      for (int i = 0; i < binds.length; i++)
+        statement.setInt(i + 1, binds[i]);
+      ResultSet resultSet = statement.executeQuery();
+      Feature feature = new Feature();
+      boolean hasFeature = false;
+      // the reference is formatted as it's added, so one will do for every row
+      Feature reference = new Feature();
       String ref = output.equals("a") ? "b" : "a";
       while (resultSet.next()) {
         String sourceId = resultSet.getString("source_id_" + output);
         // the result is sorted by the ids of the output result
-        if (feature == null) {
+        if (!hasFeature) {
           // reading the first line
-          feature = new Feature();
+          hasFeature = true;
 	  readFeature(resultSet, feature, output);
         }
         else if (!feature.sourceId.equals(sourceId)) {
           // start on a new record, output the previous feature
           writeFeature(response, columnOrders, feature);
-          feature = new Feature();
+          feature.clearMatches();
 	  readFeature(resultSet, feature, output);
         }
 
         // read the reference
-        Feature reference = new Feature();
         readFeature(resultSet, reference, ref);
-	
-	// if refs are genes, only add one match per gene.  (non-gene refs have dontcare as gene_source_id)
-	if (feature != prevFeature || reference.geneSourceId.equals("dontcare") || prevReference == null || !reference.geneSourceId.equals(prevReference.geneSourceId))
-	  feature.matched.add(reference);
-	prevFeature = feature;
-	prevReference = reference;
+        feature.addMatch(reference);
       }
-      if (feature != null) { // write the last feature
+      if (hasFeature) { // write the last feature
         writeFeature(response, columnOrders, feature);
       }
     }
-    finally {
-      SqlUtils.closeResultSetAndStatement(resultSet, null);
+  }
+
+  /**
+   * Join the avs' locations with a sweep line, in memory, and write the output records in the order of prepareResult
+   */
+  private void sweepResult(WdkModel wdkModel, PluginResponse response, String[] orderedColumns, SpanSweepJoin join,
+      Operand operandA, Region regionA, Operand operandB, Region regionB, String output)
+      throws SQLException, PluginModelException, PluginUserException {
+    OutputFeatures features = new OutputFeatures(output);
+    DataSource dataSource = wdkModel.getAppDb().getDataSource();
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statementA = prepareSortedSpanSql(connection, operandA, regionA);
+        PreparedStatement statementB = prepareSortedSpanSql(connection, operandB, regionB);
+        ResultSet resultSetA = statementA.executeQuery();
+        ResultSet resultSetB = statementB.executeQuery()) {
+      join.join(() -> readSpan(resultSetA), () -> readSpan(resultSetB), features);
     }
+    writeFeatures(response, orderedColumns, features.getFeatures());
   }
 
-  private void writeFeature(PluginResponse response, Map<String, Integer> columnOrders, Feature feature)
+  /**
+   * Join the avs' records with their locations from the resident indexes, and write the output records in the order
+   * of prepareResult
+   */
+  private void indexResult(WdkModel wdkModel, PluginResponse response, String[] orderedColumns, SpanIndexJoin join,
+      Operand operandA, Region regionA, Operand operandB, Region regionB, String output) throws Exception {
+    SpanIndexJoin.Operand indexedA = getIndexedOperand(wdkModel, operandA, regionA);
+    SpanIndexJoin.Operand indexedB = getIndexedOperand(wdkModel, operandB, regionB);
+    OutputFeatures features = new OutputFeatures(output);
+    for (OutputFeatures sequenceFeatures : join.join(indexedA, indexedB, () -> new OutputFeatures(output),
+        ForkJoinPool.commonPool()))
+      features.addAll(sequenceFeatures);
+    writeFeatures(response, orderedColumns, features.getFeatures());
+  }
+
+  private SpanIndexJoin.Operand getIndexedOperand(WdkModel wdkModel, Operand operand, Region region)
+      throws Exception {
+    DataSource dataSource = wdkModel.getAppDb().getDataSource();
+    boolean isTranscript = operand.recordClass.equals("TranscriptRecordClasses.TranscriptRecordClass");
+
+    // the av's records, as they are in the span sql
+    String sql = "SELECT DISTINCT ca.source_id, " + (isTranscript ? "ca.gene_source_id" : "'dontcare'") +
+        " AS gene_source_id, ca.project_id, ca.wdk_weight FROM " + operand.cacheSql + " ca";
+    List<Feature> records = new ArrayList<>();
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql)) {
+      statement.setFetchSize(INDEX_FETCH_SIZE);
+      ResultSet resultSet = statement.executeQuery();
+      while (resultSet.next()) {
+        Feature record = new Feature();
+        record.sourceId = resultSet.getString("source_id");
+        record.geneSourceId = resultSet.getString("gene_source_id");
+        record.projectId = resultSet.getString("project_id");
+        record.weight = resultSet.getInt("wdk_weight");
+        records.add(record);
+      }
+    }
+
+    SpanIntervalIndex index;
+    if (operand.recordClass.equals("DynSpanRecordClasses.DynSpanRecordClass")) {
+      // the locations are in the ids
+      index = getDynSpanIndex(records);
+    }
+    else {
+      String featureType = isTranscript ? "GeneFeature"
+          : operand.recordClass.equals("SnpRecordClasses.SnpRecordClass") ? "SnpFeature"
+          : getFeatureType(dataSource, operand);
+      index = featureType == null ? new SpanIntervalIndex.Builder(wdkModel.getBuildNumber()).build()
+          : SpanIntervalIndex.getInstance(wdkModel.getProjectId() + " " + featureType, wdkModel.getBuildNumber(),
+              () -> loadIndex(wdkModel, featureType));
+    }
+    return new SpanIndexJoin.Operand(index, records, isTranscript, region);
+  }
+
+  // the feature type of the av's locations, as in getStandardSpanSql, or null if it has none
+  private String getFeatureType(DataSource dataSource, Operand operand) throws SQLException {
+    String sql = "SELECT fl.feature_type FROM " + operand.locTable + " fl, " + operand.cacheSql + " ca" +
+        " WHERE fl.feature_source_id = ca.source_id AND rownum = 1";
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql)) {
+      ResultSet resultSet = statement.executeQuery();
+      return resultSet.next() ? resultSet.getString("feature_type") : null;
+    }
+  }
+
+  private SpanIntervalIndex loadIndex(WdkModel wdkModel, String featureType) throws SQLException {
+    String sql = featureType.equals("SnpFeature")
+        ? "SELECT sn.source_id, sa.source_id AS sequence_source_id, sn.location AS start_min, " +
+            "       sn.location AS end_max, 0 AS is_reversed " +
+            " FROM Apidb.Snp sn, ApidbTuning.GenomicSeqAttributes sa " +
+            " WHERE sn.na_sequence_id = sa.na_sequence_id"
+        : "SELECT feature_source_id AS source_id, sequence_source_id, start_min, end_max, " +
+            "       NVL(is_reversed, 0) AS is_reversed " +
+            " FROM apidb.FeatureLocation " +
+            " WHERE is_top_level = 1 AND feature_type = ?";
+    sql = "SELECT fl.* FROM (" + sql + ") fl " +
+        "ORDER BY NLSSORT(fl.sequence_source_id, 'NLS_SORT=BINARY'), fl.start_min, fl.end_max, fl.is_reversed, " +
+        "         fl.source_id";
+
+    SpanIntervalIndex.Builder builder = new SpanIntervalIndex.Builder(wdkModel.getBuildNumber());
+    DataSource dataSource = wdkModel.getAppDb().getDataSource();
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql)) {
+      if (!featureType.equals("SnpFeature"))
+        statement.setString(1, featureType);
+      statement.setFetchSize(INDEX_FETCH_SIZE);
+      ResultSet resultSet = statement.executeQuery();
+      while (resultSet.next()) {
+        String sequence = resultSet.getString("sequence_source_id");
+        int start = resultSet.getInt("start_min");
+        boolean noStart = resultSet.wasNull();
+        int end = resultSet.getInt("end_max");
+        // a location without coordinates matches nothing in the span sql
+        if (sequence == null || noStart || resultSet.wasNull())
+          continue;
+        builder.add(resultSet.getString("source_id"), sequence, start, end, resultSet.getBoolean("is_reversed"));
+      }
+    }
+    return builder.build();
+  }
+
+  // an index of dynamic spans, whose ids are sequence:start-end:strand, parsed as in getOperand
+  private SpanIntervalIndex getDynSpanIndex(List<Feature> records) {
+    List<Feature> spans = new ArrayList<>();
+    for (Feature record : records) {
+      String[] parts = record.sourceId.split(":");
+      try {
+        String[] range = parts[1].split("-");
+        Feature span = new Feature();
+        span.sourceId = record.sourceId;
+        span.sequenceSourceId = parts[0];
+        span.begin = Integer.parseInt(range[0]);
+        span.end = Integer.parseInt(range[1]);
+        span.reversed = parts.length > 2 && parts[2].equals("r");
+        spans.add(span);
+      }
+      catch (RuntimeException ex) {
+        // not a span, so it matches nothing
+        logger.warn("Invalid dynamic span id: " + record.sourceId);
+      }
+    }
+    spans.sort(Comparator.comparing((Feature f) -> f.sequenceSourceId).thenComparingInt(f -> f.begin)
+        .thenComparingInt(f -> f.end).thenComparing(f -> f.reversed).thenComparing(f -> f.sourceId));
+    SpanIntervalIndex.Builder builder = new SpanIntervalIndex.Builder("");
+    for (Feature span : spans)
+      builder.add(span.sourceId, span.sequenceSourceId, span.begin, span.end, span.reversed);
+    return builder.build();
+  }
+
+  /**
+   * Accumulates the matches of the engines that join in memory into their output features
+   */
+  private static class OutputFeatures implements MatchHandler {
+    // the output features, by project_id and source_id, as composeSql sorts them.  a record with locations on more
+    // than one sequence is one feature, as it is in prepareResult
+    private final Map<String, Feature> features = new TreeMap<>();
+    private final boolean outputA;
+
+    private OutputFeatures(String output) {
+      outputA = output.equals(PARAM_VALUE_OUTPUT_A);
+    }
+
+    @Override
+    public void match(Feature featureA, Feature featureB) {
+      Feature feature = outputA ? featureA : featureB;
+      Feature first = features.putIfAbsent(feature.projectId + "\0" + feature.sourceId, feature);
+      (first == null ? feature : first).addMatch(outputA ? featureB : featureA);
+    }
+
+    // add the features of the following sequences
+    private void addAll(OutputFeatures later) {
+      for (Map.Entry<String, Feature> entry : later.features.entrySet()) {
+        Feature first = features.putIfAbsent(entry.getKey(), entry.getValue());
+        if (first != null)
+          first.addMatches(entry.getValue());
+      }
+    }
+
+    private Collection<Feature> getFeatures() {
+      return features.values();
+    }
+  }
+
+  private void writeFeatures(PluginResponse response, String[] orderedColumns, Collection<Feature> features)
       throws PluginModelException, PluginUserException {
-    // format the matched regions
-    StringBuilder builder = new StringBuilder();
-    for (Feature fr : feature.matched) {
-      if (builder.length() > 0) builder.append("; ");
-      String srcId = fr.geneSourceId.equals("dontcare")? fr.sourceId : fr.geneSourceId;
-      builder.append(srcId + ": " + fr.getBegin() + " - " + fr.getEnd() + " (" + fr.getReversed() + ")");
+    Map<String, Integer> columnOrders = new LinkedHashMap<>(orderedColumns.length);
+    for (int i = 0; i < orderedColumns.length; i++) {
+      columnOrders.put(orderedColumns[i], i);
+    }
+    for (Feature feature : features)
+      writeFeature(response, columnOrders, feature);
+  }
+
+  private PreparedStatement prepareSortedSpanSql(Connection connection, Operand operand, Region region)
+      throws SQLException {
+    // rows without a location (eg a dynamic span id that doesn't parse) match nothing in the sql engine's join, and
+    // would sort last here, out of the sweep's order
+    String sql = "SELECT fs.* FROM (" + getSelectSql(operand, region.getSql()) + ") fs " +
+        "WHERE fs.sequence_source_id IS NOT NULL AND fs.begin IS NOT NULL AND fs.end IS NOT NULL " +
+        "ORDER BY NLSSORT(fs.sequence_source_id, 'NLS_SORT=BINARY'), fs.begin, fs.end, fs.gene_source_id, fs.source_id";
+    logger.debug("SPAN SQL: " + sql);
+    PreparedStatement statement = connection.prepareStatement(sql);
+    try {
+      int index = 1;
+      for (int bind : region.getBinds())
+        statement.setInt(index++, bind);
+      statement.setFetchSize(SWEEP_FETCH_SIZE);
+      return statement;
     }
-    String matched = builder.toString();
-    if (matched.length() > 4000)
-      matched = matched.substring(0, 3997) + "...";
+    catch (SQLException ex) {
+      statement.close();
+      throw ex;
+    }
+  }
+
+  // read a row of the sorted span sql, or null at the end
+  private Feature readSpan(ResultSet resultSet) throws SQLException {
+    if (!resultSet.next())
+      return null;
+    Feature feature = new Feature();
+    feature.sourceId = resultSet.getString("source_id");
+    feature.geneSourceId = resultSet.getString("gene_source_id");
+    feature.projectId = resultSet.getString("project_id");
+    feature.sequenceSourceId = resultSet.getString("sequence_source_id");
+    feature.begin = resultSet.getInt("begin");
+    feature.end = resultSet.getInt("end");
+    feature.weight = resultSet.getInt("wdk_weight");
+    feature.reversed = resultSet.getBoolean("is_reversed");
+    return feature;
+  }
+
+  private void writeFeature(PluginResponse response, Map<String, Integer> columnOrders, Feature feature)
+      throws PluginModelException, PluginUserException {
+    // the matched regions, formatted as they were added
+    String matched = feature.getMatchedRegions();
 
     // construct row by column orders
     String[] row = makeRow(columnOrders, feature, matched);
@@ -590,7 +999,7 @@ public class SpanCompositionPlugin extends AbstractPlugin {
     row[columnOrders.get(COLUMN_SOURCE_ID)] = feature.sourceId;
     row[columnOrders.get(COLUMN_PROJECT_ID)] = feature.projectId;
     row[columnOrders.get(COLUMN_FEATURE_REGION)] = feature.getRegion();
-    row[columnOrders.get(COLUMN_MATCHED_COUNT)] = Integer.toString(feature.matched.size());
+    row[columnOrders.get(COLUMN_MATCHED_COUNT)] = Integer.toString(feature.matchedCount);
     row[columnOrders.get(COLUMN_WDK_WEIGHT)] = Integer.toString(feature.weight);
     row[columnOrders.get(COLUMN_MATCHED_REGIONS)] = matched;
     row[columnOrders.get(COLUMN_MATCHED_RESULT)] = "Y";
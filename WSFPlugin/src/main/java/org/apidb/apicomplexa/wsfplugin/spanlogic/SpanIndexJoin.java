@@ -0,0 +1,230 @@
+package org.apidb.apicomplexa.wsfplugin.spanlogic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+import org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.Feature;
+import org.apidb.apicomplexa.wsfplugin.spanlogic.SpanSweepJoin.MatchHandler;
+
+/**
+ * Joins two feature sets by a span operation, as SpanSweepJoin does, but with the features' locations from resident
+ * SpanIntervalIndexes, so that only the ids of the features are read from the database.
+ *
+ * The smaller set is located, and each of its features is looked up in the interval tree of the other set's index.
+ * The tree holds the features' locations, not their derived regions, but a derived region is within the location
+ * widened by the largest of its offsets, so the lookup is of the widened region, and the rows found that are in the
+ * other set are located and compared exactly.
+ *
+ * The sequences are independent, so they can be joined in parallel, on a fork-join pool, each into a handler of its
+ * own.  The handlers, in order of sequence, see the same pairs, in the same order, as one handler of a serial join.
+ *
+ * @author steve
+ */
+public class SpanIndexJoin {
+
+  /**
+   * Derives the region of a feature from its location, as SpanCompositionPlugin's span sql does
+   */
+  public interface Locator {
+    void locate(Feature feature, int startMin, int endMax, boolean isReversed);
+
+    /**
+     * @return the most the region can extend past the location
+     */
+    int getMaxOffset();
+  }
+
+  /**
+   * A feature set:  the records of an av, and where to find their locations
+   */
+  public static class Operand {
+    private final SpanIntervalIndex index;
+    private final Locator locator;
+    // the records' rows in the index, sorted, and the records of the rows
+    private final int[] rows;
+    private final Feature[] records;
+
+    /**
+     * @param records the av's records, with their ids, but not located
+     * @param byGene if the records are located by their gene_source_id (transcripts), not their source_id
+     */
+    public Operand(SpanIntervalIndex index, List<Feature> records, boolean byGene, Locator locator) {
+      this.index = index;
+      this.locator = locator;
+
+      // pack each row with the record's number, to sort them together
+      long[] entries = new long[records.size()];
+      int count = 0;
+      for (int i = 0; i < records.size(); i++) {
+        Feature record = records.get(i);
+        for (int row = index.findRow(byGene ? record.geneSourceId : record.sourceId); row >= 0;
+            row = index.nextRow(row)) {
+          if (count == entries.length)
+            entries = Arrays.copyOf(entries, count * 2 + 1);
+          entries[count++] = ((long) row << 32) | i;
+        }
+      }
+      Arrays.sort(entries, 0, count);
+      this.rows = new int[count];
+      this.records = new Feature[count];
+      for (int i = 0; i < count; i++) {
+        rows[i] = (int) (entries[i] >>> 32);
+        this.records[i] = records.get((int) entries[i]);
+      }
+    }
+
+    public int size() {
+      return rows.length;
+    }
+
+    private Feature locate(int entry) {
+      Feature record = records[entry];
+      Feature feature = new Feature();
+      feature.sourceId = record.sourceId;
+      feature.geneSourceId = record.geneSourceId;
+      feature.projectId = record.projectId;
+      feature.weight = record.weight;
+      int row = rows[entry];
+      feature.sequenceSourceId = index.getSequence(row);
+      locator.locate(feature, index.getStart(row), index.getEnd(row), index.isReversed(row));
+      return feature;
+    }
+  }
+
+  // the order of the sorted span sql of the sweep engine
+  private static final Comparator<Feature> REGION_ORDER = Comparator.comparing((Feature f) -> f.sequenceSourceId)
+      .thenComparingInt(f -> f.begin).thenComparingInt(f -> f.end).thenComparing(f -> f.geneSourceId)
+      .thenComparing(f -> f.sourceId);
+
+  private final SpanSweepJoin predicate;
+
+  /**
+   * @param predicate has the operation and strand choice to join by
+   */
+  public SpanIndexJoin(SpanSweepJoin predicate) {
+    this.predicate = predicate;
+  }
+
+  /**
+   * Call the handler for each pair of features, one from each set, that matches.  The pairs of a feature are found in
+   * the order of the other set's regions.
+   */
+  public void join(Operand operandA, Operand operandB, MatchHandler handler) {
+    boolean queryA = operandA.size() <= operandB.size();
+    Operand query = queryA ? operandA : operandB;
+    joinEntries(queryA, operandA, operandB, 0, query.size(), handler);
+  }
+
+  /**
+   * Join as join(Operand, Operand, MatchHandler) does, but a sequence at a time, each as a task of the pool, with a
+   * handler of its own.
+   *
+   * @return the handlers, in the order of their sequences
+   */
+  public <H extends MatchHandler> List<H> join(Operand operandA, Operand operandB, Supplier<H> newHandler,
+      ForkJoinPool pool) {
+    boolean queryA = operandA.size() <= operandB.size();
+    Operand query = queryA ? operandA : operandB;
+
+    // the query's entries are sorted by row, so each sequence's are together
+    List<ForkJoinTask<H>> tasks = new ArrayList<>();
+    for (int from = 0; from < query.size();) {
+      int sequence = query.index.getSequenceIndex(query.rows[from]);
+      int to = from + 1;
+      while (to < query.size() && query.index.getSequenceIndex(query.rows[to]) == sequence)
+        to++;
+      int first = from, last = to;
+      tasks.add(ForkJoinTask.adapt(() -> {
+        H handler = newHandler.get();
+        joinEntries(queryA, operandA, operandB, first, last, handler);
+        return handler;
+      }));
+      from = to;
+    }
+    pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+    List<H> handlers = new ArrayList<>(tasks.size());
+    for (ForkJoinTask<H> task : tasks)
+      handlers.add(task.join());
+    return handlers;
+  }
+
+  // join the query's entries from one to another
+  private void joinEntries(boolean queryA, Operand operandA, Operand operandB, int from, int to,
+      MatchHandler handler) {
+    Operand query = queryA ? operandA : operandB;
+    Operand target = queryA ? operandB : operandA;
+    int maxOffset = target.locator.getMaxOffset();
+
+    List<Feature> features = new ArrayList<>(to - from);
+    for (int entry = from; entry < to; entry++) {
+      Feature feature = query.locate(entry);
+      // the span sql's "begin <= end"
+      if (feature.begin <= feature.end)
+        features.add(feature);
+    }
+    features.sort(REGION_ORDER);
+
+    Map<String, Integer> targetSequences = new HashMap<>();
+    RowList found = new RowList();
+    List<Feature> matches = new ArrayList<>();
+    for (Feature feature : features) {
+      int sequence = targetSequences.computeIfAbsent(feature.sequenceSourceId, target.index::findSequence);
+      if (sequence < 0)
+        continue;
+
+      found.size = 0;
+      target.index.findOverlaps(sequence, clamp((long) feature.begin - maxOffset),
+          clamp((long) feature.end + maxOffset), found);
+
+      matches.clear();
+      for (int i = 0; i < found.size; i++) {
+        // the target's records at this row
+        int row = found.rows[i];
+        int entry = Arrays.binarySearch(target.rows, row);
+        if (entry < 0)
+          continue;
+        while (entry > 0 && target.rows[entry - 1] == row)
+          entry--;
+        for (; entry < target.rows.length && target.rows[entry] == row; entry++) {
+          Feature other = target.locate(entry);
+          if (other.begin <= other.end &&
+              (queryA ? predicate.matches(feature, other) : predicate.matches(other, feature)))
+            matches.add(other);
+        }
+      }
+
+      matches.sort(REGION_ORDER);
+      for (Feature other : matches) {
+        if (queryA)
+          handler.match(feature, other);
+        else
+          handler.match(other, feature);
+      }
+    }
+  }
+
+  private static class RowList implements IntConsumer {
+    private int[] rows = new int[16];
+    private int size = 0;
+
+    @Override
+    public void accept(int row) {
+      if (size == rows.length)
+        rows = Arrays.copyOf(rows, size * 2);
+      rows[size++] = row;
+    }
+  }
+
+  private static int clamp(long position) {
+    return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, position));
+  }
+}
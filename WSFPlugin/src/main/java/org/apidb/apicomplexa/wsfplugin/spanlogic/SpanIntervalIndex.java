@@ -0,0 +1,348 @@
+package org.apidb.apicomplexa.wsfplugin.spanlogic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntConsumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The locations of all the features of one type, eg the genes or the SNPs of a project, in compact primitive arrays,
+ * so that span logic can find them without reading them from the database on every request.  They change only at a
+ * release, so an index is kept for as long as the build it was loaded from is current (see getInstance).
+ *
+ * A location is a row:  the feature's id, and its sequence, start_min, end_max and strand.  Rows are sorted by
+ * sequence and then start, and each sequence's rows are also an implicit augmented interval tree, as in cgranges
+ * (Heng Li):  the tree is laid out in the sorted rows themselves, the node at a level k being a row whose index has its
+ * k lowest bits set, and each node holds the max end_max of its subtree.  So finding the rows that overlap a region
+ * takes O(log n + hits) time, and the index needs only one extra int per row.
+ *
+ * Ids are kept as UTF-8 bytes in one array, with an open addressing hash table to find a feature's rows.
+ *
+ * @author steve
+ */
+public class SpanIntervalIndex {
+
+  private static final Logger logger = Logger.getLogger(SpanIntervalIndex.class);
+
+  // subtrees this small are scanned rather than descended
+  private static final int SCAN_LEVEL = 3;
+
+  private static final Map<String, FutureTask<SpanIntervalIndex>> instances = new ConcurrentHashMap<>();
+
+  private final String build;
+
+  private final String[] sequences; // sorted
+  private final int[] sequenceStarts; // the rows of sequences[i] are sequenceStarts[i] to sequenceStarts[i + 1] - 1
+
+  private final int size;
+  private final int[] starts;
+  private final int[] ends;
+  private final int[] maxEnds;
+  private final boolean[] reversed;
+
+  private final byte[] ids;
+  private final int[] idStarts; // the id of row i is ids[idStarts[i]] to ids[idStarts[i + 1] - 1]
+  private final int[] idTable; // first row + 1 of each id, by hash; 0 if empty
+  private final int[] nextRowWithId; // -1 at the last
+
+  /**
+   * Get an index, loading it if it is not loaded, or was loaded from an older build.  Concurrent requests for an index
+   * wait for the one load.
+   *
+   * @param key the project and feature type
+   * @param build the current build
+   * @param loader loads the index, from the current build
+   */
+  public static SpanIntervalIndex getInstance(String key, String build, Callable<SpanIntervalIndex> loader)
+      throws Exception {
+    while (true) {
+      FutureTask<SpanIntervalIndex> task = instances.get(key);
+      if (task == null) {
+        FutureTask<SpanIntervalIndex> newTask = new FutureTask<>(() -> {
+          long start = System.currentTimeMillis();
+          SpanIntervalIndex index = loader.call();
+          logger.info("Loaded span interval index " + key + " of build " + build + ": " + index.size() +
+              " locations, " + (index.getMemorySize() >> 20) + " MB, in " +
+              ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+          return index;
+        });
+        task = instances.putIfAbsent(key, newTask);
+        if (task == null) {
+          task = newTask;
+          task.run();
+        }
+      }
+      try {
+        SpanIntervalIndex index = task.get();
+        if (index.build.equals(build))
+          return index;
+        // a new release.  the first to see it reloads
+        instances.remove(key, task);
+      }
+      catch (ExecutionException ex) {
+        // let the next request try again
+        instances.remove(key, task);
+        throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+      }
+    }
+  }
+
+  /**
+   * Takes the rows of an index, sorted by sequence (in binary order), start_min, end_max, strand and id.
+   */
+  public static class Builder {
+    private final String build;
+    private final List<String> sequences = new ArrayList<>();
+    private final List<Integer> sequenceStarts = new ArrayList<>();
+    private int size = 0;
+    private int[] starts = new int[1024];
+    private int[] ends = new int[1024];
+    private boolean[] reversed = new boolean[1024];
+    private byte[] ids = new byte[16 * 1024];
+    private int[] idStarts = new int[1025];
+
+    public Builder(String build) {
+      this.build = build;
+    }
+
+    /**
+     * Add a row, after those before it in order.  A row the same as the last is skipped, as by SELECT DISTINCT.
+     */
+    public void add(String id, String sequence, int start, int end, boolean isReversed) {
+      byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+      int last = sequences.size() - 1;
+      if (last < 0 || !sequences.get(last).equals(sequence)) {
+        if (last >= 0 && sequences.get(last).compareTo(sequence) > 0)
+          throw new IllegalArgumentException("Locations are not sorted by sequence: " + sequence + " is after " +
+              sequences.get(last));
+        sequences.add(sequence);
+        sequenceStarts.add(size);
+      }
+      else if (size > 0) {
+        int prev = size - 1;
+        if (starts[prev] > start)
+          throw new IllegalArgumentException("Locations are not sorted by start: " + id + " " + sequence + " " +
+              start + " is after " + starts[prev]);
+        if (starts[prev] == start && ends[prev] == end && reversed[prev] == isReversed &&
+            Arrays.equals(ids, idStarts[prev], idStarts[size], idBytes, 0, idBytes.length))
+          return;
+      }
+
+      if (size == starts.length) {
+        int capacity = size * 2;
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        reversed = Arrays.copyOf(reversed, capacity);
+        idStarts = Arrays.copyOf(idStarts, capacity + 1);
+      }
+      int idEnd = idStarts[size] + idBytes.length;
+      if (idEnd > ids.length)
+        ids = Arrays.copyOf(ids, Math.max(ids.length * 2, idEnd));
+      System.arraycopy(idBytes, 0, ids, idStarts[size], idBytes.length);
+      starts[size] = start;
+      ends[size] = end;
+      reversed[size] = isReversed;
+      idStarts[++size] = idEnd;
+    }
+
+    public SpanIntervalIndex build() {
+      int[] seqStarts = new int[sequences.size() + 1];
+      for (int i = 0; i < sequences.size(); i++)
+        seqStarts[i] = sequenceStarts.get(i);
+      seqStarts[sequences.size()] = size;
+      return new SpanIntervalIndex(build, sequences.toArray(new String[0]), seqStarts, size,
+          Arrays.copyOf(starts, size), Arrays.copyOf(ends, size), Arrays.copyOf(reversed, size),
+          Arrays.copyOf(ids, idStarts[size]), Arrays.copyOf(idStarts, size + 1));
+    }
+  }
+
+  private SpanIntervalIndex(String build, String[] sequences, int[] sequenceStarts, int size, int[] starts,
+      int[] ends, boolean[] reversed, byte[] ids, int[] idStarts) {
+    this.build = build;
+    this.sequences = sequences;
+    this.sequenceStarts = sequenceStarts;
+    this.size = size;
+    this.starts = starts;
+    this.ends = ends;
+    this.reversed = reversed;
+    this.ids = ids;
+    this.idStarts = idStarts;
+
+    maxEnds = new int[size];
+    for (int i = 0; i < sequences.length; i++)
+      indexSequence(sequenceStarts[i], sequenceStarts[i + 1] - sequenceStarts[i]);
+
+    int tableSize = Integer.highestOneBit(Math.max(size, 1)) * 4;
+    idTable = new int[tableSize];
+    nextRowWithId = new int[size];
+    for (int row = size - 1; row >= 0; row--) {
+      int slot = findSlot(ids, idStarts[row], idStarts[row + 1]);
+      nextRowWithId[row] = idTable[slot] - 1;
+      idTable[slot] = row + 1;
+    }
+  }
+
+  // set the max ends of the tree of a sequence's rows, bottom up
+  private void indexSequence(int offset, int n) {
+    if (n == 0)
+      return;
+    int lastRow = 0, lastMax = 0;
+    for (int i = 0; i < n; i += 2) {
+      lastRow = i;
+      lastMax = maxEnds[offset + i] = ends[offset + i];
+    }
+    for (int k = 1; 1L << k <= n; k++) {
+      int x = 1 << (k - 1);
+      long step = (long) x << 2;
+      for (long i = (x << 1) - 1; i < n; i += step) {
+        int node = (int) i;
+        int left = maxEnds[offset + node - x];
+        // a right child past the end of the rows is the subtree of the last row
+        int right = node + x < n ? maxEnds[offset + node + x] : lastMax;
+        maxEnds[offset + node] = Math.max(ends[offset + node], Math.max(left, right));
+      }
+      // the last row's ancestor at this level:  the parent of a right child is before it, of a left child after it
+      lastRow = ((lastRow >> k) & 1) != 0 ? lastRow - x : lastRow + x;
+      lastMax = lastRow < n ? maxEnds[offset + lastRow] : lastMax;
+    }
+  }
+
+  // the slot of an id in the id table:  the slot holding its rows, or the empty slot it would go in
+  private int findSlot(byte[] key, int from, int to) {
+    int hash = 1;
+    for (int i = from; i < to; i++)
+      hash = 31 * hash + key[i];
+    hash ^= hash >>> 16;
+    int mask = idTable.length - 1;
+    for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+      int row = idTable[slot] - 1;
+      if (row < 0 || Arrays.equals(ids, idStarts[row], idStarts[row + 1], key, from, to))
+        return slot;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the approximate size of the index in bytes
+   */
+  public long getMemorySize() {
+    return 4L * (starts.length + ends.length + maxEnds.length + idStarts.length + idTable.length +
+        nextRowWithId.length) + reversed.length + ids.length;
+  }
+
+  /**
+   * @return the first row of a feature, or -1 if it has none
+   */
+  public int findRow(String id) {
+    byte[] key = id.getBytes(StandardCharsets.UTF_8);
+    return idTable[findSlot(key, 0, key.length)] - 1;
+  }
+
+  /**
+   * @return the next row of the feature of a row, or -1 if it has no more
+   */
+  public int nextRow(int row) {
+    return nextRowWithId[row];
+  }
+
+  /**
+   * @return the index of a sequence, or -1 if it has no rows
+   */
+  public int findSequence(String sequence) {
+    int i = Arrays.binarySearch(sequences, sequence);
+    return i < 0 ? -1 : i;
+  }
+
+  public String getSequence(int row) {
+    return sequences[getSequenceIndex(row)];
+  }
+
+  /**
+   * @return the index of the sequence of a row
+   */
+  public int getSequenceIndex(int row) {
+    // every sequence has rows, so its start is unique
+    int i = Arrays.binarySearch(sequenceStarts, row);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  public String getId(int row) {
+    return new String(ids, idStarts[row], idStarts[row + 1] - idStarts[row], StandardCharsets.UTF_8);
+  }
+
+  public int getStart(int row) {
+    return starts[row];
+  }
+
+  public int getEnd(int row) {
+    return ends[row];
+  }
+
+  public boolean isReversed(int row) {
+    return reversed[row];
+  }
+
+  /**
+   * Find the rows of a sequence whose locations overlap a region:  start_min <= end and end_max >= begin.
+   *
+   * @param sequence the index of the sequence
+   * @param consumer is given the rows in order
+   */
+  public void findOverlaps(int sequence, int begin, int end, IntConsumer consumer) {
+    int offset = sequenceStarts[sequence];
+    int n = sequenceStarts[sequence + 1] - offset;
+    int maxLevel = 31 - Integer.numberOfLeadingZeros(n);
+
+    // each entry is a node, its level, and if its left subtree has been done
+    int[] stack = new int[3 * 64];
+    int top = 0;
+    stack[top++] = (1 << maxLevel) - 1;
+    stack[top++] = maxLevel;
+    stack[top++] = 0;
+    while (top > 0) {
+      int leftDone = stack[--top];
+      int k = stack[--top];
+      int x = stack[--top];
+      if (k <= SCAN_LEVEL) {
+        // scan the small subtree
+        int i0 = x >> k << k;
+        int i1 = (int) Math.min((long) i0 + (1L << (k + 1)) - 1, n);
+        for (int i = i0; i < i1 && starts[offset + i] <= end; i++)
+          if (ends[offset + i] >= begin)
+            consumer.accept(offset + i);
+      }
+      else if (leftDone == 0) {
+        // do the left subtree, then come back to this node.  a left child past the end of the rows may have rows
+        // under it
+        int y = x - (1 << (k - 1));
+        stack[top++] = x;
+        stack[top++] = k;
+        stack[top++] = 1;
+        if (y >= n || maxEnds[offset + y] >= begin) {
+          stack[top++] = y;
+          stack[top++] = k - 1;
+          stack[top++] = 0;
+        }
+      }
+      else if (x < n && starts[offset + x] <= end) {
+        // this node, then the right subtree
+        if (ends[offset + x] >= begin)
+          consumer.accept(offset + x);
+        stack[top++] = x + (1 << (k - 1));
+        stack[top++] = k - 1;
+        stack[top++] = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.apidb.apicomplexa.wsfplugin.spanlogic;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.Feature;
+
+/**
+ * Joins two feature sets by a span operation, as the SQL of SpanCompositionPlugin.composeSql does, with a sweep line
+ * instead of a range join in the database.
+ *
+ * Both sets are read in order of sequence, and then begin.  Each feature is compared only with the features of the
+ * other set that are still active:  on the same sequence, and not ending before it begins.  Every pair that overlaps
+ * is compared exactly once, when the later of the two is read, and a pair that doesn't overlap can't match any of the
+ * operations.  Features are dropped from the active sets once the sweep has passed their end, so memory is bounded by
+ * the features that overlap one point of a sequence, not by the size of the sets.
+ *
+ * Sequences are compared as Java strings, so the sets must be sorted in binary order, eg by
+ * NLSSORT(sequence_source_id, 'NLS_SORT=BINARY').
+ *
+ * @author steve
+ */
+public class SpanSweepJoin {
+
+  /**
+   * A feature set, sorted by sequence and then begin
+   */
+  public interface FeatureSource {
+    /**
+     * @return the next feature, or null if there are no more
+     */
+    Feature next() throws SQLException;
+  }
+
+  public interface MatchHandler {
+    void match(Feature a, Feature b);
+  }
+
+  private final String operation;
+  private final String strand;
+  private final boolean hasSnp;
+
+  /**
+   * @param operation the span operation, eg SpanCompositionPlugin.PARAM_VALUE_OVERLAP
+   * @param strand the strand choice, eg SpanCompositionPlugin.PARAM_VALUE_SAME_STRAND
+   * @param hasSnp if either set is SNPs, which have no strand
+   */
+  public SpanSweepJoin(String operation, String strand, boolean hasSnp) {
+    this.operation = operation;
+    this.strand = strand;
+    this.hasSnp = hasSnp;
+  }
+
+  /**
+   * Call the handler for each pair of features, one from each set, that matches.  The pairs of a feature of a set are
+   * found in the order of the other set.
+   */
+  public void join(FeatureSource sourceA, FeatureSource sourceB, MatchHandler handler) throws SQLException {
+    List<Feature> activeA = new ArrayList<>();
+    List<Feature> activeB = new ArrayList<>();
+    Feature nextA = sourceA.next();
+    Feature nextB = sourceB.next();
+    String sequence = null;
+    while (nextA != null || nextB != null) {
+      boolean fromA = nextB == null || (nextA != null && compare(nextA, nextB) <= 0);
+      Feature feature;
+      if (fromA) {
+        feature = nextA;
+        nextA = checkOrder(feature, sourceA.next());
+      }
+      else {
+        feature = nextB;
+        nextB = checkOrder(feature, sourceB.next());
+      }
+
+      if (!feature.sequenceSourceId.equals(sequence)) {
+        sequence = feature.sequenceSourceId;
+        activeA.clear();
+        activeB.clear();
+      }
+
+      // composeSql's "begin <= end":  regions inverted by their offsets match nothing
+      if (feature.begin > feature.end)
+        continue;
+
+      // nothing read from now on begins before this feature, so the features that end before it are done
+      expire(activeA, feature.begin);
+      expire(activeB, feature.begin);
+
+      if (fromA) {
+        for (Feature b : activeB)
+          if (matches(feature, b))
+            handler.match(feature, b);
+        activeA.add(feature);
+      }
+      else {
+        for (Feature a : activeA)
+          if (matches(a, feature))
+            handler.match(a, feature);
+        activeB.add(feature);
+      }
+    }
+  }
+
+  /**
+   * @return if a and b, on the same sequence, match the operation and the strand choice, as in composeSql
+   */
+  public boolean matches(Feature a, Feature b) {
+    if (!hasSnp) {
+      if (strand.equalsIgnoreCase(SpanCompositionPlugin.PARAM_VALUE_SAME_STRAND) && a.reversed != b.reversed)
+        return false;
+      if (strand.equalsIgnoreCase(SpanCompositionPlugin.PARAM_VALUE_OPPOSITE_STRANDS) && a.reversed == b.reversed)
+        return false;
+    }
+
+    if (operation.equals(SpanCompositionPlugin.PARAM_VALUE_OVERLAP))
+      return a.begin <= b.end && a.end >= b.begin;
+    else if (operation.equals(SpanCompositionPlugin.PARAM_VALUE_A_CONTAIN_B))
+      return a.begin <= b.begin && a.end >= b.end;
+    else // b_contain_a
+      return a.begin >= b.begin && a.end <= b.end;
+  }
+
+  private static int compare(Feature f1, Feature f2) {
+    int result = f1.sequenceSourceId.compareTo(f2.sequenceSourceId);
+    return result != 0 ? result : Integer.compare(f1.begin, f2.begin);
+  }
+
+  private static Feature checkOrder(Feature previous, Feature next) {
+    if (next != null && compare(previous, next) > 0)
+      throw new IllegalStateException("Features are not sorted by sequence and begin: " + previous.sourceId + " (" +
+          previous.sequenceSourceId + " " + previous.begin + ") is before " + next.sourceId + " (" +
+          next.sequenceSourceId + " " + next.begin + ")");
+    return next;
+  }
+
+  private static void expire(List<Feature> active, int position) {
+    int kept = 0;
+    for (int i = 0; i < active.size(); i++) {
+      Feature feature = active.get(i);
+      if (feature.end >= position)
+        active.set(kept++, feature);
+    }
+    active.subList(kept, active.size()).clear();
+  }
+}
@@ -15,7 +15,7 @@ public class TranscriptSpanCompositionPlugin extends SpanCompositionPlugin {
     row[columnOrders.get(COLUMN_GENE_SOURCE_ID)] = feature.geneSourceId;
     row[columnOrders.get(COLUMN_PROJECT_ID)] = feature.projectId;
     row[columnOrders.get(COLUMN_FEATURE_REGION)] = feature.getRegion();
-    row[columnOrders.get(COLUMN_MATCHED_COUNT)] = Integer.toString(feature.matched.size());
+    row[columnOrders.get(COLUMN_MATCHED_COUNT)] = Integer.toString(feature.matchedCount);
     row[columnOrders.get(COLUMN_WDK_WEIGHT)] = Integer.toString(feature.weight);
     row[columnOrders.get(COLUMN_MATCHED_REGIONS)] = matched;
     row[columnOrders.get(COLUMN_MATCHED_RESULT)] = "Y";
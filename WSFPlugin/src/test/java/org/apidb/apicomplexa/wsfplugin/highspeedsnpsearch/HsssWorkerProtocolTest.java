@@ -0,0 +1,140 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.HsssWorkerProtocol.Request;
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.HsssWorkerProtocol.ResultInputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Encodes and decodes the frames the plugins and HSSS workers exchange.
+ */
+public class HsssWorkerProtocolTest {
+
+    @Test
+    public void testRequestRoundTrip() throws Exception {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("strainsA", "strain 1\nstrain 2\n".getBytes(StandardCharsets.UTF_8));
+        files.put("empty", new byte[0]);
+        List<String> command = Arrays.asList("/gus/bin/hsssGenerateMajorAllelesScript", "--partition=1",
+            "--partitions=3", "/jobs/hsssFindMajorAlleles.1", "", "\u00e9t\u00e9");
+        Request request = new Request("s3cret", "/jobs/hsssFindMajorAlleles.1", "findMajorAlleles", command, files, 42,
+            120, 60);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HsssWorkerProtocol.writeRequest(out, request);
+        Request read = HsssWorkerProtocol.readRequest(new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertEquals("s3cret", read.getSecret());
+        Assert.assertEquals(request.getJobDir(), read.getJobDir());
+        Assert.assertEquals(request.getScriptName(), read.getScriptName());
+        Assert.assertEquals(command, read.getCommand());
+        Assert.assertEquals(files.keySet(), read.getJobFiles().keySet());
+        for (String name : files.keySet())
+            Assert.assertArrayEquals(files.get(name), read.getJobFiles().get(name));
+        Assert.assertEquals(42, read.getCost());
+        Assert.assertEquals(120, read.getTimeoutSeconds());
+        Assert.assertEquals(60, read.getMaxQueueWaitSeconds());
+    }
+
+    /**
+     * A job file length that the request can't hold is refused before anything is allocated.
+     */
+    @Test
+    public void testBadJobFileLength() throws Exception {
+        for (int length : new int[] { -1, Integer.MAX_VALUE, 1000 }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            payload.writeInt(HsssWorkerProtocol.VERSION);
+            for (String s : new String[] { "s3cret", "/jobs/job.1", "script" }) {
+                payload.writeInt(s.length());
+                payload.writeBytes(s);
+            }
+            payload.writeInt(0);
+            payload.writeInt(1);
+            payload.writeInt(1);
+            payload.writeBytes("f");
+            payload.writeInt(length);
+            payload.write(new byte[10]);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            HsssWorkerProtocol.writeFrame(out, HsssWorkerProtocol.REQUEST, bytes.toByteArray(), 0, bytes.size());
+            try {
+                HsssWorkerProtocol.readRequest(new ByteArrayInputStream(out.toByteArray()));
+                Assert.fail("Expected a job file of length " + length + " to be refused");
+            }
+            catch (IOException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("job file length"));
+            }
+        }
+    }
+
+    /**
+     * The results of several workers, read in order, are the concatenation of their DATA frames.
+     */
+    @Test
+    public void testResultsConcatenate() throws Exception {
+        List<InputStream> results = new ArrayList<>();
+        results.add(result(0, "", "snp1\t1\n", "snp2\t2\n"));
+        results.add(result(0, ""));
+        results.add(result(0, "", "snp3\t3\n"));
+        try (InputStream in = new SequenceInputStream(Collections.enumeration(results))) {
+            Assert.assertEquals("snp1\t1\nsnp2\t2\nsnp3\t3\n", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testFailedJob() throws Exception {
+        assertReadFails(result(1, "hsssMergeStrains failed", "snp1\t1\n"), "hsssMergeStrains failed");
+    }
+
+    @Test
+    public void testError() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HsssWorkerProtocol.writeError(out, "too busy");
+        assertReadFails(new ResultInputStream(new ByteArrayInputStream(out.toByteArray()), "test"), "too busy");
+    }
+
+    /**
+     * A connection that ends before the END frame is an error, not the end of the results.
+     */
+    @Test
+    public void testTruncated() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] data = "snp1\t1\n".getBytes(StandardCharsets.UTF_8);
+        HsssWorkerProtocol.writeFrame(out, HsssWorkerProtocol.DATA, data, 0, data.length);
+        assertReadFails(new ResultInputStream(new ByteArrayInputStream(out.toByteArray()), "test"), "closed");
+    }
+
+    private static ResultInputStream result(int exitValue, String stderr, String... data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String chunk : data) {
+            byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+            HsssWorkerProtocol.writeFrame(out, HsssWorkerProtocol.DATA, bytes, 0, bytes.length);
+        }
+        HsssWorkerProtocol.writeEnd(out, exitValue, stderr);
+        return new ResultInputStream(new ByteArrayInputStream(out.toByteArray()), "test");
+    }
+
+    private static void assertReadFails(InputStream in, String message) {
+        try {
+            in.readAllBytes();
+            Assert.fail("Expected the read to fail");
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.HsssWorkerProtocol.Request;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A worker runs only script generators sent with its secret, with args that stay in its job dir and data roots.
+ */
+public class HsssWorkerTest {
+
+    private static final String PLUGIN_JOB_DIR = "/plugin/jobs/hsssFindPolymorphisms.1";
+    private static final File WORKER_JOB_DIR = new File("/worker/jobs/hsssWorker.1");
+
+    private final HsssWorker worker = new HsssWorker(new File("/worker/jobs"),
+        Arrays.asList(new File("/data/apiSiteFiles"), new File("/data/other/")), "s3cret", 8);
+
+    @Test
+    public void testGeneratorCommand() throws Exception {
+        List<String> command = worker.getCommand(request("s3cret", "/plugin/gus/bin/hsssGeneratePolymorphismScript",
+            "--partition=1", "--partitions=2", "--read_freq=80", "/data/apiSiteFiles/Pf/highSpeedSnpSearch/readFreq80",
+            PLUGIN_JOB_DIR, PLUGIN_JOB_DIR + "/strains", "1", "hsssFindPolymorphisms", "", "0.8", "Pf3D7_01_v3"),
+            WORKER_JOB_DIR);
+        Assert.assertTrue(command.get(0).endsWith("/bin/hsssGeneratePolymorphismScript"));
+        Assert.assertEquals(Arrays.asList("--partition=1", "--partitions=2", "--read_freq=80",
+            "/data/apiSiteFiles/Pf/highSpeedSnpSearch/readFreq80", WORKER_JOB_DIR.getPath(),
+            WORKER_JOB_DIR.getPath() + "/strains", "1", "hsssFindPolymorphisms", "", "0.8", "Pf3D7_01_v3"),
+            command.subList(1, command.size()));
+    }
+
+    @Test
+    public void testWrongSecret() {
+        assertRefused(request("guess", "hsssGeneratePolymorphismScript", PLUGIN_JOB_DIR), "secret");
+        assertRefused(request("", "hsssGeneratePolymorphismScript", PLUGIN_JOB_DIR), "secret");
+    }
+
+    @Test
+    public void testNotAGenerator() {
+        assertRefused(request("s3cret", "/bin/bash", "-c", "id"), "generator");
+        assertRefused(request("s3cret", "hsssGenerate/../../bin/shScript", PLUGIN_JOB_DIR), "generator");
+    }
+
+    @Test
+    public void testShellCharacters() {
+        for (String arg : new String[] { "x;id", "$(id)", "`id`", "a b", "x|id", "x>y", "--read_freq=80;id" })
+            assertRefused(request("s3cret", "hsssGeneratePolymorphismScript", PLUGIN_JOB_DIR, arg), "shell");
+    }
+
+    @Test
+    public void testPathsOutsideRoots() {
+        for (String arg : new String[] { "/etc/passwd", "/data/apiSiteFiles/../../etc", "/data/apiSiteFiles",
+            "/data/apiSiteFilesX/Pf", "relative/path", "--merged_stream_cache=/tmp/stream", PLUGIN_JOB_DIR + "/../x" })
+            assertRefused(request("s3cret", "hsssGeneratePolymorphismScript", PLUGIN_JOB_DIR, arg), "path");
+    }
+
+    private static Request request(String secret, String... command) {
+        return new Request(secret, PLUGIN_JOB_DIR, "hsssFindPolymorphisms", Arrays.asList(command),
+            Collections.emptyMap(), 1, 60, 60);
+    }
+
+    private void assertRefused(Request request, String message) {
+        try {
+            worker.getCommand(request, WORKER_JOB_DIR);
+            Assert.fail("Expected the job to be refused: " + request.getCommand());
+        }
+        catch (PluginModelException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Keys, saves and evicts cached search results.
+ */
+public class ResultCacheTest {
+
+    private File jobsDir;
+
+    @Before
+    public void setUp() throws Exception {
+        jobsDir = Files.createTempDirectory("resultCacheTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        JobsDirJanitor.delete(jobsDir);
+    }
+
+    /**
+     * The same search, run in another job dir, with its options in another order, partitioned, and its strains listed
+     * in another order, has the same key.
+     */
+    @Test
+    public void testKeyIsCanonical() throws Exception {
+        File jobDir1 = jobDir("hsssPolymorphisms.1", "strain 3\nstrain 1\n");
+        File jobDir2 = jobDir("hsssPolymorphisms.2", "strain 1\nstrain 3\n\n");
+        String key1 = ResultCache.getKey("search", Arrays.asList("/gus/bin/hsssGeneratePolymorphismScript",
+            "--minPercent=20", "--unknowns=2", jobDir1.getPath(), jobDir1.getPath() + "/strains"), jobDir1, "68");
+        String key2 = ResultCache.getKey("search", Arrays.asList("/gus/bin/hsssGeneratePolymorphismScript",
+            "--partitions=4", "--unknowns=2", "--minPercent=20", jobDir2.getPath(), jobDir2.getPath() + "/strains"),
+            jobDir2, "68");
+        Assert.assertEquals(key1, key2);
+
+        // but not in another build, with other options, or other strains
+        Assert.assertNotEquals(key1, ResultCache.getKey("search", Arrays.asList("/gus/bin/hsssGeneratePolymorphismScript",
+            "--minPercent=20", "--unknowns=2", jobDir1.getPath(), jobDir1.getPath() + "/strains"), jobDir1, "69"));
+        Assert.assertNotEquals(key1, ResultCache.getKey("search", Arrays.asList("/gus/bin/hsssGeneratePolymorphismScript",
+            "--minPercent=30", "--unknowns=2", jobDir1.getPath(), jobDir1.getPath() + "/strains"), jobDir1, "68"));
+        File jobDir3 = jobDir("hsssPolymorphisms.3", "strain 1\nstrain 2\n");
+        Assert.assertNotEquals(key1, ResultCache.getKey("search", Arrays.asList("/gus/bin/hsssGeneratePolymorphismScript",
+            "--minPercent=20", "--unknowns=2", jobDir3.getPath(), jobDir3.getPath() + "/strains"), jobDir3, "68"));
+    }
+
+    @Test
+    public void testCommitAndDiscard() throws Exception {
+        ResultCache cache = new ResultCache(jobsDir, 10, 60000);
+        Assert.assertNull(cache.getResult("a"));
+
+        try (ResultCache.PendingResult pending = cache.newResult("a", "job1")) {
+            read(pending.tee(new ByteArrayInputStream(bytes("snp1\nsnp2\n"))));
+            pending.commit();
+        }
+        File result = cache.getResult("a");
+        Assert.assertNotNull(result);
+        Assert.assertEquals("snp1\nsnp2\n", new String(Files.readAllBytes(result.toPath()), StandardCharsets.UTF_8));
+
+        // a job that fails is not cached
+        try (ResultCache.PendingResult pending = cache.newResult("b", "job2")) {
+            read(pending.tee(new ByteArrayInputStream(bytes("snp1\n"))));
+        }
+        Assert.assertNull(cache.getResult("b"));
+        Assert.assertEquals(1, new File(jobsDir, "resultCache").list().length);
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        ResultCache cache = new ResultCache(jobsDir, 1, 60 * 60 * 1000);
+        byte[] halfMegabyte = new byte[512 * 1024];
+        long now = System.currentTimeMillis();
+        for (String key : Arrays.asList("old", "lru", "mru", "new")) {
+            try (ResultCache.PendingResult pending = cache.newResult(key, "job")) {
+                read(pending.tee(new ByteArrayInputStream(halfMegabyte)));
+                pending.commit();
+            }
+        }
+        setAge("old", now - 2 * 60 * 60 * 1000);
+        setAge("lru", now - 3 * 60 * 1000);
+        setAge("mru", now - 2 * 60 * 1000);
+        setAge("new", now - 1 * 60 * 1000);
+
+        // the old one is expired, and then the least recently used goes, to fit in 1 MB
+        cache.evict();
+        Assert.assertNull(cache.getResult("old"));
+        Assert.assertNull(cache.getResult("lru"));
+        Assert.assertNotNull(cache.getResult("mru"));
+        Assert.assertNotNull(cache.getResult("new"));
+    }
+
+    private File jobDir(String name, String strains) throws Exception {
+        File jobDir = new File(jobsDir, name);
+        jobDir.mkdirs();
+        Files.write(new File(jobDir, "strains").toPath(), bytes(strains));
+        return jobDir;
+    }
+
+    private void setAge(String key, long lastModified) {
+        new File(new File(jobsDir, "resultCache"), key + ".result").setLastModified(lastModified);
+    }
+
+    private static void read(InputStream in) throws Exception {
+        byte[] buffer = new byte[1000];
+        while (in.read(buffer) != -1);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
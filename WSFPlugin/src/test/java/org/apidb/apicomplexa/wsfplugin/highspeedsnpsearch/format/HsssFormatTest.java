@@ -0,0 +1,251 @@
+package org.apidb.apicomplexa.wsfplugin.highspeedsnpsearch.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips the HighSpeedSnpSearch test fixtures through the readers and writers.
+ */
+public class HsssFormatTest {
+
+    private static final File TEST_DIR = new File("../HighSpeedSnpSearch/test");
+    private static final File STRAIN_FILES_DIR = new File(TEST_DIR, "TestDB/Hsapiens123/highSpeedSnpSearch/readFreq80");
+    private static final File TEXT_DIR = new File(TEST_DIR, "textData");
+    private static final File EXPECTED_DIR = new File(TEST_DIR, "expected");
+
+    private File tempDir;
+
+    @Before
+    public void makeTempDir() throws IOException {
+        tempDir = Files.createTempDirectory("hsssFormatTest").toFile();
+    }
+
+    @After
+    public void removeTempDir() throws IOException {
+        try (Stream<java.nio.file.Path> paths = Files.walk(tempDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * The binary strain files hold the rows of their text versions.
+     */
+    @Test
+    public void testStrainFilesMatchText() throws Exception {
+        for (int strain = 1; strain <= 4; strain++)
+            Assert.assertEquals(readText(new File(TEXT_DIR, "strain" + strain + ".txt")),
+                readStrainRows(new File(STRAIN_FILES_DIR, "" + strain)));
+    }
+
+    /**
+     * Version 1 files are rewritten byte for byte.  Version 2 files, with any block size, read back the same rows.
+     */
+    @Test
+    public void testStrainFileRoundTrip() throws Exception {
+        for (String name : new String[] { "1", "2", "3", "4", "referenceGenome.dat" }) {
+            File original = new File(STRAIN_FILES_DIR, name);
+            List<String> rows = readStrainRows(original);
+
+            File version1 = new File(tempDir, name + ".v1");
+            writeStrainRows(rows, version1, 1, 0);
+            Assert.assertArrayEquals(Files.readAllBytes(original.toPath()), Files.readAllBytes(version1.toPath()));
+
+            for (int blockRows : new int[] { 1, 2, 3, StrainFileWriter.DEFAULT_BLOCK_ROWS }) {
+                File version2 = new File(tempDir, name + ".v2." + blockRows);
+                writeStrainRows(rows, version2, 2, blockRows);
+                StrainFileReader reader = StrainFileReader.open(version2);
+                Assert.assertEquals(2, reader.getVersion());
+                Assert.assertEquals(rows, readStrainRows(version2));
+                Assert.assertTrue(version2.length() < original.length() + 4 + 20 * rows.size());
+            }
+        }
+    }
+
+    /**
+     * Alleles and products that don't fit the packed byte are escaped.
+     */
+    @Test
+    public void testStrainFileEscapes() throws Exception {
+        List<String> rows = Arrays.asList("1\t5\t0\t0", "1\t5\t7\t65", "1\t200\t-1\t-1", "1\t100000\t2\t97",
+            "1\t2147483647\t4\t42", "2\t-3\t3\t90");
+        File version2 = new File(tempDir, "escapes");
+        writeStrainRows(rows, version2, 2, 4);
+        Assert.assertEquals(rows, readStrainRows(version2));
+    }
+
+    /**
+     * Seeking finds the first row at or after a location, in either version.
+     */
+    @Test
+    public void testStrainFileSeek() throws Exception {
+        File original = new File(STRAIN_FILES_DIR, "referenceGenome.dat");
+        List<String> rows = readStrainRows(original);
+        File version2 = new File(tempDir, "referenceGenome.v2");
+        writeStrainRows(rows, version2, 2, 2);
+
+        List<int[]> targets = new ArrayList<>();
+        targets.add(new int[] { Short.MIN_VALUE, Integer.MIN_VALUE });
+        targets.add(new int[] { Short.MAX_VALUE, Integer.MAX_VALUE });
+        for (String row : rows) {
+            String[] columns = row.split("\t");
+            int seq = Integer.parseInt(columns[0]);
+            int location = Integer.parseInt(columns[1]);
+            for (int delta = -1; delta <= 1; delta++)
+                targets.add(new int[] { seq, location + delta });
+            targets.add(new int[] { seq + 1, 0 });
+        }
+
+        for (File file : new File[] { original, version2 }) {
+            StrainFileReader reader = StrainFileReader.open(file);
+            for (int[] target : targets) {
+                String expected = rows.stream().filter(row -> compare(row, target) >= 0).findFirst().orElse(null);
+                reader.seek((short) target[0], target[1]);
+                Assert.assertEquals(file + " " + Arrays.toString(target), expected,
+                    reader.next() ? formatStrainRow(reader) : null);
+            }
+        }
+    }
+
+    @Test
+    public void testMergedStreamRoundTrip() throws Exception {
+        List<String> rows = readText(new File(EXPECTED_DIR, "mergeStrains.txt"));
+        File file = new File(tempDir, "merged");
+        try (MergedStreamWriter writer = new MergedStreamWriter(file)) {
+            for (String row : rows) {
+                String[] columns = row.split("\t");
+                writer.write(Short.parseShort(columns[0]), Integer.parseInt(columns[1]), Byte.parseByte(columns[2]),
+                    Byte.parseByte(columns[3]), Short.parseShort(columns[4]));
+            }
+        }
+        Assert.assertEquals(rows.size() * MergedStreamReader.ROW_SIZE, file.length());
+
+        MergedStreamReader reader = new MergedStreamReader(file);
+        Assert.assertEquals(rows, readMergedRows(reader));
+        Assert.assertEquals(rows.size(), reader.getRowCount());
+
+        reader.seek((short) 100, 23);
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(rows.get(1), formatMergedRow(reader));
+        reader.seek((short) 103, 8);
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(rows.get(6), formatMergedRow(reader));
+        reader.seek((short) 103, 7);
+        Assert.assertTrue(reader.next());
+        Assert.assertTrue(reader.isUnknownCount());
+        reader.seek((short) 105, 0);
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void testConsensusRoundTrip() throws Exception {
+        for (String name : new String[] { "mergeStrainsConsensus.txt", "mergeStrainsConsensus2.txt" }) {
+            List<String> rows = readText(new File(EXPECTED_DIR, name));
+            File file = new File(tempDir, name + ".bin");
+            try (ConsensusWriter writer = new ConsensusWriter(file)) {
+                for (String row : rows) {
+                    String[] c = row.split("\t");
+                    writer.write(Short.parseShort(c[0]), Integer.parseInt(c[1]), Byte.parseByte(c[2]),
+                        Byte.parseByte(c[3]), !c[4].equals("0"), Byte.parseByte(c[5]), Byte.parseByte(c[6]),
+                        !c[7].equals("0"), Short.parseShort(c[8]), Short.parseShort(c[9]), !c[10].equals("0"));
+                }
+            }
+            Assert.assertEquals(rows.size() * ConsensusReader.ROW_SIZE, file.length());
+
+            ConsensusReader reader = new ConsensusReader(file);
+            List<String> read = new ArrayList<>();
+            while (reader.next())
+                read.add(formatConsensusRow(reader));
+            Assert.assertEquals(rows, read);
+
+            String last = rows.get(rows.size() - 1);
+            String[] lastColumns = last.split("\t");
+            reader.seek(Short.parseShort(lastColumns[0]), Integer.parseInt(lastColumns[1]));
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(last, formatConsensusRow(reader));
+            Assert.assertFalse(reader.next());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedRowsRejected() throws Exception {
+        try (StrainFileWriter writer = new StrainFileWriter(new File(tempDir, "unsorted"), 2)) {
+            writer.write((short) 2, 10, (byte) 1, (byte) 0);
+            writer.write((short) 1, 20, (byte) 1, (byte) 0);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFileRejected() throws Exception {
+        File file = new File(tempDir, "truncated");
+        Files.write(file.toPath(), new byte[] { 1, 0, 5, 0, 0 });
+        StrainFileReader.open(file);
+    }
+
+    private static int compare(String row, int[] target) {
+        String[] columns = row.split("\t");
+        int seq = Integer.parseInt(columns[0]);
+        return seq != target[0] ? Integer.compare(seq, target[0])
+            : Integer.compare(Integer.parseInt(columns[1]), target[1]);
+    }
+
+    private static List<String> readText(File file) throws IOException {
+        List<String> rows = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath()))
+            if (!line.trim().isEmpty())
+                rows.add(line.trim());
+        return rows;
+    }
+
+    private static List<String> readStrainRows(File file) throws IOException {
+        StrainFileReader reader = StrainFileReader.open(file);
+        List<String> rows = new ArrayList<>();
+        while (reader.next())
+            rows.add(formatStrainRow(reader));
+        return rows;
+    }
+
+    private static void writeStrainRows(List<String> rows, File file, int version, int blockRows) throws IOException {
+        try (StrainFileWriter writer = new StrainFileWriter(file, version, version == 2 ? blockRows : 1)) {
+            for (String row : rows) {
+                String[] columns = row.split("\t");
+                writer.write(Short.parseShort(columns[0]), Integer.parseInt(columns[1]), Byte.parseByte(columns[2]),
+                    Byte.parseByte(columns[3]));
+            }
+        }
+    }
+
+    private static List<String> readMergedRows(MergedStreamReader reader) {
+        List<String> rows = new ArrayList<>();
+        while (reader.next())
+            rows.add(formatMergedRow(reader));
+        return rows;
+    }
+
+    private static String formatStrainRow(StrainFileReader reader) {
+        return reader.getSeq() + "\t" + reader.getLocation() + "\t" + reader.getAllele() + "\t" + reader.getProduct();
+    }
+
+    private static String formatMergedRow(MergedStreamReader reader) {
+        return reader.getSeq() + "\t" + reader.getLocation() + "\t" + reader.getAllele() + "\t" + reader.getProduct() +
+            "\t" + reader.getStrain();
+    }
+
+    private static String formatConsensusRow(ConsensusReader reader) {
+        return reader.getSeq() + "\t" + reader.getLocation() + "\t" + reader.getMajorAllele() + "\t" +
+            reader.getMajorProduct() + "\t" + (reader.isMajorProductVariable() ? 1 : 0) + "\t" +
+            reader.getMinorAllele() + "\t" + reader.getMinorProduct() + "\t" + (reader.isMinorProductVariable() ? 1 : 0) +
+            "\t" + reader.getMajorAllelePerTenThousand() + "\t" + reader.getMinorAllelePerTenThousand() + "\t" +
+            (reader.isTriallelic() ? 1 : 0);
+    }
+}
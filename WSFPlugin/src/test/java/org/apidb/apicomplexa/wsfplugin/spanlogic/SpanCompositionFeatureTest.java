@@ -0,0 +1,82 @@
+package org.apidb.apicomplexa.wsfplugin.spanlogic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.Feature;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A feature counts all its matches, but keeps only the regions that fit in the column, with the same result as
+ * formatting all of them and truncating, whether the matches are added one by one or merged from sequences.
+ */
+public class SpanCompositionFeatureTest {
+
+    @Test
+    public void testSameAsUnbounded() {
+        Random random = new Random(50);
+        for (int trial = 0; trial < 200; trial++) {
+            List<Feature> references = randomReferences(random, random.nextInt(random.nextBoolean() ? 20 : 1000));
+
+            // one match per gene, all formatted, then truncated
+            List<Feature> kept = new ArrayList<>();
+            Feature previous = null;
+            for (Feature reference : references) {
+                if (previous == null || reference.geneSourceId.equals("dontcare") ||
+                    !reference.geneSourceId.equals(previous.geneSourceId))
+                    kept.add(reference);
+                previous = reference;
+            }
+            StringBuilder builder = new StringBuilder();
+            for (Feature fr : kept) {
+                if (builder.length() > 0) builder.append("; ");
+                String srcId = fr.geneSourceId.equals("dontcare") ? fr.sourceId : fr.geneSourceId;
+                builder.append(srcId + ": " + fr.getBegin() + " - " + fr.getEnd() + " (" + fr.getReversed() + ")");
+            }
+            String expected = builder.toString();
+            if (expected.length() > 4000)
+                expected = expected.substring(0, 3997) + "...";
+
+            Feature serial = new Feature();
+            for (Feature reference : references)
+                serial.addMatch(reference);
+            Assert.assertEquals(kept.size(), serial.matchedCount);
+            Assert.assertEquals(expected, serial.getMatchedRegions());
+
+            // split as the index engine's sequences would be, some with no matches
+            Feature merged = new Feature();
+            for (int from = 0; from < references.size();) {
+                int to = Math.min(references.size(), from + random.nextInt(random.nextBoolean() ? 5 : 500));
+                Feature sequence = new Feature();
+                for (Feature reference : references.subList(from, to))
+                    sequence.addMatch(reference);
+                merged.addMatches(sequence);
+                from = to;
+            }
+            Assert.assertEquals(kept.size(), merged.matchedCount);
+            Assert.assertEquals(expected, merged.getMatchedRegions());
+
+            serial.clearMatches();
+            Assert.assertEquals(0, serial.matchedCount);
+            Assert.assertEquals("", serial.getMatchedRegions());
+        }
+    }
+
+    // transcripts of a few genes, in runs, or features that aren't genes, with ids of varied length
+    private static List<Feature> randomReferences(Random random, int count) {
+        boolean genes = random.nextBoolean();
+        List<Feature> references = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Feature reference = new Feature();
+            reference.sourceId = "f" + i + (random.nextInt(20) == 0 ? "-with-a-much-longer-source-id" : "");
+            reference.geneSourceId = genes ? "g" + random.nextInt(3) : "dontcare";
+            reference.begin = random.nextInt(2000000) - 1000;
+            reference.end = reference.begin + random.nextInt(5000);
+            reference.reversed = random.nextBoolean();
+            references.add(reference);
+        }
+        return references;
+    }
+}
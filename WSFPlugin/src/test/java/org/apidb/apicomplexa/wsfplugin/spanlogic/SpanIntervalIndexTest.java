@@ -0,0 +1,204 @@
+package org.apidb.apicomplexa.wsfplugin.spanlogic;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.Feature;
+import org.apidb.apicomplexa.wsfplugin.spanlogic.SpanSweepJoin.MatchHandler;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Finds locations in the interval tree as a scan would, and joins by the index as the sweep join does.
+ */
+public class SpanIntervalIndexTest {
+
+    private static final Comparator<Feature> LOCATION_ORDER = Comparator
+        .comparing((Feature f) -> f.sequenceSourceId).thenComparingInt(f -> f.begin).thenComparingInt(f -> f.end)
+        .thenComparing(f -> f.reversed).thenComparing(f -> f.sourceId);
+
+    @Test
+    public void testFindOverlaps() {
+        Random random = new Random(48);
+        // sizes around the powers of two, where the tree's last subtree is partial
+        for (int n : new int[] { 1, 2, 3, 7, 8, 9, 15, 16, 17, 31, 33, 100, 255, 256, 257, 1000, 5000 }) {
+            List<Feature> locations = randomLocations(random, "f", n, 1, n * 10);
+            SpanIntervalIndex index = build(locations);
+            Assert.assertEquals(n, index.size());
+            for (int query = 0; query < 200; query++) {
+                int begin = random.nextInt(n * 10 + 200) - 100;
+                int end = begin + random.nextInt(random.nextBoolean() ? 10 : 1000);
+                List<Integer> expected = new ArrayList<>();
+                for (int row = 0; row < n; row++)
+                    if (index.getStart(row) <= end && index.getEnd(row) >= begin)
+                        expected.add(row);
+                List<Integer> actual = new ArrayList<>();
+                index.findOverlaps(0, begin, end, actual::add);
+                Assert.assertEquals(n + " " + begin + "-" + end, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testFindRows() {
+        SpanIntervalIndex.Builder builder = new SpanIntervalIndex.Builder("1");
+        builder.add("g2", "chr1", 10, 20, false);
+        builder.add("g1", "chr1", 15, 30, true);
+        builder.add("g1", "chr1", 15, 30, true); // a duplicate location
+        builder.add("g2", "chr2", 5, 8, false);
+        SpanIntervalIndex index = builder.build();
+        Assert.assertEquals(3, index.size());
+
+        int row = index.findRow("g2");
+        Assert.assertEquals("chr1", index.getSequence(row));
+        row = index.nextRow(row);
+        Assert.assertEquals("chr2", index.getSequence(row));
+        Assert.assertEquals(5, index.getStart(row));
+        Assert.assertEquals(-1, index.nextRow(row));
+        Assert.assertEquals("g1", index.getId(index.findRow("g1")));
+        Assert.assertTrue(index.isReversed(index.findRow("g1")));
+        Assert.assertEquals(-1, index.findRow("g3"));
+        Assert.assertEquals(1, index.findSequence("chr2"));
+        Assert.assertEquals(-1, index.findSequence("chr3"));
+    }
+
+    @Test
+    public void testSameAsSweepJoin() throws Exception {
+        Random random = new Random(480);
+        for (int trial = 0; trial < 20; trial++) {
+            SpanIntervalIndex indexA = build(randomLocations(random, "a", 300, 3, 2000));
+            SpanIntervalIndex indexB = build(randomLocations(random, "b", 500, 3, 2000));
+            // some of the features of each index, some with two records
+            List<Feature> recordsA = randomRecords(random, "a", 300, 100);
+            List<Feature> recordsB = randomRecords(random, "b", 500, 400);
+            Locator locatorA = new Locator(random.nextInt(100) - 50, random.nextInt(100) - 50, random.nextBoolean());
+            Locator locatorB = new Locator(random.nextInt(100) - 50, random.nextInt(100) - 50, random.nextBoolean());
+            SpanIndexJoin.Operand operandA = new SpanIndexJoin.Operand(indexA, recordsA, false, locatorA);
+            SpanIndexJoin.Operand operandB = new SpanIndexJoin.Operand(indexB, recordsB, false, locatorB);
+            List<Feature> locatedA = locate(indexA, recordsA, locatorA);
+            List<Feature> locatedB = locate(indexB, recordsB, locatorB);
+
+            for (String operation : new String[] { SpanCompositionPlugin.PARAM_VALUE_OVERLAP,
+                SpanCompositionPlugin.PARAM_VALUE_A_CONTAIN_B, SpanCompositionPlugin.PARAM_VALUE_B_CONTAIN_A }) {
+                SpanSweepJoin sweepJoin = new SpanSweepJoin(operation,
+                    SpanCompositionPlugin.PARAM_VALUE_SAME_STRAND, false);
+                List<String> expected = new ArrayList<>();
+                Iterator<Feature> itA = locatedA.iterator();
+                Iterator<Feature> itB = locatedB.iterator();
+                sweepJoin.join(() -> itA.hasNext() ? itA.next() : null, () -> itB.hasNext() ? itB.next() : null,
+                    (a, b) -> expected.add(a.sourceId + "/" + a.projectId + "/" + b.sourceId + "/" + b.projectId +
+                        " " + a.begin + " " + b.begin));
+
+                Pairs actual = new Pairs();
+                new SpanIndexJoin(sweepJoin).join(operandA, operandB, actual);
+
+                // a sequence per task, in order, is the same as all at once
+                List<String> parallel = new ArrayList<>();
+                for (Pairs pairs : new SpanIndexJoin(sweepJoin).join(operandA, operandB, Pairs::new,
+                    ForkJoinPool.commonPool()))
+                    parallel.addAll(pairs);
+                Assert.assertEquals(operation, actual, parallel);
+
+                expected.sort(null);
+                actual.sort(null);
+                Assert.assertEquals(operation, expected, actual);
+            }
+        }
+    }
+
+    private static class Pairs extends ArrayList<String> implements MatchHandler {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void match(Feature a, Feature b) {
+            add(a.sourceId + "/" + a.projectId + "/" + b.sourceId + "/" + b.projectId + " " + a.begin + " " + b.begin);
+        }
+    }
+
+    // the span sql's derived region, with the upstream offsets negated
+    private static class Locator implements SpanIndexJoin.Locator {
+        private final int beginOff;
+        private final int endOff;
+        private final boolean endAtStart;
+
+        private Locator(int beginOff, int endOff, boolean endAtStart) {
+            this.beginOff = beginOff;
+            this.endOff = endOff;
+            this.endAtStart = endAtStart;
+        }
+
+        @Override
+        public void locate(Feature feature, int startMin, int endMax, boolean isReversed) {
+            feature.reversed = isReversed;
+            if (!isReversed) {
+                feature.begin = startMin + beginOff;
+                feature.end = (endAtStart ? startMin : endMax) + endOff;
+            }
+            else {
+                feature.begin = (endAtStart ? endMax : startMin) - endOff;
+                feature.end = endMax - beginOff;
+            }
+        }
+
+        @Override
+        public int getMaxOffset() {
+            return Math.max(Math.abs(beginOff), Math.abs(endOff));
+        }
+    }
+
+    private static List<Feature> randomLocations(Random random, String prefix, int count, int sequences, int length) {
+        List<Feature> locations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Feature location = new Feature();
+            location.sourceId = prefix + random.nextInt(count);
+            location.sequenceSourceId = "chr" + random.nextInt(sequences);
+            location.begin = random.nextInt(length);
+            location.end = location.begin + random.nextInt(random.nextInt(8) == 0 ? length / 4 + 1 : 50);
+            location.reversed = random.nextBoolean();
+            locations.add(location);
+        }
+        locations.sort(LOCATION_ORDER);
+        return locations;
+    }
+
+    private static SpanIntervalIndex build(List<Feature> locations) {
+        SpanIntervalIndex.Builder builder = new SpanIntervalIndex.Builder("1");
+        for (Feature location : locations)
+            builder.add(location.sourceId, location.sequenceSourceId, location.begin, location.end,
+                location.reversed);
+        return builder.build();
+    }
+
+    private static List<Feature> randomRecords(Random random, String prefix, int ids, int count) {
+        List<Feature> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Feature record = new Feature();
+            record.sourceId = prefix + random.nextInt(ids);
+            record.geneSourceId = "dontcare";
+            record.projectId = "Project" + random.nextInt(2);
+            records.add(record);
+        }
+        return records;
+    }
+
+    // the records' features, as the sorted span sql of the sweep engine would read them
+    private static List<Feature> locate(SpanIntervalIndex index, List<Feature> records, Locator locator) {
+        List<Feature> features = new ArrayList<>();
+        for (Feature record : records)
+            for (int row = index.findRow(record.sourceId); row >= 0; row = index.nextRow(row)) {
+                Feature feature = new Feature();
+                feature.sourceId = record.sourceId;
+                feature.geneSourceId = record.geneSourceId;
+                feature.projectId = record.projectId;
+                feature.sequenceSourceId = index.getSequence(row);
+                locator.locate(feature, index.getStart(row), index.getEnd(row), index.isReversed(row));
+                features.add(feature);
+            }
+        features.sort(Comparator.comparing((Feature f) -> f.sequenceSourceId).thenComparingInt(f -> f.begin));
+        return features;
+    }
+}
@@ -0,0 +1,93 @@
+package org.apidb.apicomplexa.wsfplugin.spanlogic;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apidb.apicomplexa.wsfplugin.spanlogic.SpanCompositionPlugin.Feature;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The sweep join finds the same pairs as the nested loop join of composeSql's predicates.
+ */
+public class SpanSweepJoinTest {
+
+    private static final String[] OPERATIONS = { SpanCompositionPlugin.PARAM_VALUE_OVERLAP,
+        SpanCompositionPlugin.PARAM_VALUE_A_CONTAIN_B, SpanCompositionPlugin.PARAM_VALUE_B_CONTAIN_A };
+
+    private static final String[] STRANDS = { SpanCompositionPlugin.PARAM_VALUE_BOTH_STRANDS,
+        SpanCompositionPlugin.PARAM_VALUE_SAME_STRAND, SpanCompositionPlugin.PARAM_VALUE_OPPOSITE_STRANDS };
+
+    @Test
+    public void testSameAsNestedLoop() throws Exception {
+        Random random = new Random(46);
+        for (int trial = 0; trial < 20; trial++) {
+            List<Feature> setA = randomFeatures(random, "a", 200);
+            List<Feature> setB = randomFeatures(random, "b", 300);
+            for (String operation : OPERATIONS)
+                for (String strand : STRANDS)
+                    for (boolean hasSnp : new boolean[] { false, true }) {
+                        SpanSweepJoin join = new SpanSweepJoin(operation, strand, hasSnp);
+                        TreeSet<String> expected = new TreeSet<>();
+                        for (Feature a : setA)
+                            for (Feature b : setB)
+                                if (a.sequenceSourceId.equals(b.sequenceSourceId) && a.begin <= a.end &&
+                                    b.begin <= b.end && matches(operation, strand, hasSnp, a, b))
+                                    expected.add(a.sourceId + "/" + b.sourceId);
+
+                        List<String> actual = new ArrayList<>();
+                        Iterator<Feature> itA = setA.iterator();
+                        Iterator<Feature> itB = setB.iterator();
+                        join.join(() -> itA.hasNext() ? itA.next() : null, () -> itB.hasNext() ? itB.next() : null,
+                            (a, b) -> actual.add(a.sourceId + "/" + b.sourceId));
+
+                        Assert.assertEquals(operation + " " + strand + " " + hasSnp, expected.size(), actual.size());
+                        Assert.assertEquals(operation + " " + strand + " " + hasSnp, expected, new TreeSet<>(actual));
+                    }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnsorted() throws Exception {
+        List<Feature> set = randomFeatures(new Random(1), "a", 10);
+        set.add(0, set.remove(set.size() - 1));
+        Iterator<Feature> it = set.iterator();
+        new SpanSweepJoin(SpanCompositionPlugin.PARAM_VALUE_OVERLAP, SpanCompositionPlugin.PARAM_VALUE_BOTH_STRANDS,
+            false).join(() -> it.hasNext() ? it.next() : null, () -> null, (a, b) -> {});
+    }
+
+    // composeSql's predicates
+    private static boolean matches(String operation, String strand, boolean hasSnp, Feature a, Feature b) {
+        if (!hasSnp && strand.equals(SpanCompositionPlugin.PARAM_VALUE_SAME_STRAND) && a.reversed != b.reversed)
+            return false;
+        if (!hasSnp && strand.equals(SpanCompositionPlugin.PARAM_VALUE_OPPOSITE_STRANDS) && a.reversed == b.reversed)
+            return false;
+        if (operation.equals(SpanCompositionPlugin.PARAM_VALUE_OVERLAP))
+            return a.begin <= b.end && a.end >= b.begin;
+        if (operation.equals(SpanCompositionPlugin.PARAM_VALUE_A_CONTAIN_B))
+            return a.begin <= b.begin && a.end >= b.end;
+        return a.begin >= b.begin && a.end <= b.end;
+    }
+
+    // features on a few short sequences, so that many overlap, with some inverted by their offsets, sorted
+    private static List<Feature> randomFeatures(Random random, String prefix, int count) {
+        List<Feature> features = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Feature feature = new Feature();
+            feature.sourceId = prefix + i;
+            feature.geneSourceId = "dontcare";
+            feature.sequenceSourceId = "chr" + random.nextInt(3);
+            feature.begin = random.nextInt(1000);
+            feature.end = random.nextInt(10) == 0 ? feature.begin - 1 - random.nextInt(20)
+                : feature.begin + random.nextInt(random.nextBoolean() ? 10 : 100);
+            feature.reversed = random.nextBoolean();
+            features.add(feature);
+        }
+        features.sort(Comparator.comparing((Feature f) -> f.sequenceSourceId).thenComparingInt(f -> f.begin));
+        return features;
+    }
+}